@@ -0,0 +1,58 @@
+package com.huohaodong.octopus.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 在 JMH 命令行参数的基础上默认开启 GC Profiler，输出每次操作的内存分配量。
+ * -threads 指定一组线程数，每个线程数各运行一轮，指定了结果文件时每轮写入文件名带 -t 线程数后缀的文件。
+ * 例如：java -jar octopus-benchmarks.jar CTrieBenchmark -p trieSize=100000 -threads 1,4,8
+ */
+public class BenchmarkRunner {
+
+    private static final String THREADS_OPTION = "-threads";
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        List<String> jmhArgs = new ArrayList<>();
+        int[] threads = null;
+        for (int i = 0; i < args.length; i++) {
+            if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length) {
+                threads = Arrays.stream(args[++i].split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+            } else {
+                jmhArgs.add(args[i]);
+            }
+        }
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs.toArray(String[]::new));
+        if (threads == null) {
+            new Runner(options(commandLine).build()).run();
+            return;
+        }
+        for (int count : threads) {
+            ChainedOptionsBuilder options = options(commandLine).threads(count);
+            if (commandLine.getResult().hasValue()) {
+                options.result(withSuffix(commandLine.getResult().get(), "-t" + count));
+            }
+            new Runner(options.build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(CommandLineOptions commandLine) {
+        return new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class);
+    }
+
+    private static String withSuffix(String file, String suffix) {
+        int dot = file.lastIndexOf('.');
+        return dot > file.lastIndexOf('/') ? file.substring(0, dot) + suffix + file.substring(dot) : file + suffix;
+    }
+}
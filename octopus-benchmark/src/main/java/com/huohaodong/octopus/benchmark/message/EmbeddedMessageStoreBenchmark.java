@@ -0,0 +1,82 @@
+package com.huohaodong.octopus.benchmark.message;
+
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.store.EmbeddedMessageStore;
+import com.huohaodong.octopus.common.persistence.store.FsyncPolicy;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 一条 QoS 1 消息在 EmbeddedMessageStore 中的完整生命周期：写入未完成消息，收到 PUBACK 后删除，两次写入都等待返回的 CompletableFuture。
+ * 每个线程对应一个客户端，消息对象在 Setup 中创建，测量时只更新报文标识符。线程数由 BenchmarkRunner 的 -threads 参数指定。
+ * BATCH 下多个线程的写入共用一次刷盘，线程数越多单次刷盘分摊到的写入越多。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmbeddedMessageStoreBenchmark {
+
+    @Param({"NONE", "INTERVAL", "BATCH"})
+    FsyncPolicy fsyncPolicy;
+
+    @Param({"256"})
+    int payloadSize;
+
+    private final AtomicInteger clients = new AtomicInteger();
+
+    private Path directory;
+
+    private EmbeddedMessageStore store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("octopus-store-benchmark");
+        store = new EmbeddedMessageStore(directory, 64 * 1024 * 1024, fsyncPolicy, 100, 1, 0.5);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        PublishMessage message;
+
+        int messageId;
+
+        @Setup(Level.Trial)
+        public void setup(EmbeddedMessageStoreBenchmark benchmark) {
+            message = PublishMessage.builder()
+                    .brokerId("BENCHMARK")
+                    .clientId("client-" + benchmark.clients.incrementAndGet())
+                    .topic("benchmark/topic")
+                    .qos(MqttQoS.AT_LEAST_ONCE)
+                    .payload(new byte[benchmark.payloadSize])
+                    .build();
+        }
+    }
+
+    /* putPublishMessage 返回前已将消息编码写入日志，不会保留 PublishMessage 对象，可以复用 */
+    @Benchmark
+    public void putAndRemove(ClientState state) {
+        int messageId = state.messageId = state.messageId % 65535 + 1;
+        state.message.setMessageId(messageId);
+        store.putPublishMessage(state.message).join();
+        store.removePublishMessage("BENCHMARK", state.message.getClientId(), messageId).join();
+    }
+}
@@ -0,0 +1,103 @@
+package com.huohaodong.octopus.benchmark.message;
+
+import com.huohaodong.octopus.broker.service.message.MessageIdAllocator;
+import com.huohaodong.octopus.broker.service.message.MessageServiceImpl;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 报文标识符的申请与释放，inflight 为测量前已被占用且未释放的标识符数量。
+ * 每个线程对应一个独立的 Channel。bitmap 为 MessageIdAllocator，hashSet 为此前基于 synchronized HashSet 的实现，
+ * acquireAndRelease 还包括 MessageServiceImpl 从 Channel 属性中取得分配器的开销。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageIdBenchmark {
+
+    @Param({"0", "1000", "60000"})
+    int inflight;
+
+    /* 消息标识符的分配不涉及持久化，不需要 Repository */
+    private final MessageServiceImpl messageService = new MessageServiceImpl(null, null, null, null);
+
+    @State(Scope.Thread)
+    public static class ChannelState {
+        Channel channel;
+
+        MessageIdAllocator allocator;
+
+        HashSetMessageIdGenerator hashSetGenerator;
+
+        @Setup(Level.Trial)
+        public void setup(MessageIdBenchmark benchmark) {
+            channel = new EmbeddedChannel();
+            allocator = new MessageIdAllocator();
+            hashSetGenerator = new HashSetMessageIdGenerator();
+            for (int i = 0; i < benchmark.inflight; i++) {
+                benchmark.messageService.acquireNextMessageId(channel);
+                allocator.acquire();
+                hashSetGenerator.acquire();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public int acquireAndRelease(ChannelState state) {
+        int messageId = messageService.acquireNextMessageId(state.channel);
+        messageService.releaseMessageId(state.channel, messageId);
+        return messageId;
+    }
+
+    @Benchmark
+    public int bitmap(ChannelState state) {
+        int messageId = state.allocator.acquire();
+        state.allocator.release(messageId);
+        return messageId;
+    }
+
+    @Benchmark
+    public int hashSet(ChannelState state) {
+        int messageId = state.hashSetGenerator.acquire();
+        state.hashSetGenerator.release(messageId);
+        return messageId;
+    }
+
+    /* 原 MessageServiceImpl.MessageIdGenerator，仅用于对比 */
+    static class HashSetMessageIdGenerator {
+
+        private final int ID_MIN = 1;
+
+        private final int ID_MAX = 65536;
+
+        private final Set<Integer> ID_POOL = new HashSet<>(List.of(0));
+
+        private int CANDIDATE = ID_MIN;
+
+        public synchronized int acquire() {
+            while (ID_POOL.contains(CANDIDATE)) {
+                CANDIDATE = (CANDIDATE + 1) % ID_MAX;
+            }
+            ID_POOL.add(CANDIDATE);
+            return CANDIDATE;
+        }
+
+        public synchronized void release(int messageId) {
+            ID_POOL.remove(messageId);
+        }
+    }
+}
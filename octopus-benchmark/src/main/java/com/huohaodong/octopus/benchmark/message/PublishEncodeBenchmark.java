@@ -0,0 +1,100 @@
+package com.huohaodong.octopus.benchmark.message;
+
+import com.huohaodong.octopus.broker.protocol.mqtt.MqttPublishFanOut;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条 PUBLISH 消息转发给 N 个订阅者时的构造与编码开销。
+ * fanOut 为逐个订阅者构造 MqttPublishMessage 再由 MqttEncoder 编码，fanOutEncodeOnce 为 PublishHandler 当前使用的 MqttPublishFanOut。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishEncodeBenchmark {
+
+    @Param({"1", "100", "1000"})
+    int subscribers;
+
+    @Param({"64", "4096"})
+    int payloadSize;
+
+    @Param({"AT_MOST_ONCE", "AT_LEAST_ONCE"})
+    MqttQoS qos;
+
+    private final String topic = "site/1/area/12/line/123/device/1234";
+
+    private byte[] payload;
+
+    /* 与从 Socket 解码得到的消息体一致，使用池化的直接内存 */
+    private MessagePayload directPayload;
+
+    private EmbeddedChannel channel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        directPayload = MessagePayload.of(PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeBytes(payload));
+        channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        directPayload.release();
+    }
+
+    @Benchmark
+    public long fanOut() {
+        long bytes = 0;
+        for (int i = 0; i < subscribers; i++) {
+            int messageId = qos == MqttQoS.AT_MOST_ONCE ? 0 : (i % 65535) + 1;
+            MqttPublishMessage message = new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+                    new MqttPublishVariableHeader(topic, messageId),
+                    Unpooled.buffer().writeBytes(payload)
+            );
+            channel.writeOutbound(message);
+            bytes += drain();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long fanOutEncodeOnce() {
+        long bytes = 0;
+        MqttPublishFanOut fanOut = new MqttPublishFanOut(topic, directPayload);
+        try {
+            for (int i = 0; i < subscribers; i++) {
+                int messageId = qos == MqttQoS.AT_MOST_ONCE ? 0 : (i % 65535) + 1;
+                channel.writeOutbound(fanOut.encode(channel.alloc(), qos, messageId));
+                bytes += drain();
+            }
+        } finally {
+            fanOut.release();
+        }
+        return bytes;
+    }
+
+    private long drain() {
+        long bytes = 0;
+        ByteBuf encoded;
+        while ((encoded = channel.readOutbound()) != null) {
+            bytes += encoded.readableBytes();
+            encoded.release();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,153 @@
+package com.huohaodong.octopus.benchmark.subscription;
+
+import com.huohaodong.octopus.broker.service.subscription.CTrieSubscriptionMatcher;
+import com.huohaodong.octopus.broker.service.subscription.trie.CTrie;
+import com.huohaodong.octopus.broker.service.subscription.trie.TopicTokens;
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CTrie 订阅、取消订阅与匹配的吞吐量。
+ * 多线程时各线程共享同一棵 CTrie，线程数由 BenchmarkRunner 的 -threads 参数指定，例如 -threads 1,4,8。
+ * 测量的方法中只包含 CTrie 本身的操作，主题、订阅等对象在 Setup 中预先创建。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CTrieBenchmark {
+
+    @Param({"1000", "100000"})
+    int trieSize;
+
+    @Param({"DEEP", "WILDCARD", "FANOUT"})
+    TopicShape shape;
+
+    private CTrie ctrie;
+
+    private CTrieSubscriptionMatcher matcher;
+
+    private String[] publishTopics;
+
+    private TopicTokens[] publishTokens;
+
+    private final AtomicInteger threadSequence = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ctrie = new CTrie();
+        matcher = new CTrieSubscriptionMatcher();
+        for (int i = 0; i < trieSize; i++) {
+            Subscription subscription = new Subscription("client-" + i, shape.filter(i), MqttQoS.AT_LEAST_ONCE);
+            ctrie.addToTree(subscription);
+            matcher.subscribe(subscription);
+        }
+        publishTopics = new String[Math.min(trieSize, 4096)];
+        publishTokens = new TopicTokens[publishTopics.length];
+        for (int i = 0; i < publishTopics.length; i++) {
+            publishTopics[i] = shape.topic(ThreadLocalRandom.current().nextInt(trieSize));
+            publishTokens[i] = TopicTokens.tokenize(publishTopics[i]);
+        }
+    }
+
+    /* 每个线程使用自己的客户端标识符，订阅对象与切分后的主题过滤器预先创建，循环使用 */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        Subscription[] subscriptions;
+
+        TopicTokens[] filters;
+
+        int sequence;
+
+        @Setup(Level.Trial)
+        public void setup(CTrieBenchmark benchmark) {
+            int thread = benchmark.threadSequence.getAndIncrement();
+            subscriptions = new Subscription[Math.min(benchmark.trieSize, 4096)];
+            filters = new TopicTokens[subscriptions.length];
+            for (int i = 0; i < subscriptions.length; i++) {
+                subscriptions[i] = new Subscription("bench-" + thread + "-" + i, benchmark.shape.filter(i), MqttQoS.AT_LEAST_ONCE);
+                filters[i] = TopicTokens.tokenize(subscriptions[i].getTopic());
+            }
+        }
+    }
+
+    private int nextTopicIndex() {
+        return ThreadLocalRandom.current().nextInt(publishTopics.length);
+    }
+
+    /* 直接遍历 CTrie，不经过匹配结果缓存 */
+    @Benchmark
+    public Set<Subscription> match() {
+        return ctrie.match(publishTokens[nextTopicIndex()]);
+    }
+
+    @Benchmark
+    public Collection<Subscription> matchCached() {
+        return matcher.match(publishTopics[nextTopicIndex()]);
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribe(ThreadState state) {
+        int index = state.sequence++ % state.subscriptions.length;
+        Subscription subscription = state.subscriptions[index];
+        ctrie.addToTree(subscription, state.filters[index]);
+        ctrie.removeFromTree(subscription.getTopic(), subscription.getClientId(), state.filters[index]);
+    }
+
+    public enum TopicShape {
+        /* 8 层的设备层级，每个订阅都是精确主题 */
+        DEEP {
+            @Override
+            String filter(int i) {
+                return topic(i);
+            }
+
+            @Override
+            String topic(int i) {
+                return "site/" + (i % 8) + "/area/" + (i % 64) + "/line/" + (i % 512) + "/device/" + i;
+            }
+        },
+        /* "+" 与 "#" 混合，匹配时需要同时遍历多个分支 */
+        WILDCARD {
+            @Override
+            String filter(int i) {
+                return switch (i % 4) {
+                    case 0 -> "sensor/" + (i % 100) + "/+/state";
+                    case 1 -> "sensor/+/" + i + "/#";
+                    case 2 -> "sensor/" + (i % 100) + "/#";
+                    default -> "sensor/" + (i % 100) + "/" + i + "/state";
+                };
+            }
+
+            @Override
+            String topic(int i) {
+                return "sensor/" + (i % 100) + "/" + i + "/state";
+            }
+        },
+        /* 大量客户端订阅少数主题，单次匹配返回 trieSize / 16 个订阅 */
+        FANOUT {
+            @Override
+            String filter(int i) {
+                return topic(i);
+            }
+
+            @Override
+            String topic(int i) {
+                return "broadcast/" + (i % 16) + "/data";
+            }
+        };
+
+        abstract String filter(int i);
+
+        abstract String topic(int i);
+    }
+}
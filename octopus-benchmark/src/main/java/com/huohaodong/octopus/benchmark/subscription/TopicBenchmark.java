@@ -0,0 +1,53 @@
+package com.huohaodong.octopus.benchmark.subscription;
+
+import com.huohaodong.octopus.broker.service.subscription.trie.Token;
+import com.huohaodong.octopus.broker.service.subscription.trie.Topic;
+import com.huohaodong.octopus.broker.service.subscription.trie.TopicTokens;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主题切分与订阅主题校验的开销。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicBenchmark {
+
+    @Param({"2", "8", "16"})
+    int depth;
+
+    private String topic;
+
+    private String topicFilter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder topicBuilder = new StringBuilder("level0");
+        for (int i = 1; i < depth; i++) {
+            topicBuilder.append("/level").append(i);
+        }
+        topic = topicBuilder.toString();
+        topicFilter = topic.substring(0, topic.lastIndexOf('/')) + "/#";
+    }
+
+    @Benchmark
+    public List<Token> parseTopic() {
+        return new Topic(topic).getTokens();
+    }
+
+    @Benchmark
+    public TopicTokens tokenize() {
+        return TopicTokens.tokenize(topic);
+    }
+
+    @Benchmark
+    public boolean validateTopicFilter() {
+        return TopicTokens.tokenize(topicFilter).isValidTopicFilter();
+    }
+}
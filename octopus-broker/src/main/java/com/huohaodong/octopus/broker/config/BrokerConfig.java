@@ -1,8 +1,22 @@
 package com.huohaodong.octopus.broker.config;
 
+import com.huohaodong.octopus.broker.service.subscription.share.*;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class BrokerConfig {
 
-}
\ No newline at end of file
+    @Bean
+    @ConditionalOnMissingBean(SharedSubscriptionStrategy.class)
+    public SharedSubscriptionStrategy sharedSubscriptionStrategy(BrokerProperties brokerProperties, MessageService messageService) {
+        return switch (brokerProperties.getShare().getStrategy()) {
+            case ROUND_ROBIN -> new RoundRobinStrategy();
+            case RANDOM -> new RandomStrategy();
+            case STICKY -> new StickyStrategy();
+            case LEAST_INFLIGHT -> new LeastInflightStrategy(messageService);
+        };
+    }
+}
@@ -1,8 +1,12 @@
 package com.huohaodong.octopus.broker.config;
 
+import com.huohaodong.octopus.common.persistence.store.FsyncPolicy;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @ConfigurationProperties(prefix = "octopus.broker")
 public class BrokerProperties {
@@ -14,6 +18,28 @@ public class BrokerProperties {
 
     private Auth auth = new Auth();
 
+    private Share share = new Share();
+
+    private MatchCache matchCache = new MatchCache();
+
+    private Executor executor = new Executor();
+
+    private WriteBehind writeBehind = new WriteBehind();
+
+    private Cluster cluster = new Cluster();
+
+    private Membership membership = new Membership();
+
+    private Transport transport = new Transport();
+
+    private KeepAlive keepAlive = new KeepAlive();
+
+    private Delivery delivery = new Delivery();
+
+    private Offline offline = new Offline();
+
+    private Storage storage = new Storage();
+
     public String getId() {
         return id;
     }
@@ -46,6 +72,94 @@ public class BrokerProperties {
         this.auth = auth;
     }
 
+    public Share getShare() {
+        return share;
+    }
+
+    public void setShare(Share share) {
+        this.share = share;
+    }
+
+    public MatchCache getMatchCache() {
+        return matchCache;
+    }
+
+    public void setMatchCache(MatchCache matchCache) {
+        this.matchCache = matchCache;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public WriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(WriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    public void setMembership(Membership membership) {
+        this.membership = membership;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public KeepAlive getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(KeepAlive keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public Delivery getDelivery() {
+        return delivery;
+    }
+
+    public void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    public Offline getOffline() {
+        return offline;
+    }
+
+    public void setOffline(Offline offline) {
+        this.offline = offline;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
     public static class Auth {
         private boolean enable = false;
 
@@ -57,4 +171,650 @@ public class BrokerProperties {
             this.enable = enable;
         }
     }
+
+    public static class Share {
+        /* 共享订阅的负载均衡策略 */
+        private Strategy strategy = Strategy.ROUND_ROBIN;
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(Strategy strategy) {
+            this.strategy = strategy;
+        }
+
+        public enum Strategy {
+            ROUND_ROBIN, RANDOM, STICKY, LEAST_INFLIGHT
+        }
+    }
+
+    public static class MatchCache {
+        /* 按发布主题缓存的订阅匹配结果数上限 */
+        private int capacity = 1 << 18;
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    public static class Executor {
+        /* 处理 MQTT 报文（包括持久化操作）的线程数 */
+        private int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+        /* 等待处理的报文数超过该值时关闭新报文所属的连接 */
+        private int maxPendingTasks = 65536;
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getMaxPendingTasks() {
+            return maxPendingTasks;
+        }
+
+        public void setMaxPendingTasks(int maxPendingTasks) {
+            this.maxPendingTasks = maxPendingTasks;
+        }
+    }
+
+    public static class WriteBehind {
+        /* 未完成消息缓冲区累计多少条记录时立即提交 */
+        private int batchSize = 500;
+
+        /* 缓冲区中的记录最多等待多久提交 */
+        private long lingerMillis = 5;
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public long getLingerMillis() {
+            return lingerMillis;
+        }
+
+        public void setLingerMillis(long lingerMillis) {
+            this.lingerMillis = lingerMillis;
+        }
+    }
+
+    public static class Cluster {
+        /* 是否通过双向流批量转发发布消息，关闭时每条消息单独调用 OnEvent */
+        private boolean streamEnable = true;
+
+        private int batchMaxCount = 256;
+
+        private int batchMaxBytes = 256 * 1024;
+
+        private long batchLingerMillis = 1;
+
+        /* 每个远程 Broker 已发送但未确认的批次上限，超过后新的请求排队等待确认 */
+        private int maxInflightBatches = 64;
+
+        /* 每个远程 Broker 等待流恢复或等待确认的发布请求上限，超过后丢弃最早的请求 */
+        private int maxPendingMessages = 100000;
+
+        /* 向其他 Broker 同步本地订阅摘要的间隔 */
+        private long routeSyncIntervalMillis = 100;
+
+        /* 从服务发现刷新集群成员的间隔，Consul 服务目录变化时会立即刷新 */
+        private long peerRefreshIntervalMillis = 5000;
+
+        /* 客户端登录时等待其他 Broker 关闭其旧连接的超时时间 */
+        private long takeoverTimeoutMillis = 3000;
+
+        /* 静态的集群成员列表，非空时不使用服务发现 */
+        private List<Peer> peers = new ArrayList<>();
+
+        public boolean isStreamEnable() {
+            return streamEnable;
+        }
+
+        public void setStreamEnable(boolean streamEnable) {
+            this.streamEnable = streamEnable;
+        }
+
+        public int getBatchMaxCount() {
+            return batchMaxCount;
+        }
+
+        public void setBatchMaxCount(int batchMaxCount) {
+            this.batchMaxCount = batchMaxCount;
+        }
+
+        public int getBatchMaxBytes() {
+            return batchMaxBytes;
+        }
+
+        public void setBatchMaxBytes(int batchMaxBytes) {
+            this.batchMaxBytes = batchMaxBytes;
+        }
+
+        public long getBatchLingerMillis() {
+            return batchLingerMillis;
+        }
+
+        public void setBatchLingerMillis(long batchLingerMillis) {
+            this.batchLingerMillis = batchLingerMillis;
+        }
+
+        public int getMaxInflightBatches() {
+            return maxInflightBatches;
+        }
+
+        public void setMaxInflightBatches(int maxInflightBatches) {
+            this.maxInflightBatches = maxInflightBatches;
+        }
+
+        public int getMaxPendingMessages() {
+            return maxPendingMessages;
+        }
+
+        public void setMaxPendingMessages(int maxPendingMessages) {
+            this.maxPendingMessages = maxPendingMessages;
+        }
+
+        public long getRouteSyncIntervalMillis() {
+            return routeSyncIntervalMillis;
+        }
+
+        public void setRouteSyncIntervalMillis(long routeSyncIntervalMillis) {
+            this.routeSyncIntervalMillis = routeSyncIntervalMillis;
+        }
+
+        public long getPeerRefreshIntervalMillis() {
+            return peerRefreshIntervalMillis;
+        }
+
+        public void setPeerRefreshIntervalMillis(long peerRefreshIntervalMillis) {
+            this.peerRefreshIntervalMillis = peerRefreshIntervalMillis;
+        }
+
+        public long getTakeoverTimeoutMillis() {
+            return takeoverTimeoutMillis;
+        }
+
+        public void setTakeoverTimeoutMillis(long takeoverTimeoutMillis) {
+            this.takeoverTimeoutMillis = takeoverTimeoutMillis;
+        }
+
+        public List<Peer> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<Peer> peers) {
+            this.peers = peers;
+        }
+    }
+
+    public static class Peer {
+        private String id;
+
+        private String host;
+
+        private int port;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+    }
+
+    public static class Membership {
+        /* 是否启用内置的集群成员协议，启用后集群成员不再从服务发现中查询，服务发现只作为可选的种子节点来源 */
+        private boolean enable = false;
+
+        /* 种子节点的 gRPC 地址，格式为 host:port */
+        private List<String> seeds = new ArrayList<>();
+
+        /* 其他节点访问本节点 gRPC 服务使用的地址，默认为 octopus.broker.host */
+        private String advertiseHost;
+
+        private long probeIntervalMillis = 1000;
+
+        private long probeTimeoutMillis = 300;
+
+        /* 直接探测失败后请多少个其他成员代为探测 */
+        private int indirectProbes = 3;
+
+        private long suspicionTimeoutMillis = 5000;
+
+        public boolean isEnable() {
+            return enable;
+        }
+
+        public void setEnable(boolean enable) {
+            this.enable = enable;
+        }
+
+        public List<String> getSeeds() {
+            return seeds;
+        }
+
+        public void setSeeds(List<String> seeds) {
+            this.seeds = seeds;
+        }
+
+        public String getAdvertiseHost() {
+            return advertiseHost;
+        }
+
+        public void setAdvertiseHost(String advertiseHost) {
+            this.advertiseHost = advertiseHost;
+        }
+
+        public long getProbeIntervalMillis() {
+            return probeIntervalMillis;
+        }
+
+        public void setProbeIntervalMillis(long probeIntervalMillis) {
+            this.probeIntervalMillis = probeIntervalMillis;
+        }
+
+        public long getProbeTimeoutMillis() {
+            return probeTimeoutMillis;
+        }
+
+        public void setProbeTimeoutMillis(long probeTimeoutMillis) {
+            this.probeTimeoutMillis = probeTimeoutMillis;
+        }
+
+        public int getIndirectProbes() {
+            return indirectProbes;
+        }
+
+        public void setIndirectProbes(int indirectProbes) {
+            this.indirectProbes = indirectProbes;
+        }
+
+        public long getSuspicionTimeoutMillis() {
+            return suspicionTimeoutMillis;
+        }
+
+        public void setSuspicionTimeoutMillis(long suspicionTimeoutMillis) {
+            this.suspicionTimeoutMillis = suspicionTimeoutMillis;
+        }
+    }
+
+    public static class Transport {
+        /* 使用的 Netty 传输层，指定的传输层在当前平台不可用时退回 NIO */
+        private Type type = Type.AUTO;
+
+        private int bossThreads = 1;
+
+        /* 0 表示使用 Netty 的默认值（CPU 核数 * 2） */
+        private int workerThreads = 0;
+
+        private int backlog = 1000;
+
+        private boolean tcpNoDelay = true;
+
+        /* 0 表示使用系统默认值 */
+        private int sendBufferSize = 0;
+
+        private int receiveBufferSize = 0;
+
+        /* 连接的待发送数据超过高水位后变为不可写，降到低水位以下后恢复 */
+        private int writeBufferLowWaterMark = 32 * 1024;
+
+        private int writeBufferHighWaterMark = 64 * 1024;
+
+        /* 仅 epoll 支持，启用后在同一端口上绑定 acceptors 个监听 Channel，由内核分配新连接 */
+        private boolean reusePort = false;
+
+        private int acceptors = Runtime.getRuntime().availableProcessors();
+
+        public Type getType() {
+            return type;
+        }
+
+        public void setType(Type type) {
+            this.type = type;
+        }
+
+        public int getBossThreads() {
+            return bossThreads;
+        }
+
+        public void setBossThreads(int bossThreads) {
+            this.bossThreads = bossThreads;
+        }
+
+        public int getWorkerThreads() {
+            return workerThreads;
+        }
+
+        public void setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+        }
+
+        public int getBacklog() {
+            return backlog;
+        }
+
+        public void setBacklog(int backlog) {
+            this.backlog = backlog;
+        }
+
+        public boolean isTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        public void setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+        }
+
+        public int getSendBufferSize() {
+            return sendBufferSize;
+        }
+
+        public void setSendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+        }
+
+        public int getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        public void setReceiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+        }
+
+        public int getWriteBufferLowWaterMark() {
+            return writeBufferLowWaterMark;
+        }
+
+        public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+            this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+        }
+
+        public int getWriteBufferHighWaterMark() {
+            return writeBufferHighWaterMark;
+        }
+
+        public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+            this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+        }
+
+        public boolean isReusePort() {
+            return reusePort;
+        }
+
+        public void setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+        }
+
+        public int getAcceptors() {
+            return acceptors;
+        }
+
+        public void setAcceptors(int acceptors) {
+            this.acceptors = acceptors;
+        }
+
+        public enum Type {
+            /* 优先使用 epoll */
+            AUTO, NIO, EPOLL, IO_URING
+        }
+    }
+
+    public static class KeepAlive {
+        /* 心跳检测时间轮的刻度，超时判断的误差不超过一个刻度 */
+        private long tickMillis = 1000;
+
+        /* 时间轮的槽数，向上取整为 2 的幂 */
+        private int wheelSize = 512;
+
+        /* 收到 CONNECT 之前以及客户端 keep alive 为 0 时使用的超时时间 */
+        private long defaultTimeoutSeconds = 3600;
+
+        public long getTickMillis() {
+            return tickMillis;
+        }
+
+        public void setTickMillis(long tickMillis) {
+            this.tickMillis = tickMillis;
+        }
+
+        public int getWheelSize() {
+            return wheelSize;
+        }
+
+        public void setWheelSize(int wheelSize) {
+            this.wheelSize = wheelSize;
+        }
+
+        public long getDefaultTimeoutSeconds() {
+            return defaultTimeoutSeconds;
+        }
+
+        public void setDefaultTimeoutSeconds(long defaultTimeoutSeconds) {
+            this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+        }
+    }
+
+    public static class Delivery {
+        /* 逐步发送保留消息、离线消息时，占用的报文标识符达到该数量后等待客户端确认再继续发送 */
+        private int maxInflight = 32;
+
+        /* 连接断开后未发送完的消息保留的时间，期间重新连接时继续发送 */
+        private long resumeTimeoutSeconds = 300;
+
+        /* 持久会话重新连接后每次从数据库读取的未确认消息数 */
+        private int resumePageSize = 100;
+
+        /* 有未发送完的消息时，在线投递的消息排在其后发送，每个客户端最多排队的消息数 */
+        private int maxQueuedMessages = 1000;
+
+        public int getMaxInflight() {
+            return maxInflight;
+        }
+
+        public void setMaxInflight(int maxInflight) {
+            this.maxInflight = maxInflight;
+        }
+
+        public long getResumeTimeoutSeconds() {
+            return resumeTimeoutSeconds;
+        }
+
+        public void setResumeTimeoutSeconds(long resumeTimeoutSeconds) {
+            this.resumeTimeoutSeconds = resumeTimeoutSeconds;
+        }
+
+        public int getResumePageSize() {
+            return resumePageSize;
+        }
+
+        public void setResumePageSize(int resumePageSize) {
+            this.resumePageSize = resumePageSize;
+        }
+
+        public int getMaxQueuedMessages() {
+            return maxQueuedMessages;
+        }
+
+        public void setMaxQueuedMessages(int maxQueuedMessages) {
+            this.maxQueuedMessages = maxQueuedMessages;
+        }
+    }
+
+    public static class Offline {
+        /* 是否为离线的持久会话保存消息 */
+        private boolean enable = true;
+
+        /* 离线消息日志与各会话读取进度所在的目录 */
+        private String directory = "data/offline";
+
+        private long segmentBytes = 64 * 1024 * 1024;
+
+        private int maxMessagesPerSession = 10000;
+
+        /* 消息的过期时间，客户端断开超过该时间仍未重新连接时同时删除其离线会话 */
+        private long messageTtlSeconds = 24 * 60 * 60;
+
+        /* 删除过期和已读取的日志文件、刷盘并保存各会话读取进度的间隔 */
+        private long cleanupIntervalSeconds = 10;
+
+        public boolean isEnable() {
+            return enable;
+        }
+
+        public void setEnable(boolean enable) {
+            this.enable = enable;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public long getSegmentBytes() {
+            return segmentBytes;
+        }
+
+        public void setSegmentBytes(long segmentBytes) {
+            this.segmentBytes = segmentBytes;
+        }
+
+        public int getMaxMessagesPerSession() {
+            return maxMessagesPerSession;
+        }
+
+        public void setMaxMessagesPerSession(int maxMessagesPerSession) {
+            this.maxMessagesPerSession = maxMessagesPerSession;
+        }
+
+        public long getMessageTtlSeconds() {
+            return messageTtlSeconds;
+        }
+
+        public void setMessageTtlSeconds(long messageTtlSeconds) {
+            this.messageTtlSeconds = messageTtlSeconds;
+        }
+
+        public long getCleanupIntervalSeconds() {
+            return cleanupIntervalSeconds;
+        }
+
+        public void setCleanupIntervalSeconds(long cleanupIntervalSeconds) {
+            this.cleanupIntervalSeconds = cleanupIntervalSeconds;
+        }
+    }
+
+    public static class Storage {
+        /* 未完成消息、保留消息、遗嘱消息以及会话与订阅的存储方式，EMBEDDED 需要同时启用 embedded Profile 排除数据源 */
+        private Type type = Type.JDBC;
+
+        /* 以下仅用于 EMBEDDED */
+        private String directory = "data/store";
+
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.BATCH;
+
+        private long fsyncIntervalMillis = 100;
+
+        private long compactionIntervalSeconds = 30;
+
+        /* 不再写入的文件中已删除或被覆盖的记录达到该比例时压缩 */
+        private double compactionThreshold = 0.5;
+
+        public Type getType() {
+            return type;
+        }
+
+        public void setType(Type type) {
+            this.type = type;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public int getSegmentBytes() {
+            return segmentBytes;
+        }
+
+        public void setSegmentBytes(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+        }
+
+        public FsyncPolicy getFsyncPolicy() {
+            return fsyncPolicy;
+        }
+
+        public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+        }
+
+        public long getFsyncIntervalMillis() {
+            return fsyncIntervalMillis;
+        }
+
+        public void setFsyncIntervalMillis(long fsyncIntervalMillis) {
+            this.fsyncIntervalMillis = fsyncIntervalMillis;
+        }
+
+        public long getCompactionIntervalSeconds() {
+            return compactionIntervalSeconds;
+        }
+
+        public void setCompactionIntervalSeconds(long compactionIntervalSeconds) {
+            this.compactionIntervalSeconds = compactionIntervalSeconds;
+        }
+
+        public double getCompactionThreshold() {
+            return compactionThreshold;
+        }
+
+        public void setCompactionThreshold(double compactionThreshold) {
+            this.compactionThreshold = compactionThreshold;
+        }
+
+        public enum Type {
+            /* 通过 JPA 存储在 MySQL 中 */
+            JDBC,
+            /* 存储在本地的追加写日志中 */
+            EMBEDDED
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package com.huohaodong.octopus.broker.config;
+
+import com.huohaodong.octopus.common.persistence.repository.SessionRepository;
+import com.huohaodong.octopus.common.persistence.store.EmbeddedMessageStore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * 按 octopus.broker.storage.type 选择存储方式。JDBC 下启用 JPA Repository；
+ * EMBEDDED 下消息、会话与订阅都存入 EmbeddedMessageStore，不需要数据源，DataSource 与 JPA 的自动配置由 application-embedded.yml 排除。
+ */
+@Configuration
+public class StorageConfig {
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "jdbc", matchIfMissing = true)
+    @EnableJpaRepositories(basePackageClasses = SessionRepository.class)
+    static class JdbcStorageConfig {
+    }
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "embedded")
+    static class EmbeddedStorageConfig {
+
+        @Bean(destroyMethod = "close")
+        public EmbeddedMessageStore embeddedMessageStore(BrokerProperties brokerProperties) throws IOException {
+            BrokerProperties.Storage properties = brokerProperties.getStorage();
+            return new EmbeddedMessageStore(Path.of(properties.getDirectory()), properties.getSegmentBytes(), properties.getFsyncPolicy(),
+                    properties.getFsyncIntervalMillis(), properties.getCompactionIntervalSeconds(), properties.getCompactionThreshold());
+        }
+
+        /* 处理器上的 @Transactional 与 ConnectHandler 的 TransactionTemplate 照常工作，提交与回滚不做任何事 */
+        @Bean
+        public PlatformTransactionManager transactionManager() {
+            return new EmbeddedTransactionManager();
+        }
+    }
+
+    /* EmbeddedMessageStore 的每次写入单独生效，没有可以提交或回滚的资源 */
+    static class EmbeddedTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
@@ -1,18 +1,26 @@
 package com.huohaodong.octopus.broker.protocol.cluster.impl;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.MqttSessionExecutor;
 import com.huohaodong.octopus.broker.protocol.mqtt.handler.PublishHandler;
-import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.broker.service.offline.OfflineMessageService;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
 import com.huohaodong.octopus.common.persistence.service.session.SessionService;
 import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionService;
 import com.huohaodong.octopus.common.protocol.cluster.handler.ClusterEventHandler;
-import io.netty.channel.ChannelFutureListener;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
 @Slf4j(topic = "CLUSTER_EVENT_HANDLER")
 @RequiredArgsConstructor
 @Service
@@ -28,28 +36,54 @@ public class ClusterEventHandlerImpl implements ClusterEventHandler {
 
     private final SubscriptionService subscriptionService;
 
+    private final ClusterRoutingTable clusterRoutingTable;
+
+    private final MqttSessionExecutor sessionExecutor;
+
+    private final OfflineMessageService offlineMessageService;
+
     @Override
-    public void doPublish(PublishMessage publishMessage) {
-        publishHandler.sendPublishMessage(publishMessage.getTopic(), publishMessage.getQos(), publishMessage.getPayload());
+    public void doPublish(String publisherClientId, String topic, MqttQoS qos, MessagePayload payload, List<String> sharedTopics) {
+        publishHandler.sendForwardedPublishMessage(publisherClientId, topic, qos, payload, sharedTopics);
     }
 
+    /* 不阻塞 gRPC 线程，会话清理涉及数据库操作，放到该客户端的处理队列中执行 */
     @Override
-    public void doCloseChannel(String clientId) {
-        sessionService.getChannelByClientId(clientId).ifPresent(channel -> {
-            try {
-                channel.writeAndFlush(MqttMessage.DISCONNECT).addListener((ChannelFutureListener) future -> channel.close()).sync();
-                sessionService.getSession(brokerProperties.getId(), clientId).ifPresent(session -> {
-                    if (session.isCleanSession()) {
-                        messageService.removeAllPublishMessage(session.getBrokerId(), session.getClientId());
-                        messageService.removeAllPublishReleaseMessage(session.getBrokerId(), session.getClientId());
-                        subscriptionService.unSubscribeAll(brokerProperties.getId(), clientId);
-                    }
-                    sessionService.removeSession(brokerProperties.getId(), clientId);
-                });
-            } catch (InterruptedException e) {
-                log.error("Error occurs when close duplicate login client {}", clientId);
-                throw new RuntimeException(e);
+    public CompletableFuture<Void> doCloseChannel(String clientId) {
+        // 客户端已在其他 Broker 上连接，不会再回来读取本地的离线消息
+        offlineMessageService.discard(clientId);
+        Optional<Channel> oldChannel = sessionService.getChannelByClientId(clientId);
+        if (oldChannel.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Channel channel = oldChannel.get();
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        channel.writeAndFlush(MqttMessage.DISCONNECT).addListener(written -> channel.close().addListener(future -> {
+            boolean accepted = sessionExecutor.execute(clientId, () -> {
+                try {
+                    sessionService.getSession(brokerProperties.getId(), clientId).ifPresent(session -> {
+                        if (session.isCleanSession()) {
+                            messageService.removeAllPublishMessage(session.getBrokerId(), session.getClientId());
+                            messageService.removeAllPublishReleaseMessage(session.getBrokerId(), session.getClientId());
+                            subscriptionService.unSubscribeAll(brokerProperties.getId(), clientId);
+                        }
+                        sessionService.removeSession(brokerProperties.getId(), clientId);
+                    });
+                    closed.complete(null);
+                } catch (RuntimeException e) {
+                    log.error("Error occurs when close duplicate login client {}", clientId, e);
+                    closed.completeExceptionally(e);
+                }
+            });
+            if (!accepted) {
+                closed.completeExceptionally(new RejectedExecutionException("Session executor is busy"));
             }
-        });
+        }));
+        return closed;
+    }
+
+    @Override
+    public boolean doUpdateRoutes(String brokerId, long version, boolean full, List<String> added, List<String> removed) {
+        return clusterRoutingTable.apply(brokerId, version, full, added, removed);
     }
 }
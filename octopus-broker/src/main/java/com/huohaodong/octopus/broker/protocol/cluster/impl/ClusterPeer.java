@@ -0,0 +1,176 @@
+package com.huohaodong.octopus.broker.protocol.cluster.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterEventListenerGrpc;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterPublishRequest;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterRequest;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterResponse;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个远程 Broker 及其 gRPC 连接，由 ClusterPeerRegistry 创建和关闭，地址变化后会创建新的实例。
+ * 调用连续失败后按指数退避暂停向它同步订阅摘要，退避结束后的第一次成功调用恢复正常。发布消息不受退避影响，见 ClusterPublishStream 与 sendUnary。
+ */
+@Slf4j(topic = "CLUSTER_PEER")
+class ClusterPeer {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /* 逐条调用 OnEvent 转发发布消息时的最大尝试次数，间隔从 MIN_BACKOFF 开始翻倍，共约 3 秒 */
+    private static final int UNARY_MAX_ATTEMPTS = 6;
+
+    private final String localBrokerId;
+
+    private final String brokerId;
+
+    private final String host;
+
+    private final int port;
+
+    private final ManagedChannel channel;
+
+    private final ClusterEventListenerGrpc.ClusterEventListenerBlockingStub blockingStub;
+
+    private final ClusterEventListenerGrpc.ClusterEventListenerFutureStub futureStub;
+
+    private final ClusterPublishStream publishStream;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile long retryAtNanos;
+
+    /* 对方没有本地订阅摘要的当前版本，只在同步订阅摘要的线程中访问 */
+    boolean routesStale = true;
+
+    ClusterPeer(String localBrokerId, String brokerId, String host, int port,
+                ScheduledExecutorService publishStreamScheduler, BrokerProperties.Cluster properties) {
+        this.localBrokerId = localBrokerId;
+        this.brokerId = brokerId;
+        this.host = host;
+        this.port = port;
+        this.channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        this.blockingStub = ClusterEventListenerGrpc.newBlockingStub(channel);
+        this.futureStub = ClusterEventListenerGrpc.newFutureStub(channel);
+        this.publishStream = new ClusterPublishStream(localBrokerId, this, ClusterEventListenerGrpc.newStub(channel), publishStreamScheduler, properties);
+        this.scheduler = publishStreamScheduler;
+    }
+
+    String brokerId() {
+        return brokerId;
+    }
+
+    boolean hasAddress(String host, int port) {
+        return this.host.equals(host) && this.port == port;
+    }
+
+    ClusterEventListenerGrpc.ClusterEventListenerBlockingStub blockingStub() {
+        return blockingStub;
+    }
+
+    ClusterEventListenerGrpc.ClusterEventListenerFutureStub futureStub() {
+        return futureStub;
+    }
+
+    ClusterPublishStream publishStream() {
+        return publishStream;
+    }
+
+    boolean isAvailable() {
+        return failures.get() == 0 || System.nanoTime() - retryAtNanos >= 0;
+    }
+
+    void onSuccess() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    void onFailure() {
+        int count = failures.incrementAndGet();
+        retryAtNanos = System.nanoTime() + Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min(count - 1, 16));
+    }
+
+    /* 逐条调用 OnEvent，接管 payload 的引用。失败后退避重试，最多尝试 UNARY_MAX_ATTEMPTS 次，调用结束后释放 */
+    void sendUnary(ClusterPublishRequest publishRequest, MessagePayload payload) {
+        ClusterRequest request = ClusterRequest.newBuilder()
+                .setBrokerId(localBrokerId)
+                .setPublishRequest(publishRequest)
+                .build();
+        ListenableFuture<ClusterResponse> future;
+        try {
+            future = futureStub.onEvent(request);
+        } catch (RuntimeException e) {
+            payload.release();
+            throw e;
+        }
+        handleUnaryResponse(future, request, payload, 1);
+    }
+
+    private void retryUnary(ClusterRequest request, MessagePayload payload, int attempt) {
+        ListenableFuture<ClusterResponse> future;
+        try {
+            future = futureStub.onEvent(request);
+        } catch (RuntimeException e) {
+            dropUnary(request, payload, e);
+            return;
+        }
+        handleUnaryResponse(future, request, payload, attempt);
+    }
+
+    private void handleUnaryResponse(ListenableFuture<ClusterResponse> future, ClusterRequest request, MessagePayload payload, int attempt) {
+        Futures.addCallback(future, new FutureCallback<>() {
+            @Override
+            public void onSuccess(ClusterResponse response) {
+                payload.release();
+                ClusterPeer.this.onSuccess();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                ClusterPeer.this.onFailure();
+                if (attempt >= UNARY_MAX_ATTEMPTS || channel.isShutdown()) {
+                    dropUnary(request, payload, t);
+                    return;
+                }
+                try {
+                    scheduler.schedule(() -> retryUnary(request, payload, attempt + 1), MIN_BACKOFF_NANOS << (attempt - 1), TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    dropUnary(request, payload, e);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void dropUnary(ClusterRequest request, MessagePayload payload, Throwable cause) {
+        payload.release();
+        Metrics.CLUSTER_FORWARD_DROPPED_TOTAL.inc();
+        log.warn("Failed to forward publish request on topic {} to broker {}: {}", request.getPublishRequest().getTopic(), brokerId, cause.toString());
+    }
+
+    void close() {
+        publishStream.close();
+        channel.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return brokerId + "@" + host + ":" + port;
+    }
+}
@@ -0,0 +1,150 @@
+package com.huohaodong.octopus.broker.protocol.cluster.impl;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.cluster.membership.ClusterMembership;
+import com.huohaodong.octopus.broker.protocol.cluster.membership.MembershipChangedEvent;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.discovery.event.HeartbeatEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群中其他 Broker 的列表。配置了 octopus.broker.cluster.peers 时使用静态列表，启用了 ClusterMembership 时使用其中存活的成员，
+ * 否则在后台定期从服务发现中查询。成员变化（MembershipChangedEvent）或 Consul 的服务目录变化（HeartbeatEvent）时立即刷新。发布消息时只读取最近一次刷新得到的不可变快照，不访问服务发现。
+ * 离开集群或地址变化的 Broker 的连接会被关闭。
+ */
+@Slf4j(topic = "CLUSTER_PEER_REGISTRY")
+@Component
+public class ClusterPeerRegistry {
+
+    public static final String SERVICE_ID = "grpc-octopus-broker";
+
+    private static final String META_BROKER_ID = "broker-id";
+
+    private final BrokerProperties brokerProperties;
+
+    private final ObjectProvider<DiscoveryClient> discoveryClient;
+
+    private final ClusterRoutingTable clusterRoutingTable;
+
+    private final ClusterMembership clusterMembership;
+
+    private final ScheduledExecutorService refreshScheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("octopus-cluster-peer", true));
+
+    /* 各远程 Broker 的批次等待时间到期后在此线程中发送 */
+    private final ScheduledExecutorService publishStreamScheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("octopus-cluster-stream", true));
+
+    /* 只在 refresh 中替换 */
+    private volatile Map<String, ClusterPeer> peers = Map.of();
+
+    public ClusterPeerRegistry(BrokerProperties brokerProperties, ObjectProvider<DiscoveryClient> discoveryClient,
+                               ClusterRoutingTable clusterRoutingTable, ClusterMembership clusterMembership) {
+        this.brokerProperties = brokerProperties;
+        this.discoveryClient = discoveryClient;
+        this.clusterRoutingTable = clusterRoutingTable;
+        this.clusterMembership = clusterMembership;
+    }
+
+    @PostConstruct
+    public void start() {
+        refresh();
+        long interval = brokerProperties.getCluster().getPeerRefreshIntervalMillis();
+        refreshScheduler.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener({HeartbeatEvent.class, MembershipChangedEvent.class})
+    public void onMembershipChanged() {
+        refreshScheduler.execute(this::refresh);
+    }
+
+    /* 不可修改 */
+    Collection<ClusterPeer> peers() {
+        return peers.values();
+    }
+
+    Optional<ClusterPeer> getPeer(String brokerId) {
+        return Optional.ofNullable(peers.get(brokerId));
+    }
+
+    synchronized void refresh() {
+        List<PeerAddress> addresses;
+        try {
+            addresses = lookup();
+        } catch (RuntimeException e) {
+            log.warn("Failed to look up cluster peers, keep the previous {} peers: {}", peers.size(), e.toString());
+            return;
+        }
+        Map<String, ClusterPeer> current = peers;
+        Map<String, ClusterPeer> updated = new HashMap<>();
+        for (PeerAddress address : addresses) {
+            ClusterPeer peer = current.get(address.brokerId);
+            if (peer == null || !peer.hasAddress(address.host, address.port)) {
+                peer = new ClusterPeer(brokerProperties.getId(), address.brokerId, address.host, address.port,
+                        publishStreamScheduler, brokerProperties.getCluster());
+                log.info("Cluster peer {} joined", peer);
+            }
+            updated.putIfAbsent(address.brokerId, peer);
+        }
+        peers = Map.copyOf(updated);
+        current.forEach((brokerId, peer) -> {
+            if (updated.get(brokerId) != peer) {
+                log.info("Cluster peer {} left", peer);
+                clusterRoutingTable.remove(brokerId);
+                peer.close();
+            }
+        });
+    }
+
+    private List<PeerAddress> lookup() {
+        List<BrokerProperties.Peer> staticPeers = brokerProperties.getCluster().getPeers();
+        if (!staticPeers.isEmpty()) {
+            return staticPeers.stream()
+                    .filter(peer -> !peer.getId().equals(brokerProperties.getId()))
+                    .map(peer -> new PeerAddress(peer.getId(), peer.getHost(), peer.getPort()))
+                    .toList();
+        }
+        if (clusterMembership.isEnabled()) {
+            return clusterMembership.members().stream()
+                    .map(member -> new PeerAddress(member.brokerId(), member.host(), member.port()))
+                    .toList();
+        }
+        DiscoveryClient client = discoveryClient.getIfAvailable();
+        if (client == null) {
+            return List.of();
+        }
+        List<PeerAddress> addresses = new ArrayList<>();
+        for (ServiceInstance instance : client.getInstances(SERVICE_ID)) {
+            String remoteBrokerId = instance.getMetadata().get(META_BROKER_ID);
+            if (remoteBrokerId == null) {
+                log.error("Grpc meta data for broker id is not set, ignore instance {}:{}", instance.getHost(), instance.getPort());
+                continue;
+            }
+            if (!remoteBrokerId.equals(brokerProperties.getId())) {
+                addresses.add(new PeerAddress(remoteBrokerId, instance.getHost(), instance.getPort()));
+            }
+        }
+        return addresses;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        refreshScheduler.shutdown();
+        peers.values().forEach(ClusterPeer::close);
+        peers = Map.of();
+        publishStreamScheduler.shutdown();
+    }
+
+    private record PeerAddress(String brokerId, String host, int port) {
+    }
+}
@@ -0,0 +1,317 @@
+package com.huohaodong.octopus.broker.protocol.cluster.impl;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.common.protocol.grpc.*;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 到单个远程 Broker 的 Stream 调用。发布请求按数量、字节数和等待时间合并为 ClusterBatch 发送，对方按批次序号累计确认。
+ * 请求严格按调用 send 的顺序发送：流不可用（中断后 1 秒内不重连）或未确认的批次过多时，新的请求在等待队列中排在未发送的请求之后，
+ * 流中断时未确认的批次按原顺序放回等待队列的头部，重新建立流后再次发送，因此对方可能收到重复消息。
+ * 等待队列超过 maxPendingMessages 时丢弃最早的请求。
+ */
+@Slf4j(topic = "CLUSTER_PUBLISH_STREAM")
+class ClusterPublishStream {
+
+    private static final long RECONNECT_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String localBrokerId;
+
+    private final ClusterPeer peer;
+
+    private final ClusterEventListenerGrpc.ClusterEventListenerStub stub;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final BrokerProperties.Cluster properties;
+
+    /* 以下字段由 this 保护 */
+    private StreamObserver<ClusterBatch> requestObserver;
+
+    /* 用于忽略已经废弃的流的回调 */
+    private int streamId;
+
+    private long lastFailureNanos;
+
+    private boolean failed;
+
+    private boolean closed;
+
+    private long nextSequence = 1;
+
+    private List<ClusterPublishRequest> batch = new ArrayList<>();
+
+    private List<MessagePayload> batchPayloads = new ArrayList<>();
+
+    /* 按序列化后的大小计算 */
+    private int batchBytes;
+
+    private ScheduledFuture<?> lingerTask;
+
+    private ScheduledFuture<?> reconnectTask;
+
+    private final ArrayDeque<Inflight> inflight = new ArrayDeque<>();
+
+    /* 尚未放入批次的请求，持有消息体的引用 */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    /* 本次流不可用期间是否已经记录过丢弃日志 */
+    private boolean dropLogged;
+
+    ClusterPublishStream(String localBrokerId, ClusterPeer peer,
+                         ClusterEventListenerGrpc.ClusterEventListenerStub stub,
+                         ScheduledExecutorService scheduler, BrokerProperties.Cluster properties) {
+        this.localBrokerId = localBrokerId;
+        this.peer = peer;
+        this.stub = stub;
+        this.scheduler = scheduler;
+        this.properties = properties;
+    }
+
+    /* payload 的引用仍归调用方所有 */
+    synchronized void send(ClusterPublishRequest request, MessagePayload payload) {
+        if (closed) {
+            log.debug("Cluster stream to broker {} is closed, ignore publish request on topic {}", peer.brokerId(), request.getTopic());
+            return;
+        }
+        if (pending.isEmpty() && ensureStream() && inflight.size() < properties.getMaxInflightBatches()) {
+            addToBatch(request, payload.retain());
+            return;
+        }
+        enqueue(request, payload.retain());
+    }
+
+    synchronized void flush() {
+        if (!batch.isEmpty() && requestObserver != null) {
+            flushBatch();
+        }
+    }
+
+    /* 发送剩余的请求并结束流，对方确认后流正常关闭；流不可用时丢弃剩余的请求 */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cancel(reconnectTask);
+        reconnectTask = null;
+        if (requestObserver == null) {
+            int dropped = pending.size();
+            releasePending();
+            if (dropped > 0) {
+                log.warn("Drop {} publish requests to broker {} on close", dropped, peer.brokerId());
+                Metrics.CLUSTER_FORWARD_DROPPED_TOTAL.inc(dropped);
+            }
+            return;
+        }
+        // 关闭时不再限制未确认的批次数
+        Pending next;
+        while (requestObserver != null && (next = pending.poll()) != null) {
+            addToBatch(next.request, next.payload);
+        }
+        flush();
+        if (requestObserver != null) {
+            requestObserver.onCompleted();
+            requestObserver = null;
+        }
+        releasePending();
+    }
+
+    private boolean ensureStream() {
+        if (requestObserver != null) {
+            return true;
+        }
+        if (closed || failed && System.nanoTime() - lastFailureNanos < RECONNECT_BACKOFF_NANOS) {
+            return false;
+        }
+        int id = ++streamId;
+        nextSequence = 1;
+        requestObserver = stub.stream(new AckObserver(id));
+        log.info("Open cluster stream to broker {}", peer.brokerId());
+        return true;
+    }
+
+    private void addToBatch(ClusterPublishRequest request, MessagePayload payload) {
+        batch.add(request);
+        batchPayloads.add(payload);
+        batchBytes += request.getSerializedSize();
+        if (batch.size() >= properties.getBatchMaxCount() || batchBytes >= properties.getBatchMaxBytes()) {
+            flushBatch();
+        } else if (batch.size() == 1) {
+            lingerTask = scheduler.schedule(this::flush, properties.getBatchLingerMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void enqueue(ClusterPublishRequest request, MessagePayload payload) {
+        while (pending.size() >= properties.getMaxPendingMessages()) {
+            pending.poll().payload.release();
+            Metrics.CLUSTER_FORWARD_DROPPED_TOTAL.inc();
+            if (!dropLogged) {
+                dropLogged = true;
+                log.warn("Too many publish requests waiting for broker {}, drop the oldest", peer.brokerId());
+            }
+        }
+        pending.add(new Pending(request, payload));
+        scheduleReconnect();
+    }
+
+    /* 在流可用且未确认的批次未达到上限时，按顺序将等待队列中的请求放入批次 */
+    private void drainPending() {
+        Pending next;
+        while (requestObserver != null && inflight.size() < properties.getMaxInflightBatches() && (next = pending.poll()) != null) {
+            addToBatch(next.request, next.payload);
+        }
+        if (pending.isEmpty()) {
+            dropLogged = false;
+        }
+    }
+
+    private void flushBatch() {
+        cancel(lingerTask);
+        lingerTask = null;
+        long sequence = nextSequence++;
+        ClusterBatch message = ClusterBatch.newBuilder()
+                .setBrokerId(localBrokerId)
+                .setSequence(sequence)
+                .addAllPublishRequests(batch)
+                .build();
+        inflight.add(new Inflight(sequence, batch, batchPayloads));
+        batch = new ArrayList<>();
+        batchPayloads = new ArrayList<>();
+        batchBytes = 0;
+        StreamObserver<ClusterBatch> observer = requestObserver;
+        try {
+            observer.onNext(message);
+        } catch (RuntimeException e) {
+            log.warn("Failed to send batch to broker {}: {}", peer.brokerId(), e.toString());
+            fail(e);
+            // 取消调用，之后该流的回调都会被忽略
+            observer.onError(e);
+        }
+    }
+
+    private synchronized void reconnect() {
+        reconnectTask = null;
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (ensureStream()) {
+            drainPending();
+        } else {
+            scheduleReconnect();
+        }
+    }
+
+    /* 流不可用且有等待发送的请求时，在退避结束后重新建立流 */
+    private void scheduleReconnect() {
+        if (requestObserver != null || reconnectTask != null || closed || pending.isEmpty()) {
+            return;
+        }
+        long delay = failed ? Math.max(0, RECONNECT_BACKOFF_NANOS - (System.nanoTime() - lastFailureNanos)) : 0;
+        reconnectTask = scheduler.schedule(this::reconnect, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void onAck(int id, long sequence) {
+        if (id != streamId) {
+            return;
+        }
+        peer.onSuccess();
+        while (!inflight.isEmpty() && inflight.peek().sequence <= sequence) {
+            inflight.poll().payloads.forEach(MessagePayload::release);
+        }
+        drainPending();
+    }
+
+    private synchronized void onClose(int id, Throwable cause) {
+        if (id != streamId) {
+            return;
+        }
+        if (closed) {
+            // close 之后对方已处理完或流已中断，不再重新发送
+            Inflight remaining;
+            while ((remaining = inflight.poll()) != null) {
+                remaining.payloads.forEach(MessagePayload::release);
+            }
+            return;
+        }
+        if (cause != null) {
+            log.warn("Cluster stream to broker {} failed: {}", peer.brokerId(), cause.toString());
+            peer.onFailure();
+        }
+        fail(cause);
+    }
+
+    /* 废弃当前的流，未确认和未发送的请求按原顺序放回等待队列的头部，退避结束后在新的流中重新发送 */
+    private void fail(Throwable cause) {
+        requestObserver = null;
+        streamId++;
+        failed = cause != null;
+        lastFailureNanos = System.nanoTime();
+        cancel(lingerTask);
+        lingerTask = null;
+        inflight.add(new Inflight(nextSequence, batch, batchPayloads));
+        batch = new ArrayList<>();
+        batchPayloads = new ArrayList<>();
+        batchBytes = 0;
+        Inflight unacked;
+        while ((unacked = inflight.pollLast()) != null) {
+            for (int i = unacked.requests.size() - 1; i >= 0; i--) {
+                pending.addFirst(new Pending(unacked.requests.get(i), unacked.payloads.get(i)));
+            }
+        }
+        scheduleReconnect();
+    }
+
+    private void releasePending() {
+        Pending next;
+        while ((next = pending.poll()) != null) {
+            next.payload.release();
+        }
+    }
+
+    private static void cancel(ScheduledFuture<?> task) {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    private record Inflight(long sequence, List<ClusterPublishRequest> requests, List<MessagePayload> payloads) {
+    }
+
+    private record Pending(ClusterPublishRequest request, MessagePayload payload) {
+    }
+
+    private class AckObserver implements StreamObserver<ClusterAck> {
+
+        private final int id;
+
+        private AckObserver(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void onNext(ClusterAck ack) {
+            onAck(id, ack.getSequence());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            onClose(id, t);
+        }
+
+        @Override
+        public void onCompleted() {
+            onClose(id, null);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.huohaodong.octopus.broker.protocol.cluster.impl;
+
+import com.huohaodong.octopus.broker.service.subscription.CTrieSubscriptionMatcher;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedTopic;
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionMatcher;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 远程 Broker 的订阅摘要。所有 Broker 的主题过滤器放在同一棵订阅树中，订阅的 clientId 为过滤器所属的 Broker ID，
+ * 匹配一次即可得到需要转发的 Broker。共享订阅以完整的 $share 主题加入订阅树，与普通订阅分开返回。
+ */
+@Component
+public class ClusterRoutingTable {
+
+    private static final int CACHE_CAPACITY = 1 << 16;
+
+    private final SubscriptionMatcher matcher = new CTrieSubscriptionMatcher(CACHE_CAPACITY);
+
+    private final Map<String, BrokerRoutes> brokers = new ConcurrentHashMap<>();
+
+    /* 版本不连续时返回 false，摘要保持不变 */
+    public synchronized boolean apply(String brokerId, long version, boolean full, List<String> added, List<String> removed) {
+        BrokerRoutes routes = brokers.get(brokerId);
+        if (full) {
+            if (routes == null) {
+                routes = new BrokerRoutes();
+            }
+            // 只移除新摘要中不存在的过滤器，替换过程中仍在的过滤器始终可以匹配
+            Set<String> retained = new HashSet<>(added);
+            removed = routes.filters.stream().filter(topicFilter -> !retained.contains(topicFilter)).toList();
+        } else if (routes == null || (version != routes.version + 1 && !(version == routes.version && added.isEmpty() && removed.isEmpty()))) {
+            return false;
+        }
+        routes.version = version;
+        for (String topicFilter : removed) {
+            if (routes.filters.remove(topicFilter)) {
+                matcher.unSubscribe(brokerId, topicFilter);
+            }
+        }
+        for (String topicFilter : added) {
+            if (routes.filters.add(topicFilter)) {
+                matcher.subscribe(new Subscription(brokerId, topicFilter, MqttQoS.AT_MOST_ONCE));
+            }
+        }
+        // 过滤器加入订阅树之后才视为已同步
+        brokers.put(brokerId, routes);
+        return true;
+    }
+
+    /* Broker 离开集群时删除它的摘要 */
+    public synchronized void remove(String brokerId) {
+        BrokerRoutes routes = brokers.remove(brokerId);
+        if (routes != null) {
+            routes.filters.forEach(topicFilter -> matcher.unSubscribe(brokerId, topicFilter));
+        }
+    }
+
+    /* 是否已收到该 Broker 的完整摘要，未收到时无法判断是否需要转发 */
+    public boolean isSynced(String brokerId) {
+        return brokers.containsKey(brokerId);
+    }
+
+    /* 存在匹配 topic 的普通订阅的 Broker */
+    public Set<String> matchedBrokers(String topic) {
+        Collection<Subscription> matched = matcher.match(topic);
+        if (matched.isEmpty()) {
+            return Set.of();
+        }
+        Set<String> brokerIds = new HashSet<>();
+        matched.forEach(subscription -> {
+            if (!SharedTopic.isShared(subscription.getTopic())) {
+                brokerIds.add(subscription.getClientId());
+            }
+        });
+        return brokerIds;
+    }
+
+    /* 匹配 topic 的共享订阅，key 为完整的 $share 主题，value 为存在该共享订阅成员的 Broker */
+    public Map<String, Set<String>> matchedSharedTopics(String topic) {
+        Collection<Subscription> matched = matcher.match(topic);
+        if (matched.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, Set<String>> sharedTopics = new HashMap<>();
+        matched.forEach(subscription -> {
+            if (SharedTopic.isShared(subscription.getTopic())) {
+                sharedTopics.computeIfAbsent(subscription.getTopic(), key -> new HashSet<>()).add(subscription.getClientId());
+            }
+        });
+        return sharedTopics;
+    }
+
+    private static final class BrokerRoutes {
+
+        private long version;
+
+        private final Set<String> filters = new HashSet<>();
+    }
+}
@@ -1,105 +1,236 @@
 package com.huohaodong.octopus.broker.protocol.cluster.impl;
 
-import com.google.protobuf.ByteString;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.UnsafeByteOperations;
 import com.huohaodong.octopus.broker.config.BrokerProperties;
-import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.broker.service.subscription.SubscriptionSummary;
 import com.huohaodong.octopus.common.protocol.cluster.ClusterService;
 import com.huohaodong.octopus.common.protocol.grpc.ClusterCloseChannelRequest;
-import com.huohaodong.octopus.common.protocol.grpc.ClusterEventListenerGrpc;
 import com.huohaodong.octopus.common.protocol.grpc.ClusterPublishRequest;
 import com.huohaodong.octopus.common.protocol.grpc.ClusterRequest;
-import io.grpc.Channel;
-import io.grpc.ManagedChannelBuilder;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterResponse;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterSubscriptionRequest;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.grpc.StatusRuntimeException;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.client.ServiceInstance;
-import org.springframework.cloud.client.discovery.DiscoveryClient;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j(topic = "CLUSTER_SERVICE")
 @RequiredArgsConstructor
 @Service
 public class GrpcClusterServiceImpl implements ClusterService {
 
+    /* 订阅摘要没有变化时，每隔一段时间发送一次当前版本，让重启后丢失摘要的 Broker 请求完整的摘要 */
+    private static final long ROUTE_HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final long ROUTE_SYNC_TIMEOUT_MILLIS = 1000;
+
     private final BrokerProperties brokerProperties;
 
-    private final DiscoveryClient discoveryClient;
-    private final String SERVICE_ID = "grpc-octopus-broker";
-    private final String META_BROKER_ID = "broker-id";
-    private final Map<String, ClusterGrpcClient> grpcClientMap = new ConcurrentHashMap<>();
+    private final ClusterPeerRegistry clusterPeerRegistry;
 
-    @Override
-    public void broadcastPublishMessage(PublishMessage publishMessage) {
-        ClusterPublishRequest publishRequest = buildPublishRequest(publishMessage);
-        String localBrokerId = brokerProperties.getId();
-        getRemoteGrpcServices().forEach(service -> {
-            String remoteBrokerId = service.getMetadata().get(META_BROKER_ID);
-            grpcClientMap.get(remoteBrokerId).asyncStub.onEvent(
-                    ClusterRequest.newBuilder()
-                            .setBrokerId(localBrokerId)
-                            .setPublishRequest(publishRequest)
-                            .build()
-            );
-        });
+    private final SubscriptionSummary subscriptionSummary;
+
+    private final ClusterRoutingTable clusterRoutingTable;
+
+    private final ScheduledExecutorService routeSyncScheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("octopus-cluster-route", true));
+
+    /* 只在 routeSyncScheduler 中访问 */
+    private long lastRouteHeartbeatNanos;
+
+    @PostConstruct
+    public void start() {
+        long interval = brokerProperties.getCluster().getRouteSyncIntervalMillis();
+        routeSyncScheduler.scheduleWithFixedDelay(this::syncRoutes, interval, interval, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public void broadcastToClose(String clientId) {
-        String localBrokerId = brokerProperties.getId();
-        getRemoteGrpcServices().forEach(service -> {
-            String remoteBrokerId = service.getMetadata().get(META_BROKER_ID);
-            grpcClientMap.get(remoteBrokerId).blockingStub.onEvent(
-                    ClusterRequest.newBuilder()
-                            .setBrokerId(localBrokerId)
-                            .setCloseChannelRequest(ClusterCloseChannelRequest.newBuilder().setClientId(clientId).build())
-                            .build()
-            );
+    public void broadcastPublishMessage(String publisherClientId, String topic, MqttQoS qos, MessagePayload payload, Map<String, List<String>> sharedTargets) {
+        Set<String> matchedBrokers = clusterRoutingTable.matchedBrokers(topic);
+        // 尚未收到订阅摘要的 Broker 无法判断是否有匹配的订阅，仍然转发。
+        // 暂时不可用的 Broker 同样转发，由发布流排队等待或由 sendUnary 重试，不在这里丢弃
+        List<ClusterPeer> peers = clusterPeerRegistry.peers().stream().filter(peer ->
+                matchedBrokers.contains(peer.brokerId()) || sharedTargets.containsKey(peer.brokerId()) || !clusterRoutingTable.isSynced(peer.brokerId())
+        ).toList();
+        if (peers.isEmpty()) {
+            return;
+        }
+        ClusterPublishRequest publishRequest = buildPublishRequest(publisherClientId, topic, qos, payload);
+        peers.forEach(peer -> {
+            // 没有选中的共享订阅时对方只投递普通订阅
+            List<String> sharedTopics = sharedTargets.get(peer.brokerId());
+            ClusterPublishRequest request = sharedTopics == null ? publishRequest : publishRequest.toBuilder().addAllSharedTopics(sharedTopics).build();
+            if (brokerProperties.getCluster().isStreamEnable()) {
+                peer.publishStream().send(request, payload);
+                return;
+            }
+            // 请求直接引用 payload 的内存，序列化可能延迟到连接建立之后，因此每个请求都持有一个引用直到调用结束
+            peer.sendUnary(request, payload.retain());
         });
     }
 
-    private List<ServiceInstance> getRemoteGrpcServices() {
-        return discoveryClient.getInstances(SERVICE_ID).stream().filter(serviceInstance -> {
-            String remoteBrokerId = serviceInstance.getMetadata().get(META_BROKER_ID);
-            if (remoteBrokerId == null) {
-                log.error("Grpc meta data for broker id is not set, unable to broadcast publish message!");
-                return false;
+    /* 只返回当前可用的 Broker，避免选中正在退避的 Broker 后消息长时间排队；Broker 按 ID 排序，轮询时顺序稳定 */
+    @Override
+    public Map<String, List<String>> matchSharedSubscriptions(String topic) {
+        Map<String, Set<String>> matched = clusterRoutingTable.matchedSharedTopics(topic);
+        if (matched.isEmpty()) {
+            return Map.of();
+        }
+        Set<String> available = new HashSet<>();
+        clusterPeerRegistry.peers().forEach(peer -> {
+            if (peer.isAvailable()) {
+                available.add(peer.brokerId());
             }
-            if (remoteBrokerId.equals(brokerProperties.getId())) {
-                return false;
+        });
+        Map<String, List<String>> sharedSubscriptions = new HashMap<>();
+        matched.forEach((sharedTopic, brokerIds) -> {
+            List<String> candidates = brokerIds.stream().filter(available::contains).sorted().toList();
+            if (!candidates.isEmpty()) {
+                sharedSubscriptions.put(sharedTopic, candidates);
             }
-            grpcClientMap.putIfAbsent(remoteBrokerId, new ClusterGrpcClient(
-                    ManagedChannelBuilder.forAddress(serviceInstance.getHost(), serviceInstance.getPort()))
-            );
-            return true;
-        }).collect(Collectors.toList());
+        });
+        return sharedSubscriptions;
     }
 
-    private ClusterPublishRequest buildPublishRequest(PublishMessage publishMessage) {
-        return ClusterPublishRequest.newBuilder()
-                .setTopic(publishMessage.getTopic())
-                .setPayload(ByteString.copyFrom(publishMessage.getPayload()))
-                .setQos(ClusterPublishRequest.QoS.forNumber(publishMessage.getQos().value()))
+    /* 并行通知所有远程 Broker，每个调用单独设置超时，失败只记录日志 */
+    @Override
+    public CompletableFuture<Void> broadcastToClose(String clientId) {
+        Collection<ClusterPeer> peers = clusterPeerRegistry.peers();
+        if (peers.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long startNanos = System.nanoTime();
+        long timeoutMillis = brokerProperties.getCluster().getTakeoverTimeoutMillis();
+        ClusterRequest request = ClusterRequest.newBuilder()
+                .setBrokerId(brokerProperties.getId())
+                .setCloseChannelRequest(ClusterCloseChannelRequest.newBuilder().setClientId(clientId).build())
                 .build();
+        CompletableFuture<?>[] acks = peers.stream().map(peer -> {
+            CompletableFuture<Void> ack = new CompletableFuture<>();
+            Futures.addCallback(peer.futureStub().withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).onEvent(request), new FutureCallback<>() {
+                @Override
+                public void onSuccess(ClusterResponse response) {
+                    peer.onSuccess();
+                    ack.complete(null);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.warn("Failed to close client {} on broker {}: {}", clientId, peer.brokerId(), t.toString());
+                    peer.onFailure();
+                    ack.complete(null);
+                }
+            }, MoreExecutors.directExecutor());
+            return ack;
+        }).toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(acks).whenComplete((result, cause) -> {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            Metrics.CLUSTER_TAKEOVER_SECONDS.observe(seconds);
+        });
     }
 
-    private static class ClusterGrpcClient {
+    /* 与定时同步在同一个线程中执行，保证增量按版本顺序发送 */
+    @Override
+    public CompletableFuture<Void> syncSubscriptions() {
+        if (clusterPeerRegistry.peers().isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        try {
+            routeSyncScheduler.execute(() -> {
+                syncRoutes();
+                synced.complete(null);
+            });
+        } catch (RejectedExecutionException e) {
+            synced.complete(null);
+        }
+        return synced;
+    }
 
-        public ClusterEventListenerGrpc.ClusterEventListenerBlockingStub blockingStub;
+    /* 向每个远程 Broker 发送本地订阅摘要的增量，对方版本不一致或发送失败后下一轮改为发送完整的摘要 */
+    private void syncRoutes() {
+        try {
+            SubscriptionSummary.Delta delta = subscriptionSummary.drainDelta();
+            SubscriptionSummary.Delta snapshot = null;
+            long now = System.nanoTime();
+            boolean heartbeat = now - lastRouteHeartbeatNanos >= ROUTE_HEARTBEAT_NANOS;
+            if (heartbeat) {
+                lastRouteHeartbeatNanos = now;
+            }
+            for (ClusterPeer peer : clusterPeerRegistry.peers()) {
+                ClusterSubscriptionRequest request;
+                if (peer.routesStale) {
+                    if (!peer.isAvailable()) {
+                        continue;
+                    }
+                    if (snapshot == null) {
+                        snapshot = subscriptionSummary.snapshot();
+                    }
+                    request = buildSubscriptionRequest(snapshot, true);
+                } else if (delta != null) {
+                    request = buildSubscriptionRequest(delta, false);
+                } else if (heartbeat) {
+                    request = ClusterSubscriptionRequest.newBuilder().setVersion(subscriptionSummary.version()).build();
+                } else {
+                    continue;
+                }
+                try {
+                    ClusterResponse response = peer.blockingStub()
+                            .withDeadlineAfter(ROUTE_SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                            .onEvent(ClusterRequest.newBuilder()
+                                    .setBrokerId(brokerProperties.getId())
+                                    .setSubscriptionRequest(request)
+                                    .build());
+                    peer.routesStale = response.getResultCode() != ClusterResponse.ResultCode.OK;
+                    peer.onSuccess();
+                } catch (StatusRuntimeException e) {
+                    log.warn("Failed to sync subscription routes to broker {}: {}", peer.brokerId(), e.getStatus());
+                    peer.routesStale = true;
+                    peer.onFailure();
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to sync subscription routes", e);
+        }
+    }
 
-        public ClusterEventListenerGrpc.ClusterEventListenerFutureStub asyncStub;
+    private ClusterSubscriptionRequest buildSubscriptionRequest(SubscriptionSummary.Delta delta, boolean full) {
+        return ClusterSubscriptionRequest.newBuilder()
+                .setVersion(delta.version())
+                .setFull(full)
+                .addAllAdded(delta.added())
+                .addAllRemoved(delta.removed())
+                .build();
+    }
 
-        public ClusterGrpcClient(Channel channel) {
-            blockingStub = ClusterEventListenerGrpc.newBlockingStub(channel);
-            asyncStub = ClusterEventListenerGrpc.newFutureStub(channel);
+    private ClusterPublishRequest buildPublishRequest(String publisherClientId, String topic, MqttQoS qos, MessagePayload payload) {
+        ClusterPublishRequest.Builder builder = ClusterPublishRequest.newBuilder()
+                .setTopic(topic)
+                .setPayload(UnsafeByteOperations.unsafeWrap(payload.content().nioBuffer()))
+                .setQos(ClusterPublishRequest.QoS.forNumber(qos.value()));
+        if (publisherClientId != null) {
+            builder.setPublisherClientId(publisherClientId);
         }
+        return builder.build();
+    }
 
-        public ClusterGrpcClient(ManagedChannelBuilder<?> channelBuilder) {
-            this(channelBuilder.usePlaintext().build());
-        }
+    @PreDestroy
+    public void shutdown() {
+        routeSyncScheduler.shutdown();
     }
 }
@@ -0,0 +1,517 @@
+package com.huohaodong.octopus.broker.protocol.cluster.membership;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.cluster.impl.ClusterPeerRegistry;
+import com.huohaodong.octopus.common.protocol.grpc.ClusterEventListenerGrpc;
+import com.huohaodong.octopus.common.protocol.grpc.GossipAck;
+import com.huohaodong.octopus.common.protocol.grpc.GossipPing;
+import com.huohaodong.octopus.common.protocol.grpc.MemberState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 基于 SWIM 的集群成员协议，通过 gRPC 端口的 Ping 调用通信，不依赖外部服务。
+ * 每轮按随机顺序直接探测一个成员，超时后请其他成员代为探测，仍然失败则将其标记为 SUSPECT，
+ * 在 suspicionTimeout 内没有被它以更大的 incarnation 反驳则判定为 DEAD。成员状态的变化附带在探测请求与响应中传播。
+ * 启动时以及没有已知成员时向种子节点（配置的 seeds，以及可选的服务发现）发送加入请求。
+ */
+@Slf4j(topic = "CLUSTER_MEMBERSHIP")
+@Component
+public class ClusterMembership {
+
+    /* 每条状态变化被附带发送 RETRANSMIT_MULTIPLIER * log2(成员数) 次 */
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+
+    private static final int MAX_PIGGYBACK_UPDATES = 16;
+
+    /* 每隔若干轮向一个种子节点重新发送加入请求，用于合并网络分区恢复后的集群 */
+    private static final int REJOIN_ROUNDS = 30;
+
+    /* DEAD 状态保留一段时间后删除，之后由 tombstones 拒绝过期的 ALIVE 消息 */
+    private static final long DEAD_RETENTION_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final BrokerProperties.Membership properties;
+
+    private final String localBrokerId;
+
+    private final String localHost;
+
+    private final int localPort;
+
+    private final ObjectProvider<DiscoveryClient> discoveryClient;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("octopus-membership", true));
+
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    /* 以下字段由 this 保护 */
+    /* 以启动时间为初始值，重启后的 ALIVE 消息总能覆盖之前的 DEAD 状态 */
+    private long incarnation = System.currentTimeMillis();
+
+    private final Map<String, Entry> members = new HashMap<>();
+
+    /* 已删除的 DEAD 成员最后的 incarnation，不大于它的消息都已过期，成员重启后以更大的 incarnation 重新加入 */
+    private final Map<String, Long> tombstones = new HashMap<>();
+
+    private final Map<String, Update> updates = new LinkedHashMap<>();
+
+    private final List<String> probeOrder = new ArrayList<>();
+
+    private int probeIndex;
+
+    /* 只在 scheduler 中访问 */
+    private int rounds;
+
+    private volatile List<Member> liveMembers = List.of();
+
+    public ClusterMembership(BrokerProperties brokerProperties,
+                             @Value("${grpc.port:6565}") int grpcPort,
+                             ObjectProvider<DiscoveryClient> discoveryClient,
+                             ApplicationEventPublisher eventPublisher) {
+        this.properties = brokerProperties.getMembership();
+        this.localBrokerId = brokerProperties.getId();
+        this.localHost = properties.getAdvertiseHost() != null ? properties.getAdvertiseHost() : brokerProperties.getHost();
+        this.localPort = grpcPort;
+        this.discoveryClient = discoveryClient;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnable()) {
+            return;
+        }
+        log.info("Start cluster membership as {}@{}:{}", localBrokerId, localHost, localPort);
+        long interval = properties.getProbeIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::probe, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnable();
+    }
+
+    /* ALIVE 与 SUSPECT 状态的成员，不包含本节点 */
+    public List<Member> members() {
+        return liveMembers;
+    }
+
+    public void handlePing(GossipPing ping, StreamObserver<GossipAck> responseObserver) {
+        if (!properties.isEnable()) {
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("Cluster membership is disabled").asRuntimeException());
+            return;
+        }
+        List<Member> changed = new ArrayList<>();
+        Member target;
+        synchronized (this) {
+            merge(ping.getFrom(), changed);
+            ping.getUpdatesList().forEach(state -> merge(state, changed));
+            target = ping.getTargetBrokerId().isEmpty() ? null : memberOf(ping.getTargetBrokerId());
+        }
+        publish(changed);
+        if (ping.getTargetBrokerId().isEmpty()) {
+            responseObserver.onNext(buildAck(ping.getJoin(), true));
+            responseObserver.onCompleted();
+            return;
+        }
+        if (target == null) {
+            responseObserver.onNext(buildAck(false, false));
+            responseObserver.onCompleted();
+            return;
+        }
+        // 间接探测，不阻塞 gRPC 线程
+        Futures.addCallback(stub(target.host(), target.port()).ping(buildPing(null, false)), new FutureCallback<>() {
+            @Override
+            public void onSuccess(GossipAck ack) {
+                mergeAll(ack);
+                responseObserver.onNext(buildAck(false, true));
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                responseObserver.onNext(buildAck(false, false));
+                responseObserver.onCompleted();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (properties.isEnable()) {
+            leave();
+        }
+        channels.values().forEach(ManagedChannel::shutdown);
+    }
+
+    private void probe() {
+        try {
+            expire();
+            rounds++;
+            Member target = nextProbeTarget();
+            if (target == null || rounds % REJOIN_ROUNDS == 0) {
+                join();
+            }
+            if (target == null || ping(target) || indirectPing(target)) {
+                return;
+            }
+            suspect(target);
+        } catch (RuntimeException e) {
+            log.error("Unexpected exception in membership probe", e);
+        }
+    }
+
+    private void join() {
+        List<String[]> seeds = new ArrayList<>();
+        properties.getSeeds().forEach(seed -> {
+            int separator = seed.lastIndexOf(':');
+            seeds.add(new String[]{seed.substring(0, separator), seed.substring(separator + 1)});
+        });
+        DiscoveryClient client = discoveryClient.getIfAvailable();
+        if (client != null) {
+            try {
+                for (ServiceInstance instance : client.getInstances(ClusterPeerRegistry.SERVICE_ID)) {
+                    seeds.add(new String[]{instance.getHost(), String.valueOf(instance.getPort())});
+                }
+            } catch (RuntimeException e) {
+                log.debug("Failed to look up seeds from discovery client: {}", e.toString());
+            }
+        }
+        Collections.shuffle(seeds);
+        for (String[] seed : seeds) {
+            int port = Integer.parseInt(seed[1]);
+            if (seed[0].equals(localHost) && port == localPort) {
+                continue;
+            }
+            try {
+                mergeAll(stub(seed[0], port).ping(buildPing(null, true)).get(properties.getProbeTimeoutMillis(), TimeUnit.MILLISECONDS));
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                log.debug("Failed to join cluster through seed {}:{}: {}", seed[0], seed[1], e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean ping(Member target) {
+        try {
+            mergeAll(stub(target.host(), target.port()).ping(buildPing(null, false)).get(properties.getProbeTimeoutMillis(), TimeUnit.MILLISECONDS));
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private boolean indirectPing(Member target) {
+        List<Member> helpers = new ArrayList<>(liveMembers);
+        helpers.removeIf(member -> member.brokerId().equals(target.brokerId()) || member.status() != Member.Status.ALIVE);
+        Collections.shuffle(helpers);
+        List<ListenableFuture<GossipAck>> futures = new ArrayList<>();
+        for (Member helper : helpers.subList(0, Math.min(properties.getIndirectProbes(), helpers.size()))) {
+            futures.add(stub(helper.host(), helper.port()).ping(buildPing(target.brokerId(), false)));
+        }
+        if (futures.isEmpty()) {
+            return false;
+        }
+        try {
+            // 代为探测需要一次额外的往返
+            List<GossipAck> acks = Futures.successfulAsList(futures).get(properties.getProbeTimeoutMillis() * 2L, TimeUnit.MILLISECONDS);
+            boolean reachable = false;
+            for (GossipAck ack : acks) {
+                if (ack != null) {
+                    mergeAll(ack);
+                    reachable |= ack.getReachable();
+                }
+            }
+            return reachable;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private void suspect(Member target) {
+        List<Member> changed = new ArrayList<>();
+        synchronized (this) {
+            Entry entry = members.get(target.brokerId());
+            if (entry != null && entry.member.equals(target)) {
+                log.info("Cluster member {} does not respond, mark as suspect", target.brokerId());
+                update(entry, target.withStatus(Member.Status.SUSPECT), changed);
+            }
+        }
+        publish(changed);
+    }
+
+    /* SUSPECT 超时后判定为 DEAD，DEAD 保留 DEAD_RETENTION 后删除 */
+    private void expire() {
+        List<Member> changed = new ArrayList<>();
+        List<Member> removed = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long suspicionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(properties.getSuspicionTimeoutMillis());
+            Iterator<Entry> iterator = members.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.member.status() == Member.Status.SUSPECT && now - entry.changedNanos >= suspicionTimeoutNanos) {
+                    log.info("Cluster member {} is dead", entry.member.brokerId());
+                    entry.member = entry.member.withStatus(Member.Status.DEAD);
+                    entry.changedNanos = now;
+                    enqueue(entry.member);
+                    changed.add(entry.member);
+                } else if (entry.member.status() == Member.Status.DEAD && now - entry.changedNanos >= DEAD_RETENTION_NANOS) {
+                    iterator.remove();
+                    tombstones.put(entry.member.brokerId(), entry.member.incarnation());
+                    removed.add(entry.member);
+                }
+            }
+            if (!changed.isEmpty() || !removed.isEmpty()) {
+                refreshLiveMembers();
+            }
+        }
+        removed.forEach(member -> closeChannel(member.host(), member.port()));
+        publish(changed);
+    }
+
+    private void leave() {
+        List<Member> targets;
+        GossipPing ping;
+        synchronized (this) {
+            enqueue(new Member(localBrokerId, localHost, localPort, incarnation, Member.Status.DEAD));
+            targets = liveMembers;
+            ping = buildPing(null, false);
+        }
+        List<ListenableFuture<GossipAck>> futures = new ArrayList<>();
+        targets.forEach(member -> futures.add(stub(member.host(), member.port()).ping(ping)));
+        try {
+            Futures.successfulAsList(futures).get(properties.getProbeTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Not all members received the leave message: {}", e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void mergeAll(GossipAck ack) {
+        List<Member> changed = new ArrayList<>();
+        synchronized (this) {
+            merge(ack.getFrom(), changed);
+            ack.getUpdatesList().forEach(state -> merge(state, changed));
+        }
+        publish(changed);
+    }
+
+    /* 按 SWIM 的规则合并一条成员状态，incarnation 更大的消息优先，相同时 DEAD 优先于 SUSPECT 优先于 ALIVE */
+    private void merge(MemberState state, List<Member> changed) {
+        Member.Status status = switch (state.getStatus()) {
+            case ALIVE -> Member.Status.ALIVE;
+            case SUSPECT -> Member.Status.SUSPECT;
+            case DEAD -> Member.Status.DEAD;
+            default -> null;
+        };
+        if (status == null || state.getBrokerId().isEmpty()) {
+            return;
+        }
+        Member incoming = new Member(state.getBrokerId(), state.getHost(), state.getPort(), state.getIncarnation(), status);
+        if (incoming.brokerId().equals(localBrokerId)) {
+            if (incoming.status() != Member.Status.ALIVE && incoming.incarnation() >= incarnation) {
+                incarnation = incoming.incarnation() + 1;
+                log.info("Refute {} state with incarnation {}", incoming.status(), incarnation);
+                enqueue(self());
+            }
+            return;
+        }
+        Entry entry = members.get(incoming.brokerId());
+        if (entry == null) {
+            Long tombstone = tombstones.get(incoming.brokerId());
+            if (tombstone != null && incoming.incarnation() <= tombstone) {
+                return;
+            }
+            if (incoming.status() == Member.Status.DEAD) {
+                tombstones.put(incoming.brokerId(), incoming.incarnation());
+            } else {
+                tombstones.remove(incoming.brokerId());
+                log.info("Cluster member {}@{}:{} joined", incoming.brokerId(), incoming.host(), incoming.port());
+                members.put(incoming.brokerId(), new Entry(incoming));
+                probeOrder.add(ThreadLocalRandom.current().nextInt(probeOrder.size() + 1), incoming.brokerId());
+                enqueue(incoming);
+                changed.add(incoming);
+                refreshLiveMembers();
+            }
+            return;
+        }
+        Member current = entry.member;
+        boolean newer = incoming.incarnation() > current.incarnation()
+                || (incoming.incarnation() == current.incarnation() && incoming.status().compareTo(current.status()) > 0);
+        if (newer) {
+            update(entry, incoming, changed);
+        }
+    }
+
+    private void update(Entry entry, Member member, List<Member> changed) {
+        Member previous = entry.member;
+        entry.member = member;
+        entry.changedNanos = System.nanoTime();
+        enqueue(member);
+        if (previous.status() == Member.Status.DEAD && member.status() != Member.Status.DEAD) {
+            log.info("Cluster member {}@{}:{} rejoined", member.brokerId(), member.host(), member.port());
+            probeOrder.add(member.brokerId());
+        }
+        if (previous.status() != member.status() || !previous.host().equals(member.host()) || previous.port() != member.port()) {
+            changed.add(member);
+            refreshLiveMembers();
+        }
+    }
+
+    private Member memberOf(String brokerId) {
+        Entry entry = members.get(brokerId);
+        return entry == null || entry.member.status() == Member.Status.DEAD ? null : entry.member;
+    }
+
+    private synchronized Member nextProbeTarget() {
+        probeOrder.removeIf(brokerId -> memberOf(brokerId) == null);
+        if (probeOrder.isEmpty()) {
+            return null;
+        }
+        if (probeIndex >= probeOrder.size()) {
+            // 每遍历一遍重新打乱顺序
+            Collections.shuffle(probeOrder);
+            probeIndex = 0;
+        }
+        return memberOf(probeOrder.get(probeIndex++));
+    }
+
+    private void refreshLiveMembers() {
+        liveMembers = members.values().stream()
+                .map(entry -> entry.member)
+                .filter(member -> member.status() != Member.Status.DEAD)
+                .toList();
+    }
+
+    private void enqueue(Member member) {
+        updates.remove(member.brokerId());
+        updates.put(member.brokerId(), new Update(member));
+    }
+
+    private synchronized GossipPing buildPing(String targetBrokerId, boolean join) {
+        GossipPing.Builder builder = GossipPing.newBuilder()
+                .setFrom(toState(self()))
+                .setJoin(join)
+                .addAllUpdates(piggyback());
+        if (targetBrokerId != null) {
+            builder.setTargetBrokerId(targetBrokerId);
+        }
+        return builder.build();
+    }
+
+    private synchronized GossipAck buildAck(boolean join, boolean reachable) {
+        GossipAck.Builder builder = GossipAck.newBuilder()
+                .setFrom(toState(self()))
+                .setReachable(reachable);
+        if (join) {
+            members.values().forEach(entry -> builder.addUpdates(toState(entry.member)));
+        } else {
+            builder.addAllUpdates(piggyback());
+        }
+        return builder.build();
+    }
+
+    /* 优先选择发送次数最少的状态变化，发送足够次数后不再附带 */
+    private List<MemberState> piggyback() {
+        if (updates.isEmpty()) {
+            return List.of();
+        }
+        int limit = RETRANSMIT_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+        List<Update> selected = updates.values().stream()
+                .sorted(Comparator.comparingInt(update -> update.transmits))
+                .limit(MAX_PIGGYBACK_UPDATES)
+                .toList();
+        List<MemberState> states = new ArrayList<>(selected.size());
+        for (Update update : selected) {
+            states.add(toState(update.member));
+            if (++update.transmits >= limit) {
+                updates.remove(update.member.brokerId());
+            }
+        }
+        return states;
+    }
+
+    private Member self() {
+        return new Member(localBrokerId, localHost, localPort, incarnation, Member.Status.ALIVE);
+    }
+
+    private void publish(List<Member> changed) {
+        changed.forEach(member -> eventPublisher.publishEvent(new MembershipChangedEvent(member)));
+    }
+
+    private ClusterEventListenerGrpc.ClusterEventListenerFutureStub stub(String host, int port) {
+        ManagedChannel channel = channels.computeIfAbsent(host + ":" + port, address -> ManagedChannelBuilder.forAddress(host, port).usePlaintext().build());
+        return ClusterEventListenerGrpc.newFutureStub(channel).withDeadlineAfter(properties.getProbeTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void closeChannel(String host, int port) {
+        ManagedChannel channel = channels.remove(host + ":" + port);
+        if (channel != null) {
+            channel.shutdown();
+        }
+    }
+
+    private static MemberState toState(Member member) {
+        return MemberState.newBuilder()
+                .setBrokerId(member.brokerId())
+                .setHost(member.host())
+                .setPort(member.port())
+                .setIncarnation(member.incarnation())
+                .setStatus(MemberState.Status.forNumber(member.status().ordinal()))
+                .build();
+    }
+
+    private static final class Entry {
+
+        private Member member;
+
+        private long changedNanos = System.nanoTime();
+
+        private Entry(Member member) {
+            this.member = member;
+        }
+    }
+
+    private static final class Update {
+
+        private final Member member;
+
+        private int transmits;
+
+        private Update(Member member) {
+            this.member = member;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.huohaodong.octopus.broker.protocol.cluster.membership;
+
+/* 集群成员的状态，地址为 gRPC 服务的地址 */
+public record Member(String brokerId, String host, int port, long incarnation, Status status) {
+
+    public enum Status {
+        ALIVE,
+        SUSPECT,
+        DEAD
+    }
+
+    Member withStatus(Status status) {
+        return new Member(brokerId, host, port, incarnation, status);
+    }
+}
@@ -0,0 +1,5 @@
+package com.huohaodong.octopus.broker.protocol.cluster.membership;
+
+/* 成员加入、地址变化、被怀疑或被判定失效时发布，member 为变化后的状态 */
+public record MembershipChangedEvent(Member member) {
+}
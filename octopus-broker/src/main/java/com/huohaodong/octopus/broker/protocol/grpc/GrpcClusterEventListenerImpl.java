@@ -1,7 +1,7 @@
 package com.huohaodong.octopus.broker.protocol.grpc;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
-import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.broker.protocol.cluster.membership.ClusterMembership;
 import com.huohaodong.octopus.common.protocol.cluster.exception.UnknownClusterEventException;
 import com.huohaodong.octopus.common.protocol.cluster.handler.ClusterEventHandler;
 import com.huohaodong.octopus.common.protocol.grpc.*;
@@ -10,7 +10,10 @@ import com.huohaodong.octopus.common.protocol.grpc.ClusterEventListenerGrpc;
 import com.huohaodong.octopus.common.protocol.grpc.ClusterPublishRequest;
 import com.huohaodong.octopus.common.protocol.grpc.ClusterRequest;
 import com.huohaodong.octopus.common.protocol.grpc.ClusterResponse;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
@@ -26,8 +29,12 @@ public class GrpcClusterEventListenerImpl extends ClusterEventListenerGrpc.Clust
 
     private final ClusterEventHandler clusterEventHandler;
 
+    private final ClusterMembership clusterMembership;
+
     private ClusterResponse CLUSTER_RESPONSE_OK;
 
+    private ClusterResponse CLUSTER_RESPONSE_RESYNC_REQUIRED;
+
     @PostConstruct
     private void init() {
         CLUSTER_RESPONSE_OK = ClusterResponse
@@ -35,6 +42,11 @@ public class GrpcClusterEventListenerImpl extends ClusterEventListenerGrpc.Clust
                 .setBrokerId(brokerProperties.getId())
                 .setResultCode(ClusterResponse.ResultCode.OK)
                 .build();
+        CLUSTER_RESPONSE_RESYNC_REQUIRED = ClusterResponse
+                .newBuilder()
+                .setBrokerId(brokerProperties.getId())
+                .setResultCode(ClusterResponse.ResultCode.RESYNC_REQUIRED)
+                .build();
     }
 
     @Override
@@ -42,22 +54,34 @@ public class GrpcClusterEventListenerImpl extends ClusterEventListenerGrpc.Clust
         switch (request.getRequestCase()) {
             case PUBLISH_REQUEST -> {
                 log.info("Received PUBLISH_REQUEST from broker {}", request.getBrokerId());
-                ClusterPublishRequest publishRequest = request.getPublishRequest();
-                clusterEventHandler.doPublish(
-                        PublishMessage.builder()
-                                .topic(publishRequest.getTopic())
-                                .qos(MqttQoS.valueOf(publishRequest.getQos().getNumber()))
-                                .payload(publishRequest.getPayload().toByteArray())
-                                .build()
-                );
+                publish(request.getPublishRequest());
                 responseObserver.onNext(CLUSTER_RESPONSE_OK);
                 responseObserver.onCompleted();
             }
             case CLOSE_CHANNEL_REQUEST -> {
                 log.info("Received CLOSE_CHANNEL_REQUEST from broker {}", request.getBrokerId());
                 ClusterCloseChannelRequest closeChannelRequest = request.getCloseChannelRequest();
-                clusterEventHandler.doCloseChannel(closeChannelRequest.getClientId());
-                responseObserver.onNext(CLUSTER_RESPONSE_OK);
+                // 旧连接关闭且会话清理完成后再响应，发起方据此发送 CONNACK
+                clusterEventHandler.doCloseChannel(closeChannelRequest.getClientId()).whenComplete((result, cause) -> {
+                    if (cause != null) {
+                        responseObserver.onError(Status.INTERNAL.withDescription(cause.toString()).asRuntimeException());
+                        return;
+                    }
+                    responseObserver.onNext(CLUSTER_RESPONSE_OK);
+                    responseObserver.onCompleted();
+                });
+            }
+            case SUBSCRIPTION_REQUEST -> {
+                ClusterSubscriptionRequest subscriptionRequest = request.getSubscriptionRequest();
+                log.debug("Received SUBSCRIPTION_REQUEST version {} from broker {}", subscriptionRequest.getVersion(), request.getBrokerId());
+                boolean applied = clusterEventHandler.doUpdateRoutes(
+                        request.getBrokerId(),
+                        subscriptionRequest.getVersion(),
+                        subscriptionRequest.getFull(),
+                        subscriptionRequest.getAddedList(),
+                        subscriptionRequest.getRemovedList()
+                );
+                responseObserver.onNext(applied ? CLUSTER_RESPONSE_OK : CLUSTER_RESPONSE_RESYNC_REQUIRED);
                 responseObserver.onCompleted();
             }
             case REQUEST_NOT_SET -> {
@@ -66,4 +90,50 @@ public class GrpcClusterEventListenerImpl extends ClusterEventListenerGrpc.Clust
             }
         }
     }
+
+    @Override
+    public StreamObserver<ClusterBatch> stream(StreamObserver<ClusterAck> responseObserver) {
+        return new StreamObserver<>() {
+            @Override
+            public void onNext(ClusterBatch batch) {
+                log.debug("Received batch {} with {} publish requests from broker {}", batch.getSequence(), batch.getPublishRequestsCount(), batch.getBrokerId());
+                batch.getPublishRequestsList().forEach(publishRequest -> publish(publishRequest));
+                responseObserver.onNext(ClusterAck.newBuilder()
+                        .setBrokerId(brokerProperties.getId())
+                        .setSequence(batch.getSequence())
+                        .build());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warn("Cluster stream closed by remote broker: {}", t.toString());
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    @Override
+    public void ping(GossipPing request, StreamObserver<GossipAck> responseObserver) {
+        clusterMembership.handlePing(request, responseObserver);
+    }
+
+    private void publish(ClusterPublishRequest publishRequest) {
+        // 直接引用请求中的消息体，不再复制为 byte[]
+        MessagePayload payload = MessagePayload.of(Unpooled.wrappedBuffer(publishRequest.getPayload().asReadOnlyByteBuffer()));
+        try {
+            clusterEventHandler.doPublish(
+                    publishRequest.getPublisherClientId(),
+                    publishRequest.getTopic(),
+                    MqttQoS.valueOf(publishRequest.getQos().getNumber()),
+                    payload,
+                    publishRequest.getSharedTopicsList()
+            );
+        } finally {
+            payload.release();
+        }
+    }
 }
@@ -1,7 +1,11 @@
 package com.huohaodong.octopus.broker.protocol.mqtt;
 
+import com.huohaodong.octopus.broker.service.message.MessageIdAllocator;
 import io.netty.util.AttributeKey;
 
 public class Constants {
     public static final AttributeKey<String> CHANNEL_ATTRIBUTE_CLIENT_ID = AttributeKey.newInstance("CLIENT_ID");
+    /* 该连接的报文在 MqttSessionExecutor 中排队所用的 key，收到 CONNECT 时即设置，早于 CLIENT_ID */
+    public static final AttributeKey<Object> CHANNEL_ATTRIBUTE_EXECUTOR_KEY = AttributeKey.newInstance("EXECUTOR_KEY");
+    public static final AttributeKey<MessageIdAllocator> CHANNEL_ATTRIBUTE_MESSAGE_ID_ALLOCATOR = AttributeKey.newInstance("MESSAGE_ID_ALLOCATOR");
 }
\ No newline at end of file
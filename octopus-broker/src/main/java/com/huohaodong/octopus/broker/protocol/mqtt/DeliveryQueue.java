@@ -0,0 +1,252 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.service.message.MessageIdAllocator;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_CLIENT_ID;
+
+/**
+ * 逐步向客户端发送大量报文，如订阅时匹配的保留消息、重新连接时未确认的消息和离线消息。
+ * 每个客户端按加入顺序保存若干 DeliverySource，只在 Channel 可写且占用的报文标识符未超过 maxInflight 时发送，
+ * Channel 恢复可写、客户端确认消息或 DeliverySource 调用 wakeUp 后从中断处继续。
+ * 连接断开后未发送完的 DeliverySource 保留 resumeTimeoutSeconds，期间重新连接时在新连接上继续发送。
+ * 客户端还有未发送完的 DeliverySource 时，在线投递的消息通过 enqueueIfPending 排在最后，保证之前的消息先到达客户端。
+ * 发送在 Channel 所在的 EventLoop 中进行，其他方法可以在任意线程中调用。
+ */
+@Slf4j(topic = "MQTT_DELIVERY")
+@RequiredArgsConstructor
+@Component
+@ChannelHandler.Sharable
+public class DeliveryQueue extends ChannelInboundHandlerAdapter {
+
+    private final BrokerProperties brokerProperties;
+
+    private final MessageService messageService;
+
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    /* key 相同且未发送完的 DeliverySource 被替换 */
+    public void add(Channel channel, String clientId, DeliverySource source) {
+        add(channel, clientId, source, false);
+    }
+
+    /* 与 add 相同，但排在其他 DeliverySource 之前发送 */
+    public void addFirst(Channel channel, String clientId, DeliverySource source) {
+        add(channel, clientId, source, true);
+    }
+
+    /* 客户端没有未发送完的 DeliverySource 时返回 false，调用方直接发送；payload 的引用仍归调用方所有 */
+    public boolean enqueueIfPending(Channel channel, String clientId, String topic, MqttQoS qos, MessagePayload payload) {
+        Stream stream = streams.get(clientId);
+        if (stream == null) {
+            return false;
+        }
+        synchronized (stream) {
+            if (stream.channel != channel || stream.sources.isEmpty() || streams.get(clientId) != stream) {
+                return false;
+            }
+            enqueue(stream, topic, qos, payload);
+        }
+        wakeUp(stream, channel);
+        return true;
+    }
+
+    /* 报文标识符已耗尽时调用，消息排在最后，客户端确认消息释放标识符后发送 */
+    public void enqueue(Channel channel, String clientId, String topic, MqttQoS qos, MessagePayload payload) {
+        Stream stream = streams.compute(clientId, (key, current) -> {
+            Stream target = current == null ? new Stream(clientId) : current;
+            synchronized (target) {
+                target.attach(channel);
+                enqueue(target, topic, qos, payload);
+            }
+            return target;
+        });
+        wakeUp(stream, channel);
+    }
+
+    public void cancel(String clientId, String key) {
+        Stream stream = streams.get(clientId);
+        if (stream != null) {
+            synchronized (stream) {
+                stream.sources.removeIf(pending -> Objects.equals(key, pending.key()));
+            }
+            removeIfDone(stream);
+        }
+    }
+
+    public void discard(String clientId) {
+        streams.remove(clientId);
+    }
+
+    /* 客户端确认消息释放报文标识符，或 DeliverySource 有新的报文可以发送时调用 */
+    public void wakeUp(Channel channel) {
+        String clientId = channel.attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get();
+        Stream stream = clientId == null ? null : streams.get(clientId);
+        if (stream != null) {
+            wakeUp(stream, channel);
+        }
+    }
+
+    /* 供 DeliverySource 为 QoS 1、QoS 2 报文申请报文标识符，超过 maxInflight 或已耗尽时返回 0 */
+    public int acquireMessageId(Channel channel) {
+        if (isInflightFull(channel)) {
+            return 0;
+        }
+        int messageId = messageService.acquireNextMessageId(channel);
+        return messageId == MessageIdAllocator.EXHAUSTED ? 0 : messageId;
+    }
+
+    public boolean isInflightFull(Channel channel) {
+        return messageService.getInflightMessageIdCount(channel) >= brokerProperties.getDelivery().getMaxInflight();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            wakeUp(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        String clientId = channel.attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get();
+        Stream stream = clientId == null ? null : streams.get(clientId);
+        if (stream != null) {
+            synchronized (stream) {
+                stream.detach(channel);
+            }
+            channel.eventLoop().schedule(() -> expire(stream, channel), brokerProperties.getDelivery().getResumeTimeoutSeconds(), TimeUnit.SECONDS);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void add(Channel channel, String clientId, DeliverySource source, boolean first) {
+        Stream stream = streams.compute(clientId, (key, current) -> {
+            Stream target = current == null ? new Stream(clientId) : current;
+            synchronized (target) {
+                target.attach(channel);
+                if (source.key() != null) {
+                    target.sources.removeIf(pending -> source.key().equals(pending.key()));
+                }
+                if (first) {
+                    target.sources.addFirst(source);
+                } else {
+                    target.sources.addLast(source);
+                }
+            }
+            return target;
+        });
+        wakeUp(stream, channel);
+    }
+
+    private void enqueue(Stream stream, String topic, MqttQoS qos, MessagePayload payload) {
+        QueuedMessageSource queued = stream.sources.peekLast() instanceof QueuedMessageSource last ? last : null;
+        if (queued == null) {
+            queued = new QueuedMessageSource(messageService, brokerProperties.getId(), stream.clientId);
+            stream.sources.addLast(queued);
+        }
+        if (queued.size() >= brokerProperties.getDelivery().getMaxQueuedMessages()) {
+            log.warn("Too many queued messages for client {}, drop message of topic {}", stream.clientId, topic);
+            return;
+        }
+        queued.add(topic, qos, payload.toByteArray());
+    }
+
+    private void wakeUp(Stream stream, Channel channel) {
+        if (channel.eventLoop().inEventLoop()) {
+            send(stream, channel);
+        } else {
+            channel.eventLoop().execute(() -> send(stream, channel));
+        }
+    }
+
+    private void send(Stream stream, Channel channel) {
+        int written = 0;
+        synchronized (stream) {
+            if (stream.channel != channel) {
+                return;
+            }
+            DeliverySource source;
+            while ((source = stream.sources.peek()) != null && channel.isActive() && channel.isWritable()) {
+                if (source.isDone()) {
+                    stream.sources.poll();
+                    continue;
+                }
+                MqttMessage message = source.poll(channel, this);
+                if (message == null) {
+                    break;
+                }
+                channel.write(message);
+                written++;
+            }
+        }
+        if (written > 0) {
+            channel.flush();
+            log.debug("Sent {} queued messages to client {}", written, stream.clientId);
+        }
+        removeIfDone(stream);
+    }
+
+    private void expire(Stream stream, Channel channel) {
+        streams.computeIfPresent(stream.clientId, (key, current) -> {
+            synchronized (current) {
+                return current == stream && current.channel == null && current.lastChannel == channel ? null : current;
+            }
+        });
+    }
+
+    private void removeIfDone(Stream stream) {
+        streams.computeIfPresent(stream.clientId, (key, current) -> {
+            synchronized (current) {
+                return current == stream && current.sources.isEmpty() ? null : current;
+            }
+        });
+    }
+
+    /* 以下字段由 Stream 自身保护 */
+    private static final class Stream {
+
+        private final String clientId;
+
+        private final ArrayDeque<DeliverySource> sources = new ArrayDeque<>();
+
+        /* 连接断开时为 null */
+        private Channel channel;
+
+        private Channel lastChannel;
+
+        private Stream(String clientId) {
+            this.clientId = clientId;
+        }
+
+        private void attach(Channel channel) {
+            this.channel = channel;
+            this.lastChannel = channel;
+        }
+
+        private void detach(Channel channel) {
+            if (this.channel == channel) {
+                this.channel = null;
+            }
+        }
+    }
+}
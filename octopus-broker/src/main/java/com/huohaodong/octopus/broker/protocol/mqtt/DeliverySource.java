@@ -0,0 +1,18 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttMessage;
+
+/* DeliveryQueue 中按顺序发送的一组报文，poll 和 isDone 只在 Channel 所在的 EventLoop 中调用 */
+public interface DeliverySource {
+
+    /* 下一条要写出的报文，暂时无法发送（如没有可用的报文标识符）时返回 null，下次唤醒时重试 */
+    MqttMessage poll(Channel channel, DeliveryQueue queue);
+
+    boolean isDone();
+
+    /* 同一客户端中 key 相同的 DeliverySource 互相替换，为 null 时不替换；各实现的 key 不能互相冲突，不能直接使用客户端提供的主题 */
+    default String key() {
+        return null;
+    }
+}
@@ -2,7 +2,10 @@ package com.huohaodong.octopus.broker.protocol.mqtt;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
 import com.huohaodong.octopus.broker.protocol.mqtt.handler.*;
+import com.huohaodong.octopus.broker.server.DecodeTimer;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -10,11 +13,13 @@ import io.netty.handler.codec.UnsupportedMessageTypeException;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_CLIENT_ID;
+import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_EXECUTOR_KEY;
 
 @Slf4j(topic = "MQTT_DISPATCHER")
 @RequiredArgsConstructor
@@ -45,10 +50,42 @@ public class MqttPacketDispatcher extends SimpleChannelInboundHandler<MqttMessag
 
     private final BrokerProperties brokerProperties;
 
+    private final MqttSessionExecutor sessionExecutor;
+
+    private final DecodeTimer decodeTimer;
+
+    /* 解码在 EventLoop 中完成，包含阻塞操作的处理交给 MqttSessionExecutor，同一客户端的报文按到达顺序处理 */
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) throws Exception {
         MqttMessageType msgType = msg.fixedHeader().messageType();
         log.info("Received {} message", msgType);
+        if (msgType == MqttMessageType.PINGREQ) {
+            pingHandler.doProcess(ctx, msg);
+            return;
+        }
+        if (msgType == MqttMessageType.PUBLISH) {
+            decodeTimer.stop(ctx.channel());
+            Metrics.MESSAGE_RECEIVED_TOTAL.inc();
+        }
+        if (msgType == MqttMessageType.CONNECT) {
+            ctx.channel().attr(CHANNEL_ATTRIBUTE_EXECUTOR_KEY).set(executorKey(ctx.channel(), (MqttConnectMessage) msg));
+        }
+        // SimpleChannelInboundHandler 会在返回后释放 msg
+        ReferenceCountUtil.retain(msg);
+        boolean accepted = submit(ctx, () -> {
+            try {
+                dispatch(ctx, msg);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        });
+        if (!accepted) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, MqttMessage msg) {
+        MqttMessageType msgType = msg.fixedHeader().messageType();
         switch (msgType) {
             case CONNECT:
                 connectHandler.doProcess(ctx, (MqttConnectMessage) msg);
@@ -74,9 +111,6 @@ public class MqttPacketDispatcher extends SimpleChannelInboundHandler<MqttMessag
             case UNSUBSCRIBE:
                 unSubscribeHandler.doProcess(ctx, (MqttUnsubscribeMessage) msg);
                 break;
-            case PINGREQ:
-                pingHandler.doProcess(ctx, msg);
-                break;
             case DISCONNECT:
                 disconnectHandler.doProcess(ctx, msg);
                 break;
@@ -94,11 +128,39 @@ public class MqttPacketDispatcher extends SimpleChannelInboundHandler<MqttMessag
             String clientId = ctx.channel().attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get();
             if (idleStateEvent.state() == IdleState.ALL_IDLE) {
                 log.info("heartbeat timeout, close channel");
-                messageService.getWillMessage(brokerProperties.getId(), clientId).ifPresent(willMessage -> publishHandler.sendPublishMessage(willMessage.getTopic(), willMessage.getQos(), willMessage.getPayload()));
-                disconnectHandler.doProcess(ctx, null);
+                submit(ctx, () -> {
+                    messageService.getWillMessage(brokerProperties.getId(), clientId).ifPresent(willMessage -> publishHandler.sendPublishMessage(clientId, willMessage.getTopic(), willMessage.getQos(), willMessage.getPayload()));
+                    disconnectHandler.doProcess(ctx, null);
+                });
             }
         } else {
             super.userEventTriggered(ctx, evt);
         }
     }
+
+    /* 处理过程中的异常交回 EventLoop，由 pipeline 照常处理 */
+    private boolean submit(ChannelHandlerContext ctx, Runnable task) {
+        Channel channel = ctx.channel();
+        Object key = channel.attr(CHANNEL_ATTRIBUTE_EXECUTOR_KEY).get();
+        boolean accepted = sessionExecutor.execute(key == null ? channel.id() : key, () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                ctx.fireExceptionCaught(t);
+            }
+        });
+        if (!accepted) {
+            log.warn("Too many pending packets ({}), close channel {}", sessionExecutor.getPendingTasks(), channel);
+            channel.close();
+        }
+        return accepted;
+    }
+
+    /* 同一客户端 ID 的新旧连接共用一个队列，保证重连时旧连接的报文先处理完 */
+    private static Object executorKey(Channel channel, MqttConnectMessage msg) {
+        if (msg.decoderResult().isFailure() || msg.payload() == null || msg.payload().clientIdentifier() == null || msg.payload().clientIdentifier().isEmpty()) {
+            return channel.id();
+        }
+        return msg.payload().clientIdentifier();
+    }
 }
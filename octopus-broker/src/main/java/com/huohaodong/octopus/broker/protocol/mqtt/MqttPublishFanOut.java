@@ -0,0 +1,92 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 将同一条 PUBLISH 消息转发给多个订阅者时只编码一次。
+ * 消息体为直接内存时直接共享，否则只复制一次到池化的直接内存中，每个订阅者持有它的 retainedDuplicate；
+ * 固定报头与主题按 QoS 预先编码，QoS 1 / QoS 2 只需在每个订阅者的报文中写入各自的报文标识符。
+ * 编码结果为 ByteBuf，直接越过 MqttEncoder 写出。该对象只能在单个线程中使用，使用完毕后必须调用 release()。
+ */
+public final class MqttPublishFanOut {
+
+    private final byte[] topic;
+
+    private final ByteBuf payload;
+
+    /* 以 QoS 为下标，按需编码 */
+    private final ByteBuf[] headers = new ByteBuf[MqttQoS.EXACTLY_ONCE.value() + 1];
+
+    /* 不接管 payload 的引用 */
+    public MqttPublishFanOut(String topic, MessagePayload payload) {
+        this.topic = topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuf content = payload.content();
+        if (content.isDirect()) {
+            this.payload = content.retainedDuplicate();
+        } else {
+            // 堆内存写出时每个 Channel 都会再复制到直接内存，因此先统一复制一次
+            this.payload = PooledByteBufAllocator.DEFAULT.directBuffer(content.readableBytes()).writeBytes(content, content.readerIndex(), content.readableBytes());
+        }
+    }
+
+    /* 返回的 ByteBuf 由调用方负责写出或释放 */
+    public ByteBuf encode(ByteBufAllocator alloc, MqttQoS qos, int messageId) {
+        ByteBuf header = header(qos);
+        ByteBuf prefix;
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            prefix = header.retainedDuplicate();
+        } else {
+            prefix = alloc.directBuffer(header.readableBytes() + 2);
+            prefix.writeBytes(header, header.readerIndex(), header.readableBytes());
+            prefix.writeShort(messageId);
+        }
+        CompositeByteBuf packet = alloc.compositeDirectBuffer(2);
+        packet.addComponents(true, prefix, payload.retainedDuplicate());
+        return packet;
+    }
+
+    public void release() {
+        payload.release();
+        for (int i = 0; i < headers.length; i++) {
+            if (headers[i] != null) {
+                headers[i].release();
+                headers[i] = null;
+            }
+        }
+    }
+
+    /* 固定报头 + 主题，不包括报文标识符 */
+    private ByteBuf header(MqttQoS qos) {
+        ByteBuf header = headers[qos.value()];
+        if (header == null) {
+            int variableHeaderLength = 2 + topic.length + (qos == MqttQoS.AT_MOST_ONCE ? 0 : 2);
+            int remainingLength = variableHeaderLength + payload.readableBytes();
+            header = PooledByteBufAllocator.DEFAULT.directBuffer(1 + 4 + 2 + topic.length);
+            header.writeByte(MqttMessageType.PUBLISH.value() << 4 | qos.value() << 1);
+            writeVariableLengthInt(header, remainingLength);
+            header.writeShort(topic.length);
+            header.writeBytes(topic);
+            headers[qos.value()] = header;
+        }
+        return header;
+    }
+
+    private static void writeVariableLengthInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+}
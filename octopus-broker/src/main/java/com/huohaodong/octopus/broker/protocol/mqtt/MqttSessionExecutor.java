@@ -0,0 +1,200 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在 EventLoop 之外执行 MQTT 报文处理（数据库、缓存、集群调用等阻塞操作）的线程池。
+ * 同一个 key（客户端 ID）的任务按提交顺序串行执行，不同 key 的任务并行执行。
+ * 每个 key 对应一个任务队列，队列非空时只有一个线程在处理它，队列为空时从 lanes 中移除。
+ * 任务可以通过 continueAfter 暂停所在的队列等待异步操作完成，等待期间不占用线程，后续任务也不会被执行。
+ */
+@Slf4j(topic = "MQTT_SESSION_EXECUTOR")
+@Component
+public class MqttSessionExecutor {
+
+    /* 每次最多连续执行的任务数，之后让出线程给其他客户端 */
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private static final ThreadLocal<Lane> CURRENT_LANE = new ThreadLocal<>();
+
+    private final ExecutorService pool;
+
+    private final int maxPendingTasks;
+
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    private final ConcurrentHashMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+
+    public MqttSessionExecutor(BrokerProperties brokerProperties) {
+        BrokerProperties.Executor properties = brokerProperties.getExecutor();
+        this.pool = Executors.newFixedThreadPool(properties.getThreads(), new DefaultThreadFactory("octopus-session"));
+        this.maxPendingTasks = properties.getMaxPendingTasks();
+        Metrics.SESSION_EXECUTOR_QUEUE_DEPTH.bind(pendingTasks::get);
+    }
+
+    /* 等待的任务过多或线程池已关闭时返回 false，task 不会被执行 */
+    public boolean execute(Object key, Runnable task) {
+        if (pendingTasks.incrementAndGet() > maxPendingTasks) {
+            pendingTasks.decrementAndGet();
+            return false;
+        }
+        Task pending = new Task(task, System.nanoTime());
+        Lane[] toSchedule = new Lane[1];
+        // 入队、出队都在 key 所在桶的锁内完成，保证 Lane 移除后不会再有任务进入
+        lanes.compute(key, (k, lane) -> {
+            if (lane == null) {
+                lane = new Lane(k);
+            }
+            lane.tasks.add(pending);
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                toSchedule[0] = lane;
+            }
+            return lane;
+        });
+        if (toSchedule[0] != null) {
+            try {
+                pool.execute(toSchedule[0]);
+            } catch (RejectedExecutionException e) {
+                // 新建的 Lane 中只有当前任务
+                lanes.remove(key);
+                pendingTasks.decrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在任务中调用时暂停该任务所在的队列，stage 完成后先执行 continuation，再继续执行队列中的其他任务。每个任务最多调用一次。
+     * 不在任务中调用时，continuation 直接在 stage 完成的线程中执行。
+     */
+    public void continueAfter(CompletionStage<?> stage, Runnable continuation) {
+        Lane lane = CURRENT_LANE.get();
+        if (lane == null) {
+            stage.whenComplete((result, cause) -> runSafely(continuation));
+            return;
+        }
+        lane.barrier = stage;
+        lane.continuation = continuation;
+    }
+
+    public int getPendingTasks() {
+        return pendingTasks.get();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        pool.shutdown();
+        if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Session executor did not terminate in time, {} tasks pending", pendingTasks.get());
+            pool.shutdownNow();
+        }
+    }
+
+    private Task poll(Lane lane) {
+        Task[] polled = new Task[1];
+        lanes.computeIfPresent(lane.key, (k, current) -> {
+            polled[0] = current.tasks.poll();
+            return polled[0] == null ? null : current;
+        });
+        return polled[0];
+    }
+
+    private record Task(Runnable runnable, long enqueueNanos) {
+
+        void run() {
+            double waitSeconds = (System.nanoTime() - enqueueNanos) / 1e9;
+            Metrics.SESSION_EXECUTOR_WAIT_SECONDS.observe(waitSeconds);
+            runSafely(runnable);
+        }
+    }
+
+    private static void runSafely(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Throwable t) {
+            log.error("Unexpected exception in session executor", t);
+        }
+    }
+
+    private final class Lane implements Runnable {
+
+        private final Object key;
+
+        /* 以下字段只在 lanes 对应桶的锁内访问 */
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+
+        private boolean scheduled;
+
+        /* 以下字段只由正在执行该 Lane 的线程访问 */
+        private CompletionStage<?> barrier;
+
+        private Runnable continuation;
+
+        private Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            if (continuation != null) {
+                Runnable resumed = continuation;
+                continuation = null;
+                if (runAndCheckSuspended(resumed)) {
+                    return;
+                }
+            }
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Task task = poll(this);
+                if (task == null) {
+                    return;
+                }
+                pendingTasks.decrementAndGet();
+                if (runAndCheckSuspended(task::run)) {
+                    return;
+                }
+            }
+            reschedule();
+        }
+
+        /* 任务调用了 continueAfter 时返回 true，Lane 保持 scheduled 状态，直到 barrier 完成后重新提交 */
+        private boolean runAndCheckSuspended(Runnable runnable) {
+            CURRENT_LANE.set(this);
+            try {
+                runSafely(runnable);
+            } finally {
+                CURRENT_LANE.remove();
+            }
+            if (barrier == null) {
+                return false;
+            }
+            CompletionStage<?> stage = barrier;
+            barrier = null;
+            stage.whenComplete((result, cause) -> reschedule());
+            return true;
+        }
+
+        private void reschedule() {
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                log.warn("Session executor is shut down, drop pending tasks of {}", key);
+            }
+        }
+    }
+}
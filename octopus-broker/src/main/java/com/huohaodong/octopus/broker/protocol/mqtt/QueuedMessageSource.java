@@ -0,0 +1,85 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * 客户端还有未发送完的 DeliverySource 时在线投递的消息，按到达顺序排在它们之后发送。
+ * QoS 1、QoS 2 的消息在发送时才申请报文标识符并记录为未完成消息。由所在的 Stream 保护。
+ */
+class QueuedMessageSource implements DeliverySource {
+
+    private final MessageService messageService;
+
+    private final String brokerId;
+
+    private final String clientId;
+
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+    QueuedMessageSource(MessageService messageService, String brokerId, String clientId) {
+        this.messageService = messageService;
+        this.brokerId = brokerId;
+        this.clientId = clientId;
+    }
+
+    void add(String topic, MqttQoS qos, byte[] payload) {
+        messages.add(new Message(topic, qos, payload));
+    }
+
+    int size() {
+        return messages.size();
+    }
+
+    @Override
+    public MqttMessage poll(Channel channel, DeliveryQueue queue) {
+        Message message = messages.peek();
+        if (message == null) {
+            return null;
+        }
+        int messageId = 0;
+        if (message.qos != MqttQoS.AT_MOST_ONCE) {
+            messageId = queue.acquireMessageId(channel);
+            if (messageId == 0) {
+                return null;
+            }
+        }
+        messages.poll();
+        if (message.qos == MqttQoS.AT_LEAST_ONCE) {
+            messageService.putPublishMessage(PublishMessage.builder()
+                    .brokerId(brokerId)
+                    .clientId(clientId)
+                    .messageId(messageId)
+                    .topic(message.topic)
+                    .payload(message.payload)
+                    .qos(message.qos)
+                    .build());
+        } else if (message.qos == MqttQoS.EXACTLY_ONCE) {
+            messageService.putPublishReleaseMessage(PublishReleaseMessage.builder()
+                    .brokerId(brokerId)
+                    .clientId(clientId)
+                    .messageId(messageId)
+                    .build());
+        }
+        Metrics.MESSAGE_SENT_TOTAL.inc();
+        return new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, message.qos, false, 0),
+                new MqttPublishVariableHeader(message.topic, messageId),
+                Unpooled.wrappedBuffer(message.payload));
+    }
+
+    @Override
+    public boolean isDone() {
+        return messages.isEmpty();
+    }
+
+    private record Message(String topic, MqttQoS qos, byte[] payload) {
+    }
+}
@@ -0,0 +1,61 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import com.huohaodong.octopus.common.persistence.entity.RetainMessage;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.*;
+
+import java.util.List;
+
+/* 订阅时匹配的保留消息，key 为加上前缀的主题过滤器，重复订阅时从头发送 */
+public class RetainMessageSource implements DeliverySource {
+
+    private static final String KEY_PREFIX = "retain:";
+
+    private final String topicFilter;
+
+    private final MqttQoS qos;
+
+    private final List<RetainMessage> retainMessages;
+
+    /* 下一条要发送的消息 */
+    private int position;
+
+    public RetainMessageSource(String topicFilter, MqttQoS qos, List<RetainMessage> retainMessages) {
+        this.topicFilter = topicFilter;
+        this.qos = qos;
+        this.retainMessages = retainMessages;
+    }
+
+    @Override
+    public MqttMessage poll(Channel channel, DeliveryQueue queue) {
+        RetainMessage retainMessage = retainMessages.get(position);
+        MqttQoS minQoS = MqttQoS.valueOf(Math.min(qos.value(), retainMessage.getQos().value()));
+        int messageId = 0;
+        if (minQoS.value() >= MqttQoS.AT_LEAST_ONCE.value()) {
+            messageId = queue.acquireMessageId(channel);
+            if (messageId == 0) {
+                return null;
+            }
+        }
+        position++;
+        return new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, minQoS, false, 0),
+                new MqttPublishVariableHeader(retainMessage.getTopic(), messageId),
+                Unpooled.wrappedBuffer(retainMessage.getPayload()));
+    }
+
+    @Override
+    public boolean isDone() {
+        return position == retainMessages.size();
+    }
+
+    @Override
+    public String key() {
+        return keyOf(topicFilter);
+    }
+
+    public static String keyOf(String topicFilter) {
+        return KEY_PREFIX + topicFilter;
+    }
+}
@@ -0,0 +1,270 @@
+package com.huohaodong.octopus.broker.protocol.mqtt;
+
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持久会话重新连接后重发上次连接中未确认的消息：先按主键分页读取 PublishMessage，读完后再读取 PublishReleaseMessage。
+ * 读取在 MqttSessionExecutor 中进行，期间 poll 返回 null，读取完成后通过 wakeUp 继续发送。
+ * 主键由各 Broker 预先分配的号段生成，只在同一个 Broker 内随写入递增，按主键分页能读到每条记录一次，但不同 Broker 写入的记录之间不保证写入顺序。
+ * 第一次读取前记下两张表中本 Broker 为该客户端写入的最大主键，本 Broker 写入的主键更大的记录属于当前连接（如重发期间收到 PUBREC 写入的记录），
+ * 即使因为其他 Broker 的号段更大而排在前面也跳过；同时记下所有 Broker 写入的最大主键，读到更大的主键即结束，避免追着当前连接新写入的记录读取。
+ * 重发时占用原报文标识符，与其他 DeliverySource 一样受 maxInflight 限制。在线投递的消息排在本 DeliverySource 之后，
+ * 原标识符只会被之前重发的记录占用：PUBLISH 最后改用新的标识符发送并删除原记录，PUBREL 等待该标识符释放后再发送。
+ * 以下字段由 this 保护。
+ */
+@Slf4j(topic = "MQTT_CONNECT")
+public class SessionResumeSource implements DeliverySource {
+
+    /* 不以 RetainMessageSource 的前缀开头，不会与订阅的主题过滤器冲突 */
+    public static final String KEY = "resume";
+
+    /* 线程池繁忙无法读取时，等待该时间后重试 */
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private final MessageService messageService;
+
+    private final MqttSessionExecutor sessionExecutor;
+
+    private final String brokerId;
+
+    private final String clientId;
+
+    private final int pageSize;
+
+    private final long startNanos = System.nanoTime();
+
+    /* 已读取但还没有发送的记录 */
+    private final ArrayDeque<Object> page = new ArrayDeque<>();
+
+    /* 原标识符已被重新连接后发送的消息占用的记录，最后作为新消息发送 */
+    private final ArrayDeque<PublishMessage> conflicts = new ArrayDeque<>();
+
+    /* 是否已经读完 PublishMessage，开始读取 PublishReleaseMessage */
+    private boolean releasePhase;
+
+    /* 当前阶段已读取的最后一条记录的主键 */
+    private long lastId;
+
+    /* 重新连接时两张表中的最大主键，读取第一页之前为 -1 */
+    private long publishCutoff = -1;
+
+    private long releaseCutoff = -1;
+
+    /* 重新连接时两张表中本 Broker 写入的最大主键 */
+    private long publishLocalCutoff;
+
+    private long releaseLocalCutoff;
+
+    private boolean loading;
+
+    /* 没有更多记录需要读取 */
+    private boolean exhausted;
+
+    private int resent;
+
+    private boolean completed;
+
+    public SessionResumeSource(MessageService messageService, MqttSessionExecutor sessionExecutor, String brokerId, String clientId, int pageSize) {
+        this.messageService = messageService;
+        this.sessionExecutor = sessionExecutor;
+        this.brokerId = brokerId;
+        this.clientId = clientId;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    @Override
+    public synchronized MqttMessage poll(Channel channel, DeliveryQueue queue) {
+        while (true) {
+            Object record = page.peek();
+            if (record == null) {
+                if (!exhausted) {
+                    if (!loading) {
+                        load(channel, queue);
+                    }
+                    return null;
+                }
+                return reassign(channel, queue);
+            }
+            if (queue.isInflightFull(channel)) {
+                return null;
+            }
+            MqttMessage message;
+            if (record instanceof PublishMessage publishMessage) {
+                page.poll();
+                message = resend(channel, publishMessage);
+            } else {
+                message = resend(channel, (PublishReleaseMessage) record);
+                if (message == null) {
+                    return null;
+                }
+                page.poll();
+            }
+            if (message != null) {
+                resent++;
+                completeIfDone();
+                return message;
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return exhausted && page.isEmpty() && conflicts.isEmpty();
+    }
+
+    @Override
+    public String key() {
+        return KEY;
+    }
+
+    private MqttMessage resend(Channel channel, PublishMessage record) {
+        if (!messageService.reserveMessageId(channel, record.getMessageId())) {
+            conflicts.add(record);
+            return null;
+        }
+        return new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, true, record.getQos(), false, 0),
+                new MqttPublishVariableHeader(record.getTopic(), record.getMessageId()),
+                Unpooled.wrappedBuffer(record.getPayload()));
+    }
+
+    /* 所有原标识符都占用之后再为冲突的消息申请新的标识符，避免新标识符与后面的记录冲突 */
+    private MqttMessage reassign(Channel channel, DeliveryQueue queue) {
+        PublishMessage record = conflicts.peek();
+        if (record == null) {
+            return null;
+        }
+        int messageId = queue.acquireMessageId(channel);
+        if (messageId == 0) {
+            return null;
+        }
+        conflicts.poll();
+        // 原记录不再删除的话，之后每次重新连接都会再重发一次
+        messageService.removePublishMessage(record.getBrokerId(), clientId, record.getMessageId());
+        messageService.putPublishMessage(PublishMessage.builder()
+                .brokerId(brokerId)
+                .clientId(clientId)
+                .messageId(messageId)
+                .topic(record.getTopic())
+                .payload(record.getPayload())
+                .qos(record.getQos())
+                .build());
+        resent++;
+        completeIfDone();
+        return new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, record.getQos(), false, 0),
+                new MqttPublishVariableHeader(record.getTopic(), messageId),
+                Unpooled.wrappedBuffer(record.getPayload()));
+    }
+
+    /* 原标识符被占用时返回 null，客户端确认消息释放标识符后重试 */
+    private MqttMessage resend(Channel channel, PublishReleaseMessage record) {
+        if (!messageService.reserveMessageId(channel, record.getMessageId())) {
+            log.debug("Message id {} of client {} is in use, wait to resend PUBREL", record.getMessageId(), clientId);
+            return null;
+        }
+        return MqttMessageFactory.newMessage(
+                new MqttFixedHeader(MqttMessageType.PUBREL, true, MqttQoS.AT_MOST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(record.getMessageId()), null);
+    }
+
+    private void load(Channel channel, DeliveryQueue queue) {
+        loading = true;
+        boolean release = releasePhase;
+        long afterId = lastId;
+        boolean first = publishCutoff == -1;
+        boolean accepted = sessionExecutor.execute(clientId, () -> {
+            List<?> records;
+            try {
+                if (first) {
+                    // 先读取本 Broker 的最大主键，两次查询之间本 Broker 写入的记录都会被跳过
+                    long publishLocal = messageService.getLastPublishMessageId(brokerId, clientId);
+                    long releaseLocal = messageService.getLastPublishReleaseMessageId(brokerId, clientId);
+                    cutoff(messageService.getLastPublishMessageIdByClientId(clientId), messageService.getLastPublishReleaseMessageIdByClientId(clientId),
+                            publishLocal, releaseLocal);
+                }
+                records = release
+                        ? messageService.getPublishReleaseMessagePageByClientId(clientId, afterId, pageSize)
+                        : messageService.getPublishMessagePageByClientId(clientId, afterId, pageSize);
+            } catch (Exception e) {
+                // 剩余的记录仍在数据库中，下次重新连接时重发
+                log.error("Failed to load unacknowledged messages of client {}", clientId, e);
+                records = null;
+            }
+            loaded(records);
+            queue.wakeUp(channel);
+        });
+        if (!accepted) {
+            loading = false;
+            channel.eventLoop().schedule(() -> queue.wakeUp(channel), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cutoff(long publishCutoff, long releaseCutoff, long publishLocalCutoff, long releaseLocalCutoff) {
+        this.publishCutoff = publishCutoff;
+        this.releaseCutoff = releaseCutoff;
+        this.publishLocalCutoff = publishLocalCutoff;
+        this.releaseLocalCutoff = releaseLocalCutoff;
+    }
+
+    private synchronized void loaded(List<?> records) {
+        loading = false;
+        if (records == null) {
+            exhausted = true;
+            page.clear();
+        } else {
+            long cutoff = releasePhase ? releaseCutoff : publishCutoff;
+            long localCutoff = releasePhase ? releaseLocalCutoff : publishLocalCutoff;
+            boolean end = records.size() < pageSize;
+            for (Object record : records) {
+                long id;
+                String owner;
+                if (record instanceof PublishMessage publishMessage) {
+                    id = publishMessage.getId();
+                    owner = publishMessage.getBrokerId();
+                } else {
+                    id = ((PublishReleaseMessage) record).getId();
+                    owner = ((PublishReleaseMessage) record).getBrokerId();
+                }
+                if (id > cutoff) {
+                    end = true;
+                    break;
+                }
+                lastId = id;
+                if (id > localCutoff && brokerId.equals(owner)) {
+                    continue;
+                }
+                page.add(record);
+            }
+            if (end) {
+                if (releasePhase) {
+                    exhausted = true;
+                } else {
+                    releasePhase = true;
+                    lastId = 0;
+                }
+            }
+        }
+        completeIfDone();
+    }
+
+    private void completeIfDone() {
+        if (exhausted && page.isEmpty() && conflicts.isEmpty() && !completed) {
+            completed = true;
+            Metrics.SESSION_RESUME_SECONDS.observe((System.nanoTime() - startNanos) / 1e9);
+            Metrics.SESSION_RESUME_MESSAGES.observe(resent);
+            log.debug("Resent {} unacknowledged messages to client {}", resent, clientId);
+        }
+    }
+}
@@ -1,28 +1,32 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.MqttSessionExecutor;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliverySource;
+import com.huohaodong.octopus.broker.protocol.mqtt.SessionResumeSource;
+import com.huohaodong.octopus.broker.server.KeepAliveManager;
+import com.huohaodong.octopus.broker.service.offline.OfflineMessageService;
 import com.huohaodong.octopus.common.persistence.entity.*;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
 import com.huohaodong.octopus.common.persistence.service.session.SessionService;
 import com.huohaodong.octopus.common.protocol.cluster.ClusterService;
 import com.huohaodong.octopus.common.protocol.mqtt.MqttPacketHandler;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundInvoker;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.handler.timeout.IdleStateHandler;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Optional;
 
 import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_CLIENT_ID;
-import static com.huohaodong.octopus.broker.server.Constants.HANDLER_HEARTBEAT;
 
 @Slf4j(topic = "MQTT_CONNECT")
 @RequiredArgsConstructor
@@ -37,6 +41,16 @@ public class ConnectHandler implements MqttPacketHandler<MqttConnectMessage> {
 
     private final ClusterService clusterService;
 
+    private final MqttSessionExecutor sessionExecutor;
+
+    private final KeepAliveManager keepAliveManager;
+
+    private final DeliveryQueue deliveryQueue;
+
+    private final OfflineMessageService offlineMessageService;
+
+    private final TransactionTemplate transactionTemplate;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttConnectMessage msg) {
@@ -102,9 +116,23 @@ public class ConnectHandler implements MqttPacketHandler<MqttConnectMessage> {
         });
 
         List<Session> oldSessionGlobal = sessionService.getSession(clientId);
-        if (!oldSessionGlobal.isEmpty()) {
-            clusterService.broadcastToClose(clientId);
+        if (oldSessionGlobal.isEmpty()) {
+            completeConnect(ctx, msg, oldSessionLocal.isPresent());
+            return;
         }
+        // 其他 Broker 关闭旧连接或超时后再发送 CONNACK，等待期间该客户端的后续报文不会被处理
+        boolean oldSessionPresent = oldSessionLocal.isPresent();
+        // 此时 doProcess 的事务已经提交，会话、遗嘱消息等写入在新的事务中执行
+        sessionExecutor.continueAfter(clusterService.broadcastToClose(clientId),
+                () -> transactionTemplate.executeWithoutResult(status -> completeConnect(ctx, msg, oldSessionPresent)));
+    }
+
+    private void completeConnect(ChannelHandlerContext ctx, MqttConnectMessage msg, boolean oldSessionPresent) {
+        Channel channel = ctx.channel();
+        if (!channel.isActive()) {
+            return;
+        }
+        String clientId = msg.payload().clientIdentifier();
 
         Session curSession = Session.builder()
                 .brokerIp(brokerProperties.getHost())
@@ -112,17 +140,14 @@ public class ConnectHandler implements MqttPacketHandler<MqttConnectMessage> {
                 .clientIp(((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress())
                 .clientId(clientId)
                 .status(SessionStatus.ONLINE)
+                .cleanSession(msg.variableHeader().isCleanSession())
                 .build();
 
-        sessionService.addChannel(clientId, channel);
         sessionService.putSession(curSession);
         channel.attr(CHANNEL_ATTRIBUTE_CLIENT_ID).set(clientId);
 
         if (msg.variableHeader().keepAliveTimeSeconds() > 0) {
-            if (channel.pipeline().names().contains(HANDLER_HEARTBEAT)) {
-                channel.pipeline().remove(HANDLER_HEARTBEAT);
-            }
-            channel.pipeline().addLast(HANDLER_HEARTBEAT, new IdleStateHandler(0, 0, Math.round(msg.variableHeader().keepAliveTimeSeconds() * 1.5f)));
+            keepAliveManager.setTimeout(channel, Math.round(msg.variableHeader().keepAliveTimeSeconds() * 1.5f));
         }
 
         if (msg.variableHeader().isWillFlag()) {
@@ -137,27 +162,31 @@ public class ConnectHandler implements MqttPacketHandler<MqttConnectMessage> {
             messageService.putWillMessage(willMessage);
         }
 
-        boolean sessionPresent = oldSessionLocal.isPresent() && !curSession.isCleanSession();
+        boolean sessionPresent = oldSessionPresent && !curSession.isCleanSession();
         MqttConnAckMessage connAck = (MqttConnAckMessage) MqttMessageFactory.newMessage(
                 new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
                 new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, sessionPresent), null);
         channel.writeAndFlush(connAck);
 
         if (!curSession.isCleanSession()) {
-            List<PublishMessage> unProcessedPublishMessages = messageService.getAllPublishMessageByClientId(clientId);
-            List<PublishReleaseMessage> unProcessedPublishReleaseMessages = messageService.getAllPublishReleaseMessageByClientId(clientId);
-            unProcessedPublishMessages.forEach(message -> {
-                MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, true, message.getQos(), false, 0),
-                        new MqttPublishVariableHeader(message.getTopic(), message.getMessageId()), Unpooled.buffer().writeBytes(message.getPayload()));
-                channel.writeAndFlush(publishMessage);
-            });
-            unProcessedPublishReleaseMessages.forEach(message -> {
-                MqttMessage publishReleaseMessage = MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBREL, true, MqttQoS.AT_MOST_ONCE, false, 0),
-                        MqttMessageIdVariableHeader.from(message.getMessageId()), null);
-                channel.writeAndFlush(publishReleaseMessage);
-            });
+            // 上次连接中未确认的消息排在之前未发送完的保留消息、离线消息之前，后者随之在新连接上继续发送
+            deliveryQueue.addFirst(channel, clientId, new SessionResumeSource(messageService, sessionExecutor,
+                    brokerProperties.getId(), clientId, brokerProperties.getDelivery().getResumePageSize()));
+            DeliverySource offlineMessages = offlineMessageService.replay(clientId);
+            if (offlineMessages != null) {
+                deliveryQueue.add(channel, clientId, offlineMessages);
+            }
+        } else {
+            deliveryQueue.discard(clientId);
+            offlineMessageService.discard(clientId);
+        }
+
+        // 补发的消息加入 DeliveryQueue 之后才注册 Channel，之后在线投递的消息排在它们之后
+        sessionService.addChannel(clientId, channel);
+        offlineMessageService.online(clientId);
+        if (!curSession.isCleanSession()) {
+            // 在 addChannel 之后注册，连接关闭时先移除 Channel，open 才会创建离线会话
+            channel.closeFuture().addListener(future -> offlineMessageService.open(clientId));
         }
     }
 }
@@ -1,6 +1,7 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
 import com.huohaodong.octopus.broker.service.subscription.SubscriptionServiceImpl;
 import com.huohaodong.octopus.common.persistence.entity.Session;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
@@ -30,6 +31,8 @@ public class DisconnectHandler implements MqttPacketHandler<MqttMessage> {
 
     private final MessageService messageService;
 
+    private final DeliveryQueue deliveryQueue;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttMessage msg) {
@@ -40,6 +43,7 @@ public class DisconnectHandler implements MqttPacketHandler<MqttMessage> {
                 subscriptionService.unSubscribeAll(brokerProperties.getId(), clientId);
                 messageService.removeAllPublishMessage(brokerProperties.getId(), clientId);
                 messageService.removeAllPublishReleaseMessage(brokerProperties.getId(), clientId);
+                deliveryQueue.discard(clientId);
             }
             sessionService.removeSession(brokerProperties.getId(), clientId);
         });
@@ -1,6 +1,7 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
 import com.huohaodong.octopus.common.protocol.mqtt.MqttPacketHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -21,6 +22,8 @@ public class PubAckHandler implements MqttPacketHandler<MqttPubAckMessage> {
 
     private final MessageService messageService;
 
+    private final DeliveryQueue deliveryQueue;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttPubAckMessage msg) {
@@ -29,5 +32,6 @@ public class PubAckHandler implements MqttPacketHandler<MqttPubAckMessage> {
         log.debug("Release qos 1 publish message of client {}, message id {}, at broker {}", clientId, messageId, brokerProperties.getId());
         messageService.removePublishMessage(brokerProperties.getId(), clientId, messageId);
         messageService.releaseMessageId(ctx.channel(), messageId);
+        deliveryQueue.wakeUp(ctx.channel());
     }
 }
@@ -1,6 +1,7 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
 import com.huohaodong.octopus.common.protocol.mqtt.MqttPacketHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -22,6 +23,8 @@ public class PubCompHandler implements MqttPacketHandler<MqttMessage> {
 
     private final MessageService messageService;
 
+    private final DeliveryQueue deliveryQueue;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttMessage msg) {
@@ -31,5 +34,6 @@ public class PubCompHandler implements MqttPacketHandler<MqttMessage> {
         log.debug("Release qos 2 publish release message of client {}, message id {}, at broker {}", clientId, messageId, brokerProperties.getId());
         messageService.removePublishReleaseMessage(brokerProperties.getId(), clientId, messageId);
         messageService.releaseMessageId(ctx.channel(), messageId);
+        deliveryQueue.wakeUp(ctx.channel());
     }
 }
@@ -38,11 +38,16 @@ public class PubRecHandler implements MqttPacketHandler<MqttMessage> {
         log.debug("Release qos 2 publish message of client {}, message id {}, at broker {}", clientId, messageId, brokerProperties.getId());
         messageService.removePublishMessage(brokerProperties.getId(), clientId, messageId);
         log.debug("Persist qos 2 publish release message from client {}, message id {}, at broker {}", clientId, messageId, brokerProperties.getId());
-        messageService.putPublishReleaseMessage(publishReleaseMessage);
-
-        MqttMessage pubRelMessage = MqttMessageFactory.newMessage(
-                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                MqttMessageIdVariableHeader.from(messageId), null);
-        ctx.channel().writeAndFlush(pubRelMessage);
+        messageService.putPublishReleaseMessage(publishReleaseMessage).whenComplete((ignored, cause) -> {
+            if (cause != null) {
+                log.error("Failed to persist qos 2 publish release message of client {}, message id {}", clientId, messageId, cause);
+                ctx.channel().close();
+                return;
+            }
+            MqttMessage pubRelMessage = MqttMessageFactory.newMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    MqttMessageIdVariableHeader.from(messageId), null);
+            ctx.channel().writeAndFlush(pubRelMessage);
+        });
     }
 }
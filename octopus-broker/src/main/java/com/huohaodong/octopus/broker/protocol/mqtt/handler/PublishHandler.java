@@ -1,7 +1,14 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
+import com.huohaodong.octopus.broker.protocol.mqtt.MqttPublishFanOut;
+import com.huohaodong.octopus.broker.service.message.MessageIdAllocator;
+import com.huohaodong.octopus.broker.service.offline.OfflineMessageService;
 import com.huohaodong.octopus.broker.service.subscription.SubscriptionServiceImpl;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedSubscriber;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedSubscriptionStrategy;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedTopic;
 import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
 import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
 import com.huohaodong.octopus.common.persistence.entity.RetainMessage;
@@ -9,9 +16,12 @@ import com.huohaodong.octopus.common.persistence.entity.Subscription;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
 import com.huohaodong.octopus.common.persistence.service.session.SessionService;
 import com.huohaodong.octopus.common.protocol.cluster.ClusterService;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
 import com.huohaodong.octopus.common.protocol.mqtt.MqttPacketHandler;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import com.huohaodong.octopus.exporter.metric.PublishStage;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.*;
 import lombok.RequiredArgsConstructor;
@@ -19,7 +29,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.Collection;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_CLIENT_ID;
 
@@ -38,44 +49,64 @@ public class PublishHandler implements MqttPacketHandler<MqttPublishMessage> {
 
     private final ClusterService clusterService;
 
+    private final SharedSubscriptionStrategy sharedSubscriptionStrategy;
+
+    private final OfflineMessageService offlineMessageService;
+
+    private final DeliveryQueue deliveryQueue;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttPublishMessage msg) {
         MqttQoS reqQoS = msg.fixedHeader().qosLevel();
-        byte[] payload = new byte[msg.payload().readableBytes()];
-        msg.payload().getBytes(msg.payload().readerIndex(), payload);
-        switch (reqQoS) {
-            case AT_MOST_ONCE ->
-                    sendPublishMessage(msg.variableHeader().topicName(), msg.fixedHeader().qosLevel(), payload);
-            case AT_LEAST_ONCE -> {
-                sendPublishMessage(msg.variableHeader().topicName(), msg.fixedHeader().qosLevel(), payload);
-                sendPubAckMessage(ctx, msg.variableHeader().packetId());
+        String topic = msg.variableHeader().topicName();
+        String clientId = ctx.channel().attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get();
+        MessagePayload payload = MessagePayload.retainedOf(msg.payload());
+        try {
+            // 共享订阅在整个集群中只选择一个成员，选中远程 Broker 的共享订阅随转发请求发送给对方
+            Map<String, List<String>> sharedTargets = new HashMap<>();
+            switch (reqQoS) {
+                case AT_MOST_ONCE -> publish(clientId, topic, reqQoS, payload, null, sharedTargets);
+                case AT_LEAST_ONCE -> {
+                    int packetId = msg.variableHeader().packetId();
+                    whenPersisted(ctx, publish(clientId, topic, reqQoS, payload, null, sharedTargets), () -> sendPubAckMessage(ctx, packetId));
+                }
+                case EXACTLY_ONCE -> {
+                    int packetId = msg.variableHeader().packetId();
+                    whenPersisted(ctx, publish(clientId, topic, reqQoS, payload, null, sharedTargets), () -> sendPubRecMessage(ctx, packetId));
+                }
             }
-            case EXACTLY_ONCE -> {
-                sendPublishMessage(msg.variableHeader().topicName(), msg.fixedHeader().qosLevel(), payload);
-                sendPubRecMessage(ctx, msg.variableHeader().packetId());
+            long forwardStart = Metrics.PUBLISH_STAGE_SECONDS.start();
+            clusterService.broadcastPublishMessage(clientId, topic, reqQoS, payload, sharedTargets);
+            Metrics.PUBLISH_STAGE_SECONDS.stop(PublishStage.FORWARD, forwardStart);
+            if (msg.fixedHeader().isRetain()) {
+                if (payload.length() == 0) {
+                    messageService.removeRetainMessage(brokerProperties.getId(), topic);
+                } else {
+                    messageService.putRetainMessage(RetainMessage.builder()
+                            .brokerId(brokerProperties.getId())
+                            .clientId(clientId)
+                            .topic(topic)
+                            .qos(reqQoS)
+                            .payload(payload.toByteArray())
+                            .build());
+                }
             }
+        } finally {
+            payload.release();
         }
-        clusterService.broadcastPublishMessage(PublishMessage.builder()
-                .brokerId(brokerProperties.getId())
-                .topic(msg.variableHeader().topicName())
-                .qos(reqQoS)
-                .payload(payload)
-                .build()
-        );
-        if (msg.fixedHeader().isRetain()) {
-            if (payload.length == 0) {
-                messageService.removeRetainMessage(brokerProperties.getId(), msg.variableHeader().topicName());
+    }
+
+    /* 所有订阅者的未完成消息持久化后才向发布者确认，失败时关闭连接让客户端重发 */
+    private void whenPersisted(ChannelHandlerContext ctx, CompletableFuture<Void> persisted, Runnable ack) {
+        persisted.whenComplete((ignored, cause) -> {
+            if (cause != null) {
+                log.error("Failed to persist inflight messages, close channel {}", ctx.channel(), cause);
+                ctx.channel().close();
             } else {
-                messageService.putRetainMessage(RetainMessage.builder()
-                        .brokerId(brokerProperties.getId())
-                        .clientId(ctx.channel().attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get())
-                        .topic(msg.variableHeader().topicName())
-                        .qos(reqQoS)
-                        .payload(payload)
-                        .build());
+                ack.run();
             }
-        }
+        });
     }
 
     private void sendPubAckMessage(ChannelHandlerContext ctx, int messageId) {
@@ -92,36 +123,159 @@ public class PublishHandler implements MqttPacketHandler<MqttPublishMessage> {
         ctx.channel().writeAndFlush(pubRecMessage);
     }
 
-    public void sendPublishMessage(String topic, MqttQoS QoS, byte[] payload) {
+    public CompletableFuture<Void> sendPublishMessage(String publisherClientId, String topic, MqttQoS QoS, byte[] payload) {
+        MessagePayload messagePayload = MessagePayload.wrap(payload);
+        try {
+            return sendPublishMessage(publisherClientId, topic, QoS, messagePayload);
+        } finally {
+            messagePayload.release();
+        }
+    }
+
+    /*
+     * 只在本地投递，每个共享订阅从本地成员中选择一个。publisherClientId 用于共享订阅的粘性分发，未知时为 null；payload 的引用仍归调用方所有。
+     * 返回的 CompletableFuture 在所有订阅者的未完成消息持久化后完成。
+     */
+    public CompletableFuture<Void> sendPublishMessage(String publisherClientId, String topic, MqttQoS QoS, MessagePayload payload) {
+        return publish(publisherClientId, topic, QoS, payload, null, null);
+    }
+
+    /* 其他 Broker 转发的消息，共享订阅只投递发送方选中的 sharedTopics，其余由发送方交给了其他 Broker */
+    public CompletableFuture<Void> sendForwardedPublishMessage(String publisherClientId, String topic, MqttQoS QoS, MessagePayload payload, Collection<String> sharedTopics) {
+        return publish(publisherClientId, topic, QoS, payload, sharedTopics, null);
+    }
+
+    /*
+     * sharedTopics 不为 null 时只投递其中的共享订阅；
+     * remoteSharedTargets 不为 null 时在整个集群中为每个共享订阅选择投递的 Broker，选中远程 Broker 的共享订阅按 Broker ID 记录到其中
+     */
+    private CompletableFuture<Void> publish(String publisherClientId, String topic, MqttQoS QoS, MessagePayload payload,
+                                            Collection<String> sharedTopics, Map<String, List<String>> remoteSharedTargets) {
+        Metrics.HOT_TOPIC_MESSAGES.add(topic);
+        Metrics.HOT_PUBLISHER_MESSAGES.add(publisherClientId);
+        long matchStart = Metrics.PUBLISH_STAGE_SECONDS.start();
         Collection<Subscription> subscriptions = subscriptionService.getAllMatched(brokerProperties.getId(), topic);
-        subscriptions.forEach(subscription -> {
-            String clientId = subscription.getClientId();
-            sessionService.getChannelByClientId(clientId).ifPresent(channel -> {
-                MqttQoS respQoS = MqttQoS.valueOf(Math.min(QoS.value(), subscription.getQos().value()));
-                int respMessageId = (respQoS.value() >= MqttQoS.AT_LEAST_ONCE.value()) ? messageService.acquireNextMessageId(channel) : 0;
-                ByteBuf respMessagePayload = Unpooled.buffer().writeBytes(payload);
-                MqttPublishMessage respPublishMessage = new MqttPublishMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, respQoS, false, 0),
-                        new MqttPublishVariableHeader(topic, respMessageId),
-                        respMessagePayload
-                );
-                switch (respQoS) {
-                    case AT_LEAST_ONCE -> messageService.putPublishMessage(PublishMessage.builder()
-                            .brokerId(brokerProperties.getId())
-                            .clientId(clientId)
-                            .messageId(respMessageId)
-                            .topic(topic)
-                            .payload(payload)
-                            .qos(respQoS)
-                            .build());
-                    case EXACTLY_ONCE -> messageService.putPublishReleaseMessage(PublishReleaseMessage.builder()
-                            .brokerId(brokerProperties.getId())
-                            .clientId(clientId)
-                            .messageId(respMessageId)
-                            .build());
+        Map<String, List<String>> remoteShared = remoteSharedTargets == null ? Map.of() : clusterService.matchSharedSubscriptions(topic);
+        Metrics.PUBLISH_STAGE_SECONDS.stop(PublishStage.MATCH, matchStart);
+        if (subscriptions.isEmpty()) {
+            remoteShared.forEach((sharedTopic, remoteBrokers) -> selectRemoteBroker(sharedTopic, publisherClientId, remoteBrokers, remoteSharedTargets));
+            return CompletableFuture.completedFuture(null);
+        }
+        MqttPublishFanOut fanOut = new MqttPublishFanOut(topic, payload);
+        List<CompletableFuture<Void>> persisted = new ArrayList<>();
+        List<Subscription> offlineSubscriptions = new ArrayList<>();
+        try {
+            Map<String, List<SharedSubscriber>> sharedGroups = new HashMap<>();
+            subscriptions.forEach(subscription -> {
+                String clientId = subscription.getClientId();
+                boolean shared = SharedTopic.isShared(subscription.getTopic());
+                if (shared && sharedTopics != null && !sharedTopics.contains(subscription.getTopic())) {
+                    return;
                 }
-                channel.writeAndFlush(respPublishMessage);
+                sessionService.getChannelByClientId(clientId).ifPresentOrElse(channel -> {
+                    if (shared) {
+                        sharedGroups.computeIfAbsent(subscription.getTopic(), key -> new ArrayList<>())
+                                .add(new SharedSubscriber(subscription, channel));
+                    } else {
+                        persisted.add(sendPublishMessage(channel, subscription, fanOut, topic, QoS, payload));
+                    }
+                }, () -> {
+                    if (!shared) {
+                        offlineSubscriptions.add(subscription);
+                    }
+                });
             });
+            if (!offlineSubscriptions.isEmpty()) {
+                offlineMessageService.store(topic, QoS, payload, offlineSubscriptions);
+            }
+            // 每个共享订阅只选择一个成员投递，本地有在线成员时本 Broker 也参与选择
+            sharedGroups.forEach((sharedTopic, members) -> {
+                List<String> remoteBrokers = remoteShared.getOrDefault(sharedTopic, List.of());
+                if (!remoteBrokers.isEmpty()) {
+                    List<String> brokerIds = new ArrayList<>(remoteBrokers.size() + 1);
+                    brokerIds.add(brokerProperties.getId());
+                    brokerIds.addAll(remoteBrokers);
+                    String selectedBroker = sharedSubscriptionStrategy.selectBroker(sharedTopic, publisherClientId, brokerIds);
+                    if (!selectedBroker.equals(brokerProperties.getId())) {
+                        remoteSharedTargets.computeIfAbsent(selectedBroker, key -> new ArrayList<>()).add(sharedTopic);
+                        return;
+                    }
+                }
+                SharedSubscriber selected = selectSharedSubscriber(sharedTopic, publisherClientId, members);
+                persisted.add(sendPublishMessage(selected.channel(), selected.subscription(), fanOut, topic, QoS, payload));
+            });
+            remoteShared.forEach((sharedTopic, remoteBrokers) -> {
+                if (!sharedGroups.containsKey(sharedTopic)) {
+                    selectRemoteBroker(sharedTopic, publisherClientId, remoteBrokers, remoteSharedTargets);
+                }
+            });
+        } finally {
+            fanOut.release();
+        }
+        return CompletableFuture.allOf(persisted.toArray(CompletableFuture[]::new));
+    }
+
+    /* 本地没有在线成员的共享订阅只在远程 Broker 之间选择 */
+    private void selectRemoteBroker(String sharedTopic, String publisherClientId, List<String> remoteBrokers, Map<String, List<String>> remoteSharedTargets) {
+        String selectedBroker = remoteBrokers.size() == 1 ? remoteBrokers.get(0)
+                : sharedSubscriptionStrategy.selectBroker(sharedTopic, publisherClientId, remoteBrokers);
+        remoteSharedTargets.computeIfAbsent(selectedBroker, key -> new ArrayList<>()).add(sharedTopic);
+    }
+
+    /* 优先选择 Channel 可写的成员，避免单个处理缓慢的成员拖慢整个组；全部不可写时再从所有在线成员中选择 */
+    private SharedSubscriber selectSharedSubscriber(String sharedTopic, String publisherClientId, List<SharedSubscriber> members) {
+        List<SharedSubscriber> writableMembers = new ArrayList<>(members.size());
+        members.forEach(member -> {
+            if (member.channel().isWritable()) {
+                writableMembers.add(member);
+            }
         });
+        List<SharedSubscriber> candidates = writableMembers.isEmpty() ? members : writableMembers;
+        return sharedSubscriptionStrategy.select(sharedTopic, publisherClientId, candidates);
+    }
+
+    /* payload 仅用于持久化，写出的报文由 fanOut 编码 */
+    private CompletableFuture<Void> sendPublishMessage(Channel channel, Subscription subscription, MqttPublishFanOut fanOut, String topic, MqttQoS QoS, MessagePayload payload) {
+        String clientId = subscription.getClientId();
+        MqttQoS respQoS = MqttQoS.valueOf(Math.min(QoS.value(), subscription.getQos().value()));
+        // 重新连接后补发的消息还没有发送完，排在它们之后发送
+        if (deliveryQueue.enqueueIfPending(channel, clientId, topic, respQoS, payload)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int respMessageId = (respQoS.value() >= MqttQoS.AT_LEAST_ONCE.value()) ? messageService.acquireNextMessageId(channel) : 0;
+        if (respMessageId == MessageIdAllocator.EXHAUSTED) {
+            log.debug("No available message id for client {}, queue message of topic {}", clientId, topic);
+            deliveryQueue.enqueue(channel, clientId, topic, respQoS, payload);
+            return CompletableFuture.completedFuture(null);
+        }
+        long persistStart = respQoS == MqttQoS.AT_MOST_ONCE ? 0 : Metrics.PUBLISH_STAGE_SECONDS.start();
+        CompletableFuture<Void> persisted = switch (respQoS) {
+            case AT_MOST_ONCE -> CompletableFuture.completedFuture(null);
+            case AT_LEAST_ONCE -> messageService.putPublishMessage(PublishMessage.builder()
+                    .brokerId(brokerProperties.getId())
+                    .clientId(clientId)
+                    .messageId(respMessageId)
+                    .topic(topic)
+                    .payload(payload.toByteArray())
+                    .qos(respQoS)
+                    .build());
+            case EXACTLY_ONCE -> messageService.putPublishReleaseMessage(PublishReleaseMessage.builder()
+                    .brokerId(brokerProperties.getId())
+                    .clientId(clientId)
+                    .messageId(respMessageId)
+                    .build());
+            default -> throw new IllegalArgumentException("Unknown QoS " + respQoS);
+        };
+        if (persistStart != 0) {
+            persisted.whenComplete((ignored, cause) -> Metrics.PUBLISH_STAGE_SECONDS.stop(PublishStage.PERSIST, persistStart));
+        }
+        long writeStart = Metrics.PUBLISH_STAGE_SECONDS.start();
+        ChannelFuture written = channel.writeAndFlush(fanOut.encode(channel.alloc(), respQoS, respMessageId));
+        if (writeStart != 0) {
+            written.addListener(future -> Metrics.PUBLISH_STAGE_SECONDS.stop(PublishStage.WRITE, writeStart));
+        }
+        Metrics.MESSAGE_SENT_TOTAL.inc();
+        Metrics.HOT_SUBSCRIBER_MESSAGES.add(clientId);
+        return persisted;
     }
 }
@@ -1,19 +1,23 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
+import com.huohaodong.octopus.broker.protocol.mqtt.MqttSessionExecutor;
+import com.huohaodong.octopus.broker.protocol.mqtt.RetainMessageSource;
 import com.huohaodong.octopus.broker.service.subscription.SubscriptionServiceImpl;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedTopic;
+import com.huohaodong.octopus.broker.service.subscription.trie.TopicTokens;
 import com.huohaodong.octopus.common.persistence.entity.RetainMessage;
 import com.huohaodong.octopus.common.persistence.entity.Subscription;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.common.protocol.cluster.ClusterService;
 import com.huohaodong.octopus.common.protocol.mqtt.MqttPacketHandler;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.StringUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -31,100 +35,70 @@ public class SubscribeHandler implements MqttPacketHandler<MqttSubscribeMessage>
 
     private final SubscriptionServiceImpl subscriptionService;
 
+    private final DeliveryQueue deliveryQueue;
+
+    private final ClusterService clusterService;
+
+    private final MqttSessionExecutor sessionExecutor;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttSubscribeMessage msg) {
         String clientId = ctx.channel().attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get();
         List<MqttTopicSubscription> subscriptions = msg.payload().topicSubscriptions();
-        if (this.validTopicFilter(subscriptions)) {
+        List<TopicTokens> filters = this.tokenizeTopicFilters(subscriptions);
+        if (filters != null) {
             List<Integer> reasonCodes = new ArrayList<>();
-            subscriptions.forEach(subscription -> {
+            for (int i = 0; i < subscriptions.size(); i++) {
+                MqttTopicSubscription subscription = subscriptions.get(i);
                 MqttQoS subQoS = subscription.qualityOfService();
                 subscriptionService.subscribe(Subscription.builder()
                         .brokerId(brokerProperties.getId())
                         .clientId(clientId)
                         .topic(subscription.topicName())
                         .qos(subQoS)
-                        .build());
+                        .build(), filters.get(i));
                 reasonCodes.add(subQoS.value());
-            });
-
-            MqttSubAckMessage subAckMessage = (MqttSubAckMessage) MqttMessageFactory.newMessage(
-                    new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                    MqttMessageIdVariableHeader.from(msg.variableHeader().messageId()),
-                    new MqttSubAckPayload(reasonCodes));
-            ctx.channel().writeAndFlush(subAckMessage);
+            }
 
-            List<RetainMessage> retainMessages = messageService.getAllRetainMessage(brokerProperties.getId());
-            subscriptions.forEach(subscription -> getAllMatchedRetainMessage(retainMessages, subscription.topicName()).forEach(retainMessage -> {
-                MqttQoS minQoS = MqttQoS.valueOf(Math.min(subscription.qualityOfService().value(), retainMessage.getQos().value()));
-                int messageId = (minQoS.value() >= MqttQoS.AT_LEAST_ONCE.value()) ? messageService.acquireNextMessageId(ctx.channel()) : 0;
-                MqttPublishMessage publishMessage = new MqttPublishMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, minQoS, false, 0),
-                        new MqttPublishVariableHeader(retainMessage.getTopic(), messageId),
-                        Unpooled.buffer().writeBytes(retainMessage.getPayload()));
-                ctx.channel().writeAndFlush(publishMessage);
-            }));
+            // 新的订阅推送到其他 Broker 后再发送 SUBACK，否则在下一次定时同步之前它们不会转发匹配的发布消息。
+            // 等待期间该客户端的后续报文不会被处理
+            sessionExecutor.continueAfter(clusterService.syncSubscriptions(), () -> completeSubscribe(ctx, msg, clientId, reasonCodes));
         } else {
             log.error("Invalid subscription topic filter from client {} at broker {}, close connection", clientId, brokerProperties.getId());
             ctx.channel().close();
         }
     }
 
-    private List<RetainMessage> getAllMatchedRetainMessage(List<RetainMessage> retainMessageList, String topicFilter) {
-        List<RetainMessage> retainMessages = new ArrayList<>();
-        retainMessageList.forEach(retainMessage -> {
-            if (!topicFilter.contains("#") && !topicFilter.contains("+")) {
-                if (retainMessage.getTopic().equals(topicFilter)) {
-                    retainMessages.add(retainMessage);
-                }
-            } else {
-                String topic = retainMessage.getTopic();
-                String[] splitTopics = topic.split("/");
-                String[] splitTopicFilters = topicFilter.split("/");
-                if (splitTopics.length >= splitTopicFilters.length) {
-                    StringBuilder newTopicFilter = new StringBuilder();
-                    for (int i = 0; i < splitTopicFilters.length; i++) {
-                        String value = splitTopicFilters[i];
-                        if (value.equals("+")) {
-                            newTopicFilter.append("+/");
-                        } else if (value.equals("#")) {
-                            newTopicFilter.append("#/");
-                            break;
-                        } else {
-                            newTopicFilter.append(splitTopics[i]).append("/");
-                        }
-                    }
-                    newTopicFilter = new StringBuilder(newTopicFilter.substring(0, newTopicFilter.lastIndexOf("/")));
-                    if (topicFilter.contentEquals(newTopicFilter)) {
-                        retainMessages.add(retainMessage);
-                    }
-                }
+    private void completeSubscribe(ChannelHandlerContext ctx, MqttSubscribeMessage msg, String clientId, List<Integer> reasonCodes) {
+        MqttSubAckMessage subAckMessage = (MqttSubAckMessage) MqttMessageFactory.newMessage(
+                new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(msg.variableHeader().messageId()),
+                new MqttSubAckPayload(reasonCodes));
+        ctx.channel().writeAndFlush(subAckMessage);
+
+        // 共享订阅不发送保留消息
+        msg.payload().topicSubscriptions().stream().filter(subscription -> !SharedTopic.isShared(subscription.topicName())).forEach(subscription -> {
+            List<RetainMessage> retainMessages = messageService.getAllMatchedRetainMessage(brokerProperties.getId(), subscription.topicName());
+            if (!retainMessages.isEmpty()) {
+                deliveryQueue.add(ctx.channel(), clientId, new RetainMessageSource(subscription.topicName(), subscription.qualityOfService(), retainMessages));
             }
         });
-        return retainMessages;
     }
 
-    private boolean validTopicFilter(List<MqttTopicSubscription> topicSubscriptions) {
+    /* 校验并切分每个订阅的主题过滤器（共享订阅为去掉前缀后的部分），切分结果直接用于插入 CTrie；存在非法主题时返回 null */
+    private List<TopicTokens> tokenizeTopicFilters(List<MqttTopicSubscription> topicSubscriptions) {
+        List<TopicTokens> filters = new ArrayList<>(topicSubscriptions.size());
         for (MqttTopicSubscription topicSubscription : topicSubscriptions) {
-            String topicFilter = topicSubscription.topicName();
-            if (topicFilter.startsWith("#") || topicFilter.startsWith("+") || topicFilter.endsWith("/") || !topicFilter.contains("/")) {
-                return false;
-            }
-            if (topicFilter.contains("#")) {
-                if (!topicFilter.endsWith("/#")) {
-                    return false;
-                }
-                if (topicFilter.indexOf("#") != topicFilter.lastIndexOf("#")) {
-                    return false;
-                }
-            }
-            if (topicFilter.contains("+")) {
-                if (StringUtils.countOccurrencesOf(topicFilter, "+") != StringUtils.countOccurrencesOf(topicFilter, "/+")) {
-                    return false;
-                }
+            String topicName = topicSubscription.topicName();
+            SharedTopic sharedTopic = SharedTopic.parse(topicName);
+            TopicTokens filter = TopicTokens.tokenize(sharedTopic == null ? topicName : sharedTopic.getFilter());
+            boolean valid = sharedTopic == null ? filter.isValidTopicFilter() : sharedTopic.isValid(filter);
+            if (!valid) {
+                return null;
             }
+            filters.add(filter);
         }
-        return true;
+        return filters;
     }
 }
@@ -1,6 +1,8 @@
 package com.huohaodong.octopus.broker.protocol.mqtt.handler;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
+import com.huohaodong.octopus.broker.protocol.mqtt.RetainMessageSource;
 import com.huohaodong.octopus.broker.service.subscription.SubscriptionServiceImpl;
 import com.huohaodong.octopus.common.protocol.mqtt.MqttPacketHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -23,12 +25,17 @@ public class UnSubscribeHandler implements MqttPacketHandler<MqttUnsubscribeMess
 
     private final SubscriptionServiceImpl subscriptionService;
 
+    private final DeliveryQueue deliveryQueue;
+
     @Override
     @Transactional
     public void doProcess(ChannelHandlerContext ctx, MqttUnsubscribeMessage msg) {
         String clientId = ctx.channel().attr(CHANNEL_ATTRIBUTE_CLIENT_ID).get();
         List<String> topics = msg.payload().topics();
-        topics.forEach(topic -> subscriptionService.unSubscribe(brokerProperties.getId(), clientId, topic));
+        topics.forEach(topic -> {
+            subscriptionService.unSubscribe(brokerProperties.getId(), clientId, topic);
+            deliveryQueue.cancel(clientId, RetainMessageSource.keyOf(topic));
+        });
         MqttUnsubAckMessage unsubAckMessage = new MqttUnsubAckMessage(
                 new MqttFixedHeader(MqttMessageType.UNSUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
                 MqttMessageIdVariableHeader.from(msg.variableHeader().messageId()), null);
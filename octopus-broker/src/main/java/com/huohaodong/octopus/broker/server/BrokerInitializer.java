@@ -2,22 +2,25 @@ package com.huohaodong.octopus.broker.server;
 
 import com.huohaodong.octopus.broker.config.BrokerProperties;
 import com.huohaodong.octopus.broker.protocol.mqtt.MqttPacketDispatcher;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
-import io.netty.handler.timeout.IdleStateHandler;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.huohaodong.octopus.broker.server.Constants.*;
 
@@ -30,29 +33,63 @@ public class BrokerInitializer {
 
     private final MqttPacketDispatcher mqttPacketDispatcher;
 
+    private final KeepAliveManager keepAliveManager;
+
+    private final DecodeTimer decodeTimer;
+
+    private final DeliveryQueue deliveryQueue;
+
     @PostConstruct
     public void start() {
         new Thread(this::initBroker, "OCTOPUS_BROKER").start();
     }
 
     public void initBroker() {
-        NioEventLoopGroup boss = new NioEventLoopGroup();
-        NioEventLoopGroup worker = new NioEventLoopGroup();
-        ServerBootstrap b = new ServerBootstrap().group(boss, worker).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<NioSocketChannel>() {
+        BrokerProperties.Transport properties = brokerProperties.getTransport();
+        NettyTransport transport = NettyTransport.select(properties.getType());
+        boolean reusePort = properties.isReusePort() && transport.supportsReusePort();
+        if (properties.isReusePort() && !reusePort) {
+            log.warn("SO_REUSEPORT is only supported by epoll transport, bind a single acceptor on {}", transport);
+        }
+        int acceptors = reusePort ? Math.max(1, properties.getAcceptors()) : 1;
+        // 每个监听 Channel 固定在一个 boss 线程上
+        EventLoopGroup boss = transport.newEventLoopGroup(Math.max(properties.getBossThreads(), acceptors), "octopus-boss");
+        EventLoopGroup worker = transport.newEventLoopGroup(properties.getWorkerThreads(), "octopus-worker");
+        ServerBootstrap b = new ServerBootstrap().group(boss, worker).channel(transport.serverChannelClass()).childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
-            protected void initChannel(NioSocketChannel ch) throws Exception {
+            protected void initChannel(SocketChannel ch) throws Exception {
                 log.info("Channel init {}", ch);
-                ch.pipeline().addLast(HANDLER_HEARTBEAT, new IdleStateHandler(0, 0, 3600));
+                ch.pipeline().addLast(HANDLER_HEARTBEAT, keepAliveManager);
+                ch.pipeline().addLast(HANDLER_DECODE_TIMER, decodeTimer);
                 ch.pipeline().addLast(HANDLER_MQTT_DECODER, new MqttDecoder());
+                ch.pipeline().addLast(HANDLER_DELIVERY_QUEUE, deliveryQueue);
                 ch.pipeline().addLast(HANDLER_MQTT_DISPATCHER, mqttPacketDispatcher);
                 ch.pipeline().addLast(HANDLER_MQTT_ENCODER, MqttEncoder.INSTANCE);
             }
-        }).option(ChannelOption.SO_BACKLOG, 1000);
+        }).option(ChannelOption.SO_BACKLOG, properties.getBacklog())
+                .childOption(ChannelOption.TCP_NODELAY, properties.isTcpNoDelay())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(properties.getWriteBufferLowWaterMark(), properties.getWriteBufferHighWaterMark()));
+        if (properties.getSendBufferSize() > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, properties.getSendBufferSize());
+        }
+        if (properties.getReceiveBufferSize() > 0) {
+            b.childOption(ChannelOption.SO_RCVBUF, properties.getReceiveBufferSize());
+        }
+        if (reusePort) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
         try {
-            ChannelFuture cf = b.bind(new InetSocketAddress(brokerProperties.getHost(), brokerProperties.getPort())).sync();
-            InetSocketAddress socketAddress = (InetSocketAddress) cf.channel().localAddress();
-            log.info("Start octopus server, host: {}, port: {}", socketAddress.getAddress(), socketAddress.getPort());
-            cf.channel().closeFuture().sync();
+            InetSocketAddress address = new InetSocketAddress(brokerProperties.getHost(), brokerProperties.getPort());
+            List<Channel> channels = new ArrayList<>(acceptors);
+            for (int i = 0; i < acceptors; i++) {
+                channels.add(b.bind(address).sync().channel());
+            }
+            InetSocketAddress socketAddress = (InetSocketAddress) channels.get(0).localAddress();
+            log.info("Start octopus server, host: {}, port: {}, transport: {}, acceptors: {}", socketAddress.getAddress(), socketAddress.getPort(), transport, acceptors);
+            for (Channel channel : channels) {
+                channel.closeFuture().sync();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -2,6 +2,8 @@ package com.huohaodong.octopus.broker.server;
 
 public class Constants {
     public static final String HANDLER_HEARTBEAT = "HEARTBEAT";
+    public static final String HANDLER_DECODE_TIMER = "DECODE_TIMER";
+    public static final String HANDLER_DELIVERY_QUEUE = "DELIVERY_QUEUE";
     public static final String HANDLER_MQTT_DISPATCHER = "MQTT_DISPATCHER";
     public static final String HANDLER_MQTT_ENCODER = "MQTT_ENCODER";
     public static final String HANDLER_MQTT_DECODER = "MQTT_DECODER";
@@ -0,0 +1,47 @@
+package com.huohaodong.octopus.broker.server;
+
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import com.huohaodong.octopus.exporter.metric.PublishStage;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.springframework.stereotype.Component;
+
+/**
+ * 位于 MqttDecoder 之前，记录读到数据的时间，解码得到 PUBLISH 报文后由 MqttPacketDispatcher 调用 stop 记录解码耗时。
+ * 一次读取解码出多个报文时只记录第一个。
+ */
+@Component
+@ChannelHandler.Sharable
+public class DecodeTimer extends ChannelInboundHandlerAdapter {
+
+    /* 每个连接一个数组，避免每次读取都装箱 */
+    private static final AttributeKey<long[]> CHANNEL_ATTRIBUTE_READ_NANOS = AttributeKey.newInstance("READ_NANOS");
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long startNanos = Metrics.PUBLISH_STAGE_SECONDS.start();
+        if (startNanos != 0) {
+            Attribute<long[]> readNanos = ctx.channel().attr(CHANNEL_ATTRIBUTE_READ_NANOS);
+            long[] holder = readNanos.get();
+            if (holder == null) {
+                holder = new long[1];
+                readNanos.set(holder);
+            }
+            holder[0] = startNanos;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /* 在 EventLoop 中调用 */
+    public void stop(Channel channel) {
+        long[] holder = channel.attr(CHANNEL_ATTRIBUTE_READ_NANOS).get();
+        if (holder != null && holder[0] != 0) {
+            Metrics.PUBLISH_STAGE_SECONDS.stop(PublishStage.DECODE, holder[0]);
+            holder[0] = 0;
+        }
+    }
+}
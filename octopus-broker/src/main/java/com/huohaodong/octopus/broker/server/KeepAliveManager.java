@@ -0,0 +1,88 @@
+package com.huohaodong.octopus.broker.server;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 连接的心跳检测。每个 EventLoop 使用一个粗粒度的 KeepAliveWheel，连接超过 keep alive 时间没有收到报文时触发 IdleStateEvent，
+ * 不再为每个连接单独创建 IdleStateHandler 和定时任务。
+ */
+@RequiredArgsConstructor
+@Component
+@ChannelHandler.Sharable
+public class KeepAliveManager extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<KeepAliveWheel.Entry> CHANNEL_ATTRIBUTE_KEEP_ALIVE = AttributeKey.newInstance("KEEP_ALIVE");
+
+    private final BrokerProperties brokerProperties;
+
+    private final Map<EventLoop, KeepAliveWheel> wheels = new ConcurrentHashMap<>();
+
+    /* 收到 CONNECT 后按客户端的 keep alive 时间重新设置超时，可以在任意线程中调用 */
+    public void setTimeout(Channel channel, long timeoutSeconds) {
+        if (channel.eventLoop().inEventLoop()) {
+            doSetTimeout(channel, timeoutSeconds);
+        } else {
+            channel.eventLoop().execute(() -> doSetTimeout(channel, timeoutSeconds));
+        }
+    }
+
+    private void doSetTimeout(Channel channel, long timeoutSeconds) {
+        KeepAliveWheel.Entry entry = channel.attr(CHANNEL_ATTRIBUTE_KEEP_ALIVE).get();
+        if (entry == null || !channel.isActive()) {
+            return;
+        }
+        KeepAliveWheel wheel = wheel(channel.eventLoop());
+        entry.timeoutTicks = wheel.toTicks(timeoutSeconds);
+        entry.lastActiveTick = wheel.tick();
+        wheel.schedule(entry);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        KeepAliveWheel wheel = wheel(ctx.channel().eventLoop());
+        KeepAliveWheel.Entry entry = new KeepAliveWheel.Entry(ctx.channel());
+        entry.timeoutTicks = wheel.toTicks(brokerProperties.getKeepAlive().getDefaultTimeoutSeconds());
+        entry.lastActiveTick = wheel.tick();
+        ctx.channel().attr(CHANNEL_ATTRIBUTE_KEEP_ALIVE).set(entry);
+        wheel.schedule(entry);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        KeepAliveWheel.Entry entry = ctx.channel().attr(CHANNEL_ATTRIBUTE_KEEP_ALIVE).get();
+        if (entry != null) {
+            entry.lastActiveTick = wheel(ctx.channel().eventLoop()).tick();
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        KeepAliveWheel.Entry entry = ctx.channel().attr(CHANNEL_ATTRIBUTE_KEEP_ALIVE).getAndSet(null);
+        if (entry != null) {
+            wheel(ctx.channel().eventLoop()).cancel(entry);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private KeepAliveWheel wheel(EventLoop eventLoop) {
+        KeepAliveWheel wheel = wheels.get(eventLoop);
+        if (wheel != null) {
+            return wheel;
+        }
+        BrokerProperties.KeepAlive properties = brokerProperties.getKeepAlive();
+        return wheels.computeIfAbsent(eventLoop, loop -> new KeepAliveWheel(loop, properties.getWheelSize(), properties.getTickMillis()));
+    }
+}
@@ -0,0 +1,109 @@
+package com.huohaodong.octopus.broker.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个 EventLoop 上所有连接共用的时间轮，只在该 EventLoop 中访问。
+ * 连接收到报文时只更新最近活跃的刻度，不移动它在时间轮中的位置；槽到期时再检查是否真正超时，未超时的连接按新的截止刻度重新放入时间轮。
+ */
+final class KeepAliveWheel implements Runnable {
+
+    private final Entry[] slots;
+
+    private final int mask;
+
+    private final long tickMillis;
+
+    private long tick;
+
+    KeepAliveWheel(EventLoop eventLoop, int wheelSize, long tickMillis) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.slots = new Entry[size];
+        this.mask = size - 1;
+        this.tickMillis = tickMillis;
+        eventLoop.scheduleAtFixedRate(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    long tick() {
+        return tick;
+    }
+
+    long toTicks(long timeoutSeconds) {
+        return Math.max(1, (TimeUnit.SECONDS.toMillis(timeoutSeconds) + tickMillis - 1) / tickMillis);
+    }
+
+    void schedule(Entry entry) {
+        cancel(entry);
+        long ticks = Math.max(1, entry.lastActiveTick + entry.timeoutTicks - tick);
+        int slot = (int) ((tick + Math.min(ticks, mask)) & mask);
+        entry.slot = slot;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    void cancel(Entry entry) {
+        if (entry.slot < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+    }
+
+    @Override
+    public void run() {
+        tick++;
+        int slot = (int) (tick & mask);
+        Entry entry = slots[slot];
+        slots[slot] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.prev = null;
+            entry.next = null;
+            entry.slot = -1;
+            if (entry.channel.isActive()) {
+                if (entry.lastActiveTick + entry.timeoutTicks <= tick) {
+                    // 与 IdleStateHandler 发出的事件相同，由 MqttPacketDispatcher 发送遗嘱消息并关闭连接
+                    entry.channel.pipeline().fireUserEventTriggered(IdleStateEvent.ALL_IDLE_STATE_EVENT);
+                } else {
+                    schedule(entry);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    static final class Entry {
+
+        final Channel channel;
+
+        long timeoutTicks;
+
+        long lastActiveTick;
+
+        private Entry prev;
+
+        private Entry next;
+
+        private int slot = -1;
+
+        Entry(Channel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.huohaodong.octopus.broker.server;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Broker 使用的 Netty 传输层。io_uring 的实现位于 netty-incubator-transport-native-io_uring 中，
+ * 通过反射加载，没有引入该依赖时退回 NIO。
+ */
+@Slf4j(topic = "BROKER_INITIALIZER")
+enum NettyTransport {
+
+    NIO, EPOLL, IO_URING;
+
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    static NettyTransport select(BrokerProperties.Transport.Type type) {
+        switch (type) {
+            case EPOLL:
+                if (Epoll.isAvailable()) {
+                    return EPOLL;
+                }
+                log.warn("Epoll transport is not available, fall back to NIO: {}", Epoll.unavailabilityCause().toString());
+                return NIO;
+            case IO_URING:
+                Throwable cause = ioUringUnavailabilityCause();
+                if (cause == null) {
+                    return IO_URING;
+                }
+                log.warn("IO_uring transport is not available, fall back to NIO: {}", cause.toString());
+                return NIO;
+            case AUTO:
+                return Epoll.isAvailable() ? EPOLL : NIO;
+            default:
+                return NIO;
+        }
+    }
+
+    EventLoopGroup newEventLoopGroup(int threads, String name) {
+        ThreadFactory threadFactory = new DefaultThreadFactory(name);
+        return switch (this) {
+            case EPOLL -> new EpollEventLoopGroup(threads, threadFactory);
+            case IO_URING -> newIoUringEventLoopGroup(threads, threadFactory);
+            default -> new NioEventLoopGroup(threads, threadFactory);
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    Class<? extends ServerChannel> serverChannelClass() {
+        return switch (this) {
+            case EPOLL -> EpollServerSocketChannel.class;
+            case IO_URING -> (Class<? extends ServerChannel>) loadIoUringClass("IOUringServerSocketChannel");
+            default -> NioServerSocketChannel.class;
+        };
+    }
+
+    boolean supportsReusePort() {
+        return this == EPOLL;
+    }
+
+    private static Throwable ioUringUnavailabilityCause() {
+        try {
+            Class<?> ioUring = Class.forName(IO_URING_PACKAGE + "IOUring");
+            if ((Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+                return null;
+            }
+            return (Throwable) ioUring.getMethod("unavailabilityCause").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return e;
+        }
+    }
+
+    private static Class<?> loadIoUringClass(String simpleName) {
+        try {
+            return Class.forName(IO_URING_PACKAGE + simpleName);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static EventLoopGroup newIoUringEventLoopGroup(int threads, ThreadFactory threadFactory) {
+        try {
+            return (EventLoopGroup) loadIoUringClass("IOUringEventLoopGroup")
+                    .getConstructor(int.class, ThreadFactory.class)
+                    .newInstance(threads, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package com.huohaodong.octopus.broker.service.cache;
 
 public class Constants {
-    public static final String CACHE_RETAIN_MESSAGE = "CACHE_RETAIN_MESSAGE";
-
     public static final String CACHE_WILL_MESSAGE = "CACHE_WILL_MESSAGE";
 }
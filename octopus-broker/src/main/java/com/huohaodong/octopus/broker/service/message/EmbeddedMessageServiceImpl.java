@@ -0,0 +1,214 @@
+package com.huohaodong.octopus.broker.service.message;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
+import com.huohaodong.octopus.common.persistence.entity.RetainMessage;
+import com.huohaodong.octopus.common.persistence.entity.WillMessage;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.common.persistence.store.EmbeddedMessageStore;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.channel.Channel;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/* 使用 StorageConfig 创建的本地 EmbeddedMessageStore 存储消息，只能查询本 Broker 的消息 */
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "embedded")
+public class EmbeddedMessageServiceImpl implements MessageService {
+
+    private final BrokerProperties brokerProperties;
+
+    private final EmbeddedMessageStore store;
+
+    private final RetainMessageIndex retainMessageIndex = new RetainMessageIndex();
+
+    @PostConstruct
+    public void init() {
+        store.getAllRetainMessage(brokerProperties.getId()).forEach(retainMessageIndex::put);
+        Metrics.RETAIN_MESSAGE_ACTIVE.bind(retainMessageIndex::size);
+        Metrics.WILL_MESSAGE_ACTIVE.bind(store::countWillMessage);
+    }
+
+    @Override
+    public int acquireNextMessageId(Channel channel) {
+        return MessageIdAllocator.of(channel).acquire();
+    }
+
+    @Override
+    public void releaseMessageId(Channel channel, int messageId) {
+        MessageIdAllocator allocator = MessageIdAllocator.peek(channel);
+        if (allocator != null) {
+            allocator.release(messageId);
+        }
+    }
+
+    @Override
+    public boolean reserveMessageId(Channel channel, int messageId) {
+        return MessageIdAllocator.of(channel).reserve(messageId);
+    }
+
+    @Override
+    public int getInflightMessageIdCount(Channel channel) {
+        MessageIdAllocator allocator = MessageIdAllocator.peek(channel);
+        return allocator == null ? 0 : allocator.inflight();
+    }
+
+    @Override
+    public CompletableFuture<Void> putPublishMessage(PublishMessage publishMessage) {
+        return store.putPublishMessage(publishMessage);
+    }
+
+    @Override
+    public Optional<PublishMessage> getPublishMessage(String brokerId, String clientId, Integer messageId) {
+        return store.getPublishMessage(brokerId, clientId, messageId);
+    }
+
+    @Override
+    public CompletableFuture<Void> removePublishMessage(String brokerId, String clientId, Integer messageId) {
+        return store.removePublishMessage(brokerId, clientId, messageId);
+    }
+
+    @Override
+    public List<PublishMessage> getAllPublishMessage(String brokerId, String clientId) {
+        return store.getAllPublishMessage(brokerId, clientId);
+    }
+
+    @Override
+    public void removeAllPublishMessage(String brokerId, String clientId) {
+        store.removeAllPublishMessage(brokerId, clientId);
+    }
+
+    @Override
+    public List<PublishMessage> getAllPublishMessageByClientId(String clientId) {
+        return store.getAllPublishMessageByClientId(clientId);
+    }
+
+    @Override
+    public List<PublishMessage> getPublishMessagePageByClientId(String clientId, long afterId, int limit) {
+        return store.getPublishMessagePageByClientId(clientId, afterId, limit);
+    }
+
+    @Override
+    public long getLastPublishMessageIdByClientId(String clientId) {
+        return store.getLastPublishMessageIdByClientId(clientId);
+    }
+
+    @Override
+    public long getLastPublishMessageId(String brokerId, String clientId) {
+        return store.getLastPublishMessageId(brokerId, clientId);
+    }
+
+    @Override
+    public void removeAllPublishMessageByClientId(String clientId) {
+        store.removeAllPublishMessageByClientId(clientId);
+    }
+
+    @Override
+    public CompletableFuture<Void> putPublishReleaseMessage(PublishReleaseMessage publishReleaseMessage) {
+        return store.putPublishReleaseMessage(publishReleaseMessage);
+    }
+
+    @Override
+    public Optional<PublishReleaseMessage> getPublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return store.getPublishReleaseMessage(brokerId, clientId, messageId);
+    }
+
+    @Override
+    public CompletableFuture<Void> removePublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return store.removePublishReleaseMessage(brokerId, clientId, messageId);
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getAllPublishReleaseMessage(String brokerId, String clientId) {
+        return store.getAllPublishReleaseMessage(brokerId, clientId);
+    }
+
+    @Override
+    public void removeAllPublishReleaseMessage(String brokerId, String clientId) {
+        store.removeAllPublishReleaseMessage(brokerId, clientId);
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getAllPublishReleaseMessageByClientId(String clientId) {
+        return store.getAllPublishReleaseMessageByClientId(clientId);
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getPublishReleaseMessagePageByClientId(String clientId, long afterId, int limit) {
+        return store.getPublishReleaseMessagePageByClientId(clientId, afterId, limit);
+    }
+
+    @Override
+    public long getLastPublishReleaseMessageIdByClientId(String clientId) {
+        return store.getLastPublishReleaseMessageIdByClientId(clientId);
+    }
+
+    @Override
+    public long getLastPublishReleaseMessageId(String brokerId, String clientId) {
+        return store.getLastPublishReleaseMessageId(brokerId, clientId);
+    }
+
+    @Override
+    public void removeAllPublishReleaseMessageByClientId(String clientId) {
+        store.removeAllPublishReleaseMessageByClientId(clientId);
+    }
+
+    @Override
+    public void putRetainMessage(RetainMessage retainMessage) {
+        if (isLocal(retainMessage.getBrokerId())) {
+            store.putRetainMessage(retainMessage);
+            retainMessageIndex.put(retainMessage);
+        }
+    }
+
+    @Override
+    public Optional<RetainMessage> getRetainMessage(String brokerId, String topic) {
+        return isLocal(brokerId) ? retainMessageIndex.get(topic) : Optional.empty();
+    }
+
+    @Override
+    public List<RetainMessage> getAllRetainMessage(String brokerId) {
+        return isLocal(brokerId) ? retainMessageIndex.getAll() : Collections.emptyList();
+    }
+
+    @Override
+    public List<RetainMessage> getAllMatchedRetainMessage(String brokerId, String topicFilter) {
+        return isLocal(brokerId) ? retainMessageIndex.match(topicFilter) : Collections.emptyList();
+    }
+
+    @Override
+    public void removeRetainMessage(String brokerId, String topic) {
+        if (isLocal(brokerId)) {
+            store.removeRetainMessage(brokerId, topic);
+            retainMessageIndex.remove(topic);
+        }
+    }
+
+    @Override
+    public void putWillMessage(WillMessage willMessage) {
+        store.putWillMessage(willMessage);
+    }
+
+    @Override
+    public Optional<WillMessage> getWillMessage(String brokerId, String clientId) {
+        return store.getWillMessage(brokerId, clientId);
+    }
+
+    @Override
+    public void removeWillMessage(String brokerId, String clientId) {
+        store.removeWillMessage(brokerId, clientId);
+    }
+
+    private boolean isLocal(String brokerId) {
+        return brokerProperties.getId().equals(brokerId);
+    }
+}
@@ -0,0 +1,357 @@
+package com.huohaodong.octopus.broker.service.message;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
+import com.huohaodong.octopus.common.persistence.repository.MessageBaseRepository;
+import com.huohaodong.octopus.common.persistence.repository.PublishMessageRepository;
+import com.huohaodong.octopus.common.persistence.repository.PublishReleaseMessageRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * QoS 1 / QoS 2 未完成消息（PublishMessage、PublishReleaseMessage）的写缓冲。
+ * 单条插入与删除先进入缓冲区，累计 batchSize 条或等待 linger 后由后台线程在一个事务中批量提交，
+ * 同一窗口内先插入后删除的记录相互抵消，不访问数据库。返回的 CompletableFuture 在记录提交或被抵消后完成。
+ * 查询和按客户端删除前会先提交缓冲区，并在新事务中执行，保证能看到之前的写入。
+ */
+@Slf4j(topic = "INFLIGHT_MESSAGE_STORE")
+@Component
+@ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "jdbc", matchIfMissing = true)
+public class InflightMessageStore {
+
+    private final Table<PublishMessage, PublishMessageRepository> publishTable;
+
+    private final Table<PublishReleaseMessage, PublishReleaseMessageRepository> publishReleaseTable;
+
+    private final TransactionTemplate writeTransaction;
+
+    private final TransactionTemplate readTransaction;
+
+    private final int batchSize;
+
+    private final long lingerNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    /* 由 lock 保护 */
+    private Map<Key, Pending> pending = new LinkedHashMap<>();
+
+    /* 保证各批次按离开缓冲区的顺序写入 */
+    private final Object writeLock = new Object();
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+    public InflightMessageStore(BrokerProperties brokerProperties,
+                                PublishMessageRepository publishMessageRepository,
+                                PublishReleaseMessageRepository publishReleaseMessageRepository,
+                                PlatformTransactionManager transactionManager) {
+        this.publishTable = new Table<>(publishMessageRepository);
+        this.publishReleaseTable = new Table<>(publishReleaseMessageRepository);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.writeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.readTransaction.setReadOnly(true);
+        this.batchSize = brokerProperties.getWriteBehind().getBatchSize();
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(brokerProperties.getWriteBehind().getLingerMillis());
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        flusher = new Thread(this::flushLoop, "OCTOPUS_WRITE_BEHIND");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flusher.join();
+        flush();
+    }
+
+    public CompletableFuture<Void> putPublishMessage(PublishMessage message) {
+        return insert(new Key(publishTable, message.getBrokerId(), message.getClientId(), message.getMessageId()), message);
+    }
+
+    public CompletableFuture<Void> removePublishMessage(String brokerId, String clientId, Integer messageId) {
+        return delete(new Key(publishTable, brokerId, clientId, messageId));
+    }
+
+    public Optional<PublishMessage> getPublishMessage(String brokerId, String clientId, Integer messageId) {
+        return read(() -> publishTable.repository.findByBrokerIdAndClientIdAndMessageId(brokerId, clientId, messageId));
+    }
+
+    public List<PublishMessage> getAllPublishMessage(String brokerId, String clientId) {
+        return read(() -> publishTable.repository.findAllByBrokerIdAndClientId(brokerId, clientId));
+    }
+
+    public List<PublishMessage> getAllPublishMessageByClientId(String clientId) {
+        return read(() -> publishTable.repository.findAllByClientId(clientId));
+    }
+
+    public void removeAllPublishMessage(String brokerId, String clientId) {
+        removeAll(publishTable, brokerId, clientId, () -> publishTable.repository.deleteAllByBrokerIdAndClientId(brokerId, clientId));
+    }
+
+    public List<PublishMessage> getPublishMessagePageByClientId(String clientId, long afterId, int limit) {
+        return read(() -> publishTable.repository.findAllByClientIdAndIdGreaterThanOrderByIdAsc(clientId, afterId, PageRequest.ofSize(limit)));
+    }
+
+    public long getLastPublishMessageIdByClientId(String clientId) {
+        return read(() -> publishTable.repository.findMaxIdByClientId(clientId));
+    }
+
+    public long getLastPublishMessageId(String brokerId, String clientId) {
+        return read(() -> publishTable.repository.findMaxIdByBrokerIdAndClientId(brokerId, clientId));
+    }
+
+    public void removeAllPublishMessageByClientId(String clientId) {
+        removeAll(publishTable, null, clientId, () -> publishTable.repository.deleteAllByClientId(clientId));
+    }
+
+    public CompletableFuture<Void> putPublishReleaseMessage(PublishReleaseMessage message) {
+        return insert(new Key(publishReleaseTable, message.getBrokerId(), message.getClientId(), message.getMessageId()), message);
+    }
+
+    public CompletableFuture<Void> removePublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return delete(new Key(publishReleaseTable, brokerId, clientId, messageId));
+    }
+
+    public Optional<PublishReleaseMessage> getPublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return read(() -> publishReleaseTable.repository.findByBrokerIdAndClientIdAndMessageId(brokerId, clientId, messageId));
+    }
+
+    public List<PublishReleaseMessage> getAllPublishReleaseMessage(String brokerId, String clientId) {
+        return read(() -> publishReleaseTable.repository.findAllByBrokerIdAndClientId(brokerId, clientId));
+    }
+
+    public List<PublishReleaseMessage> getAllPublishReleaseMessageByClientId(String clientId) {
+        return read(() -> publishReleaseTable.repository.findAllByClientId(clientId));
+    }
+
+    public void removeAllPublishReleaseMessage(String brokerId, String clientId) {
+        removeAll(publishReleaseTable, brokerId, clientId, () -> publishReleaseTable.repository.deleteAllByBrokerIdAndClientId(brokerId, clientId));
+    }
+
+    public List<PublishReleaseMessage> getPublishReleaseMessagePageByClientId(String clientId, long afterId, int limit) {
+        return read(() -> publishReleaseTable.repository.findAllByClientIdAndIdGreaterThanOrderByIdAsc(clientId, afterId, PageRequest.ofSize(limit)));
+    }
+
+    public long getLastPublishReleaseMessageIdByClientId(String clientId) {
+        return read(() -> publishReleaseTable.repository.findMaxIdByClientId(clientId));
+    }
+
+    public long getLastPublishReleaseMessageId(String brokerId, String clientId) {
+        return read(() -> publishReleaseTable.repository.findMaxIdByBrokerIdAndClientId(brokerId, clientId));
+    }
+
+    public void removeAllPublishReleaseMessageByClientId(String clientId) {
+        removeAll(publishReleaseTable, null, clientId, () -> publishReleaseTable.repository.deleteAllByClientId(clientId));
+    }
+
+    /* 立即提交缓冲区中的所有记录 */
+    public void flush() {
+        synchronized (writeLock) {
+            Map<Key, Pending> batch;
+            lock.lock();
+            try {
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            } finally {
+                lock.unlock();
+            }
+            write(batch);
+        }
+    }
+
+    private CompletableFuture<Void> insert(Key key, Object entity) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        lock.lock();
+        try {
+            Pending p = pending.computeIfAbsent(key, k -> new Pending());
+            p.insert = entity;
+            p.waiters.add(future);
+            signalIfNeeded();
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    private CompletableFuture<Void> delete(Key key) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        List<CompletableFuture<Void>> cancelled = null;
+        lock.lock();
+        try {
+            Pending p = pending.get(key);
+            if (p != null && p.insert != null && !p.delete) {
+                // 记录还未写入数据库，插入与删除直接抵消
+                pending.remove(key);
+                cancelled = p.waiters;
+            } else {
+                if (p == null) {
+                    p = new Pending();
+                    pending.put(key, p);
+                }
+                p.insert = null;
+                p.delete = true;
+                p.waiters.add(future);
+                signalIfNeeded();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (cancelled != null) {
+            cancelled.forEach(waiter -> waiter.complete(null));
+            future.complete(null);
+        }
+        return future;
+    }
+
+    /* brokerId 为 null 时匹配所有 Broker */
+    private void removeAll(Table<?, ?> table, String brokerId, String clientId, Runnable bulkDelete) {
+        synchronized (writeLock) {
+            List<CompletableFuture<Void>> discarded = new ArrayList<>();
+            lock.lock();
+            try {
+                pending.entrySet().removeIf(entry -> {
+                    Key key = entry.getKey();
+                    boolean matched = key.table == table && Objects.equals(key.clientId, clientId) && (brokerId == null || Objects.equals(key.brokerId, brokerId));
+                    if (matched) {
+                        discarded.addAll(entry.getValue().waiters);
+                    }
+                    return matched;
+                });
+            } finally {
+                lock.unlock();
+            }
+            writeTransaction.executeWithoutResult(status -> bulkDelete.run());
+            discarded.forEach(waiter -> waiter.complete(null));
+        }
+    }
+
+    private <R> R read(Supplier<R> query) {
+        flush();
+        return readTransaction.execute(status -> query.get());
+    }
+
+    private void signalIfNeeded() {
+        int size = pending.size();
+        if (size == 1 || size >= batchSize) {
+            changed.signal();
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            lock.lock();
+            try {
+                while (running && pending.isEmpty()) {
+                    changed.awaitUninterruptibly();
+                }
+                long remaining = lingerNanos;
+                while (running && pending.size() < batchSize && remaining > 0) {
+                    remaining = changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            flush();
+        }
+    }
+
+    private void write(Map<Key, Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writeTransaction.executeWithoutResult(status -> {
+                writeTable(publishTable, batch);
+                writeTable(publishReleaseTable, batch);
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to write {} inflight message records", batch.size(), e);
+            batch.values().forEach(p -> p.waiters.forEach(waiter -> waiter.completeExceptionally(e)));
+            return;
+        }
+        batch.values().forEach(p -> p.waiters.forEach(waiter -> waiter.complete(null)));
+    }
+
+    /* 同一条记录的删除先于插入执行，删除按客户端合并为一条语句 */
+    @SuppressWarnings("unchecked")
+    private <T, R extends JpaRepository<T, Long> & MessageBaseRepository<T, Long>> void writeTable(Table<T, R> table, Map<Key, Pending> batch) {
+        Map<ClientKey, List<Integer>> deletes = new LinkedHashMap<>();
+        List<T> inserts = new ArrayList<>();
+        batch.forEach((key, p) -> {
+            if (key.table != table) {
+                return;
+            }
+            if (p.delete) {
+                deletes.computeIfAbsent(new ClientKey(key.brokerId, key.clientId), k -> new ArrayList<>()).add(key.messageId);
+            }
+            if (p.insert != null) {
+                inserts.add((T) p.insert);
+            }
+        });
+        deletes.forEach((client, messageIds) -> table.repository.deleteAllByBrokerIdAndClientIdAndMessageIdIn(client.brokerId, client.clientId, messageIds));
+        if (!inserts.isEmpty()) {
+            table.repository.saveAll(inserts);
+        }
+    }
+
+    private static final class Table<T, R extends JpaRepository<T, Long> & MessageBaseRepository<T, Long>> {
+
+        private final R repository;
+
+        private Table(R repository) {
+            this.repository = repository;
+        }
+    }
+
+    private record Key(Table<?, ?> table, String brokerId, String clientId, Integer messageId) {
+    }
+
+    private record ClientKey(String brokerId, String clientId) {
+    }
+
+    private static final class Pending {
+
+        /* 是否需要删除数据库中已有的记录 */
+        private boolean delete;
+
+        private Object insert;
+
+        private final List<CompletableFuture<Void>> waiters = new ArrayList<>(1);
+    }
+}
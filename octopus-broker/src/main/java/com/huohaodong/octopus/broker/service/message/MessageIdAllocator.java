@@ -0,0 +1,122 @@
+package com.huohaodong.octopus.broker.service.message;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_MESSAGE_ID_ALLOCATOR;
+
+/**
+ * 单个连接的报文标识符分配器，用 65536 位的位图记录已分配的标识符，申请与释放均通过 CAS 完成。
+ * 从上次分配位置之后开始查找空闲位，避免刚释放的标识符被立即复用。
+ */
+public final class MessageIdAllocator {
+
+    /* 所有标识符均已被占用 */
+    public static final int EXHAUSTED = -1;
+
+    private static final int ID_SPACE = 1 << 16;
+
+    private static final int WORDS = ID_SPACE >>> 6;
+
+    private static final int MAX_INFLIGHT = ID_SPACE - 1;
+
+    private final AtomicLongArray bitmap = new AtomicLongArray(WORDS);
+
+    private final AtomicInteger cursor = new AtomicInteger(1);
+
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    public MessageIdAllocator() {
+        // 0 不是合法的报文标识符
+        bitmap.set(0, 1L);
+    }
+
+    /* 连接的分配器，第一次使用时创建 */
+    public static MessageIdAllocator of(Channel channel) {
+        Attribute<MessageIdAllocator> attribute = channel.attr(CHANNEL_ATTRIBUTE_MESSAGE_ID_ALLOCATOR);
+        MessageIdAllocator allocator = attribute.get();
+        if (allocator == null) {
+            MessageIdAllocator newAllocator = new MessageIdAllocator();
+            allocator = attribute.setIfAbsent(newAllocator);
+            if (allocator == null) {
+                allocator = newAllocator;
+            }
+        }
+        return allocator;
+    }
+
+    /* 连接还没有分配过标识符时返回 null */
+    public static MessageIdAllocator peek(Channel channel) {
+        return channel.attr(CHANNEL_ATTRIBUTE_MESSAGE_ID_ALLOCATOR).get();
+    }
+
+    /* 返回 1 ~ 65535 之间的标识符，没有空闲标识符时返回 EXHAUSTED */
+    public int acquire() {
+        if (inflight.get() >= MAX_INFLIGHT) {
+            return EXHAUSTED;
+        }
+        int start = cursor.get() & (ID_SPACE - 1);
+        int startWord = start >>> 6;
+        long startMask = -1L << (start & 63);
+        // 最后一轮回到起始字，检查起始位之前的部分
+        for (int i = 0; i <= WORDS; i++) {
+            int index = (startWord + i) & (WORDS - 1);
+            long mask = i == 0 ? startMask : (i == WORDS ? ~startMask : -1L);
+            long word;
+            long free;
+            while ((free = ~(word = bitmap.get(index)) & mask) != 0) {
+                long bit = Long.lowestOneBit(free);
+                if (bitmap.compareAndSet(index, word, word | bit)) {
+                    int id = index << 6 | Long.numberOfTrailingZeros(bit);
+                    inflight.incrementAndGet();
+                    cursor.lazySet(id + 1);
+                    return id;
+                }
+            }
+        }
+        return EXHAUSTED;
+    }
+
+    /* 占用指定的标识符，已被占用时返回 false */
+    public boolean reserve(int messageId) {
+        if (messageId <= 0 || messageId >= ID_SPACE) {
+            return false;
+        }
+        int index = messageId >>> 6;
+        long bit = 1L << (messageId & 63);
+        long word;
+        do {
+            word = bitmap.get(index);
+            if ((word & bit) != 0) {
+                return false;
+            }
+        } while (!bitmap.compareAndSet(index, word, word | bit));
+        inflight.incrementAndGet();
+        return true;
+    }
+
+    /* 标识符未被分配时返回 false */
+    public boolean release(int messageId) {
+        if (messageId <= 0 || messageId >= ID_SPACE) {
+            return false;
+        }
+        int index = messageId >>> 6;
+        long bit = 1L << (messageId & 63);
+        long word;
+        do {
+            word = bitmap.get(index);
+            if ((word & bit) == 0) {
+                return false;
+            }
+        } while (!bitmap.compareAndSet(index, word, word & ~bit));
+        inflight.decrementAndGet();
+        return true;
+    }
+
+    public int inflight() {
+        return inflight.get();
+    }
+}
@@ -1,158 +1,237 @@
 package com.huohaodong.octopus.broker.service.message;
 
+import com.huohaodong.octopus.broker.config.BrokerProperties;
 import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
 import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
 import com.huohaodong.octopus.common.persistence.entity.RetainMessage;
 import com.huohaodong.octopus.common.persistence.entity.WillMessage;
-import com.huohaodong.octopus.common.persistence.repository.PublishMessageRepository;
-import com.huohaodong.octopus.common.persistence.repository.PublishReleaseMessageRepository;
 import com.huohaodong.octopus.common.persistence.repository.RetainMessageRepository;
 import com.huohaodong.octopus.common.persistence.repository.WillMessageRepository;
 import com.huohaodong.octopus.common.persistence.service.message.MessageService;
-import com.huohaodong.octopus.exporter.metric.annotation.GaugeDecMetric;
-import com.huohaodong.octopus.exporter.metric.annotation.GaugeIncMetric;
+import com.huohaodong.octopus.exporter.metric.Metrics;
 import io.netty.channel.Channel;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
-import org.springframework.util.ConcurrentReferenceHashMap;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
-import static com.huohaodong.octopus.broker.service.cache.Constants.CACHE_RETAIN_MESSAGE;
 import static com.huohaodong.octopus.broker.service.cache.Constants.CACHE_WILL_MESSAGE;
-import static com.huohaodong.octopus.exporter.metric.Constants.METRIC_RETAIN_MESSAGE_ACTIVE;
-import static com.huohaodong.octopus.exporter.metric.Constants.METRIC_WILL_MESSAGE_ACTIVE;
 
 @Service
 @RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "jdbc", matchIfMissing = true)
 public class MessageServiceImpl implements MessageService {
 
-    private final ConcurrentReferenceHashMap<Channel, MessageIdGenerator> messageIdMap = new ConcurrentReferenceHashMap<>(32);
-
-    private final PublishMessageRepository publishMessageRepository;
-
-    private final PublishReleaseMessageRepository publishReleaseMessageRepository;
+    private final InflightMessageStore inflightMessageStore;
 
     private final RetainMessageRepository retainMessageRepository;
 
     private final WillMessageRepository willMessageRepository;
 
+    private final BrokerProperties brokerProperties;
+
+    /* 本 Broker 的保留消息，数据库写入提交后更新，启动时从数据库加载 */
+    private final RetainMessageIndex retainMessageIndex = new RetainMessageIndex();
+
+    @PostConstruct
+    public void init() {
+        retainMessageRepository.findAllByBrokerId(brokerProperties.getId()).forEach(retainMessageIndex::put);
+        Metrics.RETAIN_MESSAGE_ACTIVE.bind(retainMessageIndex::size);
+        // 遗嘱消息存储在数据库中，抓取时查询数量
+        Metrics.WILL_MESSAGE_ACTIVE.bind(() -> willMessageRepository.countByBrokerId(brokerProperties.getId()));
+    }
+
     @Override
     public int acquireNextMessageId(Channel channel) {
-        messageIdMap.putIfAbsent(channel, new MessageIdGenerator());
-        return Objects.requireNonNull(messageIdMap.get(channel)).acquire();
+        return MessageIdAllocator.of(channel).acquire();
     }
 
     @Override
     public void releaseMessageId(Channel channel, int messageId) {
-        if (messageIdMap.containsKey(channel)) {
-            Objects.requireNonNull(messageIdMap.get(channel)).release(messageId);
+        MessageIdAllocator allocator = MessageIdAllocator.peek(channel);
+        if (allocator != null) {
+            allocator.release(messageId);
         }
     }
 
     @Override
-    public void putPublishMessage(PublishMessage publishMessage) {
-        publishMessageRepository.save(publishMessage);
+    public boolean reserveMessageId(Channel channel, int messageId) {
+        return MessageIdAllocator.of(channel).reserve(messageId);
+    }
+
+    @Override
+    public int getInflightMessageIdCount(Channel channel) {
+        MessageIdAllocator allocator = MessageIdAllocator.peek(channel);
+        return allocator == null ? 0 : allocator.inflight();
+    }
+
+    @Override
+    public CompletableFuture<Void> putPublishMessage(PublishMessage publishMessage) {
+        return inflightMessageStore.putPublishMessage(publishMessage);
     }
 
     @Override
     public Optional<PublishMessage> getPublishMessage(String brokerId, String clientId, Integer messageId) {
-        return publishMessageRepository.findByBrokerIdAndClientIdAndMessageId(brokerId, clientId, messageId);
+        return inflightMessageStore.getPublishMessage(brokerId, clientId, messageId);
     }
 
     @Override
-    public void removePublishMessage(String brokerId, String clientId, Integer messageId) {
-        publishMessageRepository.deleteByBrokerIdAndClientIdAndMessageId(brokerId, clientId, messageId);
+    public CompletableFuture<Void> removePublishMessage(String brokerId, String clientId, Integer messageId) {
+        return inflightMessageStore.removePublishMessage(brokerId, clientId, messageId);
     }
 
     @Override
     public List<PublishMessage> getAllPublishMessage(String brokerId, String clientId) {
-        return publishMessageRepository.findAllByBrokerIdAndClientId(brokerId, clientId);
+        return inflightMessageStore.getAllPublishMessage(brokerId, clientId);
     }
 
     @Override
     public void removeAllPublishMessage(String brokerId, String clientId) {
-        publishMessageRepository.deleteAllByBrokerIdAndClientId(brokerId, clientId);
+        inflightMessageStore.removeAllPublishMessage(brokerId, clientId);
     }
 
     @Override
     public List<PublishMessage> getAllPublishMessageByClientId(String clientId) {
-        return publishMessageRepository.findAllByClientId(clientId);
+        return inflightMessageStore.getAllPublishMessageByClientId(clientId);
+    }
+
+    @Override
+    public List<PublishMessage> getPublishMessagePageByClientId(String clientId, long afterId, int limit) {
+        return inflightMessageStore.getPublishMessagePageByClientId(clientId, afterId, limit);
+    }
+
+    @Override
+    public long getLastPublishMessageIdByClientId(String clientId) {
+        return inflightMessageStore.getLastPublishMessageIdByClientId(clientId);
+    }
+
+    @Override
+    public long getLastPublishMessageId(String brokerId, String clientId) {
+        return inflightMessageStore.getLastPublishMessageId(brokerId, clientId);
     }
 
     @Override
     public void removeAllPublishMessageByClientId(String clientId) {
-        publishMessageRepository.deleteAllByClientId(clientId);
+        inflightMessageStore.removeAllPublishMessageByClientId(clientId);
     }
 
     @Override
-    public void putPublishReleaseMessage(PublishReleaseMessage publishReleaseMessage) {
-        publishReleaseMessageRepository.save(publishReleaseMessage);
+    public CompletableFuture<Void> putPublishReleaseMessage(PublishReleaseMessage publishReleaseMessage) {
+        return inflightMessageStore.putPublishReleaseMessage(publishReleaseMessage);
     }
 
     @Override
     public Optional<PublishReleaseMessage> getPublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
-        return publishReleaseMessageRepository.findByBrokerIdAndClientIdAndMessageId(brokerId, clientId, messageId);
+        return inflightMessageStore.getPublishReleaseMessage(brokerId, clientId, messageId);
     }
 
     @Override
-    public void removePublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
-        publishReleaseMessageRepository.deleteByBrokerIdAndClientIdAndMessageId(brokerId, clientId, messageId);
+    public CompletableFuture<Void> removePublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return inflightMessageStore.removePublishReleaseMessage(brokerId, clientId, messageId);
     }
 
     @Override
     public List<PublishReleaseMessage> getAllPublishReleaseMessage(String brokerId, String clientId) {
-        return publishReleaseMessageRepository.findAllByBrokerIdAndClientId(brokerId, clientId);
+        return inflightMessageStore.getAllPublishReleaseMessage(brokerId, clientId);
     }
 
     @Override
     public void removeAllPublishReleaseMessage(String brokerId, String clientId) {
-        publishReleaseMessageRepository.deleteAllByBrokerIdAndClientId(brokerId, clientId);
+        inflightMessageStore.removeAllPublishReleaseMessage(brokerId, clientId);
     }
 
     @Override
     public List<PublishReleaseMessage> getAllPublishReleaseMessageByClientId(String clientId) {
-        return publishReleaseMessageRepository.findAllByClientId(clientId);
+        return inflightMessageStore.getAllPublishReleaseMessageByClientId(clientId);
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getPublishReleaseMessagePageByClientId(String clientId, long afterId, int limit) {
+        return inflightMessageStore.getPublishReleaseMessagePageByClientId(clientId, afterId, limit);
+    }
+
+    @Override
+    public long getLastPublishReleaseMessageIdByClientId(String clientId) {
+        return inflightMessageStore.getLastPublishReleaseMessageIdByClientId(clientId);
+    }
+
+    @Override
+    public long getLastPublishReleaseMessageId(String brokerId, String clientId) {
+        return inflightMessageStore.getLastPublishReleaseMessageId(brokerId, clientId);
     }
 
     @Override
     public void removeAllPublishReleaseMessageByClientId(String clientId) {
-        publishReleaseMessageRepository.deleteAllByClientId(clientId);
+        inflightMessageStore.removeAllPublishReleaseMessageByClientId(clientId);
     }
 
     @Override
-    @GaugeIncMetric(name = METRIC_RETAIN_MESSAGE_ACTIVE)
-    @CachePut(value = CACHE_RETAIN_MESSAGE, key = "{#retainMessage.brokerId, #retainMessage.topic}")
     public void putRetainMessage(RetainMessage retainMessage) {
-        Optional<RetainMessage> oldRetainMessage = retainMessageRepository.findByBrokerIdAndTopic(retainMessage.getBrokerId(), retainMessage.getTopic());
+        Optional<RetainMessage> oldRetainMessage = isLocal(retainMessage.getBrokerId())
+                ? retainMessageIndex.get(retainMessage.getTopic())
+                : retainMessageRepository.findByBrokerIdAndTopic(retainMessage.getBrokerId(), retainMessage.getTopic());
         oldRetainMessage.ifPresent(message -> retainMessage.setId(message.getId()));
         retainMessageRepository.save(retainMessage);
+        if (isLocal(retainMessage.getBrokerId())) {
+            afterCommit(() -> retainMessageIndex.put(retainMessage));
+        }
     }
 
     @Override
-    @Cacheable(value = CACHE_RETAIN_MESSAGE, key = "{#brokerId, #topic}")
     public Optional<RetainMessage> getRetainMessage(String brokerId, String topic) {
-        return retainMessageRepository.findByBrokerIdAndTopic(brokerId, topic);
+        return isLocal(brokerId) ? retainMessageIndex.get(topic) : retainMessageRepository.findByBrokerIdAndTopic(brokerId, topic);
     }
 
     @Override
-    @Cacheable(value = CACHE_RETAIN_MESSAGE, key = "#brokerId")
     public List<RetainMessage> getAllRetainMessage(String brokerId) {
-        return retainMessageRepository.findAllByBrokerId(brokerId);
+        return isLocal(brokerId) ? retainMessageIndex.getAll() : retainMessageRepository.findAllByBrokerId(brokerId);
+    }
+
+    @Override
+    public List<RetainMessage> getAllMatchedRetainMessage(String brokerId, String topicFilter) {
+        if (isLocal(brokerId)) {
+            return retainMessageIndex.match(topicFilter);
+        }
+        RetainMessageIndex index = new RetainMessageIndex();
+        retainMessageRepository.findAllByBrokerId(brokerId).forEach(index::put);
+        return index.match(topicFilter);
     }
 
     @Override
-    @GaugeDecMetric(name = METRIC_RETAIN_MESSAGE_ACTIVE)
-    @CacheEvict(value = CACHE_RETAIN_MESSAGE, key = "{#brokerId, #topic}")
     public void removeRetainMessage(String brokerId, String topic) {
         retainMessageRepository.deleteByBrokerIdAndTopic(brokerId, topic);
+        if (isLocal(brokerId)) {
+            afterCommit(() -> retainMessageIndex.remove(topic));
+        }
+    }
+
+    /* 在事务中调用时等到事务提交后再执行，事务回滚时索引不会出现数据库中不存在的保留消息 */
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private boolean isLocal(String brokerId) {
+        return brokerProperties.getId().equals(brokerId);
     }
 
     @Override
-    @GaugeIncMetric(name = METRIC_WILL_MESSAGE_ACTIVE)
     @CachePut(value = CACHE_WILL_MESSAGE, key = "{#willMessage.brokerId, #willMessage.clientId}")
     public void putWillMessage(WillMessage willMessage) {
         Optional<WillMessage> oldWillMessage = willMessageRepository.findByBrokerIdAndClientId(willMessage.getBrokerId(), willMessage.getClientId());
@@ -167,32 +246,8 @@ public class MessageServiceImpl implements MessageService {
     }
 
     @Override
-    @GaugeDecMetric(name = METRIC_WILL_MESSAGE_ACTIVE)
     @CacheEvict(value = CACHE_WILL_MESSAGE, key = "{#brokerId, #clientId}")
     public void removeWillMessage(String brokerId, String clientId) {
         willMessageRepository.deleteByBrokerIdAndClientId(brokerId, clientId);
     }
-
-    private static class MessageIdGenerator {
-
-        private final int ID_MIN = 1;
-
-        private final int ID_MAX = 65536;
-
-        private final Set<Integer> ID_POOL = new HashSet<>(List.of(0));
-
-        private int CANDIDATE = ID_MIN;
-
-        public synchronized int acquire() {
-            while (ID_POOL.contains(CANDIDATE)) {
-                CANDIDATE = (CANDIDATE + 1) % ID_MAX;
-            }
-            ID_POOL.add(CANDIDATE);
-            return CANDIDATE;
-        }
-
-        public synchronized void release(int messageId) {
-            ID_POOL.remove(messageId);
-        }
-    }
 }
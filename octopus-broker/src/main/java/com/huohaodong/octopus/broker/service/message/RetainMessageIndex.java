@@ -0,0 +1,160 @@
+package com.huohaodong.octopus.broker.service.message;
+
+import com.huohaodong.octopus.common.persistence.entity.RetainMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地保留消息的内存索引：按主题层级组织的前缀树，节点上保存该主题的保留消息。
+ * 按主题过滤器查询时只访问与过滤器匹配的分支，开销与匹配的消息数和过滤器中的通配符相关，与保留消息总数无关。
+ * 修改由 this 串行化，删除时顺带移除空节点；查询不加锁，可能看到并发修改之前或之后的结果。
+ */
+public class RetainMessageIndex {
+
+    private final Node root = new Node();
+
+    /* 由 this 保护 */
+    private volatile int size;
+
+    public synchronized void put(RetainMessage retainMessage) {
+        String topic = retainMessage.getTopic();
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = levelEnd(topic, start);
+            node = node.children.computeIfAbsent(topic.substring(start, end), key -> new Node());
+            if (end == topic.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node.message == null) {
+            size++;
+        }
+        node.message = retainMessage;
+    }
+
+    public synchronized void remove(String topic) {
+        List<Node> path = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = levelEnd(topic, start);
+            String key = topic.substring(start, end);
+            path.add(node);
+            keys.add(key);
+            node = node.children.get(key);
+            if (node == null) {
+                return;
+            }
+            if (end == topic.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node.message == null) {
+            return;
+        }
+        node.message = null;
+        size--;
+        // 自下而上移除既没有消息也没有子节点的节点
+        for (int i = path.size() - 1; i >= 0 && node.message == null && node.children.isEmpty(); i--) {
+            path.get(i).children.remove(keys.get(i));
+            node = path.get(i);
+        }
+    }
+
+    public Optional<RetainMessage> get(String topic) {
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = levelEnd(topic, start);
+            node = node.children.get(topic.substring(start, end));
+            if (node == null) {
+                return Optional.empty();
+            }
+            if (end == topic.length()) {
+                return Optional.ofNullable(node.message);
+            }
+            start = end + 1;
+        }
+    }
+
+    /* topicFilter 需要已经过校验 */
+    public List<RetainMessage> match(String topicFilter) {
+        List<RetainMessage> result = new ArrayList<>();
+        match(root, topicFilter.split("/", -1), 0, result);
+        return result;
+    }
+
+    public List<RetainMessage> getAll() {
+        List<RetainMessage> result = new ArrayList<>(size);
+        collect(root, false, result);
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static void match(Node node, String[] levels, int level, List<RetainMessage> result) {
+        if (level == levels.length) {
+            addIfPresent(node, result);
+            return;
+        }
+        String token = levels[level];
+        if (token.equals("#")) {
+            collect(node, level == 0, result);
+        } else if (token.equals("+")) {
+            node.children.forEach((key, child) -> {
+                if (level != 0 || !isSystemTopic(key)) {
+                    match(child, levels, level + 1, result);
+                }
+            });
+        } else {
+            Node child = node.children.get(token);
+            if (child != null) {
+                match(child, levels, level + 1, result);
+            }
+        }
+    }
+
+    /* "#" 同时匹配父级主题 [MQTT-4.7.1-2] */
+    private static void collect(Node node, boolean skipSystemTopic, List<RetainMessage> result) {
+        addIfPresent(node, result);
+        node.children.forEach((key, child) -> {
+            if (!skipSystemTopic || !isSystemTopic(key)) {
+                collect(child, false, result);
+            }
+        });
+    }
+
+    private static void addIfPresent(Node node, List<RetainMessage> result) {
+        RetainMessage message = node.message;
+        if (message != null) {
+            result.add(message);
+        }
+    }
+
+    /* 以 "$" 开头的主题不匹配首层为通配符的过滤器 [MQTT-4.7.2-1] */
+    private static boolean isSystemTopic(String firstLevel) {
+        return firstLevel.startsWith("$");
+    }
+
+    private static int levelEnd(String topic, int start) {
+        int end = topic.indexOf('/', start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+        private volatile RetainMessage message;
+    }
+}
@@ -0,0 +1,239 @@
+package com.huohaodong.octopus.broker.service.offline;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 离线消息日志：每条发布消息只追加一次，由所有离线订阅者按偏移量共享。偏移量是记录在整个日志中的字节位置，
+ * 日志按 segmentBytes 切分为多个文件，文件名为其中第一条记录的偏移量，只能整段删除。
+ * 记录格式为 [int 长度][long 追加时间][byte QoS][short 主题长度][主题][payload]，长度不包括自身的 4 个字节。
+ * 打开时保留已有的文件，截断最后写到一半的记录后继续追加。追加由 this 串行化，读取不加锁；读取已删除的偏移量时返回 null。
+ */
+public class OfflineMessageLog implements Closeable {
+
+    private static final int SIZE_LENGTH = Integer.BYTES;
+
+    private static final int HEADER_LENGTH = Long.BYTES + Byte.BYTES + Short.BYTES;
+
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+
+    private final long segmentBytes;
+
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /* 由 this 保护 */
+    private Segment active;
+
+    public OfflineMessageLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (var list = Files.list(directory)) {
+            list.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(files::add);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file,
+                    FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            recover(segment);
+            segments.put(segment.baseOffset, segment);
+            active = segment;
+        }
+        if (active == null) {
+            roll(0);
+        }
+    }
+
+    public synchronized long append(String topic, MqttQoS qos, byte[] payload, long timestamp) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_LENGTH + topicBytes.length + payload.length;
+        if (active.size > 0 && active.size + SIZE_LENGTH + length > segmentBytes) {
+            roll(active.baseOffset + active.size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE_LENGTH + length)
+                .putInt(length)
+                .putLong(timestamp)
+                .put((byte) qos.value())
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .put(payload)
+                .flip();
+        long offset = active.baseOffset + active.size;
+        try {
+            long position = active.size;
+            while (buffer.hasRemaining()) {
+                position += active.channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        active.size += buffer.limit();
+        active.lastTimestamp = timestamp;
+        return offset;
+    }
+
+    public Record read(long offset) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = entry.getValue();
+        long position = offset - segment.baseOffset;
+        try {
+            ByteBuffer size = ByteBuffer.allocate(SIZE_LENGTH);
+            readFully(segment.channel, size, position);
+            ByteBuffer body = ByteBuffer.allocate(size.flip().getInt());
+            readFully(segment.channel, body, position + SIZE_LENGTH);
+            body.flip();
+            long timestamp = body.getLong();
+            MqttQoS qos = MqttQoS.valueOf(body.get());
+            byte[] topic = new byte[body.getShort() & 0xFFFF];
+            body.get(topic);
+            byte[] payload = new byte[body.remaining()];
+            body.get(payload);
+            return new Record(offset, timestamp, qos, new String(topic, StandardCharsets.UTF_8), payload);
+        } catch (IOException e) {
+            // 读取期间所在的文件被删除
+            return null;
+        }
+    }
+
+    /* 删除所有记录都在 offset 之前的文件，正在写入的文件除外 */
+    public synchronized void truncateBefore(long offset) {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.baseOffset + segment.size > offset) {
+                break;
+            }
+            delete(segment);
+        }
+    }
+
+    /* 删除最后一条记录早于 timestamp 的文件，正在写入的文件除外 */
+    public synchronized void deleteExpired(long timestamp) {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.lastTimestamp >= timestamp) {
+                break;
+            }
+            delete(segment);
+        }
+    }
+
+    public synchronized long endOffset() {
+        return active.baseOffset + active.size;
+    }
+
+    public long sizeInBytes() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public synchronized void flush() throws IOException {
+        active.channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    private void roll(long baseOffset) {
+        try {
+            if (active != null) {
+                active.channel.force(false);
+            }
+            Path file = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            active = new Segment(baseOffset, file, channel);
+            segments.put(baseOffset, active);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.baseOffset);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* 读取文件中所有完整的记录得到文件大小与最后一条记录的时间，截断写到一半的记录 */
+    private static void recover(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(SIZE_LENGTH + Long.BYTES);
+        while (position + SIZE_LENGTH + HEADER_LENGTH <= fileSize) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            int length = header.flip().getInt();
+            if (length < HEADER_LENGTH || position + SIZE_LENGTH + length > fileSize) {
+                break;
+            }
+            segment.lastTimestamp = header.getLong();
+            position += SIZE_LENGTH + length;
+        }
+        if (position < fileSize) {
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of offline message log");
+            }
+            position += read;
+        }
+    }
+
+    public record Record(long offset, long timestamp, MqttQoS qos, String topic, byte[] payload) {
+    }
+
+    private static final class Segment {
+
+        private final long baseOffset;
+
+        private final Path file;
+
+        private final FileChannel channel;
+
+        private volatile long size;
+
+        private volatile long lastTimestamp;
+
+        private Segment(long baseOffset, Path file, FileChannel channel) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
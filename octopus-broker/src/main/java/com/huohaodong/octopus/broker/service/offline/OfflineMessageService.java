@@ -0,0 +1,241 @@
+package com.huohaodong.octopus.broker.service.offline;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliverySource;
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.common.persistence.service.session.SessionService;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持久会话离线期间的消息。客户端断开后为其创建 OfflineQueue，发布消息时只要有一个离线订阅者，消息就追加到 OfflineMessageLog 一次，
+ * 各离线订阅者只记录偏移量；重新连接时由 replay 返回的 DeliverySource 按顺序补发。
+ * 只保存 QoS 1、QoS 2 的消息，每个会话最多保存 maxMessagesPerSession 条，超过 messageTtlSeconds 的消息不再发送，
+ * 断开超过 messageTtlSeconds 仍未重新连接或已在其他 Broker 上连接的会话被删除。
+ * 各会话的读取进度每隔 cleanupIntervalSeconds 与日志一起刷盘保存，重启后恢复；崩溃时丢失上次保存之后追加的消息。
+ */
+@Slf4j(topic = "OFFLINE_MESSAGE")
+@RequiredArgsConstructor
+@Service
+public class OfflineMessageService {
+
+    private static final String SNAPSHOT = "queues.snapshot";
+
+    private final BrokerProperties brokerProperties;
+
+    private final SessionService sessionService;
+
+    private final MessageService messageService;
+
+    private final Map<String, OfflineQueue> queues = new ConcurrentHashMap<>();
+
+    /* 正在补发的消息，补发完成前其中的偏移量所在的文件不能删除 */
+    private final Set<OfflineMessageSource> replays = ConcurrentHashMap.newKeySet();
+
+    private OfflineMessageLog messageLog;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() throws IOException {
+        BrokerProperties.Offline properties = brokerProperties.getOffline();
+        if (!properties.isEnable()) {
+            return;
+        }
+        messageLog = new OfflineMessageLog(Path.of(properties.getDirectory()), properties.getSegmentBytes());
+        loadQueues();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "OCTOPUS_OFFLINE_MESSAGE");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::cleanup, properties.getCleanupIntervalSeconds(), properties.getCleanupIntervalSeconds(), TimeUnit.SECONDS);
+        Metrics.OFFLINE_MESSAGE_PENDING.bind(() -> queues.values().stream().mapToLong(OfflineQueue::size).sum());
+        Metrics.OFFLINE_MESSAGE_LOG_BYTES.bind(messageLog::sizeInBytes);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (messageLog != null) {
+            scheduler.shutdownNow();
+            messageLog.flush();
+            saveQueues(messageLog.endOffset());
+            messageLog.close();
+        }
+    }
+
+    /* 持久会话的连接关闭后调用，客户端已经重新连接时不做任何处理 */
+    public void open(String clientId) {
+        if (messageLog != null && sessionService.getChannelByClientId(clientId).isEmpty()) {
+            queues.computeIfAbsent(clientId, key -> newQueue(System.currentTimeMillis()));
+        }
+    }
+
+    public void discard(String clientId) {
+        queues.remove(clientId);
+    }
+
+    /* subscriptions 为不在线的订阅者，其中没有离线会话或 QoS 为 0 的订阅者被忽略 */
+    public void store(String topic, MqttQoS qos, MessagePayload payload, List<Subscription> subscriptions) {
+        if (messageLog == null || queues.isEmpty()) {
+            return;
+        }
+        List<OfflineQueue> targets = new ArrayList<>();
+        List<MqttQoS> targetQoS = new ArrayList<>();
+        subscriptions.forEach(subscription -> {
+            MqttQoS respQoS = MqttQoS.valueOf(Math.min(qos.value(), subscription.getQos().value()));
+            OfflineQueue queue = queues.get(subscription.getClientId());
+            if (queue != null && respQoS != MqttQoS.AT_MOST_ONCE) {
+                targets.add(queue);
+                targetQoS.add(respQoS);
+            }
+        });
+        if (targets.isEmpty()) {
+            return;
+        }
+        long offset = messageLog.append(topic, qos, payload.toByteArray(), System.currentTimeMillis());
+        for (int i = 0; i < targets.size(); i++) {
+            if (targets.get(i).add(offset, targetQoS.get(i))) {
+                Metrics.OFFLINE_MESSAGE_DROPPED_TOTAL.inc();
+            }
+        }
+    }
+
+    /*
+     * 客户端以持久会话重新连接后调用，没有离线会话时返回 null。
+     * 在 online 之前发布的消息仍追加到该会话，由返回的 DeliverySource 一起补发。
+     */
+    public DeliverySource replay(String clientId) {
+        OfflineQueue queue = queues.get(clientId);
+        if (queue == null) {
+            return null;
+        }
+        log.debug("Replay {} offline messages of client {}", queue.size(), clientId);
+        OfflineMessageSource replay = new OfflineMessageSource(queue, messageLog, messageService, brokerProperties.getId(), clientId, expireBefore());
+        replays.add(replay);
+        return replay;
+    }
+
+    /* 客户端的 Channel 注册之后调用，之后的消息在线发送 */
+    public void online(String clientId) {
+        queues.remove(clientId);
+    }
+
+    /* 删除过期的文件以及所有离线会话都已经读过的文件 */
+    private void cleanup() {
+        try {
+            long expireBefore = expireBefore();
+            queues.entrySet().removeIf(entry -> {
+                OfflineQueue queue = entry.getValue();
+                if (queue.getCreateTime() >= expireBefore) {
+                    return false;
+                }
+                log.debug("Offline session of client {} expired with {} messages", entry.getKey(), queue.size());
+                Metrics.OFFLINE_MESSAGE_DROPPED_TOTAL.inc(queue.size());
+                return true;
+            });
+            messageLog.deleteExpired(expireBefore);
+            // 补发开始时间早于 expireBefore 时，剩余的消息都已经过期
+            replays.removeIf(replay -> replay.isDone() || replay.getCreateTime() < expireBefore);
+            long minOffset = messageLog.endOffset();
+            for (OfflineQueue queue : queues.values()) {
+                minOffset = min(minOffset, queue.firstOffset());
+            }
+            for (OfflineMessageSource replay : replays) {
+                minOffset = min(minOffset, replay.firstOffset());
+            }
+            messageLog.truncateBefore(minOffset);
+            // 只保存已经刷盘的偏移量，重启后截断的记录不会被引用
+            long durableOffset = messageLog.endOffset();
+            messageLog.flush();
+            saveQueues(durableOffset);
+        } catch (Exception e) {
+            log.error("Failed to clean up offline message log", e);
+        }
+    }
+
+    private OfflineQueue newQueue(long createTime) {
+        return new OfflineQueue(Math.max(1, brokerProperties.getOffline().getMaxMessagesPerSession()), createTime);
+    }
+
+    /* 先写入临时文件再替换，正在补发的消息也一起保存，重启后重新作为离线消息 */
+    private void saveQueues(long durableOffset) throws IOException {
+        Path directory = Path.of(brokerProperties.getOffline().getDirectory());
+        Path temp = directory.resolve(SNAPSHOT + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (OfflineMessageSource replay : replays) {
+                if (!replay.isDone()) {
+                    writeQueue(out, replay.getClientId(), System.currentTimeMillis(), replay.remaining(), durableOffset);
+                }
+            }
+            for (Map.Entry<String, OfflineQueue> entry : queues.entrySet()) {
+                writeQueue(out, entry.getKey(), entry.getValue().getCreateTime(), entry.getValue().toArray(), durableOffset);
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeQueue(DataOutputStream out, String clientId, long createTime, long[] values, long durableOffset) throws IOException {
+        int count = 0;
+        while (count < values.length && values[count] >>> 2 < durableOffset) {
+            count++;
+        }
+        out.writeBoolean(true);
+        out.writeUTF(clientId);
+        out.writeLong(createTime);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    private void loadQueues() {
+        Path file = Path.of(brokerProperties.getOffline().getDirectory(), SNAPSHOT);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (in.readBoolean()) {
+                String clientId = in.readUTF();
+                long createTime = in.readLong();
+                OfflineQueue queue = queues.computeIfAbsent(clientId, key -> newQueue(createTime));
+                for (int count = in.readInt(); count > 0; count--) {
+                    long value = in.readLong();
+                    queue.add(value >>> 2, MqttQoS.valueOf((int) (value & 0x3)));
+                }
+            }
+            log.info("Loaded {} offline sessions", queues.size());
+        } catch (IOException e) {
+            log.error("Failed to load offline sessions from {}", file, e);
+        }
+    }
+
+    private static long min(long offset, long candidate) {
+        return candidate == -1 ? offset : Math.min(offset, candidate);
+    }
+
+    private long expireBefore() {
+        return System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(brokerProperties.getOffline().getMessageTtlSeconds());
+    }
+}
@@ -0,0 +1,119 @@
+package com.huohaodong.octopus.broker.service.offline;
+
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliverySource;
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.*;
+
+/* 客户端重新连接后按偏移量顺序从 OfflineMessageLog 中读取离线期间的消息，已过期或已被删除的消息直接跳过 */
+class OfflineMessageSource implements DeliverySource {
+
+    private final OfflineQueue offlineQueue;
+
+    private final OfflineMessageLog log;
+
+    private final MessageService messageService;
+
+    private final String brokerId;
+
+    private final String clientId;
+
+    private final long expireBefore;
+
+    private final long createTime = System.currentTimeMillis();
+
+    /* 已经取出但还没有发送的消息，没有时为 -1；清理线程会读取 */
+    private volatile long pending = -1;
+
+    OfflineMessageSource(OfflineQueue offlineQueue, OfflineMessageLog log, MessageService messageService, String brokerId, String clientId, long expireBefore) {
+        this.offlineQueue = offlineQueue;
+        this.log = log;
+        this.messageService = messageService;
+        this.brokerId = brokerId;
+        this.clientId = clientId;
+        this.expireBefore = expireBefore;
+    }
+
+    @Override
+    public MqttMessage poll(Channel channel, DeliveryQueue queue) {
+        while (true) {
+            if (pending == -1) {
+                pending = offlineQueue.poll();
+                if (pending == -1) {
+                    return null;
+                }
+            }
+            OfflineMessageLog.Record record = log.read(pending >>> 2);
+            if (record == null || record.timestamp() < expireBefore) {
+                pending = -1;
+                Metrics.OFFLINE_MESSAGE_DROPPED_TOTAL.inc();
+                continue;
+            }
+            MqttQoS qos = MqttQoS.valueOf((int) (pending & 0x3));
+            int messageId = queue.acquireMessageId(channel);
+            if (messageId == 0) {
+                return null;
+            }
+            pending = -1;
+            // 与在线投递一样记录未完成消息，确认之前断开时重新连接后重发
+            if (qos == MqttQoS.AT_LEAST_ONCE) {
+                messageService.putPublishMessage(PublishMessage.builder()
+                        .brokerId(brokerId)
+                        .clientId(clientId)
+                        .messageId(messageId)
+                        .topic(record.topic())
+                        .payload(record.payload())
+                        .qos(qos)
+                        .build());
+            } else {
+                messageService.putPublishReleaseMessage(PublishReleaseMessage.builder()
+                        .brokerId(brokerId)
+                        .clientId(clientId)
+                        .messageId(messageId)
+                        .build());
+            }
+            Metrics.MESSAGE_SENT_TOTAL.inc();
+            return new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+                    new MqttPublishVariableHeader(record.topic(), messageId),
+                    Unpooled.wrappedBuffer(record.payload()));
+        }
+    }
+
+    /* 还没有发送的第一条消息的偏移量，没有时返回 -1 */
+    long firstOffset() {
+        long current = pending;
+        return current != -1 ? current >>> 2 : offlineQueue.firstOffset();
+    }
+
+    long getCreateTime() {
+        return createTime;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    /* 还没有发送的消息，格式与 OfflineQueue.poll 相同 */
+    long[] remaining() {
+        long current = pending;
+        long[] queued = offlineQueue.toArray();
+        if (current == -1) {
+            return queued;
+        }
+        long[] values = new long[queued.length + 1];
+        values[0] = current;
+        System.arraycopy(queued, 0, values, 1, queued.length);
+        return values;
+    }
+
+    @Override
+    public boolean isDone() {
+        return pending == -1 && offlineQueue.size() == 0;
+    }
+}
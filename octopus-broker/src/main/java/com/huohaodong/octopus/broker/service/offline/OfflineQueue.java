@@ -0,0 +1,133 @@
+package com.huohaodong.octopus.broker.service.offline;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.Arrays;
+
+/**
+ * 一个离线持久会话待接收的消息：OfflineMessageLog 中的偏移量以及投递时使用的 QoS。
+ * 偏移量递增，每条只保存与上一条的差值，与 QoS 一起编码为变长整数，通常每条消息占 2 到 4 个字节。
+ * 超过 maxMessages 时丢弃最早的消息。由 this 保护。
+ */
+class OfflineQueue {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxMessages;
+
+    /* 客户端断开的时间，超过 messageTtlSeconds 仍未重新连接时删除 */
+    private final long createTime;
+
+    private byte[] entries = new byte[INITIAL_CAPACITY];
+
+    /* 下一条要读取的位置与写入位置 */
+    private int head;
+
+    private int tail;
+
+    /* 上一条读取、写入的偏移量，用于还原差值 */
+    private long headOffset;
+
+    private long tailOffset;
+
+    private int count;
+
+    OfflineQueue(int maxMessages, long createTime) {
+        this.maxMessages = maxMessages;
+        this.createTime = createTime;
+    }
+
+    long getCreateTime() {
+        return createTime;
+    }
+
+    /* 返回是否因此丢弃了最早的消息 */
+    synchronized boolean add(long offset, MqttQoS qos) {
+        boolean dropped = count == maxMessages;
+        if (dropped) {
+            poll();
+        }
+        long value = (offset - tailOffset) << 2 | qos.value();
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            entries[tail++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        entries[tail++] = (byte) value;
+        tailOffset = offset;
+        count++;
+        return dropped;
+    }
+
+    /* 返回 offset << 2 | qos，没有消息时返回 -1 */
+    synchronized long poll() {
+        if (count == 0) {
+            return -1;
+        }
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = entries[head++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        headOffset += value >>> 2;
+        count--;
+        return headOffset << 2 | (value & 0x3);
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /* 按顺序返回所有消息，格式与 poll 相同，不改变队列 */
+    synchronized long[] toArray() {
+        long[] values = new long[count];
+        long offset = headOffset;
+        int position = head;
+        for (int i = 0; i < count; i++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = entries[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += value >>> 2;
+            values[i] = offset << 2 | (value & 0x3);
+        }
+        return values;
+    }
+
+    /* 最早一条消息的偏移量，没有消息时返回 -1 */
+    synchronized long firstOffset() {
+        if (count == 0) {
+            return -1;
+        }
+        long value = 0;
+        int shift = 0;
+        int position = head;
+        byte b;
+        do {
+            b = entries[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return headOffset + (value >>> 2);
+    }
+
+    private void ensureCapacity(int length) {
+        if (tail + length <= entries.length) {
+            return;
+        }
+        // 先回收已读取的部分，不够时再扩容
+        int used = tail - head;
+        byte[] target = used + length <= entries.length / 2 ? entries : Arrays.copyOf(entries, Math.max(entries.length << 1, used + length));
+        System.arraycopy(entries, head, target, 0, used);
+        entries = target;
+        head = 0;
+        tail = used;
+    }
+}
@@ -0,0 +1,47 @@
+package com.huohaodong.octopus.broker.service.session;
+
+import com.huohaodong.octopus.common.persistence.entity.Session;
+import com.huohaodong.octopus.common.persistence.repository.SessionRepository;
+import com.huohaodong.octopus.common.persistence.service.session.SessionStore;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Optional;
+
+/* 通过 JPA 将会话存储在 MySQL 中，所有 Broker 共享 */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "jdbc", matchIfMissing = true)
+public class JdbcSessionStore implements SessionStore {
+
+    private final SessionRepository sessionRepository;
+
+    @Override
+    public void putSession(Session session) {
+        Optional<Session> oldSession = sessionRepository.findByBrokerIdAndClientId(session.getBrokerId(), session.getClientId());
+        oldSession.ifPresent(s -> session.setId(s.getId()));
+        sessionRepository.save(session);
+    }
+
+    @Override
+    public Optional<Session> getSession(String brokerId, String clientId) {
+        return sessionRepository.findByBrokerIdAndClientId(brokerId, clientId);
+    }
+
+    @Override
+    public List<Session> getSession(String clientId) {
+        return sessionRepository.findAllByClientId(clientId);
+    }
+
+    @Override
+    public void removeSession(String brokerId, String clientId) {
+        sessionRepository.deleteByBrokerIdAndClientId(brokerId, clientId);
+    }
+
+    @Override
+    public boolean containsSession(String brokerId, String clientId) {
+        return sessionRepository.existsByBrokerIdAndClientId(brokerId, clientId);
+    }
+}
@@ -3,40 +3,64 @@ package com.huohaodong.octopus.broker.service.subscription;
 import com.huohaodong.octopus.common.persistence.entity.Subscription;
 import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionMatcher;
 import com.huohaodong.octopus.broker.service.subscription.trie.CTrie;
-import com.huohaodong.octopus.broker.service.subscription.trie.Topic;
+import com.huohaodong.octopus.broker.service.subscription.trie.FilterListener;
+import com.huohaodong.octopus.broker.service.subscription.trie.TopicTokens;
 
-import java.util.Set;
+import java.util.Collection;
+import java.util.List;
 
 public class CTrieSubscriptionMatcher implements SubscriptionMatcher {
 
+    private static final int DEFAULT_CACHE_CAPACITY = 1 << 18;
+
     private final CTrie ctrie;
 
+    private final MatchResultCache cache;
+
     public CTrieSubscriptionMatcher() {
-        this.ctrie = new CTrie();
+        this(DEFAULT_CACHE_CAPACITY);
+    }
+
+    public CTrieSubscriptionMatcher(int cacheCapacity) {
+        this(cacheCapacity, FilterListener.NONE);
+    }
+
+    public CTrieSubscriptionMatcher(int cacheCapacity, FilterListener filterListener) {
+        this.ctrie = new CTrie(filterListener);
+        this.cache = new MatchResultCache(cacheCapacity);
     }
 
+    /* 返回的结果不可修改 */
     @Override
-    public Set<Subscription> match(String topicFilter) {
-        Topic topic = new Topic(topicFilter);
-        return ctrie.recursiveMatch(topic);
+    public Collection<Subscription> match(String topicFilter) {
+        long generation = ctrie.generation(topicFilter);
+        List<Subscription> cached = cache.get(topicFilter, generation);
+        if (cached != null) {
+            return cached;
+        }
+        return cache.put(topicFilter, generation, ctrie.match(TopicTokens.tokenize(topicFilter)));
     }
 
+    public long size() {
+        return ctrie.size();
+    }
+
+    /* 同一客户端重复订阅同一主题时，CTrie 会直接替换原有订阅 */
     @Override
     public boolean subscribe(Subscription newSubscription) {
-        Set<Subscription> matched = match(newSubscription.getTopic());
-        matched.forEach(subscription -> {
-            if (subscription.getTopic().equals(newSubscription.getTopic())
-                && subscription.getClientId().equals(newSubscription.getClientId())) {
-                unSubscribe(subscription.getClientId(), subscription.getTopic());
-            }
-        });
         ctrie.addToTree(newSubscription);
         return true;
     }
 
+    /* filter 为订阅主题过滤器切分的结果，见 CTrie#addToTree(Subscription, TopicTokens) */
+    public boolean subscribe(Subscription newSubscription, TopicTokens filter) {
+        ctrie.addToTree(newSubscription, filter);
+        return true;
+    }
+
     @Override
     public boolean unSubscribe(String clientID, String topicFilter) {
-        ctrie.removeFromTree(new Topic(topicFilter), clientID);
+        ctrie.removeFromTree(topicFilter, clientID);
         return true;
     }
 }
@@ -0,0 +1,50 @@
+package com.huohaodong.octopus.broker.service.subscription;
+
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import com.huohaodong.octopus.common.persistence.repository.SubscriptionRepository;
+import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionStore;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Optional;
+
+/* 通过 JPA 将订阅存储在 MySQL 中 */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "octopus.broker.storage", name = "type", havingValue = "jdbc", matchIfMissing = true)
+public class JdbcSubscriptionStore implements SubscriptionStore {
+
+    private final SubscriptionRepository subscriptionRepository;
+
+    @Override
+    public void putSubscription(Subscription subscription) {
+        Optional<Subscription> oldSubscription =
+                subscriptionRepository.findByBrokerIdAndClientIdAndTopic(subscription.getBrokerId(),
+                        subscription.getClientId(),
+                        subscription.getTopic());
+        oldSubscription.ifPresent(sub -> subscription.setId(sub.getId()));
+        subscriptionRepository.save(subscription);
+    }
+
+    @Override
+    public void removeSubscription(String brokerId, String clientId, String topic) {
+        subscriptionRepository.deleteByBrokerIdAndClientIdAndTopic(brokerId, clientId, topic);
+    }
+
+    @Override
+    public List<Subscription> getAllSubscription(String brokerId, String clientId) {
+        return subscriptionRepository.findAllByBrokerIdAndClientId(brokerId, clientId);
+    }
+
+    @Override
+    public List<Subscription> getAllSubscription(String brokerId) {
+        return subscriptionRepository.findAllByBrokerId(brokerId);
+    }
+
+    @Override
+    public void removeAllSubscription(String brokerId, String clientId) {
+        subscriptionRepository.deleteAllByBrokerIdAndClientId(brokerId, clientId);
+    }
+}
@@ -0,0 +1,109 @@
+package com.huohaodong.octopus.broker.service.subscription;
+
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 以发布主题为键缓存匹配到的订阅列表。
+ * 每个结果都带有计算时该主题在 CTrie 中的版本号，版本号不一致即视为过期，不需要在订阅变化时逐个失效。
+ * 版本号按主题前缀划分，订阅变化只使前缀相同的主题的结果过期，见 CTrie#generation(String)。
+ * 超出容量后按 CLOCK 算法淘汰：命中时只设置访问标记，淘汰由抢到 evicting 的一个线程完成，
+ * 指针在多次淘汰之间沿迭代顺序继续前进，跳过并清除有访问标记的结果，其他线程不等待，缓存可能短暂超出容量。
+ */
+class MatchResultCache {
+
+    /* 单次淘汰最多检查的结果数，避免在发布路径上停留过久 */
+    private static final int MAX_SCAN = 256;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final int capacity;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /* 以下字段只由持有 evicting 的线程访问 */
+    private Iterator<Map.Entry<String, Entry>> hand;
+
+    MatchResultCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /* 命中且未过期时返回缓存的列表，否则返回 null */
+    List<Subscription> get(String topic, long generation) {
+        Entry entry = entries.get(topic);
+        if (entry != null && entry.generation == generation) {
+            Metrics.SUBSCRIPTION_CACHE_HIT_TOTAL.inc();
+            // 已经设置时不再写入，避免热点主题的缓存行在核之间来回失效
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.subscriptions;
+        }
+        Metrics.SUBSCRIPTION_CACHE_MISS_TOTAL.inc();
+        return null;
+    }
+
+    /* generation 必须是开始匹配之前读取的版本号 */
+    List<Subscription> put(String topic, long generation, Collection<Subscription> matched) {
+        List<Subscription> subscriptions = List.of(matched.toArray(new Subscription[0]));
+        entries.merge(topic, new Entry(generation, subscriptions),
+                (oldEntry, newEntry) -> oldEntry.generation > newEntry.generation ? oldEntry : newEntry);
+        if (entries.size() > capacity && evicting.compareAndSet(false, true)) {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+        return subscriptions;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        int evicted = 0;
+        for (int scanned = 0; scanned < MAX_SCAN && entries.size() > capacity; scanned++) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    break;
+                }
+            }
+            Entry entry = hand.next().getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                hand.remove();
+                evicted++;
+            }
+        }
+        Metrics.SUBSCRIPTION_CACHE_EVICTION_TOTAL.inc(evicted);
+    }
+
+    private static final class Entry {
+
+        private final long generation;
+
+        private final List<Subscription> subscriptions;
+
+        /* 上次被指针经过之后是否命中过 */
+        private volatile boolean referenced;
+
+        private Entry(long generation, List<Subscription> subscriptions) {
+            this.generation = generation;
+            this.subscriptions = subscriptions;
+        }
+    }
+}
@@ -1,38 +1,85 @@
 package com.huohaodong.octopus.broker.service.subscription;
 
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.service.subscription.trie.TopicTokens;
+import com.huohaodong.octopus.common.persistence.entity.Session;
 import com.huohaodong.octopus.common.persistence.entity.Subscription;
-import com.huohaodong.octopus.common.persistence.repository.SubscriptionRepository;
-import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionMatcher;
+import com.huohaodong.octopus.common.persistence.service.session.SessionStore;
 import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionService;
-import lombok.RequiredArgsConstructor;
+import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionStore;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import java.util.Collection;
-import java.util.Optional;
+import java.util.List;
 
+@Slf4j(topic = "SUBSCRIPTION")
 @Service
-@RequiredArgsConstructor
 public class SubscriptionServiceImpl implements SubscriptionService {
-    private final SubscriptionMatcher matcher = new CTrieSubscriptionMatcher();
+    private final CTrieSubscriptionMatcher matcher;
+
+    private final BrokerProperties brokerProperties;
 
     /*每个 clientId 对应的订阅信息 */
-    private final SubscriptionRepository subscriptionRepository;
+    private final SubscriptionStore subscriptionStore;
+
+    private final SessionStore sessionStore;
+
+    public SubscriptionServiceImpl(BrokerProperties brokerProperties, SubscriptionStore subscriptionStore, SessionStore sessionStore,
+                                   SubscriptionSummary subscriptionSummary) {
+        this.brokerProperties = brokerProperties;
+        this.subscriptionStore = subscriptionStore;
+        this.sessionStore = sessionStore;
+        this.matcher = new CTrieSubscriptionMatcher(brokerProperties.getMatchCache().getCapacity(), subscriptionSummary);
+        Metrics.SUBSCRIPTION_ACTIVE.bind(matcher::size);
+        Metrics.TOPIC_ACTIVE.bind(subscriptionSummary::size);
+    }
+
+    /*
+     * 重启前的订阅重新加入匹配树。清理会话断开时已经删除了订阅，正常断开的持久会话只删除会话、保留订阅；
+     * 仍留有清理会话记录的客户端是在连接期间停止的，它的订阅在重新连接时不再需要。
+     */
+    @PostConstruct
+    public void restore() {
+        String brokerId = brokerProperties.getId();
+        List<Subscription> subscriptions = subscriptionStore.getAllSubscription(brokerId);
+        int restored = 0;
+        for (Subscription subscription : subscriptions) {
+            boolean cleanSession = sessionStore.getSession(brokerId, subscription.getClientId())
+                    .filter(Session::isCleanSession)
+                    .isPresent();
+            if (!cleanSession) {
+                matcher.subscribe(subscription);
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            log.info("Restored {} subscriptions", restored);
+        }
+    }
 
     @Override
     public void subscribe(Subscription subscription) {
         matcher.subscribe(subscription);
-        Optional<Subscription> oldSubscription =
-                subscriptionRepository.findByBrokerIdAndClientIdAndTopic(subscription.getBrokerId(),
-                        subscription.getClientId(),
-                        subscription.getTopic());
-        oldSubscription.ifPresent(sub -> subscription.setId(sub.getId()));
-        subscriptionRepository.save(subscription);
+        save(subscription);
+    }
+
+    /* SUBSCRIBE 校验时已切分过主题过滤器，直接复用 */
+    public void subscribe(Subscription subscription, TopicTokens filter) {
+        matcher.subscribe(subscription, filter);
+        save(subscription);
+    }
+
+    private void save(Subscription subscription) {
+        subscriptionStore.putSubscription(subscription);
     }
 
     @Override
     public void unSubscribe(String brokerId, String clientId, String topic) {
         matcher.unSubscribe(clientId, topic);
-        subscriptionRepository.deleteByBrokerIdAndClientIdAndTopic(brokerId, clientId, topic);
+        subscriptionStore.removeSubscription(brokerId, clientId, topic);
     }
 
     @Override
@@ -42,12 +89,12 @@ public class SubscriptionServiceImpl implements SubscriptionService {
 
     @Override
     public Collection<Subscription> getAllSubscription(String brokerId, String clientId) {
-        return subscriptionRepository.findAllByBrokerIdAndClientId(brokerId, clientId);
+        return subscriptionStore.getAllSubscription(brokerId, clientId);
     }
 
     @Override
     public void unSubscribeAll(String brokerId, String clientId) {
         getAllSubscription(brokerId, clientId).forEach(sub -> matcher.unSubscribe(sub.getClientId(), sub.getTopic()));
-        subscriptionRepository.deleteAllByBrokerIdAndClientId(brokerId, clientId);
+        subscriptionStore.removeAllSubscription(brokerId, clientId);
     }
 }
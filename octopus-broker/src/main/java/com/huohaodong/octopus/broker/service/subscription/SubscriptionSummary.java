@@ -0,0 +1,83 @@
+package com.huohaodong.octopus.broker.service.subscription;
+
+import com.huohaodong.octopus.broker.service.subscription.trie.FilterListener;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * 本地订阅树中存在订阅的主题过滤器集合，由 CTrie 的回调维护，供集群中的其他 Broker 判断发布消息是否需要转发到本节点。
+ * 共享订阅以完整的 $share 主题记录，其他 Broker 据此在整个集群中为每条消息只选择一个成员。
+ * 变化先记录下来，由 drainDelta 合并为一个版本的增量。
+ */
+@Component
+public class SubscriptionSummary implements FilterListener {
+
+    /* 以下字段由 this 保护 */
+    /* 回调的先后顺序可能与修改生效的顺序不同，按添加与移除的差值判断过滤器是否存在 */
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    /* 上一次 drainDelta 时存在的过滤器 */
+    private final Set<String> advertised = new HashSet<>();
+
+    private final Set<String> changed = new HashSet<>();
+
+    private long version;
+
+    @Override
+    public synchronized void onFilterAdded(String topicFilter) {
+        update(topicFilter, 1);
+    }
+
+    @Override
+    public synchronized void onFilterRemoved(String topicFilter) {
+        update(topicFilter, -1);
+    }
+
+    /* 没有变化时返回 null，版本号不变 */
+    public synchronized Delta drainDelta() {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String topicFilter : changed) {
+            if (counts.getOrDefault(topicFilter, 0) > 0) {
+                if (advertised.add(topicFilter)) {
+                    added.add(topicFilter);
+                }
+            } else if (advertised.remove(topicFilter)) {
+                removed.add(topicFilter);
+            }
+        }
+        changed.clear();
+        if (added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        return new Delta(++version, added, removed);
+    }
+
+    /* 最近一次 drainDelta 之后的完整摘要 */
+    public synchronized Delta snapshot() {
+        return new Delta(version, new ArrayList<>(advertised), List.of());
+    }
+
+    /* 本地订阅中不同主题过滤器的数量，同一过滤器上的各个共享订阅分别计算 */
+    public synchronized int size() {
+        return counts.size();
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    private void update(String topicFilter, int diff) {
+        int count = counts.getOrDefault(topicFilter, 0) + diff;
+        if (count == 0) {
+            counts.remove(topicFilter);
+        } else {
+            counts.put(topicFilter, count);
+        }
+        changed.add(topicFilter);
+    }
+
+    public record Delta(long version, List<String> added, List<String> removed) {
+    }
+}
@@ -0,0 +1,34 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import com.huohaodong.octopus.common.persistence.service.message.MessageIdManager;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 选择尚未确认的 QoS 1 / QoS 2 消息最少的成员。
+ */
+@RequiredArgsConstructor
+public class LeastInflightStrategy implements SharedSubscriptionStrategy {
+
+    private final MessageIdManager messageIdManager;
+
+    @Override
+    public SharedSubscriber select(String sharedTopic, String publisherClientId, List<SharedSubscriber> candidates) {
+        int size = candidates.size();
+        // 随机起点，避免 inflight 相同时总是选中同一个成员
+        int offset = ThreadLocalRandom.current().nextInt(size);
+        SharedSubscriber selected = null;
+        int minInflight = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            SharedSubscriber candidate = candidates.get((offset + i) % size);
+            int inflight = messageIdManager.getInflightMessageIdCount(candidate.channel());
+            if (inflight < minInflight) {
+                selected = candidate;
+                minInflight = inflight;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,12 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RandomStrategy implements SharedSubscriptionStrategy {
+
+    @Override
+    public SharedSubscriber select(String sharedTopic, String publisherClientId, List<SharedSubscriber> candidates) {
+        return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+    }
+}
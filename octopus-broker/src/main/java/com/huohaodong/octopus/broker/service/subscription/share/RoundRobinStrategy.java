@@ -0,0 +1,56 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个共享订阅各自维护一个游标。超过 CURSOR_IDLE_NANOS 没有使用的游标在之后的选择中被清理，
+ * 已经没有成员或不再收到消息的共享订阅不会一直占用内存，再次使用时游标从头开始。
+ */
+public class RoundRobinStrategy implements SharedSubscriptionStrategy {
+
+    private static final long CURSOR_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Map<String, Cursor> memberCursors = new ConcurrentHashMap<>();
+
+    private final Map<String, Cursor> brokerCursors = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime() + CURSOR_IDLE_NANOS);
+
+    @Override
+    public SharedSubscriber select(String sharedTopic, String publisherClientId, List<SharedSubscriber> candidates) {
+        return candidates.get(next(memberCursors, sharedTopic, candidates.size()));
+    }
+
+    @Override
+    public String selectBroker(String sharedTopic, String publisherClientId, List<String> brokerIds) {
+        return brokerIds.get(next(brokerCursors, sharedTopic, brokerIds.size()));
+    }
+
+    private int next(Map<String, Cursor> cursors, String sharedTopic, int size) {
+        long now = System.nanoTime();
+        sweepIfDue(now);
+        Cursor cursor = cursors.computeIfAbsent(sharedTopic, key -> new Cursor());
+        cursor.lastUsedNanos = now;
+        return Math.floorMod(cursor.getAndIncrement(), size);
+    }
+
+    /* 每个周期只由一个线程清理，被清理的游标如果正在使用，只会让该共享订阅的下一次选择从头开始 */
+    private void sweepIfDue(long now) {
+        long next = nextSweepNanos.get();
+        if (now - next < 0 || !nextSweepNanos.compareAndSet(next, now + CURSOR_IDLE_NANOS)) {
+            return;
+        }
+        memberCursors.values().removeIf(cursor -> now - cursor.lastUsedNanos > CURSOR_IDLE_NANOS);
+        brokerCursors.values().removeIf(cursor -> now - cursor.lastUsedNanos > CURSOR_IDLE_NANOS);
+    }
+
+    private static final class Cursor extends AtomicInteger {
+
+        private volatile long lastUsedNanos;
+    }
+}
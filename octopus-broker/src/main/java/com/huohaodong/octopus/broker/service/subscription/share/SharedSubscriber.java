@@ -0,0 +1,11 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import io.netty.channel.Channel;
+
+public record SharedSubscriber(Subscription subscription, Channel channel) {
+
+    public String clientId() {
+        return subscription.getClientId();
+    }
+}
@@ -0,0 +1,30 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 从共享订阅的成员中为一条消息选择接收者。
+ * 集群中发布者所在的 Broker 先通过 selectBroker 在存在成员的 Broker 之间选择，选中的 Broker 再通过 select 选择本地成员。
+ * 可以通过声明自定义的 SharedSubscriptionStrategy Bean 替换默认实现。
+ */
+public interface SharedSubscriptionStrategy {
+
+    /**
+     * @param sharedTopic       完整的共享订阅主题，例如 $share/group/a/b
+     * @param publisherClientId 消息发布者的 clientId，可能为 null
+     * @param candidates        当前在线的成员，不为空
+     */
+    SharedSubscriber select(String sharedTopic, String publisherClientId, List<SharedSubscriber> candidates);
+
+    /**
+     * 默认随机选择。
+     *
+     * @param sharedTopic       完整的共享订阅主题，例如 $share/group/a/b
+     * @param publisherClientId 消息发布者的 clientId，可能为 null
+     * @param brokerIds         存在在线成员的 Broker ID，不少于两个
+     */
+    default String selectBroker(String sharedTopic, String publisherClientId, List<String> brokerIds) {
+        return brokerIds.get(ThreadLocalRandom.current().nextInt(brokerIds.size()));
+    }
+}
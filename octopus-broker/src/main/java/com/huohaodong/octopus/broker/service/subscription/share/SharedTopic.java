@@ -0,0 +1,59 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import com.huohaodong.octopus.broker.service.subscription.trie.TopicTokens;
+
+/**
+ * 共享订阅主题，格式为 $share/{group}/{filter}。
+ * 同一共享订阅（组名与过滤器均相同）下的每条消息只投递给其中一个订阅者。
+ */
+public final class SharedTopic {
+
+    public static final String PREFIX = "$share/";
+
+    private final String group;
+
+    private final String filter;
+
+    private SharedTopic(String group, String filter) {
+        this.group = group;
+        this.filter = filter;
+    }
+
+    public static boolean isShared(String topic) {
+        return topic.startsWith(PREFIX);
+    }
+
+    /* 非共享订阅主题返回 null */
+    public static SharedTopic parse(String topic) {
+        if (!isShared(topic)) {
+            return null;
+        }
+        int separator = topic.indexOf('/', PREFIX.length());
+        if (separator < 0) {
+            return new SharedTopic(topic.substring(PREFIX.length()), "");
+        }
+        return new SharedTopic(topic.substring(PREFIX.length(), separator), topic.substring(separator + 1));
+    }
+
+    /* 返回用于匹配的主题过滤器，非共享订阅主题原样返回 */
+    public static String filterOf(String topic) {
+        SharedTopic sharedTopic = parse(topic);
+        return sharedTopic == null ? topic : sharedTopic.filter;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /* 组名不能为空且不能包含通配符 [MQTT-4.8.2-1] [MQTT-4.8.2-2]，filterTokens 为 getFilter() 切分的结果 */
+    public boolean isValid(TopicTokens filterTokens) {
+        return !group.isEmpty()
+               && group.indexOf('+') < 0
+               && group.indexOf('#') < 0
+               && filterTokens.isValidTopicFilter();
+    }
+}
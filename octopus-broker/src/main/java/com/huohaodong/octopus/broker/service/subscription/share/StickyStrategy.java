@@ -0,0 +1,58 @@
+package com.huohaodong.octopus.broker.service.subscription.share;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 同一发布者的消息总是投递给同一个成员。
+ * 使用最高随机权重哈希（Rendezvous Hashing）选择成员，成员增减或暂时不可写时只有与该成员相关的发布者会被重新分配。
+ */
+public class StickyStrategy implements SharedSubscriptionStrategy {
+
+    @Override
+    public SharedSubscriber select(String sharedTopic, String publisherClientId, List<SharedSubscriber> candidates) {
+        if (publisherClientId == null || publisherClientId.isEmpty()) {
+            return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        }
+        int publisherHash = publisherClientId.hashCode();
+        SharedSubscriber selected = null;
+        long maxWeight = Long.MIN_VALUE;
+        for (SharedSubscriber candidate : candidates) {
+            long weight = mix(((long) publisherHash << 32) | (candidate.clientId().hashCode() & 0xFFFFFFFFL));
+            if (selected == null || weight > maxWeight) {
+                selected = candidate;
+                maxWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    /* 同一发布者的消息总是由同一个 Broker 投递 */
+    @Override
+    public String selectBroker(String sharedTopic, String publisherClientId, List<String> brokerIds) {
+        if (publisherClientId == null || publisherClientId.isEmpty()) {
+            return brokerIds.get(ThreadLocalRandom.current().nextInt(brokerIds.size()));
+        }
+        int publisherHash = publisherClientId.hashCode();
+        String selected = null;
+        long maxWeight = Long.MIN_VALUE;
+        for (String brokerId : brokerIds) {
+            long weight = mix(((long) publisherHash << 32) | (brokerId.hashCode() & 0xFFFFFFFFL));
+            if (selected == null || weight > maxWeight) {
+                selected = brokerId;
+                maxWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    /* MurmurHash3 fmix64 */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
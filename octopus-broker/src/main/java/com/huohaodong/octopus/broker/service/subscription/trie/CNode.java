@@ -2,23 +2,30 @@ package com.huohaodong.octopus.broker.service.subscription.trie;
 
 import com.huohaodong.octopus.common.persistence.entity.Subscription;
 
-import java.util.*;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
 
 public class CNode {
 
-    private final List<INode> children;
+    /* 普通子节点按 Token 索引，通配符子节点单独存放，匹配时无需遍历全部子节点 */
+    private TokenMap children;
+    private INode singleWildcardChild;
+    private INode multiWildcardChild;
     Set<Subscription> subscriptions;
     private Token token;
 
     CNode() {
-        this.children = new ArrayList<>();
+        this.children = TokenMap.EMPTY;
         this.subscriptions = new HashSet<>();
     }
 
-    private CNode(Token token, List<INode> children, Set<Subscription> subscriptions) {
+    private CNode(Token token, TokenMap children, INode singleWildcardChild, INode multiWildcardChild, Set<Subscription> subscriptions) {
         this.token = token;
         this.subscriptions = new HashSet<>(subscriptions);
-        this.children = new ArrayList<>(children);
+        this.children = children;
+        this.singleWildcardChild = singleWildcardChild;
+        this.multiWildcardChild = multiWildcardChild;
     }
 
     public Token getToken() {
@@ -30,31 +37,39 @@ public class CNode {
     }
 
     boolean anyChildrenMatch(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return true;
-            }
-        }
-        return false;
+        return childOf(token) != null;
+    }
+
+    boolean hasChildren() {
+        return !children.isEmpty() || singleWildcardChild != null || multiWildcardChild != null;
     }
 
-    List<INode> allChildren() {
-        return this.children;
+    INode singleWildcardChild() {
+        return singleWildcardChild;
+    }
+
+    INode multiWildcardChild() {
+        return multiWildcardChild;
     }
 
     INode childOf(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return iNode;
-            }
+        if (Token.SINGLE.equals(token)) {
+            return singleWildcardChild;
         }
-        throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        if (Token.MULTI.equals(token)) {
+            return multiWildcardChild;
+        }
+        return children.get(token);
     }
 
-    private boolean equalsToken(Token token) {
-        return this.token != null && this.token.equals(token);
+    INode childOf(TopicTokens topic, int level) {
+        if (topic.isSingleWildcard(level)) {
+            return singleWildcardChild;
+        }
+        if (topic.isMultiWildcard(level)) {
+            return multiWildcardChild;
+        }
+        return children.get(topic.topic(), topic.start(level), topic.end(level), topic.hash(level));
     }
 
     @Override
@@ -63,53 +78,71 @@ public class CNode {
     }
 
     CNode copy() {
-        return new CNode(this.token, this.children, this.subscriptions);
+        return new CNode(this.token, this.children, this.singleWildcardChild, this.multiWildcardChild, this.subscriptions);
     }
 
     public void add(INode newINode) {
-        this.children.add(newINode);
+        Token childToken = newINode.mainNode().getToken();
+        if (Token.SINGLE.equals(childToken)) {
+            this.singleWildcardChild = newINode;
+        } else if (Token.MULTI.equals(childToken)) {
+            this.multiWildcardChild = newINode;
+        } else {
+            this.children = this.children.put(childToken, newINode);
+        }
     }
 
-    public void remove(INode node) {
-        this.children.remove(node);
+    public void remove(Token childToken) {
+        if (Token.SINGLE.equals(childToken)) {
+            this.singleWildcardChild = null;
+        } else if (Token.MULTI.equals(childToken)) {
+            this.multiWildcardChild = null;
+        } else {
+            this.children = this.children.remove(childToken);
+        }
     }
 
+    /* 同一客户端对同一主题的订阅只保留一个，重复订阅时替换原有订阅 */
     CNode addSubscription(Subscription newSubscription) {
-        if (subscriptions.contains(newSubscription)) {
-            final Subscription existing = subscriptions.stream().filter(s -> s.equals(newSubscription)).findFirst().get();
-            subscriptions.remove(existing);
-            subscriptions.add(new Subscription(newSubscription.getClientId(), newSubscription.getTopic(), newSubscription.getQos()));
-        } else {
-            this.subscriptions.add(new Subscription(newSubscription.getClientId(), newSubscription.getTopic(), newSubscription.getQos()));
-        }
+        removeSubscription(newSubscription.getClientId(), newSubscription.getTopic());
+        this.subscriptions.add(new Subscription(newSubscription.getClientId(), newSubscription.getTopic(), newSubscription.getQos()));
         return this;
     }
 
-    boolean containsOnly(String clientId) {
+    /* 同一节点上可能同时存在普通订阅和共享订阅，因此需要同时按 clientId 和订阅主题区分 */
+    boolean containsOnly(String clientId, String topic) {
         for (Subscription sub : this.subscriptions) {
-            if (!sub.getClientId().equals(clientId)) {
+            if (!isSubscriptionOf(sub, clientId, topic)) {
                 return false;
             }
         }
         return !this.subscriptions.isEmpty();
     }
 
-    public boolean contains(String clientId) {
+    public boolean contains(String clientId, String topic) {
         for (Subscription sub : this.subscriptions) {
-            if (sub.getClientId().equals(clientId)) {
+            if (isSubscriptionOf(sub, clientId, topic)) {
                 return true;
             }
         }
         return false;
     }
 
-    void removeSubscriptionsFor(String clientId) {
-        Set<Subscription> toRemove = new HashSet<>();
+    /* 是否存在订阅主题为 topic 的订阅，共享订阅按完整的 $share 主题区分 */
+    boolean containsTopic(String topic) {
         for (Subscription sub : this.subscriptions) {
-            if (sub.getClientId().equals(clientId)) {
-                toRemove.add(sub);
+            if (sub.getTopic().equals(topic)) {
+                return true;
             }
         }
-        this.subscriptions.removeAll(toRemove);
+        return false;
+    }
+
+    void removeSubscription(String clientId, String topic) {
+        this.subscriptions.removeIf(sub -> isSubscriptionOf(sub, clientId, topic));
+    }
+
+    private static boolean isSubscriptionOf(Subscription subscription, String clientId, String topic) {
+        return subscription.getClientId().equals(clientId) && subscription.getTopic().equals(topic);
     }
 }
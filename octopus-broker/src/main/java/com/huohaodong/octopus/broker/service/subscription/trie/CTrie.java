@@ -1,10 +1,13 @@
 package com.huohaodong.octopus.broker.service.subscription.trie;
 
+import com.huohaodong.octopus.broker.service.subscription.share.SharedTopic;
 import com.huohaodong.octopus.common.persistence.entity.Subscription;
 
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CTrie {
 
@@ -12,160 +15,252 @@ public class CTrie {
     private static final INode NO_PARENT = null;
     INode root;
 
+    private static final int STRIPES = 1 << 12;
+
+    /*
+     * 插入或删除订阅后递增对应的版本号，用于判断外部缓存的匹配结果是否过期。
+     * 主题过滤器只能匹配前缀层与其相同的主题，因此按过滤器的前两层划分版本号：前两层都是普通层时只递增前两层对应的版本号，
+     * 第二层是通配符时递增首层对应的版本号，首层是通配符或只有一层时递增全局版本号。
+     * 主题的版本号为这三者之和，订阅变化只使前缀可能与之相同的主题的缓存结果过期，哈希冲突只会导致多余的失效。
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLongArray firstLevelGenerations = new AtomicLongArray(STRIPES);
+
+    private final AtomicLongArray secondLevelGenerations = new AtomicLongArray(STRIPES);
+
+    private final FilterListener filterListener;
+
+    /* 树中的订阅数，在 CAS 成功后更新 */
+    private final LongAdder size = new LongAdder();
+
     public CTrie() {
+        this(FilterListener.NONE);
+    }
+
+    public CTrie(FilterListener filterListener) {
         final CNode mainNode = new CNode();
         mainNode.setToken(ROOT);
         this.root = new INode(mainNode);
+        this.filterListener = filterListener;
     }
 
-    private NavigationAction evaluate(Topic topic, CNode cnode) {
-        if (Token.MULTI.equals(cnode.getToken())) {
-            return NavigationAction.MATCH;
+    /* 发布主题当前的版本号，必须在开始匹配之前读取 */
+    public long generation(String topic) {
+        int length = topic.length();
+        int separator = topic.indexOf('/');
+        int first = Token.hashOf(hash(topic, 0, separator < 0 ? length : separator));
+        long result = generation.get() + firstLevelGenerations.get(firstStripe(first));
+        if (separator >= 0) {
+            int next = topic.indexOf('/', separator + 1);
+            int second = Token.hashOf(hash(topic, separator + 1, next < 0 ? length : next));
+            result += secondLevelGenerations.get(secondStripe(first, second));
         }
-        if (topic.isEmpty()) {
-            return NavigationAction.STOP;
+        return result;
+    }
+
+    /* 必须在修改生效之后递增，保证修改前读到的结果一定被判定为过期 */
+    private void advanceGeneration(TopicTokens filter) {
+        if (filter.levels() < 2 || filter.isWildcard(0)) {
+            generation.incrementAndGet();
+        } else if (filter.isWildcard(1)) {
+            firstLevelGenerations.incrementAndGet(firstStripe(filter.hash(0)));
+        } else {
+            secondLevelGenerations.incrementAndGet(secondStripe(filter.hash(0), filter.hash(1)));
         }
-        final Token token = topic.headToken();
-        if (!(Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken()))) {
-            return NavigationAction.STOP;
+    }
+
+    /* 与 TopicTokens 计算每一层哈希值的方式相同 */
+    private static int hash(String topic, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + topic.charAt(i);
         }
-        return NavigationAction.GODEEP;
+        return hash;
     }
 
-    public Set<Subscription> recursiveMatch(Topic topic) {
-        return recursiveMatch(topic, this.root);
+    private static int firstStripe(int first) {
+        return (first ^ (first >>> 16)) & (STRIPES - 1);
     }
 
-    private Set<Subscription> recursiveMatch(Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
-        if (cnode instanceof TNode) {
-            return Collections.emptySet();
+    private static int secondStripe(int first, int second) {
+        int hash = first * 31 + second;
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    public Set<Subscription> match(TopicTokens topic) {
+        Set<Subscription> subscriptions = new HashSet<>();
+        match(topic, 0, this.root.mainNode(), subscriptions);
+        return subscriptions;
+    }
+
+    /* cnode 为匹配完前 level 层后到达的节点，只按下标推进，不创建中间 Topic */
+    private void match(TopicTokens topic, int level, CNode cnode, Set<Subscription> subscriptions) {
+        boolean consumed = level == topic.levels();
+        if (consumed) {
+            subscriptions.addAll(cnode.subscriptions);
         }
-        NavigationAction action = evaluate(topic, cnode);
-        if (action == NavigationAction.MATCH) {
-            return cnode.subscriptions;
+        // "#" 也匹配父级本身，例如 "a/#" 匹配 "a"
+        INode multiWildcardChild = cnode.multiWildcardChild();
+        if (multiWildcardChild != null) {
+            CNode multiWildcardCnode = multiWildcardChild.mainNode();
+            if (!(multiWildcardCnode instanceof TNode)) {
+                subscriptions.addAll(multiWildcardCnode.subscriptions);
+            }
         }
-        if (action == NavigationAction.STOP) {
-            return Collections.emptySet();
+        if (consumed) {
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topic : topic.exceptHeadToken();
-        Set<Subscription> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        // 只需访问精确匹配的子节点以及 "+" 通配符子节点
+        INode exactChild = cnode.childOf(topic, level);
+        if (exactChild != null && exactChild != multiWildcardChild) {
+            matchChild(topic, level + 1, exactChild, subscriptions);
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+        INode singleWildcardChild = cnode.singleWildcardChild();
+        if (singleWildcardChild != null && singleWildcardChild != exactChild) {
+            matchChild(topic, level + 1, singleWildcardChild, subscriptions);
+        }
+    }
+
+    private void matchChild(TopicTokens topic, int level, INode child, Set<Subscription> subscriptions) {
+        CNode cnode = child.mainNode();
+        if (!(cnode instanceof TNode)) {
+            match(topic, level, cnode, subscriptions);
         }
-        return subscriptions;
     }
 
+    /* 共享订阅挂在其主题过滤器对应的节点上，订阅中保留完整的 $share 主题 */
     public void addToTree(Subscription newSubscription) {
+        addToTree(newSubscription, TopicTokens.tokenize(SharedTopic.filterOf(newSubscription.getTopic())));
+    }
+
+    /* topic 为订阅主题过滤器（共享订阅去掉 $share/{group}/ 前缀）切分的结果，调用方已切分过时避免重复切分 */
+    public void addToTree(Subscription newSubscription, TopicTokens topic) {
         Action res;
         do {
-            res = insert(new Topic(newSubscription.getTopic()), this.root, newSubscription);
+            res = insert(topic, 0, this.root, NO_PARENT, newSubscription);
         } while (res == Action.REPEAT);
+        advanceGeneration(topic);
     }
 
-    private Action insert(Topic topic, final INode inode, Subscription newSubscription) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && inode.mainNode().anyChildrenMatch(token)) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return insert(remainingTopic, nextInode, newSubscription);
-        } else {
-            if (topic.isEmpty()) {
-                return insertSubscription(inode, newSubscription);
-            } else {
-                return createNodeAndInsertSubscription(topic, inode, newSubscription);
-            }
+    private Action insert(TopicTokens topic, int level, final INode inode, INode iParent, Subscription newSubscription) {
+        CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // 路径上的节点已被删除，先协助清理父节点后重试
+            cleanTomb(inode, iParent, topic.token(level - 1));
+            return Action.REPEAT;
         }
+        if (level == topic.levels()) {
+            return insertSubscription(topic, inode, cnode, newSubscription);
+        }
+        INode nextInode = cnode.childOf(topic, level);
+        if (nextInode != null) {
+            return insert(topic, level + 1, nextInode, inode, newSubscription);
+        }
+        return createNodeAndInsertSubscription(topic, level, inode, cnode, newSubscription);
     }
 
-    private Action insertSubscription(INode inode, Subscription newSubscription) {
-        CNode cnode = inode.mainNode();
+    private Action insertSubscription(TopicTokens topic, INode inode, CNode cnode, Subscription newSubscription) {
         CNode updatedCnode = cnode.copy().addSubscription(newSubscription);
         if (inode.compareAndSet(cnode, updatedCnode)) {
+            size.add(updatedCnode.subscriptions.size() - cnode.subscriptions.size());
+            if (!cnode.containsTopic(newSubscription.getTopic())) {
+                filterListener.onFilterAdded(newSubscription.getTopic());
+            }
             return Action.OK;
         } else {
             return Action.REPEAT;
         }
     }
 
-    private Action createNodeAndInsertSubscription(Topic topic, INode inode, Subscription newSubscription) {
-        INode newInode = createPathRec(topic, newSubscription);
-        CNode cnode = inode.mainNode();
+    private Action createNodeAndInsertSubscription(TopicTokens topic, int level, INode inode, CNode cnode, Subscription newSubscription) {
+        INode newInode = createPathRec(topic, level, newSubscription);
         CNode updatedCnode = cnode.copy();
         updatedCnode.add(newInode);
 
-        return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+        if (inode.compareAndSet(cnode, updatedCnode)) {
+            size.increment();
+            filterListener.onFilterAdded(newSubscription.getTopic());
+            return Action.OK;
+        }
+        return Action.REPEAT;
     }
 
-    private INode createPathRec(Topic topic, Subscription newSubscription) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(remainingTopic, newSubscription);
-            CNode cnode = new CNode();
-            cnode.setToken(topic.headToken());
-            cnode.add(inode);
-            return new INode(cnode);
+    private INode createPathRec(TopicTokens topic, int level, Subscription newSubscription) {
+        CNode cnode = new CNode();
+        cnode.setToken(topic.token(level));
+        if (level + 1 < topic.levels()) {
+            cnode.add(createPathRec(topic, level + 1, newSubscription));
         } else {
-            return createLeafNodes(topic.headToken(), newSubscription);
+            cnode.addSubscription(newSubscription);
         }
+        return new INode(cnode);
     }
 
-    private INode createLeafNodes(Token token, Subscription newSubscription) {
-        CNode newLeafCnode = new CNode();
-        newLeafCnode.setToken(token);
-        newLeafCnode.addSubscription(newSubscription);
-
-        return new INode(newLeafCnode);
+    public void removeFromTree(String subscriptionTopic, String clientID) {
+        removeFromTree(subscriptionTopic, clientID, TopicTokens.tokenize(SharedTopic.filterOf(subscriptionTopic)));
     }
 
-    public void removeFromTree(Topic topic, String clientID) {
+    /* topic 的含义同 addToTree(Subscription, TopicTokens) */
+    public void removeFromTree(String subscriptionTopic, String clientID, TopicTokens topic) {
         Action res;
         do {
-            res = remove(clientID, topic, this.root, NO_PARENT);
+            res = remove(clientID, subscriptionTopic, topic, 0, this.root, NO_PARENT);
         } while (res == Action.REPEAT);
+        advanceGeneration(topic);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode, INode iParent) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return remove(clientId, remainingTopic, nextInode, inode);
-        } else {
-            final CNode cnode = inode.mainNode();
-            if (cnode instanceof TNode) {
-                return Action.OK;
+    private Action remove(String clientId, String subscriptionTopic, TopicTokens topic, int level, INode inode, INode iParent) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            return cleanTomb(inode, iParent, topic.token(level - 1));
+        }
+        if (level < topic.levels()) {
+            INode nextInode = cnode.childOf(topic, level);
+            return nextInode == null ? Action.OK : remove(clientId, subscriptionTopic, topic, level + 1, nextInode, inode);
+        }
+        if (cnode.containsOnly(clientId, subscriptionTopic) && !cnode.hasChildren()) {
+            if (inode == this.root) {
+                return inode.compareAndSet(cnode, cnode.copy()) ? Action.OK : Action.REPEAT;
+            }
+            TNode tnode = new TNode();
+            if (!inode.compareAndSet(cnode, tnode)) {
+                return Action.REPEAT;
+            }
+            size.add(-cnode.subscriptions.size());
+            filterListener.onFilterRemoved(subscriptionTopic);
+            return cleanTomb(inode, iParent, topic.token(level - 1));
+        } else if (cnode.contains(clientId, subscriptionTopic)) {
+            CNode updatedCnode = cnode.copy();
+            updatedCnode.removeSubscription(clientId, subscriptionTopic);
+            if (!inode.compareAndSet(cnode, updatedCnode)) {
+                return Action.REPEAT;
             }
-            if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
-                if (inode == this.root) {
-                    return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
-                }
-                TNode tnode = new TNode();
-                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
-            } else if (cnode.contains(clientId) && topic.isEmpty()) {
-                CNode updatedCnode = cnode.copy();
-                updatedCnode.removeSubscriptionsFor(clientId);
-                return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
-            } else {
-                return Action.OK;
+            size.add(updatedCnode.subscriptions.size() - cnode.subscriptions.size());
+            if (!updatedCnode.containsTopic(subscriptionTopic)) {
+                filterListener.onFilterRemoved(subscriptionTopic);
             }
+            return Action.OK;
+        } else {
+            return Action.OK;
         }
     }
 
-    private Action cleanTomb(INode inode, INode iParent) {
-        CNode updatedCnode = iParent.mainNode().copy();
-        updatedCnode.remove(inode);
-        return iParent.compareAndSet(iParent.mainNode(), updatedCnode) ? Action.OK : Action.REPEAT;
+    private Action cleanTomb(INode inode, INode iParent, Token inodeToken) {
+        CNode parentCnode = iParent.mainNode();
+        if (parentCnode instanceof TNode || parentCnode.childOf(inodeToken) != inode) {
+            return Action.OK;
+        }
+        CNode updatedCnode = parentCnode.copy();
+        updatedCnode.remove(inodeToken);
+        return iParent.compareAndSet(parentCnode, updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
     private enum Action {
         OK, REPEAT
     }
-
-    private enum NavigationAction {
-        MATCH, GODEEP, STOP
-    }
 }
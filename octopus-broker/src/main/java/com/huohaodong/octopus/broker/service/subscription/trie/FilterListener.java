@@ -0,0 +1,22 @@
+package com.huohaodong.octopus.broker.service.subscription.trie;
+
+/**
+ * 某个订阅主题出现第一个订阅、或最后一个订阅被移除时由 CTrie 回调。
+ * 共享订阅按完整的 $share 主题计算，同一主题过滤器上的普通订阅和各个共享订阅分别回调。并发修改时回调的先后顺序可能与修改生效的顺序不同，实现方应按计数处理。
+ */
+public interface FilterListener {
+
+    FilterListener NONE = new FilterListener() {
+        @Override
+        public void onFilterAdded(String topicFilter) {
+        }
+
+        @Override
+        public void onFilterRemoved(String topicFilter) {
+        }
+    };
+
+    void onFilterAdded(String topicFilter);
+
+    void onFilterRemoved(String topicFilter);
+}
@@ -19,6 +19,11 @@ class TNode extends CNode {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
+    @Override
+    INode childOf(TopicTokens topic, int level) {
+        throw new IllegalStateException("Can't be invoked on TNode");
+    }
+
     @Override
     CNode copy() {
         throw new IllegalStateException("Can't be invoked on TNode");
@@ -29,23 +34,28 @@ class TNode extends CNode {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
+    @Override
+    public void remove(Token childToken) {
+        throw new IllegalStateException("Can't be invoked on TNode");
+    }
+
     @Override
     CNode addSubscription(Subscription newSubscription) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    boolean containsOnly(String clientId) {
+    boolean containsOnly(String clientId, String topic) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    public boolean contains(String clientId) {
+    public boolean contains(String clientId, String topic) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    void removeSubscriptionsFor(String clientId) {
+    void removeSubscription(String clientId, String topic) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -30,13 +30,23 @@ public class Token {
         return equals(t);
     }
 
-    @Override
-    public int hashCode() {
+    /* 与 hashCode() 保持一致，nameHash 为名称按 String.hashCode() 规则计算得到的值 */
+    static int hashOf(int nameHash) {
         int hash = 7;
-        hash = 29 * hash + (this.name != null ? this.name.hashCode() : 0);
+        hash = 29 * hash + nameHash;
         return hash;
     }
 
+    @Override
+    public int hashCode() {
+        return hashOf(this.name != null ? this.name.hashCode() : 0);
+    }
+
+    boolean nameEquals(String s, int from, int to) {
+        int length = to - from;
+        return name.length() == length && name.regionMatches(0, s, from, length);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -0,0 +1,266 @@
+package com.huohaodong.octopus.broker.service.subscription.trie;
+
+import java.util.function.Consumer;
+
+/**
+ * 不可变的 HAMT (Hash Array Mapped Trie)，以 Token 为键保存子节点。
+ * 每次修改只复制从根到目标槽位路径上的节点，其余部分在新旧版本之间共享，
+ * 因此 CNode.copy() 不再需要复制全部子节点。
+ */
+final class TokenMap {
+
+    static final TokenMap EMPTY = new TokenMap(BitmapNode.EMPTY, 0);
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final Node root;
+
+    private final int size;
+
+    private TokenMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    INode get(Token key) {
+        return root.find(0, key.hashCode(), key.name, 0, key.name.length());
+    }
+
+    /* 按 s[from, to) 查找，hash 需与对应 Token 的 hashCode() 一致，查找过程不创建 Token */
+    INode get(String s, int from, int to, int hash) {
+        return root.find(0, hash, s, from, to);
+    }
+
+    TokenMap put(Token key, INode value) {
+        int newSize = get(key) == null ? size + 1 : size;
+        Node newRoot = root.assoc(0, key.hashCode(), key, value);
+        return newRoot == root ? this : new TokenMap(newRoot, newSize);
+    }
+
+    TokenMap remove(Token key) {
+        if (get(key) == null) {
+            return this;
+        }
+        Node newRoot = root.without(0, key.hashCode(), key);
+        return newRoot == null ? EMPTY : new TokenMap(newRoot, size - 1);
+    }
+
+    void forEach(Consumer<INode> action) {
+        root.forEach(action);
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static Object[] cloneAndSet(Object[] array, int i, Object a) {
+        Object[] clone = array.clone();
+        clone[i] = a;
+        return clone;
+    }
+
+    private static Object[] cloneAndSet(Object[] array, int i, Object a, int j, Object b) {
+        Object[] clone = array.clone();
+        clone[i] = a;
+        clone[j] = b;
+        return clone;
+    }
+
+    private static Object[] removePair(Object[] array, int i) {
+        Object[] newArray = new Object[array.length - 2];
+        System.arraycopy(array, 0, newArray, 0, 2 * i);
+        System.arraycopy(array, 2 * (i + 1), newArray, 2 * i, newArray.length - 2 * i);
+        return newArray;
+    }
+
+    private static Node createNode(int shift, Token key1, INode val1, int key2hash, Token key2, INode val2) {
+        int key1hash = key1.hashCode();
+        if (key1hash == key2hash) {
+            return new CollisionNode(key1hash, new Object[]{key1, val1, key2, val2});
+        }
+        return BitmapNode.EMPTY
+                .assoc(shift, key1hash, key1, val1)
+                .assoc(shift, key2hash, key2, val2);
+    }
+
+    private abstract static class Node {
+        abstract INode find(int shift, int hash, String s, int from, int to);
+
+        abstract Node assoc(int shift, int hash, Token key, INode val);
+
+        /* 返回 null 表示删除后该节点为空 */
+        abstract Node without(int shift, int hash, Token key);
+
+        abstract void forEach(Consumer<INode> action);
+    }
+
+    /* array 中按 [key, value] 成对存储，key 为 null 时 value 为下一层的 Node */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        INode find(int shift, int hash, String s, int from, int to) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int idx = index(bit);
+            Object keyOrNull = array[2 * idx];
+            Object valOrNode = array[2 * idx + 1];
+            if (keyOrNull == null) {
+                return ((Node) valOrNode).find(shift + BITS, hash, s, from, to);
+            }
+            return ((Token) keyOrNull).nameEquals(s, from, to) ? (INode) valOrNode : null;
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Token key, INode val) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object keyOrNull = array[2 * idx];
+                Object valOrNode = array[2 * idx + 1];
+                if (keyOrNull == null) {
+                    Node n = ((Node) valOrNode).assoc(shift + BITS, hash, key, val);
+                    return n == valOrNode ? this : new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, n));
+                }
+                if (key.equals(keyOrNull)) {
+                    return val == valOrNode ? this : new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, val));
+                }
+                Node subNode = createNode(shift + BITS, (Token) keyOrNull, (INode) valOrNode, hash, key, val);
+                return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx, null, 2 * idx + 1, subNode));
+            }
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n + 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            newArray[2 * idx] = key;
+            newArray[2 * idx + 1] = val;
+            System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (n - idx));
+            return new BitmapNode(bitmap | bit, newArray);
+        }
+
+        @Override
+        Node without(int shift, int hash, Token key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int idx = index(bit);
+            Object keyOrNull = array[2 * idx];
+            Object valOrNode = array[2 * idx + 1];
+            if (keyOrNull == null) {
+                Node n = ((Node) valOrNode).without(shift + BITS, hash, key);
+                if (n == valOrNode) {
+                    return this;
+                }
+                if (n != null) {
+                    return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, n));
+                }
+            } else if (!key.equals(keyOrNull)) {
+                return this;
+            }
+            return bitmap == bit ? null : new BitmapNode(bitmap ^ bit, removePair(array, idx));
+        }
+
+        @Override
+        void forEach(Consumer<INode> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept((INode) array[i + 1]);
+                }
+            }
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int findIndex(Token key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        INode find(int shift, int hash, String s, int from, int to) {
+            if (hash != this.hash) {
+                return null;
+            }
+            for (int i = 0; i < array.length; i += 2) {
+                if (((Token) array[i]).nameEquals(s, from, to)) {
+                    return (INode) array[i + 1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Token key, INode val) {
+            if (hash == this.hash) {
+                int idx = findIndex(key);
+                if (idx >= 0) {
+                    return array[idx + 1] == val ? this : new CollisionNode(hash, cloneAndSet(array, idx + 1, val));
+                }
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = val;
+                return new CollisionNode(hash, newArray);
+            }
+            return new BitmapNode(bitpos(this.hash, shift), new Object[]{null, this}).assoc(shift, hash, key, val);
+        }
+
+        @Override
+        Node without(int shift, int hash, Token key) {
+            int idx = hash == this.hash ? findIndex(key) : -1;
+            if (idx < 0) {
+                return this;
+            }
+            return array.length == 2 ? null : new CollisionNode(hash, removePair(array, idx / 2));
+        }
+
+        @Override
+        void forEach(Consumer<INode> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept((INode) array[i + 1]);
+            }
+        }
+    }
+}
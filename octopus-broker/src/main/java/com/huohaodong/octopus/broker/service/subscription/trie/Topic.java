@@ -53,49 +53,17 @@ public class Topic implements Serializable, Comparable<Topic> {
     }
 
     private List<Token> parseTopic(String topic) throws ParseException {
-        if (topic.length() == 0) {
+        TopicTokens topicTokens = TopicTokens.tokenize(topic);
+        if (topicTokens.levels() == 0) {
             throw new ParseException("Bad format of topic, topic MUST be at least 1 character [MQTT-4.7.3-1] and " + "this was empty", 0);
         }
-        List<Token> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
-        }
-
-        if (topic.endsWith("/")) {
-            // Add a fictious space
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
+        if (!topicTokens.isWellFormed()) {
+            throw new ParseException("Bad format of topic, wildcards MUST occupy an entire level and the multi symbol (#) has to be the last one", 0);
         }
-
-        for (int i = 0; i < splitted.length; i++) {
-            String s = splitted[i];
-            if (s.isEmpty()) {
-                // if (i != 0) {
-                // throw new ParseException("Bad format of topic, expetec topic name between
-                // separators", i);
-                // }
-                res.add(Token.EMPTY);
-            } else if (s.equals("#")) {
-                // check that multi is the last symbol
-                if (i != splitted.length - 1) {
-                    throw new ParseException("Bad format of topic, the multi symbol (#) has to be the last one after a separator", i);
-                }
-                res.add(Token.MULTI);
-            } else if (s.contains("#")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else if (s.equals("+")) {
-                res.add(Token.SINGLE);
-            } else if (s.contains("+")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else {
-                res.add(new Token(s));
-            }
+        List<Token> res = new ArrayList<>(topicTokens.levels());
+        for (int i = 0; i < topicTokens.levels(); i++) {
+            res.add(topicTokens.token(i));
         }
-
         return res;
     }
 
@@ -117,9 +85,7 @@ public class Topic implements Serializable, Comparable<Topic> {
         if (tokens.isEmpty()) {
             return new Topic(Collections.emptyList());
         }
-        List<Token> tokensCopy = new ArrayList<>(tokens);
-        tokensCopy.remove(0);
-        return new Topic(tokensCopy);
+        return new Topic(tokens.subList(1, tokens.size()));
     }
 
     public boolean isValid() {
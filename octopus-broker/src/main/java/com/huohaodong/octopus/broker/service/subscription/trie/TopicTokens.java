@@ -0,0 +1,153 @@
+package com.huohaodong.octopus.broker.service.subscription.trie;
+
+import java.util.Arrays;
+
+/**
+ * 一次扫描完成主题切分：只记录每一层在原始字符串中的结束位置和哈希值，不创建子串。
+ * 同时记录通配符位置与格式错误，供订阅校验直接复用。
+ */
+public final class TopicTokens {
+
+    private static final int INITIAL_LEVELS = 8;
+
+    private final String topic;
+
+    private int[] ends;
+
+    private int[] hashes;
+
+    private int levels;
+
+    private boolean wellFormed = true;
+
+    private boolean hasWildcard;
+
+    private TopicTokens(String topic) {
+        this.topic = topic;
+        this.ends = new int[INITIAL_LEVELS];
+        this.hashes = new int[INITIAL_LEVELS];
+    }
+
+    public static TopicTokens tokenize(String topic) {
+        TopicTokens tokens = new TopicTokens(topic);
+        tokens.scan();
+        return tokens;
+    }
+
+    private void scan() {
+        int length = topic.length();
+        if (length == 0) {
+            wellFormed = false;
+            return;
+        }
+        int start = 0;
+        int hash = 0;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? topic.charAt(i) : '/';
+            if (c == '/') {
+                append(i, hash);
+                if (i != length && i - start == 1 && topic.charAt(start) == '#') {
+                    // "#" 只能出现在最后一层
+                    wellFormed = false;
+                }
+                start = i + 1;
+                hash = 0;
+            } else {
+                if (c == '+' || c == '#') {
+                    hasWildcard = true;
+                    boolean wholeLevel = i == start && (i + 1 == length || topic.charAt(i + 1) == '/');
+                    if (!wholeLevel) {
+                        wellFormed = false;
+                    }
+                }
+                hash = 31 * hash + c;
+            }
+        }
+    }
+
+    private void append(int end, int hash) {
+        if (levels == ends.length) {
+            ends = Arrays.copyOf(ends, levels << 1);
+            hashes = Arrays.copyOf(hashes, levels << 1);
+        }
+        ends[levels] = end;
+        hashes[levels] = Token.hashOf(hash);
+        levels++;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    public int levels() {
+        return levels;
+    }
+
+    int start(int level) {
+        return level == 0 ? 0 : ends[level - 1] + 1;
+    }
+
+    int end(int level) {
+        return ends[level];
+    }
+
+    int hash(int level) {
+        return hashes[level];
+    }
+
+    int length(int level) {
+        return end(level) - start(level);
+    }
+
+    boolean isSingleWildcard(int level) {
+        return length(level) == 1 && topic.charAt(start(level)) == '+';
+    }
+
+    boolean isMultiWildcard(int level) {
+        return length(level) == 1 && topic.charAt(start(level)) == '#';
+    }
+
+    boolean isWildcard(int level) {
+        return isSingleWildcard(level) || isMultiWildcard(level);
+    }
+
+    Token token(int level) {
+        if (isSingleWildcard(level)) {
+            return Token.SINGLE;
+        }
+        if (isMultiWildcard(level)) {
+            return Token.MULTI;
+        }
+        if (length(level) == 0) {
+            return Token.EMPTY;
+        }
+        return new Token(topic.substring(start(level), end(level)));
+    }
+
+    /* 通配符只能独占一层，且 "#" 只能位于最后一层 [MQTT-4.7.1-2] [MQTT-4.7.1-3] */
+    public boolean isWellFormed() {
+        return wellFormed;
+    }
+
+    public boolean hasWildcard() {
+        return hasWildcard;
+    }
+
+    /* 发布消息的主题中不允许出现通配符 [MQTT-3.3.2-2] */
+    public boolean isValidTopicName() {
+        return wellFormed && !hasWildcard;
+    }
+
+    /* 在协议要求之外，Broker 还要求订阅主题至少包含两层，首层不能是通配符，末层不能为空 */
+    public boolean isValidTopicFilter() {
+        return wellFormed
+               && levels >= 2
+               && !isWildcard(0)
+               && length(levels - 1) > 0;
+    }
+
+    @Override
+    public String toString() {
+        return topic;
+    }
+}
@@ -0,0 +1,63 @@
+package com.huohaodong.octopus.broker;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 以 PARANOID 级别跟踪所有 ByteBuf，记录 ResourceLeakDetector 输出的泄漏报告。
+ * ResourceLeakDetector 只在分配新的 ByteBuf 时检查已被回收但未释放的对象，assertNoLeaks 反复触发 GC 和分配后再检查报告。
+ */
+public final class LeakDetection {
+
+    private static final int GC_ROUNDS = 10;
+
+    private final Logger logger = (Logger) LoggerFactory.getLogger(ResourceLeakDetector.class);
+
+    private final List<String> leaks = new ArrayList<>();
+
+    private final AppenderBase<ILoggingEvent> appender = new AppenderBase<>() {
+        @Override
+        protected void append(ILoggingEvent event) {
+            synchronized (leaks) {
+                leaks.add(event.getFormattedMessage());
+            }
+        }
+    };
+
+    private ResourceLeakDetector.Level previousLevel;
+
+    public void start() {
+        previousLevel = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        appender.start();
+        logger.addAppender(appender);
+    }
+
+    public void stop() {
+        logger.detachAppender(appender);
+        appender.stop();
+        ResourceLeakDetector.setLevel(previousLevel);
+    }
+
+    public void assertNoLeaks() throws InterruptedException {
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+            Thread.sleep(20);
+            ByteBuf probe = PooledByteBufAllocator.DEFAULT.directBuffer(1);
+            probe.release();
+        }
+        synchronized (leaks) {
+            assertTrue(leaks.isEmpty(), () -> "ByteBuf leaks detected:\n" + String.join("\n", leaks));
+        }
+    }
+}
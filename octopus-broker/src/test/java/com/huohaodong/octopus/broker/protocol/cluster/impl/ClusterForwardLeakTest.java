@@ -0,0 +1,197 @@
+package com.huohaodong.octopus.broker.protocol.cluster.impl;
+
+import com.huohaodong.octopus.broker.LeakDetection;
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.cluster.membership.ClusterMembership;
+import com.huohaodong.octopus.broker.service.subscription.SubscriptionSummary;
+import com.huohaodong.octopus.common.protocol.grpc.*;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 转发给远程 Broker 的消息体在发送完成、重试失败、等待队列溢出以及关闭时丢弃的各个路径上都要释放持有的引用。
+ */
+class ClusterForwardLeakTest {
+
+    private static final int MESSAGES = 50;
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static final String SHARED_TOPIC = "$share/group/leak/#";
+
+    private final LeakDetection leakDetection = new LeakDetection();
+
+    private final Set<String> received = Collections.synchronizedSet(new HashSet<>());
+
+    private final List<MessagePayload> payloads = new ArrayList<>();
+
+    private Server server;
+
+    private ClusterPeerRegistry registry;
+
+    private GrpcClusterServiceImpl clusterService;
+
+    @BeforeEach
+    void setUp() {
+        leakDetection.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        shutdown();
+        if (server != null) {
+            server.shutdownNow();
+        }
+        payloads.stream().filter(payload -> payload.refCnt() > 0).forEach(MessagePayload::release);
+        leakDetection.stop();
+    }
+
+    @Test
+    void streamForwardToLiveBroker() throws Exception {
+        forwardToLiveBroker(true);
+    }
+
+    @Test
+    void unaryForwardToLiveBroker() throws Exception {
+        forwardToLiveBroker(false);
+    }
+
+    @Test
+    void streamDropsWhenBrokerUnreachable() throws Exception {
+        dropWhenBrokerUnreachable(true);
+    }
+
+    @Test
+    void unaryDropsWhenBrokerUnreachable() throws Exception {
+        dropWhenBrokerUnreachable(false);
+    }
+
+    private void forwardToLiveBroker(boolean streamEnable) throws Exception {
+        int port = freePort();
+        server = startServer(port);
+        start(streamEnable, port);
+        for (int i = 0; i < MESSAGES; i++) {
+            publish(i);
+        }
+        waitUntil(() -> received.size() == MESSAGES);
+        assertEquals(MESSAGES, received.size(), "messages received");
+        assertReleased();
+    }
+
+    /* 等待队列只能保存一部分消息，其余的在入队时丢弃，剩下的在关闭时或重试次数用完后丢弃 */
+    private void dropWhenBrokerUnreachable(boolean streamEnable) throws Exception {
+        start(streamEnable, freePort());
+        for (int i = 0; i < MESSAGES; i++) {
+            publish(i);
+        }
+        shutdown();
+        assertReleased();
+    }
+
+    private void start(boolean streamEnable, int port) {
+        BrokerProperties properties = new BrokerProperties();
+        properties.setId("BROKER_1");
+        properties.getCluster().setStreamEnable(streamEnable);
+        properties.getCluster().setMaxPendingMessages(MESSAGES / 5);
+        BrokerProperties.Peer peer = new BrokerProperties.Peer();
+        peer.setId("BROKER_2");
+        peer.setHost("localhost");
+        peer.setPort(port);
+        properties.getCluster().setPeers(List.of(peer));
+        ClusterRoutingTable routingTable = new ClusterRoutingTable();
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        ClusterMembership membership = new ClusterMembership(properties, 0, beanFactory.getBeanProvider(DiscoveryClient.class), event -> {
+        });
+        registry = new ClusterPeerRegistry(properties, beanFactory.getBeanProvider(DiscoveryClient.class), routingTable, membership);
+        registry.start();
+        clusterService = new GrpcClusterServiceImpl(properties, registry, new SubscriptionSummary(), routingTable);
+    }
+
+    /* 一半的消息带有选中对方的共享订阅，转发时为对方单独构造请求 */
+    private void publish(int i) {
+        MessagePayload payload = MessagePayload.of(PooledByteBufAllocator.DEFAULT.directBuffer().writeBytes(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        payloads.add(payload);
+        Map<String, List<String>> sharedTargets = i % 2 == 0 ? Map.of() : Map.of("BROKER_2", List.of(SHARED_TOPIC));
+        clusterService.broadcastPublishMessage("publisher", "leak/" + i, MqttQoS.AT_LEAST_ONCE, payload, sharedTargets);
+    }
+
+    private void shutdown() {
+        if (clusterService != null) {
+            clusterService.shutdown();
+            clusterService = null;
+        }
+        if (registry != null) {
+            registry.shutdown();
+            registry = null;
+        }
+    }
+
+    /* 转发过程中持有的引用全部归还后释放调用方的引用，之后不能再有泄漏报告 */
+    private void assertReleased() throws InterruptedException {
+        waitUntil(() -> payloads.stream().allMatch(payload -> payload.refCnt() == 1));
+        payloads.forEach(payload -> assertEquals(1, payload.refCnt(), "references held after forwarding"));
+        payloads.forEach(MessagePayload::release);
+        leakDetection.assertNoLeaks();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private Server startServer(int port) throws IOException {
+        return ServerBuilder.forPort(port).addService(new ClusterEventListenerGrpc.ClusterEventListenerImplBase() {
+            @Override
+            public void onEvent(ClusterRequest request, StreamObserver<ClusterResponse> responseObserver) {
+                received.add(request.getPublishRequest().getTopic());
+                responseObserver.onNext(ClusterResponse.newBuilder().setResultCode(ClusterResponse.ResultCode.OK).build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public StreamObserver<ClusterBatch> stream(StreamObserver<ClusterAck> ackObserver) {
+                return new StreamObserver<>() {
+                    @Override
+                    public void onNext(ClusterBatch batch) {
+                        batch.getPublishRequestsList().forEach(request -> received.add(request.getTopic()));
+                        ackObserver.onNext(ClusterAck.newBuilder().setSequence(batch.getSequence()).build());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        ackObserver.onCompleted();
+                    }
+                };
+            }
+        }).build().start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.huohaodong.octopus.broker.protocol.cluster.impl;
+
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.cluster.membership.ClusterMembership;
+import com.huohaodong.octopus.broker.service.subscription.SubscriptionSummary;
+import com.huohaodong.octopus.common.protocol.grpc.*;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 通过静态集群成员列表（octopus.broker.cluster.peers）配置的 Broker 不会因为调用失败被移出集群，
+ * 它暂时不可用期间转发给它的发布消息不能丢弃，恢复后全部送达，流式转发时还要保持发送顺序。
+ */
+class StaticPeerForwardTest {
+
+    private static final int MESSAGES = 200;
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<MessagePayload> payloads = new ArrayList<>();
+
+    private Server server;
+
+    private ClusterPeerRegistry registry;
+
+    private GrpcClusterServiceImpl clusterService;
+
+    @AfterEach
+    void tearDown() {
+        if (clusterService != null) {
+            clusterService.shutdown();
+        }
+        if (registry != null) {
+            registry.shutdown();
+        }
+        if (server != null) {
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    void streamForwardsInOrderAfterStaticPeerRecovers() throws Exception {
+        forwardWhilePeerIsDown(true);
+        assertInOrder();
+    }
+
+    @Test
+    void unaryRetriesUntilStaticPeerRecovers() throws Exception {
+        forwardWhilePeerIsDown(false);
+    }
+
+    private void forwardWhilePeerIsDown(boolean streamEnable) throws Exception {
+        int port = freePort();
+        BrokerProperties properties = new BrokerProperties();
+        properties.setId("BROKER_1");
+        properties.getCluster().setStreamEnable(streamEnable);
+        BrokerProperties.Peer peer = new BrokerProperties.Peer();
+        peer.setId("BROKER_2");
+        peer.setHost("localhost");
+        peer.setPort(port);
+        properties.getCluster().setPeers(List.of(peer));
+        ClusterRoutingTable routingTable = new ClusterRoutingTable();
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        ClusterMembership membership = new ClusterMembership(properties, 0, beanFactory.getBeanProvider(DiscoveryClient.class), event -> {
+        });
+        registry = new ClusterPeerRegistry(properties, beanFactory.getBeanProvider(DiscoveryClient.class), routingTable, membership);
+        registry.start();
+        // 不启动订阅摘要同步，对方的摘要始终未同步，所有发布消息都会转发给它
+        clusterService = new GrpcClusterServiceImpl(properties, registry, new SubscriptionSummary(), routingTable);
+
+        for (int i = 0; i < MESSAGES / 2; i++) {
+            publish(i);
+        }
+        // 第一次发送失败后再启动对方
+        Thread.sleep(200);
+        server = startServer(port);
+        for (int i = MESSAGES / 2; i < MESSAGES; i++) {
+            publish(i);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (new HashSet<>(received).size() < MESSAGES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(MESSAGES, new HashSet<>(received).size(), "distinct messages received");
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (payloads.stream().anyMatch(payload -> payload.refCnt() != 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        payloads.forEach(payload -> assertEquals(1, payload.refCnt(), "references held after forwarding"));
+    }
+
+    private void publish(int i) {
+        MessagePayload payload = MessagePayload.of(Unpooled.copiedBuffer(String.valueOf(i), StandardCharsets.UTF_8));
+        payloads.add(payload);
+        clusterService.broadcastPublishMessage("publisher", "static/peer/" + i, MqttQoS.AT_LEAST_ONCE, payload, Map.of());
+    }
+
+    /* 流中断后重发的批次可能重复，但每条消息第一次出现的顺序必须与发送顺序一致 */
+    private void assertInOrder() {
+        List<String> firstOccurrences = new ArrayList<>(new LinkedHashSet<>(received));
+        for (int i = 0; i < MESSAGES; i++) {
+            int expected = i;
+            assertTrue(firstOccurrences.get(i).equals("static/peer/" + expected), () -> "message " + expected + " out of order: " + firstOccurrences);
+        }
+    }
+
+    private Server startServer(int port) throws IOException {
+        return ServerBuilder.forPort(port).addService(new ClusterEventListenerGrpc.ClusterEventListenerImplBase() {
+            @Override
+            public void onEvent(ClusterRequest request, StreamObserver<ClusterResponse> responseObserver) {
+                if (request.hasPublishRequest()) {
+                    received.add(request.getPublishRequest().getTopic());
+                }
+                responseObserver.onNext(ClusterResponse.newBuilder().setResultCode(ClusterResponse.ResultCode.OK).build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public StreamObserver<ClusterBatch> stream(StreamObserver<ClusterAck> ackObserver) {
+                return new StreamObserver<>() {
+                    @Override
+                    public void onNext(ClusterBatch batch) {
+                        batch.getPublishRequestsList().forEach(request -> received.add(request.getTopic()));
+                        ackObserver.onNext(ClusterAck.newBuilder().setSequence(batch.getSequence()).build());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        ackObserver.onCompleted();
+                    }
+                };
+            }
+        }).build().start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.huohaodong.octopus.broker.protocol.mqtt.handler;
+
+import com.huohaodong.octopus.broker.LeakDetection;
+import com.huohaodong.octopus.broker.config.BrokerProperties;
+import com.huohaodong.octopus.broker.protocol.mqtt.DeliveryQueue;
+import com.huohaodong.octopus.broker.service.message.MessageIdAllocator;
+import com.huohaodong.octopus.broker.service.offline.OfflineMessageService;
+import com.huohaodong.octopus.broker.service.subscription.SubscriptionServiceImpl;
+import com.huohaodong.octopus.broker.service.subscription.SubscriptionSummary;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedSubscriber;
+import com.huohaodong.octopus.broker.service.subscription.share.SharedSubscriptionStrategy;
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+import com.huohaodong.octopus.common.persistence.service.message.MessageService;
+import com.huohaodong.octopus.common.persistence.service.session.SessionService;
+import com.huohaodong.octopus.common.persistence.service.session.SessionStore;
+import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionStore;
+import com.huohaodong.octopus.common.protocol.cluster.ClusterService;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.huohaodong.octopus.broker.protocol.mqtt.Constants.CHANNEL_ATTRIBUTE_CLIENT_ID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * 发布消息的消息体在本地投递的各个路径上都要正确释放：在线订阅者的扇出、报文标识符耗尽时排队、
+ * 共享订阅中未被选中的成员和 Broker、离线订阅者以及离线队列已满时丢弃。
+ */
+class PublishPayloadLeakTest {
+
+    private static final String SHARED_TOPIC = "$share/group/leak/test";
+
+    private final LeakDetection leakDetection = new LeakDetection();
+
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    private final List<MessagePayload> payloads = new ArrayList<>();
+
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    private final Map<String, EmbeddedChannel> onlineChannels = new ConcurrentHashMap<>();
+
+    @TempDir
+    Path offlineDirectory;
+
+    private BrokerProperties properties;
+
+    private MessageService messageService;
+
+    private SessionService sessionService;
+
+    private ClusterService clusterService;
+
+    private SubscriptionServiceImpl subscriptionService;
+
+    private OfflineMessageService offlineMessageService;
+
+    private PublishHandler publishHandler;
+
+    /* 共享订阅总是选择最后一个成员或 Broker */
+    private final SharedSubscriptionStrategy lastStrategy = new SharedSubscriptionStrategy() {
+        @Override
+        public SharedSubscriber select(String sharedTopic, String publisherClientId, List<SharedSubscriber> candidates) {
+            return candidates.get(candidates.size() - 1);
+        }
+
+        @Override
+        public String selectBroker(String sharedTopic, String publisherClientId, List<String> brokerIds) {
+            return brokerIds.get(brokerIds.size() - 1);
+        }
+    };
+
+    @BeforeEach
+    void setUp() throws Exception {
+        leakDetection.start();
+        properties = new BrokerProperties();
+        properties.setId("BROKER_1");
+        properties.getOffline().setDirectory(offlineDirectory.toString());
+        properties.getOffline().setMaxMessagesPerSession(1);
+        messageService = mock(MessageService.class);
+        when(messageService.acquireNextMessageId(any()))
+                .thenAnswer(invocation -> nextMessageId.get() < 0 ? MessageIdAllocator.EXHAUSTED : nextMessageId.incrementAndGet());
+        when(messageService.putPublishMessage(any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(messageService.removePublishMessage(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(messageService.putPublishReleaseMessage(any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(messageService.removePublishReleaseMessage(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        sessionService = mock(SessionService.class);
+        when(sessionService.getChannelByClientId(anyString()))
+                .thenAnswer(invocation -> Optional.ofNullable(onlineChannels.get(invocation.<String>getArgument(0))));
+        clusterService = mock(ClusterService.class);
+        subscriptionService = new SubscriptionServiceImpl(properties, mock(SubscriptionStore.class), mock(SessionStore.class), new SubscriptionSummary());
+        offlineMessageService = new OfflineMessageService(properties, sessionService, messageService);
+        offlineMessageService.start();
+        publishHandler = new PublishHandler(properties, messageService, sessionService, subscriptionService, clusterService,
+                lastStrategy, offlineMessageService, new DeliveryQueue(properties, messageService));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        channels.forEach(EmbeddedChannel::finishAndReleaseAll);
+        offlineMessageService.stop();
+        leakDetection.stop();
+    }
+
+    @Test
+    void fanOutToOnlineSubscribers() throws Exception {
+        List<EmbeddedChannel> subscribers = new ArrayList<>();
+        for (MqttQoS qos : MqttQoS.values()) {
+            if (qos != MqttQoS.FAILURE) {
+                subscribers.add(online("client-" + qos.value(), "leak/test", qos));
+            }
+        }
+        publish(directPayload("direct"), MqttQoS.EXACTLY_ONCE);
+        publish(MessagePayload.of(Unpooled.copiedBuffer("heap", StandardCharsets.UTF_8)), MqttQoS.AT_LEAST_ONCE);
+
+        subscribers.forEach(channel -> assertEquals(2, releaseOutbound(channel), "messages written to " + channel));
+        assertReleased();
+    }
+
+    @Test
+    void queueWhenMessageIdsExhausted() throws Exception {
+        EmbeddedChannel channel = online("client", "leak/test", MqttQoS.AT_LEAST_ONCE);
+        nextMessageId.set(Integer.MIN_VALUE);
+        publish(directPayload("queued"), MqttQoS.AT_LEAST_ONCE);
+        publish(directPayload("queued after pending"), MqttQoS.AT_LEAST_ONCE);
+
+        assertEquals(0, releaseOutbound(channel), "messages written without message id");
+        assertReleased();
+    }
+
+    @Test
+    void deliverSharedSubscriptionToOneMember() throws Exception {
+        List<EmbeddedChannel> members = List.of(online("member-1", SHARED_TOPIC, MqttQoS.AT_LEAST_ONCE), online("member-2", SHARED_TOPIC, MqttQoS.AT_LEAST_ONCE));
+        publish(directPayload("shared"), MqttQoS.AT_LEAST_ONCE);
+        // 转发的消息没有选中本 Broker 的共享订阅，不投递
+        MessagePayload forwarded = directPayload("forwarded");
+        payloads.add(forwarded);
+        publishHandler.sendForwardedPublishMessage("publisher", "leak/test", MqttQoS.AT_LEAST_ONCE, forwarded, List.of());
+        assertEquals(1, forwarded.refCnt(), "references held after forwarded publish");
+        forwarded.release();
+
+        assertEquals(1, members.stream().mapToInt(PublishPayloadLeakTest::releaseOutbound).sum(), "messages written to shared subscription members");
+        assertReleased();
+    }
+
+    @Test
+    void forwardSharedSubscriptionSelectedOnRemoteBroker() throws Exception {
+        EmbeddedChannel member = online("member", SHARED_TOPIC, MqttQoS.AT_LEAST_ONCE);
+        when(clusterService.matchSharedSubscriptions("leak/test")).thenReturn(Map.of(SHARED_TOPIC, List.of("BROKER_2")));
+        EmbeddedChannel publisher = new EmbeddedChannel(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                try {
+                    publishHandler.doProcess(ctx, (MqttPublishMessage) msg);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+        });
+        channels.add(publisher);
+        publisher.attr(CHANNEL_ATTRIBUTE_CLIENT_ID).set("publisher");
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer().writeBytes("remote".getBytes(StandardCharsets.UTF_8));
+        publisher.writeInbound(new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttPublishVariableHeader("leak/test", 1),
+                content));
+
+        // 只把共享订阅转发给选中的远程 Broker
+        verify(clusterService).broadcastPublishMessage(any(), any(), any(), any(), eq(Map.of("BROKER_2", List.of(SHARED_TOPIC))));
+        assertEquals(0, content.refCnt(), "references held on the decoded payload");
+        assertEquals(0, releaseOutbound(member), "messages written to local member");
+        assertEquals(1, releaseOutbound(publisher), "PUBACK written to publisher");
+        assertReleased();
+    }
+
+    @Test
+    void storeAndDropForOfflineSubscribers() throws Exception {
+        subscriptionService.subscribe(new Subscription("offline-client", "leak/test", MqttQoS.AT_LEAST_ONCE));
+        // 离线期间订阅者的 QoS 0 消息和共享订阅都不保存
+        subscriptionService.subscribe(new Subscription("offline-qos0", "leak/test", MqttQoS.AT_MOST_ONCE));
+        subscriptionService.subscribe(new Subscription("offline-member", SHARED_TOPIC, MqttQoS.AT_LEAST_ONCE));
+        offlineMessageService.open("offline-client");
+        // 每个会话只保存一条消息，之后的消息会挤掉之前的消息
+        for (int i = 0; i < 3; i++) {
+            publish(directPayload("offline-" + i), MqttQoS.AT_LEAST_ONCE);
+        }
+        assertReleased();
+    }
+
+    private EmbeddedChannel online(String clientId, String topic, MqttQoS qos) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channels.add(channel);
+        onlineChannels.put(clientId, channel);
+        subscriptionService.subscribe(new Subscription(clientId, topic, qos));
+        return channel;
+    }
+
+    private MessagePayload directPayload(String content) {
+        return MessagePayload.of(PooledByteBufAllocator.DEFAULT.directBuffer().writeBytes(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /* 与 PublishHandler#doProcess 一样，发布者持有的引用在投递返回后释放，写出的报文可能仍共享消息体的内存 */
+    private void publish(MessagePayload payload, MqttQoS qos) {
+        payloads.add(payload);
+        try {
+            publishHandler.sendPublishMessage("publisher", "leak/test", qos, payload).join();
+        } finally {
+            payload.release();
+        }
+    }
+
+    /* 写出的报文释放之后，消息体的引用全部归还，也没有被回收但未释放的 ByteBuf */
+    private void assertReleased() throws InterruptedException {
+        payloads.forEach(payload -> assertEquals(0, payload.refCnt(), "references held on payload"));
+        leakDetection.assertNoLeaks();
+    }
+
+    private static int releaseOutbound(EmbeddedChannel channel) {
+        int count = 0;
+        Object message;
+        while ((message = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(message);
+            count++;
+        }
+        return count;
+    }
+}
@@ -22,14 +22,17 @@ import java.time.LocalDateTime;
         schema = "octopus",
         indexes = {
                 @Index(name = "idx_message_identity", columnList = "broker_id, client_id, message_id"),
+                @Index(name = "idx_client_id", columnList = "client_id, id"),
         }
 )
 public class PublishMessage implements Serializable {
     @Serial
     private static final long serialVersionUID = -1970710271196475976L;
 
+    /* IDENTITY 会使 Hibernate 无法批量插入 */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "publish_message_seq")
+    @SequenceGenerator(name = "publish_message_seq", sequenceName = "publish_message_seq", allocationSize = 500)
     private Long id;
 
     @Column(name = "broker_id", length = Constants.BROKER_ID_LENGTH_MAX, nullable = false)
@@ -21,6 +21,7 @@ import java.time.LocalDateTime;
         schema = "octopus",
         indexes = {
                 @Index(name = "idx_message_identity", columnList = "broker_id, client_id, message_id"),
+                @Index(name = "idx_client_id", columnList = "client_id, id"),
         }
 )
 public class PublishReleaseMessage implements Serializable {
@@ -28,7 +29,8 @@ public class PublishReleaseMessage implements Serializable {
     private static final long serialVersionUID = 4486458357608410789L;
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "publish_release_message_seq")
+    @SequenceGenerator(name = "publish_release_message_seq", sequenceName = "publish_release_message_seq", allocationSize = 500)
     private Long id;
 
     @Column(name = "broker_id", length = Constants.BROKER_ID_LENGTH_MAX, nullable = false)
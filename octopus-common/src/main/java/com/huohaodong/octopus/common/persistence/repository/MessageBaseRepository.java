@@ -1,8 +1,13 @@
 package com.huohaodong.octopus.common.persistence.repository;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.NoRepositoryBean;
 import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,13 +17,31 @@ public interface MessageBaseRepository<T, ID> extends Repository<T, ID> {
 
     void deleteByBrokerIdAndClientIdAndMessageId(String brokerId, String clientId, Integer messageId);
 
+    /* 以下批量删除直接执行单条 DELETE 语句，不会先加载实体 */
+    @Modifying
+    @Query("delete from #{#entityName} m where m.brokerId = :brokerId and m.clientId = :clientId and m.messageId in :messageIds")
+    void deleteAllByBrokerIdAndClientIdAndMessageIdIn(@Param("brokerId") String brokerId, @Param("clientId") String clientId, @Param("messageIds") Collection<Integer> messageIds);
+
     List<T> findAllByBrokerIdAndClientId(String brokerId, String clientId);
 
-    void deleteAllByBrokerIdAndClientId(String brokerId, String clientId);
+    @Modifying
+    @Query("delete from #{#entityName} m where m.brokerId = :brokerId and m.clientId = :clientId")
+    void deleteAllByBrokerIdAndClientId(@Param("brokerId") String brokerId, @Param("clientId") String clientId);
 
     List<T> findAllByClientId(String clientId);
 
-    void deleteAllByClientId(String clientId);
+    /* 按主键分页读取，每次从上一页最后一条记录的主键之后开始 */
+    List<T> findAllByClientIdAndIdGreaterThanOrderByIdAsc(String clientId, ID id, Pageable pageable);
+
+    @Query("select coalesce(max(m.id), 0) from #{#entityName} m where m.clientId = :clientId")
+    long findMaxIdByClientId(@Param("clientId") String clientId);
+
+    @Query("select coalesce(max(m.id), 0) from #{#entityName} m where m.brokerId = :brokerId and m.clientId = :clientId")
+    long findMaxIdByBrokerIdAndClientId(@Param("brokerId") String brokerId, @Param("clientId") String clientId);
+
+    @Modifying
+    @Query("delete from #{#entityName} m where m.clientId = :clientId")
+    void deleteAllByClientId(@Param("clientId") String clientId);
 
     boolean existsByBrokerIdAndClientIdAndMessageId(String brokerId, String clientId, Integer messageId);
 }
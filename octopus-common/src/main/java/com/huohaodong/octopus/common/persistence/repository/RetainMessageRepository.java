@@ -12,4 +12,6 @@ public interface RetainMessageRepository extends JpaRepository<RetainMessage, Lo
     List<RetainMessage> findAllByBrokerId(String brokerId);
 
     void deleteByBrokerIdAndTopic(String brokerId, String topic);
+
+    long countByBrokerId(String brokerId);
 }
@@ -13,6 +13,8 @@ public interface SubscriptionRepository extends JpaRepository<Subscription, Long
 
     List<Subscription> findAllByBrokerIdAndClientId(String brokerId, String clientId);
 
+    List<Subscription> findAllByBrokerId(String brokerId);
+
     void deleteAllByBrokerIdAndClientId(String brokerId, String clientId);
 
     boolean existsByBrokerIdAndClientIdAndTopic(String brokerId, String clientId, String topic);
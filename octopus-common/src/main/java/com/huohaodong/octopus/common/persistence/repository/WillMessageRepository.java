@@ -10,4 +10,6 @@ public interface WillMessageRepository extends JpaRepository<WillMessage, Long>
 
     void deleteByBrokerIdAndClientId(String brokerId, String clientId);
 
+    long countByBrokerId(String brokerId);
+
 }
@@ -3,7 +3,14 @@ package com.huohaodong.octopus.common.persistence.service.message;
 import io.netty.channel.Channel;
 
 public interface MessageIdManager {
+    /* 该连接的报文标识符已全部被占用时返回 -1，调用方需要等待标识符释放后再发送 QoS 1 / QoS 2 消息 */
     int acquireNextMessageId(Channel channel);
 
     void releaseMessageId(Channel channel, int messageId);
+
+    /* 占用指定的报文标识符，用于重新连接后重发未确认的消息；已被占用时返回 false */
+    boolean reserveMessageId(Channel channel, int messageId);
+
+    /* 已分配且尚未释放的报文标识符数量，即该连接上未确认的 QoS 1 / QoS 2 消息数 */
+    int getInflightMessageIdCount(Channel channel);
 }
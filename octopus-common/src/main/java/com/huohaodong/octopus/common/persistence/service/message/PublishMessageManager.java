@@ -5,13 +5,15 @@ import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface PublishMessageManager {
-    void putPublishMessage(PublishMessage publishMessage);
+    /* 返回的 CompletableFuture 在记录持久化后完成 */
+    CompletableFuture<Void> putPublishMessage(PublishMessage publishMessage);
 
     Optional<PublishMessage> getPublishMessage(String brokerId, String clientId, Integer messageId);
 
-    void removePublishMessage(String brokerId, String clientId, Integer messageId);
+    CompletableFuture<Void> removePublishMessage(String brokerId, String clientId, Integer messageId);
 
     List<PublishMessage> getAllPublishMessage(String brokerId, String clientId);
 
@@ -19,5 +21,17 @@ public interface PublishMessageManager {
 
     List<PublishMessage> getAllPublishMessageByClientId(String clientId);
 
+    /* 主键大于 afterId 的最多 limit 条记录，按主键排序，afterId 为 0 时从头读取 */
+    List<PublishMessage> getPublishMessagePageByClientId(String clientId, long afterId, int limit);
+
+    /* 该客户端记录的最大主键，没有记录时返回 0 */
+    long getLastPublishMessageIdByClientId(String clientId);
+
+    /*
+     * 该 Broker 为该客户端写入的记录的最大主键，没有记录时返回 0。
+     * 主键由各 Broker 预先分配的号段生成，只有同一个 Broker 之后写入的记录主键比它大，其他 Broker 写入的记录不一定
+     */
+    long getLastPublishMessageId(String brokerId, String clientId);
+
     void removeAllPublishMessageByClientId(String clientId);
 }
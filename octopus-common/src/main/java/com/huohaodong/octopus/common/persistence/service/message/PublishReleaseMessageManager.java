@@ -4,13 +4,14 @@ import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface PublishReleaseMessageManager {
-    void putPublishReleaseMessage(PublishReleaseMessage publishReleaseMessage);
+    CompletableFuture<Void> putPublishReleaseMessage(PublishReleaseMessage publishReleaseMessage);
 
     Optional<PublishReleaseMessage> getPublishReleaseMessage(String brokerId, String clientId, Integer messageId);
 
-    void removePublishReleaseMessage(String brokerId, String clientId, Integer messageId);
+    CompletableFuture<Void> removePublishReleaseMessage(String brokerId, String clientId, Integer messageId);
 
     List<PublishReleaseMessage> getAllPublishReleaseMessage(String brokerId, String clientId);
 
@@ -18,5 +19,13 @@ public interface PublishReleaseMessageManager {
 
     List<PublishReleaseMessage> getAllPublishReleaseMessageByClientId(String clientId);
 
+    /* 主键大于 afterId 的最多 limit 条记录，按主键排序，afterId 为 0 时从头读取 */
+    List<PublishReleaseMessage> getPublishReleaseMessagePageByClientId(String clientId, long afterId, int limit);
+
+    long getLastPublishReleaseMessageIdByClientId(String clientId);
+
+    /* 见 PublishMessageManager#getLastPublishMessageId(String, String) */
+    long getLastPublishReleaseMessageId(String brokerId, String clientId);
+
     void removeAllPublishReleaseMessageByClientId(String clientId);
 }
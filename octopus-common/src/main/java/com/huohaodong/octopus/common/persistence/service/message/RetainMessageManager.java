@@ -12,5 +12,7 @@ public interface RetainMessageManager {
 
     List<RetainMessage> getAllRetainMessage(String brokerId);
 
+    List<RetainMessage> getAllMatchedRetainMessage(String brokerId, String topicFilter);
+
     void removeRetainMessage(String brokerId, String topic);
 }
@@ -0,0 +1,5 @@
+package com.huohaodong.octopus.common.persistence.service.session;
+
+/* 会话的持久化存储，SessionService 在此之上管理本 Broker 的连接 */
+public interface SessionStore extends SessionManager {
+}
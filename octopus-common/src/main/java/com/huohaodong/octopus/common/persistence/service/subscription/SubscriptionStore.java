@@ -0,0 +1,19 @@
+package com.huohaodong.octopus.common.persistence.service.subscription;
+
+import com.huohaodong.octopus.common.persistence.entity.Subscription;
+
+import java.util.List;
+
+/* 订阅的持久化存储，匹配由 SubscriptionService 在内存中完成 */
+public interface SubscriptionStore {
+    void putSubscription(Subscription subscription);
+
+    void removeSubscription(String brokerId, String clientId, String topic);
+
+    List<Subscription> getAllSubscription(String brokerId, String clientId);
+
+    /* 启动时用于恢复本 Broker 的订阅 */
+    List<Subscription> getAllSubscription(String brokerId);
+
+    void removeAllSubscription(String brokerId, String clientId);
+}
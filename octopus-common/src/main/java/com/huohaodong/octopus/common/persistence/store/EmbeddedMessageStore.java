@@ -0,0 +1,869 @@
+package com.huohaodong.octopus.common.persistence.store;
+
+import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.persistence.entity.PublishReleaseMessage;
+import com.huohaodong.octopus.common.persistence.entity.*;
+import com.huohaodong.octopus.common.persistence.service.message.PublishMessageManager;
+import com.huohaodong.octopus.common.persistence.service.message.PublishReleaseMessageManager;
+import com.huohaodong.octopus.common.persistence.service.message.WillMessageManager;
+import com.huohaodong.octopus.common.persistence.service.session.SessionStore;
+import com.huohaodong.octopus.common.persistence.service.subscription.SubscriptionStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * 不依赖外部数据库的存储，保存消息以及会话、订阅：所有写入追加到本地的 SegmentLog，内存中的哈希索引以 (clientId, messageId)、
+ * 主题、客户端 ID 或 (clientId, 订阅主题) 为键，只记录每个键最新一条记录的位置，读取时再从映射的文件中解码。删除写入一条墓碑记录。
+ * 启动时按顺序重放日志重建索引；后台定期压缩最早的文件，将其中仍然有效的记录重新追加到日志末尾后删除该文件，
+ * 因为没有更早的文件，其中的墓碑记录可以直接丢弃。记录保留首次写入时分配的 id，压缩不会改变分页读取的顺序。
+ * 只保存本 Broker 的消息，brokerId 与记录中的不一致时视为不存在。
+ */
+@Slf4j(topic = "EMBEDDED_MESSAGE_STORE")
+public class EmbeddedMessageStore implements PublishMessageManager, PublishReleaseMessageManager, WillMessageManager,
+        SessionStore, SubscriptionStore, Closeable {
+
+    /* 删除记录的类型为对应写入记录的类型 + 1 */
+    private static final byte PUT_PUBLISH = 1;
+
+    private static final byte DELETE_PUBLISH = 2;
+
+    private static final byte PUT_PUBLISH_RELEASE = 3;
+
+    private static final byte DELETE_PUBLISH_RELEASE = 4;
+
+    private static final byte PUT_RETAIN = 5;
+
+    private static final byte DELETE_RETAIN = 6;
+
+    private static final byte PUT_WILL = 7;
+
+    private static final byte DELETE_WILL = 8;
+
+    private static final byte PUT_SESSION = 9;
+
+    private static final byte DELETE_SESSION = 10;
+
+    private static final byte PUT_SUBSCRIPTION = 11;
+
+    private static final byte DELETE_SUBSCRIPTION = 12;
+
+    private final SegmentLog segmentLog;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    private final double compactionThreshold;
+
+    /* 以下字段由 lock 保护 */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Key, Location> index = new HashMap<>();
+
+    /* 每个客户端的未完成消息按 id 排序，用于按客户端查询与分页 */
+    private final Map<String, NavigableMap<Long, Location>> publishByClient = new HashMap<>();
+
+    private final Map<String, NavigableMap<Long, Location>> publishReleaseByClient = new HashMap<>();
+
+    private final Map<String, NavigableMap<Long, Location>> subscriptionByClient = new HashMap<>();
+
+    /* 每个文件中仍然有效的记录占用的字节数 */
+    private final Map<Long, Long> liveBytes = new HashMap<>();
+
+    private long lastId;
+
+    private long willMessages;
+
+    /* 等待刷盘的写入，由自身保护 */
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param fsyncIntervalMillis       fsyncPolicy 为 INTERVAL 时的刷盘间隔
+     * @param compactionIntervalSeconds 检查是否需要压缩的间隔
+     * @param compactionThreshold       不再写入的文件中无效记录的比例达到该值时压缩
+     */
+    public EmbeddedMessageStore(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                                long compactionIntervalSeconds, double compactionThreshold) throws IOException {
+        this.fsyncPolicy = fsyncPolicy;
+        this.compactionThreshold = compactionThreshold;
+        this.segmentLog = new SegmentLog(directory, segmentBytes, this::replay);
+        log.info("Recovered {} live records from {}", index.size(), directory);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "OCTOPUS_MESSAGE_STORE");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compact, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            scheduler.scheduleWithFixedDelay(this::force, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (fsyncPolicy == FsyncPolicy.BATCH) {
+            flusher = new Thread(this::flushLoop, "OCTOPUS_MESSAGE_STORE_FLUSHER");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putPublishMessage(PublishMessage message) {
+        Key key = new Key(PUT_PUBLISH, message.getClientId(), message.getMessageId());
+        return commit(put(key, message.getBrokerId(), (id, time) -> {
+            byte[] topic = bytes(message.getTopic());
+            return header(id, time, message.getBrokerId(), message.getClientId(), Integer.BYTES + Byte.BYTES + Short.BYTES + topic.length + Integer.BYTES + message.getPayload().length)
+                    .putInt(message.getMessageId())
+                    .put((byte) message.getQos().value())
+                    .putShort((short) topic.length).put(topic)
+                    .putInt(message.getPayload().length).put(message.getPayload());
+        }));
+    }
+
+    @Override
+    public Optional<PublishMessage> getPublishMessage(String brokerId, String clientId, Integer messageId) {
+        return get(new Key(PUT_PUBLISH, clientId, messageId), brokerId, EmbeddedMessageStore::decodePublishMessage);
+    }
+
+    @Override
+    public CompletableFuture<Void> removePublishMessage(String brokerId, String clientId, Integer messageId) {
+        return commit(remove(new Key(PUT_PUBLISH, clientId, messageId), brokerId));
+    }
+
+    @Override
+    public List<PublishMessage> getAllPublishMessage(String brokerId, String clientId) {
+        return getAll(publishByClient, brokerId, clientId, 0, Integer.MAX_VALUE, EmbeddedMessageStore::decodePublishMessage);
+    }
+
+    @Override
+    public void removeAllPublishMessage(String brokerId, String clientId) {
+        await(commit(removeAll(publishByClient, brokerId, clientId)));
+    }
+
+    @Override
+    public List<PublishMessage> getAllPublishMessageByClientId(String clientId) {
+        return getAll(publishByClient, null, clientId, 0, Integer.MAX_VALUE, EmbeddedMessageStore::decodePublishMessage);
+    }
+
+    @Override
+    public List<PublishMessage> getPublishMessagePageByClientId(String clientId, long afterId, int limit) {
+        return getAll(publishByClient, null, clientId, afterId, limit, EmbeddedMessageStore::decodePublishMessage);
+    }
+
+    @Override
+    public long getLastPublishMessageIdByClientId(String clientId) {
+        return lastId(publishByClient, null, clientId);
+    }
+
+    @Override
+    public long getLastPublishMessageId(String brokerId, String clientId) {
+        return lastId(publishByClient, brokerId, clientId);
+    }
+
+    @Override
+    public void removeAllPublishMessageByClientId(String clientId) {
+        await(commit(removeAll(publishByClient, null, clientId)));
+    }
+
+    @Override
+    public CompletableFuture<Void> putPublishReleaseMessage(PublishReleaseMessage message) {
+        Key key = new Key(PUT_PUBLISH_RELEASE, message.getClientId(), message.getMessageId());
+        return commit(put(key, message.getBrokerId(), (id, time) ->
+                header(id, time, message.getBrokerId(), message.getClientId(), Integer.BYTES).putInt(message.getMessageId())));
+    }
+
+    @Override
+    public Optional<PublishReleaseMessage> getPublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return get(new Key(PUT_PUBLISH_RELEASE, clientId, messageId), brokerId, EmbeddedMessageStore::decodePublishReleaseMessage);
+    }
+
+    @Override
+    public CompletableFuture<Void> removePublishReleaseMessage(String brokerId, String clientId, Integer messageId) {
+        return commit(remove(new Key(PUT_PUBLISH_RELEASE, clientId, messageId), brokerId));
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getAllPublishReleaseMessage(String brokerId, String clientId) {
+        return getAll(publishReleaseByClient, brokerId, clientId, 0, Integer.MAX_VALUE, EmbeddedMessageStore::decodePublishReleaseMessage);
+    }
+
+    @Override
+    public void removeAllPublishReleaseMessage(String brokerId, String clientId) {
+        await(commit(removeAll(publishReleaseByClient, brokerId, clientId)));
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getAllPublishReleaseMessageByClientId(String clientId) {
+        return getAll(publishReleaseByClient, null, clientId, 0, Integer.MAX_VALUE, EmbeddedMessageStore::decodePublishReleaseMessage);
+    }
+
+    @Override
+    public List<PublishReleaseMessage> getPublishReleaseMessagePageByClientId(String clientId, long afterId, int limit) {
+        return getAll(publishReleaseByClient, null, clientId, afterId, limit, EmbeddedMessageStore::decodePublishReleaseMessage);
+    }
+
+    @Override
+    public long getLastPublishReleaseMessageIdByClientId(String clientId) {
+        return lastId(publishReleaseByClient, null, clientId);
+    }
+
+    @Override
+    public long getLastPublishReleaseMessageId(String brokerId, String clientId) {
+        return lastId(publishReleaseByClient, brokerId, clientId);
+    }
+
+    @Override
+    public void removeAllPublishReleaseMessageByClientId(String clientId) {
+        await(commit(removeAll(publishReleaseByClient, null, clientId)));
+    }
+
+    public void putRetainMessage(RetainMessage message) {
+        Key key = new Key(PUT_RETAIN, message.getTopic(), 0);
+        await(commit(put(key, message.getBrokerId(), (id, time) -> {
+            byte[] topic = bytes(message.getTopic());
+            return header(id, time, message.getBrokerId(), message.getClientId(), Short.BYTES + topic.length + Byte.BYTES + Integer.BYTES + message.getPayload().length)
+                    .putShort((short) topic.length).put(topic)
+                    .put((byte) message.getQos().value())
+                    .putInt(message.getPayload().length).put(message.getPayload());
+        })));
+    }
+
+    public List<RetainMessage> getAllRetainMessage(String brokerId) {
+        List<RetainMessage> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            index.values().forEach(location -> {
+                if (location.key.type == PUT_RETAIN && location.brokerId.equals(brokerId)) {
+                    result.add(decodeRetainMessage(segmentLog.read(location.offset).body()));
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    public void removeRetainMessage(String brokerId, String topic) {
+        await(commit(remove(new Key(PUT_RETAIN, topic, 0), brokerId)));
+    }
+
+    @Override
+    public void putWillMessage(WillMessage message) {
+        Key key = new Key(PUT_WILL, message.getClientId(), 0);
+        await(commit(put(key, message.getBrokerId(), (id, time) -> {
+            byte[] topic = bytes(message.getTopic());
+            return header(id, time, message.getBrokerId(), message.getClientId(), Short.BYTES + topic.length + Byte.BYTES + Byte.BYTES + Integer.BYTES + message.getPayload().length)
+                    .putShort((short) topic.length).put(topic)
+                    .put((byte) message.getQos().value())
+                    .put((byte) (message.isRetain() ? 1 : 0))
+                    .putInt(message.getPayload().length).put(message.getPayload());
+        })));
+    }
+
+    @Override
+    public Optional<WillMessage> getWillMessage(String brokerId, String clientId) {
+        return get(new Key(PUT_WILL, clientId, 0), brokerId, EmbeddedMessageStore::decodeWillMessage);
+    }
+
+    @Override
+    public void removeWillMessage(String brokerId, String clientId) {
+        await(commit(remove(new Key(PUT_WILL, clientId, 0), brokerId)));
+    }
+
+    /* 更新会话时保留首次写入的创建时间 */
+    @Override
+    public void putSession(Session session) {
+        Key key = new Key(PUT_SESSION, session.getClientId(), 0);
+        long createTime = getSession(session.getBrokerId(), session.getClientId())
+                .map(s -> s.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                .orElse(0L);
+        await(commit(put(key, session.getBrokerId(), (id, time) -> {
+            byte[] clientIp = bytes(session.getClientIp());
+            byte[] brokerIp = bytes(session.getBrokerIp());
+            return header(id, time, session.getBrokerId(), session.getClientId(), Short.BYTES + clientIp.length + Short.BYTES + brokerIp.length + Byte.BYTES + Byte.BYTES + Long.BYTES)
+                    .putShort((short) clientIp.length).put(clientIp)
+                    .putShort((short) brokerIp.length).put(brokerIp)
+                    .put((byte) (session.isCleanSession() ? 1 : 0))
+                    .put((byte) session.getStatus().ordinal())
+                    .putLong(createTime == 0 ? time : createTime);
+        })));
+    }
+
+    @Override
+    public Optional<Session> getSession(String brokerId, String clientId) {
+        return get(new Key(PUT_SESSION, clientId, 0), brokerId, EmbeddedMessageStore::decodeSession);
+    }
+
+    /* 只保存本 Broker 的会话，最多返回一个 */
+    @Override
+    public List<Session> getSession(String clientId) {
+        return get(new Key(PUT_SESSION, clientId, 0), null, EmbeddedMessageStore::decodeSession).map(List::of).orElse(List.of());
+    }
+
+    @Override
+    public void removeSession(String brokerId, String clientId) {
+        await(commit(remove(new Key(PUT_SESSION, clientId, 0), brokerId)));
+    }
+
+    @Override
+    public boolean containsSession(String brokerId, String clientId) {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(new Key(PUT_SESSION, clientId, 0));
+            return location != null && location.brokerId.equals(brokerId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putSubscription(Subscription subscription) {
+        Key key = new Key(PUT_SUBSCRIPTION, subscription.getClientId(), 0, subscription.getTopic());
+        await(commit(put(key, subscription.getBrokerId(), (id, time) -> {
+            byte[] topic = bytes(subscription.getTopic());
+            return header(id, time, subscription.getBrokerId(), subscription.getClientId(), Short.BYTES + topic.length + Byte.BYTES)
+                    .putShort((short) topic.length).put(topic)
+                    .put((byte) subscription.getQos().value());
+        })));
+    }
+
+    @Override
+    public void removeSubscription(String brokerId, String clientId, String topic) {
+        await(commit(remove(new Key(PUT_SUBSCRIPTION, clientId, 0, topic), brokerId)));
+    }
+
+    @Override
+    public List<Subscription> getAllSubscription(String brokerId, String clientId) {
+        return getAll(subscriptionByClient, brokerId, clientId, 0, Integer.MAX_VALUE, EmbeddedMessageStore::decodeSubscription);
+    }
+
+    @Override
+    public List<Subscription> getAllSubscription(String brokerId) {
+        List<Subscription> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            subscriptionByClient.values().forEach(locations -> locations.values().forEach(location -> {
+                if (location.brokerId.equals(brokerId)) {
+                    result.add(decodeSubscription(segmentLog.read(location.offset).body()));
+                }
+            }));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public void removeAllSubscription(String brokerId, String clientId) {
+        await(commit(removeAll(subscriptionByClient, brokerId, clientId)));
+    }
+
+    public long countWillMessage() {
+        lock.readLock().lock();
+        try {
+            return willMessages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long sizeInBytes() {
+        return segmentLog.sizeInBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        scheduler.shutdownNow();
+        if (flusher != null) {
+            synchronized (waiters) {
+                waiters.notifyAll();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            segmentLog.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        completeWaiters(Long.MAX_VALUE, null);
+    }
+
+    /* 返回写入的结束偏移量 */
+    private long put(Key key, String brokerId, RecordEncoder encoder) {
+        lock.writeLock().lock();
+        try {
+            long id = ++lastId;
+            ByteBuffer body = encoder.encode(id, System.currentTimeMillis()).flip();
+            int length = SegmentLog.recordLength(body.remaining());
+            long offset = segmentLog.append(key.type, body);
+            apply(new Location(key, id, brokerId, segmentLog.segmentOf(offset), offset, length));
+            return offset + length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* 返回写入的结束偏移量，记录不存在时返回 -1 */
+    private long remove(Key key, String brokerId) {
+        lock.writeLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null || (brokerId != null && !location.brokerId.equals(brokerId))) {
+                return -1;
+            }
+            return tombstone(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long removeAll(Map<String, NavigableMap<Long, Location>> byClient, String brokerId, String clientId) {
+        lock.writeLock().lock();
+        try {
+            NavigableMap<Long, Location> locations = byClient.get(clientId);
+            if (locations == null) {
+                return -1;
+            }
+            long end = -1;
+            for (Location location : new ArrayList<>(locations.values())) {
+                if (brokerId == null || location.brokerId.equals(brokerId)) {
+                    end = tombstone(location.key);
+                }
+            }
+            return end;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* 订阅的墓碑记录在最后加上订阅主题 */
+    private long tombstone(Key key) {
+        byte[] name = bytes(key.name);
+        byte[] topic = bytes(key.topic);
+        ByteBuffer body = ByteBuffer.allocate(Short.BYTES + name.length + Integer.BYTES + (key.type == PUT_SUBSCRIPTION ? Short.BYTES + topic.length : 0))
+                .putShort((short) name.length).put(name)
+                .putInt(key.messageId);
+        if (key.type == PUT_SUBSCRIPTION) {
+            body.putShort((short) topic.length).put(topic);
+        }
+        body.flip();
+        int length = SegmentLog.recordLength(body.remaining());
+        long offset = segmentLog.append((byte) (key.type + 1), body);
+        unlink(index.remove(key));
+        return offset + length;
+    }
+
+    /* brokerId 为 null 时不检查 */
+    private <T> Optional<T> get(Key key, String brokerId, Function<ByteBuffer, T> decoder) {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null || (brokerId != null && !location.brokerId.equals(brokerId))) {
+                return Optional.empty();
+            }
+            return Optional.of(decoder.apply(segmentLog.read(location.offset).body()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private <T> List<T> getAll(Map<String, NavigableMap<Long, Location>> byClient, String brokerId, String clientId,
+                               long afterId, int limit, Function<ByteBuffer, T> decoder) {
+        List<T> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            NavigableMap<Long, Location> locations = byClient.get(clientId);
+            if (locations == null) {
+                return result;
+            }
+            for (Location location : locations.tailMap(afterId, false).values()) {
+                if (result.size() == limit) {
+                    break;
+                }
+                if (brokerId == null || location.brokerId.equals(brokerId)) {
+                    result.add(decoder.apply(segmentLog.read(location.offset).body()));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long lastId(Map<String, NavigableMap<Long, Location>> byClient, String brokerId, String clientId) {
+        lock.readLock().lock();
+        try {
+            NavigableMap<Long, Location> locations = byClient.get(clientId);
+            if (locations == null) {
+                return 0;
+            }
+            for (Map.Entry<Long, Location> entry : locations.descendingMap().entrySet()) {
+                if (brokerId == null || entry.getValue().brokerId.equals(brokerId)) {
+                    return entry.getKey();
+                }
+            }
+            return 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* 更新索引，替换同一个键之前的记录 */
+    private void apply(Location location) {
+        unlink(index.put(location.key, location));
+        if (location.key.type == PUT_WILL) {
+            willMessages++;
+        }
+        liveBytes.merge(location.segment, (long) location.length, Long::sum);
+        Map<String, NavigableMap<Long, Location>> byClient = byClient(location.key.type);
+        if (byClient != null) {
+            byClient.computeIfAbsent(location.key.name, k -> new TreeMap<>()).put(location.id, location);
+        }
+    }
+
+    private void unlink(Location location) {
+        if (location == null) {
+            return;
+        }
+        liveBytes.merge(location.segment, (long) -location.length, Long::sum);
+        if (location.key.type == PUT_WILL) {
+            willMessages--;
+        }
+        Map<String, NavigableMap<Long, Location>> byClient = byClient(location.key.type);
+        if (byClient != null) {
+            NavigableMap<Long, Location> locations = byClient.get(location.key.name);
+            if (locations != null) {
+                locations.remove(location.id);
+                if (locations.isEmpty()) {
+                    byClient.remove(location.key.name);
+                }
+            }
+        }
+    }
+
+    private Map<String, NavigableMap<Long, Location>> byClient(byte type) {
+        return switch (type) {
+            case PUT_PUBLISH -> publishByClient;
+            case PUT_PUBLISH_RELEASE -> publishReleaseByClient;
+            case PUT_SUBSCRIPTION -> subscriptionByClient;
+            default -> null;
+        };
+    }
+
+    /* 启动时由 SegmentLog 按顺序调用，此时还没有其他线程访问 */
+    private void replay(SegmentLog.Entry entry) {
+        ByteBuffer body = entry.body();
+        Key key = keyOf(entry.type(), body.duplicate());
+        if (entry.type() % 2 == 0) {
+            unlink(index.remove(key));
+            return;
+        }
+        long id = body.getLong(0);
+        String brokerId = string(body.duplicate().position(Long.BYTES + Long.BYTES));
+        lastId = Math.max(lastId, id);
+        // 压缩时重新追加的记录保留原来的 id
+        apply(new Location(key, id, brokerId.intern(), entry.segment(), entry.offset(), entry.length()));
+    }
+
+    /* 将最早的文件中仍然有效的记录移到日志末尾，之后删除该文件 */
+    void compact() {
+        try {
+            while (running) {
+                long segment = segmentLog.oldestSealedSegment();
+                if (segment == -1) {
+                    return;
+                }
+                long sealedBytes;
+                long sealedLiveBytes;
+                lock.readLock().lock();
+                try {
+                    long active = segmentLog.activeSegment();
+                    sealedBytes = segmentLog.sealedBytes();
+                    sealedLiveBytes = liveBytes.entrySet().stream()
+                            .filter(entry -> entry.getKey() != active)
+                            .mapToLong(Map.Entry::getValue)
+                            .sum();
+                } finally {
+                    lock.readLock().unlock();
+                }
+                long deadBytes = sealedBytes - sealedLiveBytes;
+                if (deadBytes <= 0 || deadBytes < sealedBytes * compactionThreshold) {
+                    return;
+                }
+                int[] moved = new int[1];
+                segmentLog.forEach(segment, entry -> {
+                    if (entry.type() % 2 == 0) {
+                        return;
+                    }
+                    Key key = keyOf(entry.type(), entry.body().duplicate());
+                    lock.writeLock().lock();
+                    try {
+                        Location location = index.get(key);
+                        if (location != null && location.offset == entry.offset()) {
+                            ByteBuffer body = ByteBuffer.allocate(entry.body().remaining()).put(entry.body()).flip();
+                            long offset = segmentLog.append(entry.type(), body);
+                            apply(new Location(location.key, location.id, location.brokerId, segmentLog.segmentOf(offset), offset, location.length));
+                            moved[0]++;
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                });
+                // 删除文件之前确保移动的记录已经写入磁盘
+                segmentLog.force();
+                lock.writeLock().lock();
+                try {
+                    liveBytes.remove(segment);
+                    segmentLog.delete(segment);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                log.debug("Compacted segment {}, moved {} records", segment, moved[0]);
+            }
+        } catch (Exception e) {
+            log.error("Failed to compact message store", e);
+        }
+    }
+
+    /* 墓碑记录只包含键 */
+    private static Key keyOf(byte type, ByteBuffer body) {
+        if (type % 2 == 0) {
+            String name = string(body);
+            int messageId = body.getInt();
+            return new Key((byte) (type - 1), name, messageId, type == DELETE_SUBSCRIPTION ? string(body) : "");
+        }
+        body.position(body.position() + Long.BYTES + Long.BYTES);
+        string(body);
+        String clientId = string(body);
+        return switch (type) {
+            case PUT_PUBLISH, PUT_PUBLISH_RELEASE -> new Key(type, clientId, body.getInt());
+            case PUT_RETAIN -> new Key(PUT_RETAIN, string(body), 0);
+            case PUT_WILL, PUT_SESSION -> new Key(type, clientId, 0);
+            case PUT_SUBSCRIPTION -> new Key(PUT_SUBSCRIPTION, clientId, 0, string(body));
+            default -> throw new IllegalStateException("Unknown record type " + type);
+        };
+    }
+
+    private CompletableFuture<Void> commit(long end) {
+        if (end == -1 || fsyncPolicy != FsyncPolicy.BATCH) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Waiter waiter = new Waiter(end, new CompletableFuture<>());
+        synchronized (waiters) {
+            waiters.add(waiter);
+            if (waiters.size() == 1) {
+                waiters.notifyAll();
+            }
+        }
+        return waiter.future;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                synchronized (waiters) {
+                    while (running && waiters.isEmpty()) {
+                        waiters.wait();
+                    }
+                }
+                completeWaiters(segmentLog.force(), null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Failed to flush message store", e);
+                completeWaiters(Long.MAX_VALUE, e);
+            }
+        }
+    }
+
+    private void completeWaiters(long durable, Throwable cause) {
+        List<Waiter> completed = new ArrayList<>();
+        synchronized (waiters) {
+            waiters.removeIf(waiter -> waiter.end <= durable && completed.add(waiter));
+        }
+        completed.forEach(waiter -> {
+            if (cause == null) {
+                waiter.future.complete(null);
+            } else {
+                waiter.future.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private void force() {
+        try {
+            segmentLog.force();
+        } catch (Exception e) {
+            log.error("Failed to flush message store", e);
+        }
+    }
+
+    /* 没有返回值的写入在 BATCH 模式下等待刷盘完成 */
+    private static void await(CompletableFuture<Void> future) {
+        future.join();
+    }
+
+    private static ByteBuffer header(long id, long time, String brokerId, String clientId, int length) {
+        byte[] broker = bytes(brokerId);
+        byte[] client = bytes(clientId);
+        return ByteBuffer.allocate(Long.BYTES + Long.BYTES + Short.BYTES + broker.length + Short.BYTES + client.length + length)
+                .putLong(id)
+                .putLong(time)
+                .putShort((short) broker.length).put(broker)
+                .putShort((short) client.length).put(client);
+    }
+
+    private static PublishMessage decodePublishMessage(ByteBuffer body) {
+        long id = body.getLong();
+        LocalDateTime createTime = time(body.getLong());
+        String brokerId = string(body);
+        String clientId = string(body);
+        int messageId = body.getInt();
+        MqttQoS qos = MqttQoS.valueOf(body.get());
+        String topic = string(body);
+        return PublishMessage.builder()
+                .id(id)
+                .brokerId(brokerId)
+                .clientId(clientId)
+                .messageId(messageId)
+                .qos(qos)
+                .topic(topic)
+                .payload(payload(body))
+                .createTime(createTime)
+                .build();
+    }
+
+    private static PublishReleaseMessage decodePublishReleaseMessage(ByteBuffer body) {
+        long id = body.getLong();
+        LocalDateTime createTime = time(body.getLong());
+        return PublishReleaseMessage.builder()
+                .id(id)
+                .createTime(createTime)
+                .brokerId(string(body))
+                .clientId(string(body))
+                .messageId(body.getInt())
+                .build();
+    }
+
+    private static RetainMessage decodeRetainMessage(ByteBuffer body) {
+        long id = body.getLong();
+        LocalDateTime createTime = time(body.getLong());
+        return RetainMessage.builder()
+                .id(id)
+                .createTime(createTime)
+                .updateTime(createTime)
+                .brokerId(string(body))
+                .clientId(string(body))
+                .topic(string(body))
+                .qos(MqttQoS.valueOf(body.get()))
+                .payload(payload(body))
+                .build();
+    }
+
+    private static WillMessage decodeWillMessage(ByteBuffer body) {
+        long id = body.getLong();
+        LocalDateTime createTime = time(body.getLong());
+        return WillMessage.builder()
+                .id(id)
+                .createTime(createTime)
+                .updateTime(createTime)
+                .brokerId(string(body))
+                .clientId(string(body))
+                .topic(string(body))
+                .qos(MqttQoS.valueOf(body.get()))
+                .retain(body.get() == 1)
+                .payload(payload(body))
+                .build();
+    }
+
+    private static Session decodeSession(ByteBuffer body) {
+        long id = body.getLong();
+        LocalDateTime updateTime = time(body.getLong());
+        return Session.builder()
+                .id(id)
+                .updateTime(updateTime)
+                .brokerId(string(body))
+                .clientId(string(body))
+                .clientIp(string(body))
+                .brokerIp(string(body))
+                .cleanSession(body.get() == 1)
+                .status(SessionStatus.values()[body.get()])
+                .createTime(time(body.getLong()))
+                .build();
+    }
+
+    private static Subscription decodeSubscription(ByteBuffer body) {
+        long id = body.getLong();
+        LocalDateTime createTime = time(body.getLong());
+        return Subscription.builder()
+                .id(id)
+                .createTime(createTime)
+                .updateTime(createTime)
+                .brokerId(string(body))
+                .clientId(string(body))
+                .topic(string(body))
+                .qos(MqttQoS.valueOf(body.get()))
+                .build();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] payload(ByteBuffer buffer) {
+        byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        return payload;
+    }
+
+    private static LocalDateTime time(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    @FunctionalInterface
+    private interface RecordEncoder {
+        /* 返回写入完成、尚未 flip 的 ByteBuffer */
+        ByteBuffer encode(long id, long time);
+    }
+
+    /* type 为写入记录的类型，name 为客户端 ID 或主题，topic 只用于订阅 */
+    private record Key(byte type, String name, int messageId, String topic) {
+
+        private Key(byte type, String name, int messageId) {
+            this(type, name, messageId, "");
+        }
+    }
+
+    private record Location(Key key, long id, String brokerId, long segment, long offset, int length) {
+    }
+
+    private record Waiter(long end, CompletableFuture<Void> future) {
+    }
+}
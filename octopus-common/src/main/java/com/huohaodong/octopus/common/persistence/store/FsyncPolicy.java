@@ -0,0 +1,10 @@
+package com.huohaodong.octopus.common.persistence.store;
+
+public enum FsyncPolicy {
+    /* 不主动刷盘，由操作系统决定写回时间，进程退出不丢数据，断电可能丢失 */
+    NONE,
+    /* 每隔固定时间刷盘一次，写入立即返回 */
+    INTERVAL,
+    /* 写入在刷盘后才返回，同一时间等待的写入共用一次刷盘 */
+    BATCH
+}
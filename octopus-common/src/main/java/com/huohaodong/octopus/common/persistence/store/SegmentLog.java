@@ -0,0 +1,281 @@
+package com.huohaodong.octopus.common.persistence.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的追加写日志。偏移量是记录在整个日志中的字节位置，日志按 segmentBytes 切分为多个文件，文件名为其中第一条记录的偏移量。
+ * 文件创建时即映射为 segmentBytes 大小，未写入的部分为 0。记录格式为 [int 长度][int CRC32][byte 类型][内容]，长度为类型与内容的字节数。
+ * 打开时按顺序扫描所有文件。最后一个文件中长度为 0、超出文件或校验失败的记录视为写到一半的结尾，之后的内容被清零；
+ * 之前的文件在切换时已经刷盘，其中长度为 0 的记录之后必须全部为 0，否则说明文件损坏，抛出异常而不是丢弃之后的记录。
+ * 追加、切换文件由 this 串行化，读取不加锁；文件删除后已映射的内存仍然可读，直到被回收。
+ */
+public class SegmentLog implements Closeable {
+
+    public static final int HEADER_LENGTH = Integer.BYTES + Integer.BYTES + Byte.BYTES;
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /* 由 this 保护 */
+    private Segment active;
+
+    /* 打开日志并按顺序将已有的记录交给 replay */
+    public SegmentLog(Path directory, int segmentBytes, Consumer<Entry> replay) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (var list = Files.list(directory)) {
+            list.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(files::add);
+        }
+        files.sort(null);
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = file.getFileName().toString();
+            Segment segment = map(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+            segment.size = scan(segment, replay);
+            segment.forced = segment.size;
+            if (i < files.size() - 1 && !isZero(segment.buffer, segment.size)) {
+                segment.channel.close();
+                for (Segment opened : segments.values()) {
+                    opened.channel.close();
+                }
+                throw new IOException("Corrupted record at offset " + (segment.baseOffset + segment.size) + " in sealed segment " + file);
+            }
+            // 清除写到一半的记录，之后的追加从这里开始
+            ByteBuffer tail = segment.buffer.duplicate().position(segment.size);
+            while (tail.hasRemaining()) {
+                tail.put((byte) 0);
+            }
+            segments.put(segment.baseOffset, segment);
+            active = segment;
+        }
+        if (active == null) {
+            roll(0);
+        }
+    }
+
+    public static int recordLength(int bodyLength) {
+        return HEADER_LENGTH + bodyLength;
+    }
+
+    /* 返回记录的偏移量 */
+    public synchronized long append(byte type, ByteBuffer body) {
+        int length = recordLength(body.remaining());
+        if (length > segmentBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes exceeds segment size " + segmentBytes);
+        }
+        if (active.size + length > active.buffer.capacity()) {
+            roll(active.baseOffset + active.size);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(body.duplicate());
+        ByteBuffer target = active.buffer.duplicate().position(active.size);
+        target.putInt(length - Integer.BYTES - Integer.BYTES)
+                .putInt((int) crc.getValue())
+                .put(type)
+                .put(body);
+        long offset = active.baseOffset + active.size;
+        active.size += length;
+        return offset;
+    }
+
+    public Entry read(long offset) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = entry.getValue();
+        int position = (int) (offset - segment.baseOffset);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int length = buffer.getInt(position);
+        byte type = buffer.get(position + Integer.BYTES + Integer.BYTES);
+        ByteBuffer body = buffer.position(position + HEADER_LENGTH).limit(position + Integer.BYTES + Integer.BYTES + length).slice();
+        return new Entry(segment.baseOffset, offset, recordLength(body.remaining()), type, body);
+    }
+
+    /* 将已追加的记录写入磁盘，返回已持久化的结束偏移量 */
+    public long force() {
+        Segment segment;
+        int from;
+        int to;
+        synchronized (this) {
+            segment = active;
+            from = segment.forced;
+            to = segment.size;
+        }
+        if (to > from) {
+            segment.buffer.force(from, to - from);
+        }
+        synchronized (this) {
+            segment.forced = Math.max(segment.forced, to);
+        }
+        return segment.baseOffset + to;
+    }
+
+    /* 最早的一个不再写入的文件，没有时返回 -1 */
+    public synchronized long oldestSealedSegment() {
+        Segment oldest = segments.firstEntry().getValue();
+        return oldest == active ? -1 : oldest.baseOffset;
+    }
+
+    public synchronized long activeSegment() {
+        return active.baseOffset;
+    }
+
+    /* 所有不再写入的文件中已写入的字节数 */
+    public synchronized long sealedBytes() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            if (segment != active) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public long segmentOf(long offset) {
+        return segments.floorKey(offset);
+    }
+
+    /* 按顺序读取一个不再写入的文件中的所有记录 */
+    public void forEach(long segmentBase, Consumer<Entry> consumer) {
+        Segment segment = segments.get(segmentBase);
+        if (segment != null) {
+            scan(segment, consumer);
+        }
+    }
+
+    public synchronized void delete(long segmentBase) {
+        Segment segment = segments.get(segmentBase);
+        if (segment == null || segment == active) {
+            return;
+        }
+        segments.remove(segmentBase);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized long sizeInBytes() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    /* 返回最后一条完整记录的结束位置 */
+    private int scan(Segment segment, Consumer<Entry> consumer) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int limit = segment.buffer.capacity();
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_LENGTH <= limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + Integer.BYTES + Integer.BYTES + length > limit) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate().position(position + Integer.BYTES + Integer.BYTES).limit(position + Integer.BYTES + Integer.BYTES + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+                break;
+            }
+            byte type = record.get();
+            consumer.accept(new Entry(segment.baseOffset, segment.baseOffset + position, HEADER_LENGTH + record.remaining(), type, record.slice()));
+            position += Integer.BYTES + Integer.BYTES + length;
+        }
+        return position;
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void roll(long baseOffset) {
+        if (active != null) {
+            active.buffer.force();
+            active.forced = active.size;
+        }
+        try {
+            Segment segment = map(baseOffset, directory.resolve(String.format("%020d%s", baseOffset, SUFFIX)));
+            segments.put(baseOffset, segment);
+            active = segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Segment map(long baseOffset, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 已有的文件可能是以更大的 segmentBytes 创建的
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+        return new Segment(baseOffset, file, channel, buffer);
+    }
+
+    /* segment 为所在文件的起始偏移量，length 为整条记录占用的字节数，body 为内容部分，不包括类型 */
+    public record Entry(long segment, long offset, int length, byte type, ByteBuffer body) {
+    }
+
+    private static final class Segment {
+
+        private final long baseOffset;
+
+        private final Path file;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        /* 以下字段由 SegmentLog 保护 */
+        private int size;
+
+        private int forced;
+
+        private Segment(long baseOffset, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -1,9 +1,25 @@
 package com.huohaodong.octopus.common.protocol.cluster;
 
-import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface ClusterService {
-    void broadcastPublishMessage(PublishMessage publishMessage);
+    /*
+     * payload 的引用仍归调用方所有，实现在异步发送期间需要自行 retain。
+     * sharedTargets 为发布者所在的 Broker 选中由各远程 Broker 投递的共享订阅，key 为 Broker ID
+     */
+    void broadcastPublishMessage(String publisherClientId, String topic, MqttQoS qos, MessagePayload payload, Map<String, List<String>> sharedTargets);
+
+    /* 匹配 topic 的共享订阅在可用的远程 Broker 上的分布，key 为完整的 $share 主题，value 为存在该共享订阅成员的 Broker ID */
+    Map<String, List<String>> matchSharedSubscriptions(String topic);
+
+    /* 所有远程 Broker 确认关闭或超时后完成，不会异常完成 */
+    CompletableFuture<Void> broadcastToClose(String clientId);
 
-    void broadcastToClose(String clientId);
+    /* 本地订阅的变化推送到所有远程 Broker 并得到确认或超时后完成，不会异常完成 */
+    CompletableFuture<Void> syncSubscriptions();
 }
@@ -1,9 +1,18 @@
 package com.huohaodong.octopus.common.protocol.cluster.handler;
 
-import com.huohaodong.octopus.common.persistence.entity.PublishMessage;
+import com.huohaodong.octopus.common.protocol.mqtt.MessagePayload;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface ClusterEventHandler {
-    void doPublish(PublishMessage publishMessage);
+    /* sharedTopics 为发送方选中由本 Broker 投递的共享订阅，其他共享订阅不投递 */
+    void doPublish(String publisherClientId, String topic, MqttQoS qos, MessagePayload payload, List<String> sharedTopics);
+
+    /* 连接关闭且会话清理完成后完成 */
+    CompletableFuture<Void> doCloseChannel(String clientId);
 
-    void doCloseChannel(String clientId);
+    /* 更新远程 Broker 的订阅摘要，版本不连续时返回 false */
+    boolean doUpdateRoutes(String brokerId, long version, boolean full, List<String> added, List<String> removed);
 }
@@ -0,0 +1,84 @@
+package com.huohaodong.octopus.common.protocol.mqtt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 引用计数的消息体，在本地转发、集群转发之间传递解码得到的 ByteBuf，避免反复复制为 byte[]。
+ * <p>
+ * 创建者持有一个引用并负责在使用结束后 release；需要在当前调用返回后继续使用（例如异步发送）的一方必须先 retain。
+ * 只有在写入数据库或缓存时才通过 toByteArray() 复制一次。
+ */
+public final class MessagePayload extends DefaultByteBufHolder {
+
+    /* 首次调用 toByteArray() 时生成，之后复用 */
+    private byte[] bytes;
+
+    private MessagePayload(ByteBuf content) {
+        super(content);
+    }
+
+    /* 与 buf 共享内存并持有一个新的引用，不影响 buf 原有的引用计数归属 */
+    public static MessagePayload retainedOf(ByteBuf buf) {
+        return new MessagePayload(buf.retainedDuplicate());
+    }
+
+    /* 接管 buf 的引用 */
+    public static MessagePayload of(ByteBuf buf) {
+        return new MessagePayload(buf);
+    }
+
+    public static MessagePayload wrap(byte[] bytes) {
+        MessagePayload payload = new MessagePayload(Unpooled.wrappedBuffer(bytes));
+        payload.bytes = bytes;
+        return payload;
+    }
+
+    public int length() {
+        return content().readableBytes();
+    }
+
+    /* 返回的数组可能被多次调用共享，调用方不能修改 */
+    public byte[] toByteArray() {
+        if (bytes == null) {
+            bytes = ByteBufUtil.getBytes(content());
+        }
+        return bytes;
+    }
+
+    @Override
+    public MessagePayload replace(ByteBuf content) {
+        return new MessagePayload(content);
+    }
+
+    @Override
+    public MessagePayload retainedDuplicate() {
+        return (MessagePayload) super.retainedDuplicate();
+    }
+
+    @Override
+    public MessagePayload retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public MessagePayload retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public MessagePayload touch() {
+        super.touch();
+        return this;
+    }
+
+    @Override
+    public MessagePayload touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+}
@@ -0,0 +1,200 @@
+package com.huohaodong.octopus.common.persistence.store;
+
+import com.huohaodong.octopus.common.persistence.entity.*;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 重新打开存储后按日志重建的索引与关闭前一致：墓碑记录删除的键不再出现，
+ * 压缩已将记录追加到日志末尾但还没来得及删除旧文件时崩溃，旧文件中过期的记录也不会覆盖之后的记录。
+ */
+class EmbeddedMessageStoreTest {
+
+    private static final String BROKER_ID = "BROKER_1";
+
+    private static final String CLIENT_ID = "client";
+
+    /* 每个文件只能容纳 3 条 1000 字节消息体的记录 */
+    private static final int SEGMENT_BYTES = 4096;
+
+    private static final int PAYLOAD_BYTES = 1000;
+
+    @TempDir
+    Path directory;
+
+    private EmbeddedMessageStore store;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void tombstonesSurviveReplay() throws IOException {
+        store = open(0.5);
+        for (int messageId = 1; messageId <= 3; messageId++) {
+            store.putPublishMessage(publishMessage(messageId, "message-" + messageId)).join();
+            store.putPublishReleaseMessage(PublishReleaseMessage.builder().brokerId(BROKER_ID).clientId(CLIENT_ID).messageId(messageId).build()).join();
+        }
+        store.removePublishMessage(BROKER_ID, CLIENT_ID, 2).join();
+        store.removeAllPublishReleaseMessage(BROKER_ID, CLIENT_ID);
+        store.putRetainMessage(RetainMessage.builder().brokerId(BROKER_ID).clientId(CLIENT_ID).topic("retain/removed").qos(MqttQoS.AT_LEAST_ONCE).payload(new byte[1]).build());
+        store.putRetainMessage(RetainMessage.builder().brokerId(BROKER_ID).clientId(CLIENT_ID).topic("retain/kept").qos(MqttQoS.AT_LEAST_ONCE).payload(new byte[1]).build());
+        store.removeRetainMessage(BROKER_ID, "retain/removed");
+        store.putWillMessage(WillMessage.builder().brokerId(BROKER_ID).clientId(CLIENT_ID).topic("will").qos(MqttQoS.AT_MOST_ONCE).payload(new byte[1]).build());
+        store.removeWillMessage(BROKER_ID, CLIENT_ID);
+        store.putSession(session(CLIENT_ID));
+        store.putSession(session("removed-client"));
+        store.removeSession(BROKER_ID, "removed-client");
+        store.putSubscription(subscription(CLIENT_ID, "topic/kept"));
+        store.putSubscription(subscription(CLIENT_ID, "topic/removed"));
+        store.removeSubscription(BROKER_ID, CLIENT_ID, "topic/removed");
+        store.putSubscription(subscription("removed-client", "topic/a"));
+        store.putSubscription(subscription("removed-client", "topic/b"));
+        store.removeAllSubscription(BROKER_ID, "removed-client");
+        store.close();
+
+        store = open(0.5);
+        assertEquals(List.of(1, 3), messageIds(store.getAllPublishMessage(BROKER_ID, CLIENT_ID)));
+        assertEquals(List.of(), store.getAllPublishReleaseMessage(BROKER_ID, CLIENT_ID));
+        assertEquals(List.of("retain/kept"), store.getAllRetainMessage(BROKER_ID).stream().map(RetainMessage::getTopic).toList());
+        assertEquals(Optional.empty(), store.getWillMessage(BROKER_ID, CLIENT_ID));
+        assertEquals(0, store.countWillMessage());
+        assertTrue(store.containsSession(BROKER_ID, CLIENT_ID));
+        assertFalse(store.containsSession(BROKER_ID, "removed-client"));
+        assertEquals(List.of("topic/kept"), store.getAllSubscription(BROKER_ID).stream().map(Subscription::getTopic).toList());
+        assertEquals(List.of(), store.getAllSubscription(BROKER_ID, "removed-client"));
+    }
+
+    @Test
+    void sessionAndSubscriptionRoundTrip() throws IOException {
+        store = open(0.5);
+        Session session = session(CLIENT_ID);
+        store.putSession(session);
+        Session stored = store.getSession(BROKER_ID, CLIENT_ID).orElseThrow();
+        session.setCleanSession(true);
+        session.setStatus(SessionStatus.OFFLINE);
+        store.putSession(session);
+        store.putSubscription(subscription(CLIENT_ID, "topic/+"));
+        store.close();
+
+        store = open(0.5);
+        Session updated = store.getSession(BROKER_ID, CLIENT_ID).orElseThrow();
+        assertTrue(updated.isCleanSession());
+        assertEquals(SessionStatus.OFFLINE, updated.getStatus());
+        assertEquals("127.0.0.1", updated.getClientIp());
+        assertEquals(stored.getCreateTime(), updated.getCreateTime(), "create time kept on update");
+        assertEquals(List.of(updated), store.getSession(CLIENT_ID));
+        assertEquals(Optional.empty(), store.getSession("BROKER_2", CLIENT_ID));
+        Subscription subscription = store.getAllSubscription(BROKER_ID, CLIENT_ID).get(0);
+        assertEquals("topic/+", subscription.getTopic());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, subscription.getQos());
+    }
+
+    @Test
+    void crashBetweenCompactionAppendAndSegmentDelete() throws IOException {
+        store = open(0.3);
+        // 第一个文件：1、2、3 以及删除 1 的墓碑记录，其中 2 之后被第二个文件中的记录覆盖，只有 3 仍然有效
+        store.putPublishMessage(publishMessage(1, "first")).join();
+        store.putPublishMessage(publishMessage(2, "stale")).join();
+        store.putPublishMessage(publishMessage(3, "moved")).join();
+        store.removePublishMessage(BROKER_ID, CLIENT_ID, 1).join();
+        // 第二个文件：全部有效
+        store.putPublishMessage(publishMessage(2, "latest")).join();
+        store.putPublishMessage(publishMessage(4, "fourth")).join();
+        store.putPublishMessage(publishMessage(5, "fifth")).join();
+        store.putPublishMessage(publishMessage(6, "active")).join();
+        List<Path> segments = segmentFiles();
+        assertEquals(3, segments.size(), "segment files before compaction");
+        Path oldest = segments.get(0);
+        byte[] oldestContent = Files.readAllBytes(oldest);
+
+        store.compact();
+        assertFalse(Files.exists(oldest), "oldest segment deleted by compaction");
+        assertEquals(2, segmentFiles().size(), "segment files after compaction");
+        store.close();
+        // 相当于移动的记录已经刷盘，旧文件还没有删除时崩溃
+        Files.write(oldest, oldestContent);
+
+        store = open(0.3);
+        assertCompactedState();
+        // 重新打开后旧文件中已经没有有效的记录，再次压缩时删除
+        store.compact();
+        assertFalse(Files.exists(oldest), "stale segment deleted after recovery");
+        store.close();
+        store = open(0.3);
+        assertCompactedState();
+    }
+
+    /* 移动的记录保留原来的 id，分页读取的顺序不变 */
+    private void assertCompactedState() {
+        List<PublishMessage> messages = store.getAllPublishMessage(BROKER_ID, CLIENT_ID);
+        assertEquals(List.of(3, 2, 4, 5, 6), messageIds(messages));
+        assertEquals(List.of("moved", "latest", "fourth", "fifth", "active"), messages.stream().map(EmbeddedMessageStoreTest::payload).toList());
+        assertEquals(Optional.empty(), store.getPublishMessage(BROKER_ID, CLIENT_ID, 1));
+    }
+
+    private EmbeddedMessageStore open(double compactionThreshold) throws IOException {
+        // 压缩由测试直接调用
+        return new EmbeddedMessageStore(directory, SEGMENT_BYTES, FsyncPolicy.NONE, 100, 3600, compactionThreshold);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.sorted(Comparator.naturalOrder()).toList();
+        }
+    }
+
+    private static PublishMessage publishMessage(int messageId, String content) {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, payload, 0, bytes.length);
+        return PublishMessage.builder()
+                .brokerId(BROKER_ID)
+                .clientId(CLIENT_ID)
+                .messageId(messageId)
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .topic("t")
+                .payload(payload)
+                .build();
+    }
+
+    private static String payload(PublishMessage message) {
+        return new String(message.getPayload(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static List<Integer> messageIds(List<PublishMessage> messages) {
+        return messages.stream().map(PublishMessage::getMessageId).toList();
+    }
+
+    private static Session session(String clientId) {
+        return Session.builder()
+                .brokerId(BROKER_ID)
+                .clientId(clientId)
+                .brokerIp("localhost")
+                .clientIp("127.0.0.1")
+                .cleanSession(false)
+                .status(SessionStatus.ONLINE)
+                .build();
+    }
+
+    private static Subscription subscription(String clientId, String topic) {
+        Subscription subscription = new Subscription(clientId, topic, MqttQoS.AT_LEAST_ONCE);
+        subscription.setBrokerId(BROKER_ID);
+        return subscription;
+    }
+}
@@ -0,0 +1,128 @@
+package com.huohaodong.octopus.common.persistence.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 崩溃后重新打开日志：最后一个文件中写到一半或校验失败的记录被丢弃，之后的追加从该位置开始；
+ * 已经切换过的文件中出现损坏时打开失败，不能丢弃其中之后的记录。
+ */
+class SegmentLogTest {
+
+    private static final int SEGMENT_BYTES = 256;
+
+    private static final byte TYPE = 1;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void truncatedTailIsDiscarded() throws IOException {
+        long[] offsets = append("first", "second", "third");
+        // 第三条记录只写入了头部和一部分内容
+        try (FileChannel channel = FileChannel.open(segmentFile(0), StandardOpenOption.WRITE)) {
+            channel.truncate(offsets[2] + SegmentLog.HEADER_LENGTH + 2);
+        }
+        assertRecoveredAndAppendable(offsets[2], "first", "second");
+    }
+
+    @Test
+    void corruptedTailIsDiscarded() throws IOException {
+        long[] offsets = append("first", "second", "third");
+        corrupt(segmentFile(0), offsets[2] + SegmentLog.HEADER_LENGTH + 1);
+        assertRecoveredAndAppendable(offsets[2], "first", "second");
+    }
+
+    @Test
+    void corruptedSealedSegmentFailsToOpen() throws IOException {
+        long[] offsets = appendUntilRolled();
+        corrupt(segmentFile(0), offsets[1] + SegmentLog.HEADER_LENGTH + 1);
+        assertThrows(IOException.class, () -> new SegmentLog(directory, SEGMENT_BYTES, entry -> {
+        }));
+    }
+
+    @Test
+    void zeroedLengthInSealedSegmentFailsToOpen() throws IOException {
+        long[] offsets = appendUntilRolled();
+        try (FileChannel channel = FileChannel.open(segmentFile(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES), offsets[1]);
+        }
+        assertThrows(IOException.class, () -> new SegmentLog(directory, SEGMENT_BYTES, entry -> {
+        }));
+    }
+
+    /* 重新打开后只剩前面的记录，新的记录写在被丢弃的记录的位置，再次打开后仍然完整 */
+    private void assertRecoveredAndAppendable(long tailOffset, String... expected) throws IOException {
+        List<String> recovered = new ArrayList<>();
+        try (SegmentLog log = new SegmentLog(directory, SEGMENT_BYTES, entry -> recovered.add(string(entry)))) {
+            assertEquals(List.of(expected), recovered);
+            assertEquals(tailOffset, log.append(TYPE, body("fourth")), "offset of the first append after recovery");
+        }
+        List<String> expectedAfterAppend = new ArrayList<>(List.of(expected));
+        expectedAfterAppend.add("fourth");
+        recovered.clear();
+        try (SegmentLog ignored = new SegmentLog(directory, SEGMENT_BYTES, entry -> recovered.add(string(entry)))) {
+            assertEquals(expectedAfterAppend, recovered);
+        }
+    }
+
+    private long[] append(String... bodies) throws IOException {
+        long[] offsets = new long[bodies.length];
+        try (SegmentLog log = new SegmentLog(directory, SEGMENT_BYTES, entry -> {
+        })) {
+            for (int i = 0; i < bodies.length; i++) {
+                offsets[i] = log.append(TYPE, body(bodies[i]));
+            }
+        }
+        return offsets;
+    }
+
+    /* 写满第一个文件后再写一条，第一个文件不再写入 */
+    private long[] appendUntilRolled() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        try (SegmentLog log = new SegmentLog(directory, SEGMENT_BYTES, entry -> {
+        })) {
+            while (offsets.isEmpty() || log.segmentOf(offsets.get(offsets.size() - 1)) == 0) {
+                offsets.add(log.append(TYPE, body("record-" + offsets.size())));
+            }
+        }
+        assertTrue(offsets.size() > 2, "records in the first segment");
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private Path segmentFile(long baseOffset) {
+        return directory.resolve(String.format("%020d.seg", baseOffset));
+    }
+
+    private static void corrupt(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) ~value.get(0)}), position);
+        }
+    }
+
+    private static ByteBuffer body(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(SegmentLog.Entry entry) {
+        ByteBuffer body = entry.body().duplicate();
+        byte[] value = new byte[body.remaining()];
+        body.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -1,7 +1,10 @@
 package com.huohaodong.octopus.exporter;
 
+import com.huohaodong.octopus.exporter.admin.HotKeysHandler;
 import com.huohaodong.octopus.exporter.config.ExporterProperties;
 import com.huohaodong.octopus.exporter.metric.Metrics;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.HTTPServer;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
@@ -10,6 +13,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 
 @Slf4j(topic = "EXPORTER")
@@ -21,8 +25,10 @@ public class ExporterInitializer {
 
     @PostConstruct
     public void initExporter() throws IOException {
-        Metrics.init();
-        new HTTPServer(exporterProperties.getPort());
+        Metrics.init(exporterProperties);
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(exporterProperties.getPort()), 3);
+        httpServer.createContext(HotKeysHandler.PATH, new HotKeysHandler());
+        new HTTPServer(httpServer, CollectorRegistry.defaultRegistry, true);
         log.info("Prometheus Exporter started, listening on port {}", exporterProperties.getPort());
     }
 }
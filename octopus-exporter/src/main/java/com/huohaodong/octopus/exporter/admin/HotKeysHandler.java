@@ -0,0 +1,84 @@
+package com.huohaodong.octopus.exporter.admin;
+
+import com.huohaodong.octopus.exporter.metric.HeavyHitters;
+import com.huohaodong.octopus.exporter.metric.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 以 JSON 返回热点主题、发布者和订阅者，包括上一个完整窗口和当前窗口的前 K 名：
+ * {"topics": {"last": [{"key": "a/b", "count": 10}], "current": [...]}, "publishers": {...}, "subscribers": {...}}
+ */
+public class HotKeysHandler implements HttpHandler {
+
+    public static final String PATH = "/admin/hot";
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder json = new StringBuilder(1024).append('{');
+            append(json, "topics", Metrics.HOT_TOPIC_MESSAGES).append(',');
+            append(json, "publishers", Metrics.HOT_PUBLISHER_MESSAGES).append(',');
+            append(json, "subscribers", Metrics.HOT_SUBSCRIBER_MESSAGES).append('}');
+            byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static StringBuilder append(StringBuilder json, String name, HeavyHitters heavyHitters) {
+        json.append('"').append(name).append("\":{\"last\":");
+        append(json, heavyHitters.lastWindow());
+        json.append(",\"current\":");
+        append(json, heavyHitters.currentWindow());
+        return json.append('}');
+    }
+
+    private static void append(StringBuilder json, List<HeavyHitters.Entry> entries) {
+        json.append('[');
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            HeavyHitters.Entry entry = entries.get(i);
+            json.append("{\"key\":");
+            quote(json, entry.key());
+            json.append(",\"count\":").append(entry.count()).append('}');
+        }
+        json.append(']');
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+}
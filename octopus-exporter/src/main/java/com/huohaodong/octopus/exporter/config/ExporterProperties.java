@@ -12,6 +12,14 @@ public class ExporterProperties {
 
     private boolean enable = false;
 
+    /* 每 N 条 PUBLISH 报文中平均记录一条的各阶段耗时，1 表示全部记录 */
+    private int stageSampleRate = 1;
+
+    /* 热点主题、发布者和订阅者各保留的数量 */
+    private int hotKeysCapacity = 20;
+
+    private long hotKeysWindowSeconds = 60;
+
     public String getHost() {
         return host;
     }
@@ -35,4 +43,28 @@ public class ExporterProperties {
     public void setEnable(boolean enable) {
         this.enable = enable;
     }
+
+    public int getStageSampleRate() {
+        return stageSampleRate;
+    }
+
+    public void setStageSampleRate(int stageSampleRate) {
+        this.stageSampleRate = stageSampleRate;
+    }
+
+    public int getHotKeysCapacity() {
+        return hotKeysCapacity;
+    }
+
+    public void setHotKeysCapacity(int hotKeysCapacity) {
+        this.hotKeysCapacity = hotKeysCapacity;
+    }
+
+    public long getHotKeysWindowSeconds() {
+        return hotKeysWindowSeconds;
+    }
+
+    public void setHotKeysWindowSeconds(long hotKeysWindowSeconds) {
+        this.hotKeysWindowSeconds = hotKeysWindowSeconds;
+    }
 }
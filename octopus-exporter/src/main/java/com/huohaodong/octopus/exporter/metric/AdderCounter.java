@@ -0,0 +1,37 @@
+package com.huohaodong.octopus.exporter.metric;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 LongAdder 的计数器，多个线程同时递增时不会竞争同一个变量，适合在每条消息的处理路径上使用。
+ */
+public class AdderCounter extends Collector {
+
+    private final String name;
+
+    private final String help;
+
+    private final LongAdder adder = new LongAdder();
+
+    public AdderCounter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void inc() {
+        adder.increment();
+    }
+
+    public void inc(long amount) {
+        adder.add(amount);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        return List.of(new CounterMetricFamily(name, help, adder.sum()));
+    }
+}
@@ -8,6 +8,22 @@ public class Constants {
     public static final String METRIC_TOPIC_ACTIVE = "topic_active";
     public static final String METRIC_MESSAGE_SENT_TOTAL = "message_sent_total";
     public static final String METRIC_MESSAGE_RECEIVED_TOTAL = "message_received_total";
+    public static final String METRIC_SUBSCRIPTION_CACHE_HIT_TOTAL = "subscription_cache_hit_total";
+    public static final String METRIC_SUBSCRIPTION_CACHE_MISS_TOTAL = "subscription_cache_miss_total";
+    public static final String METRIC_SUBSCRIPTION_CACHE_EVICTION_TOTAL = "subscription_cache_eviction_total";
+    public static final String METRIC_SESSION_EXECUTOR_QUEUE_DEPTH = "session_executor_queue_depth";
+    public static final String METRIC_SESSION_EXECUTOR_WAIT_SECONDS = "session_executor_wait_seconds";
+    public static final String METRIC_CLUSTER_TAKEOVER_SECONDS = "cluster_takeover_seconds";
+    public static final String METRIC_CLUSTER_FORWARD_DROPPED_TOTAL = "cluster_forward_dropped_total";
+    public static final String METRIC_PUBLISH_STAGE_SECONDS = "publish_stage_seconds";
+    public static final String METRIC_OFFLINE_MESSAGE_PENDING = "offline_message_pending";
+    public static final String METRIC_OFFLINE_MESSAGE_DROPPED_TOTAL = "offline_message_dropped_total";
+    public static final String METRIC_OFFLINE_MESSAGE_LOG_BYTES = "offline_message_log_bytes";
+    public static final String METRIC_SESSION_RESUME_SECONDS = "session_resume_seconds";
+    public static final String METRIC_SESSION_RESUME_MESSAGES = "session_resume_messages";
+    public static final String METRIC_HOT_TOPIC_MESSAGES = "hot_topic_messages";
+    public static final String METRIC_HOT_PUBLISHER_MESSAGES = "hot_publisher_messages";
+    public static final String METRIC_HOT_SUBSCRIBER_MESSAGES = "hot_subscriber_messages";
 
     public static final String HELP_METRIC_CONNECTION_ACTIVE = "current active connection count";
     public static final String HELP_METRIC_SUBSCRIPTION_ACTIVE = "current active subscription count";
@@ -16,4 +32,20 @@ public class Constants {
     public static final String HELP_METRIC_TOPIC_ACTIVE = "current active topic count";
     public static final String HELP_METRIC_MESSAGE_SENT_TOTAL = "current message sent count";
     public static final String HELP_METRIC_MESSAGE_RECEIVED_TOTAL = "current message received count";
+    public static final String HELP_METRIC_SUBSCRIPTION_CACHE_HIT_TOTAL = "topic match cache hit count";
+    public static final String HELP_METRIC_SUBSCRIPTION_CACHE_MISS_TOTAL = "topic match cache miss count";
+    public static final String HELP_METRIC_SUBSCRIPTION_CACHE_EVICTION_TOTAL = "topic match cache eviction count";
+    public static final String HELP_METRIC_SESSION_EXECUTOR_QUEUE_DEPTH = "current pending mqtt packet count of session executor";
+    public static final String HELP_METRIC_SESSION_EXECUTOR_WAIT_SECONDS = "time mqtt packets spend waiting in session executor";
+    public static final String HELP_METRIC_CLUSTER_TAKEOVER_SECONDS = "time to close previous connections of a client on other brokers";
+    public static final String HELP_METRIC_CLUSTER_FORWARD_DROPPED_TOTAL = "publish requests to other brokers dropped because too many were waiting, the broker left or retries ran out";
+    public static final String HELP_METRIC_PUBLISH_STAGE_SECONDS = "time spent in each stage of publish message processing";
+    public static final String HELP_METRIC_OFFLINE_MESSAGE_PENDING = "messages waiting for offline persistent sessions";
+    public static final String HELP_METRIC_OFFLINE_MESSAGE_DROPPED_TOTAL = "offline messages dropped due to session quota or expiration";
+    public static final String HELP_METRIC_OFFLINE_MESSAGE_LOG_BYTES = "size of the offline message log on disk";
+    public static final String HELP_METRIC_SESSION_RESUME_SECONDS = "time to resend unacknowledged messages after a persistent session reconnects";
+    public static final String HELP_METRIC_SESSION_RESUME_MESSAGES = "unacknowledged messages resent after a persistent session reconnects";
+    public static final String HELP_METRIC_HOT_TOPIC_MESSAGES = "estimated message count of the busiest topics in the last window";
+    public static final String HELP_METRIC_HOT_PUBLISHER_MESSAGES = "estimated published message count of the busiest publishers in the last window";
+    public static final String HELP_METRIC_HOT_SUBSCRIBER_MESSAGES = "estimated delivered message count of the busiest subscribers in the last window";
 }
@@ -0,0 +1,196 @@
+package com.huohaodong.octopus.exporter.metric;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 统计一个统计窗口内出现次数最多的 K 个键（主题、客户端 ID 等）。
+ * 次数由 Count-Min Sketch 估计，只可能偏大；估计值超过当前第 K 名时才进入候选列表，内存占用与键的总数无关。
+ * add 在发布和投递路径上调用，不加锁：已在候选列表中的键只更新其计数，替换候选键由一个线程完成，其他线程此时直接放弃，之后的 add 会再次尝试。
+ * 以 Gauge 导出上一个完整窗口的前 K 名，每个键一个序列，序列数不超过 K。调用 rotate 之前 add 不做任何记录。
+ */
+public class HeavyHitters extends Collector {
+
+    private static final int DEPTH = 4;
+
+    private static final int WIDTH = 1 << 12;
+
+    /* 每一行使用不同种子的 MurmurHash3，各行的哈希相互独立，两个键在一行冲突不会导致在其他行也冲突；直接按 char 计算，不需要编码为字节 */
+    private static final int[] SEEDS = {0x5BD1E995, 0x1B873593, 0x68E31DA4, 0x2F4A7C15};
+
+    private final String name;
+
+    private final String help;
+
+    private final String labelName;
+
+    private volatile int capacity;
+
+    private volatile Window current;
+
+    private volatile List<Entry> lastWindow = List.of();
+
+    public HeavyHitters(String name, String help, String labelName) {
+        this.name = name;
+        this.help = help;
+        this.labelName = labelName;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public void add(String key) {
+        Window window = current;
+        if (window == null || key == null) {
+            return;
+        }
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, window.counts.incrementAndGet(row * WIDTH + (murmur3(key, SEEDS[row]) & (WIDTH - 1))));
+        }
+        if (estimate > window.threshold) {
+            window.offer(key, estimate, capacity);
+        }
+    }
+
+    /* 结束当前窗口并开始新的窗口，由定时任务调用 */
+    public void rotate() {
+        Window completed = current;
+        current = new Window();
+        if (completed != null) {
+            lastWindow = completed.top();
+        }
+    }
+
+    /* 上一个完整窗口的前 K 名，按次数从大到小排列 */
+    public List<Entry> lastWindow() {
+        return lastWindow;
+    }
+
+    /* 当前窗口到目前为止的前 K 名 */
+    public List<Entry> currentWindow() {
+        Window window = current;
+        return window == null ? List.of() : window.top();
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        GaugeMetricFamily family = new GaugeMetricFamily(name, help, List.of(labelName));
+        lastWindow.forEach(entry -> family.addMetric(List.of(entry.key()), entry.count()));
+        return List.of(family);
+    }
+
+    /* MurmurHash3 x86_32，每两个 char 组成一个 4 字节的块，与按 UTF-16LE 编码后的字节计算的结果相同 */
+    static int murmur3(String key, int seed) {
+        int h = seed;
+        int length = key.length();
+        int blocks = length >>> 1;
+        for (int i = 0; i < blocks; i++) {
+            int k = key.charAt(i << 1) | key.charAt((i << 1) + 1) << 16;
+            h ^= mixK(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+        }
+        if ((length & 1) != 0) {
+            h ^= mixK(key.charAt(length - 1));
+        }
+        h ^= length << 1;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixK(int k) {
+        k *= 0xCC9E2D51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1B873593;
+    }
+
+    public record Entry(String key, long count) {
+    }
+
+    private static final class Window {
+
+        private final AtomicLongArray counts = new AtomicLongArray(DEPTH * WIDTH);
+
+        private final Map<String, Candidate> candidates = new ConcurrentHashMap<>();
+
+        /* 同一时刻只有一个线程加入或替换候选键 */
+        private final AtomicBoolean admitting = new AtomicBoolean();
+
+        /* 候选列表已满时为其中的最小值，估计值不超过它的键不会进入候选列表 */
+        private volatile long threshold;
+
+        private void offer(String key, long estimate, int capacity) {
+            Candidate candidate = candidates.get(key);
+            if (candidate != null) {
+                candidate.update(estimate);
+                return;
+            }
+            if (!admitting.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                // 候选列表可能因为 capacity 变小而超出
+                while (candidates.size() >= capacity) {
+                    Map.Entry<String, Candidate> min = min();
+                    if (estimate <= min.getValue().count) {
+                        threshold = min.getValue().count;
+                        return;
+                    }
+                    candidates.remove(min.getKey());
+                }
+                candidates.put(key, new Candidate(estimate));
+                if (candidates.size() >= capacity) {
+                    threshold = min().getValue().count;
+                }
+            } finally {
+                admitting.set(false);
+            }
+        }
+
+        private Map.Entry<String, Candidate> min() {
+            Map.Entry<String, Candidate> min = null;
+            for (Map.Entry<String, Candidate> candidate : candidates.entrySet()) {
+                if (min == null || candidate.getValue().count < min.getValue().count) {
+                    min = candidate;
+                }
+            }
+            return min;
+        }
+
+        private List<Entry> top() {
+            List<Entry> entries = new ArrayList<>(candidates.size());
+            candidates.forEach((key, candidate) -> entries.add(new Entry(key, candidate.count)));
+            entries.sort(Comparator.comparingLong(Entry::count).reversed());
+            return List.copyOf(entries);
+        }
+    }
+
+    private static final class Candidate {
+
+        private volatile long count;
+
+        private Candidate(long count) {
+            this.count = count;
+        }
+
+        /* 估计值只增不减，并发更新时可能保留稍小的值，下一次 add 会修正 */
+        private void update(long estimate) {
+            if (estimate > count) {
+                count = estimate;
+            }
+        }
+    }
+}
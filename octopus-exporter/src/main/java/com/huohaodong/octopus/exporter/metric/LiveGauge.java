@@ -0,0 +1,40 @@
+package com.huohaodong.octopus.exporter.metric;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * 抓取时才读取当前值的 Gauge，值由负责对应状态的组件通过 bind 提供，未绑定时为 0。
+ * 读取失败时本次抓取不输出该指标。
+ */
+public class LiveGauge extends Collector {
+
+    private final String name;
+
+    private final String help;
+
+    private volatile DoubleSupplier supplier = () -> 0;
+
+    public LiveGauge(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void bind(DoubleSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        double value;
+        try {
+            value = supplier.getAsDouble();
+        } catch (RuntimeException e) {
+            return List.of();
+        }
+        return List.of(new GaugeMetricFamily(name, help, value));
+    }
+}
@@ -1,66 +1,75 @@
 package com.huohaodong.octopus.exporter.metric;
 
-import io.prometheus.client.Counter;
-import io.prometheus.client.Gauge;
+import com.huohaodong.octopus.exporter.config.ExporterProperties;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
 
-import java.util.Optional;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.huohaodong.octopus.exporter.metric.Constants.*;
-import static com.huohaodong.octopus.exporter.metric.Constants.HELP_METRIC_MESSAGE_RECEIVED_TOTAL;
 
+/**
+ * Broker 的所有监控指标。指标在类加载时创建，可以直接保存或使用这里的静态字段，不需要按名称查找；
+ * 未启用 Exporter 时指标照常记录，只是不会注册到 Prometheus。
+ * LiveGauge 在抓取时从各组件绑定的状态中读取当前值，组件在状态变化时不需要更新指标。
+ */
 public class Metrics {
-    private static Gauge CONNECTION_ACTIVE;
-    private static Gauge SUBSCRIPTION_ACTIVE;
-    private static Gauge WILL_MESSAGE_ACTIVE;
-    private static Gauge RETAIN_MESSAGE_ACTIVE;
-    private static Gauge TOPIC_ACTIVE;
-    private static Counter MESSAGE_SENT_TOTAL;
-    private static Counter MESSAGE_RECEIVED_TOTAL;
+    public static final LiveGauge CONNECTION_ACTIVE = new LiveGauge(METRIC_CONNECTION_ACTIVE, HELP_METRIC_CONNECTION_ACTIVE);
+    public static final LiveGauge SUBSCRIPTION_ACTIVE = new LiveGauge(METRIC_SUBSCRIPTION_ACTIVE, HELP_METRIC_SUBSCRIPTION_ACTIVE);
+    public static final LiveGauge WILL_MESSAGE_ACTIVE = new LiveGauge(METRIC_WILL_MESSAGE_ACTIVE, HELP_METRIC_WILL_MESSAGE_ACTIVE);
+    public static final LiveGauge RETAIN_MESSAGE_ACTIVE = new LiveGauge(METRIC_RETAIN_MESSAGE_ACTIVE, HELP_METRIC_RETAIN_MESSAGE_ACTIVE);
+    public static final LiveGauge TOPIC_ACTIVE = new LiveGauge(METRIC_TOPIC_ACTIVE, HELP_METRIC_TOPIC_ACTIVE);
+    public static final AdderCounter MESSAGE_SENT_TOTAL = new AdderCounter(METRIC_MESSAGE_SENT_TOTAL, HELP_METRIC_MESSAGE_SENT_TOTAL);
+    public static final AdderCounter MESSAGE_RECEIVED_TOTAL = new AdderCounter(METRIC_MESSAGE_RECEIVED_TOTAL, HELP_METRIC_MESSAGE_RECEIVED_TOTAL);
+    public static final AdderCounter SUBSCRIPTION_CACHE_HIT_TOTAL = new AdderCounter(METRIC_SUBSCRIPTION_CACHE_HIT_TOTAL, HELP_METRIC_SUBSCRIPTION_CACHE_HIT_TOTAL);
+    public static final AdderCounter SUBSCRIPTION_CACHE_MISS_TOTAL = new AdderCounter(METRIC_SUBSCRIPTION_CACHE_MISS_TOTAL, HELP_METRIC_SUBSCRIPTION_CACHE_MISS_TOTAL);
+    public static final AdderCounter SUBSCRIPTION_CACHE_EVICTION_TOTAL = new AdderCounter(METRIC_SUBSCRIPTION_CACHE_EVICTION_TOTAL, HELP_METRIC_SUBSCRIPTION_CACHE_EVICTION_TOTAL);
+    public static final LiveGauge SESSION_EXECUTOR_QUEUE_DEPTH = new LiveGauge(METRIC_SESSION_EXECUTOR_QUEUE_DEPTH, HELP_METRIC_SESSION_EXECUTOR_QUEUE_DEPTH);
+    public static final Histogram SESSION_EXECUTOR_WAIT_SECONDS = Histogram.build().name(METRIC_SESSION_EXECUTOR_WAIT_SECONDS).help(HELP_METRIC_SESSION_EXECUTOR_WAIT_SECONDS)
+            .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5).create();
+    public static final Histogram CLUSTER_TAKEOVER_SECONDS = Histogram.build().name(METRIC_CLUSTER_TAKEOVER_SECONDS).help(HELP_METRIC_CLUSTER_TAKEOVER_SECONDS)
+            .buckets(0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5).create();
+    public static final AdderCounter CLUSTER_FORWARD_DROPPED_TOTAL = new AdderCounter(METRIC_CLUSTER_FORWARD_DROPPED_TOTAL, HELP_METRIC_CLUSTER_FORWARD_DROPPED_TOTAL);
+    /* 启用 Exporter 之前不采样 */
+    public static final StageLatency PUBLISH_STAGE_SECONDS = new StageLatency(METRIC_PUBLISH_STAGE_SECONDS, HELP_METRIC_PUBLISH_STAGE_SECONDS, PublishStage.class);
+    public static final LiveGauge OFFLINE_MESSAGE_PENDING = new LiveGauge(METRIC_OFFLINE_MESSAGE_PENDING, HELP_METRIC_OFFLINE_MESSAGE_PENDING);
+    public static final AdderCounter OFFLINE_MESSAGE_DROPPED_TOTAL = new AdderCounter(METRIC_OFFLINE_MESSAGE_DROPPED_TOTAL, HELP_METRIC_OFFLINE_MESSAGE_DROPPED_TOTAL);
+    public static final LiveGauge OFFLINE_MESSAGE_LOG_BYTES = new LiveGauge(METRIC_OFFLINE_MESSAGE_LOG_BYTES, HELP_METRIC_OFFLINE_MESSAGE_LOG_BYTES);
+    public static final Histogram SESSION_RESUME_SECONDS = Histogram.build().name(METRIC_SESSION_RESUME_SECONDS).help(HELP_METRIC_SESSION_RESUME_SECONDS)
+            .buckets(0.001, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60).create();
+    public static final Histogram SESSION_RESUME_MESSAGES = Histogram.build().name(METRIC_SESSION_RESUME_MESSAGES).help(HELP_METRIC_SESSION_RESUME_MESSAGES)
+            .buckets(0, 1, 10, 100, 1000, 10000, 65535).create();
+    public static final HeavyHitters HOT_TOPIC_MESSAGES = new HeavyHitters(METRIC_HOT_TOPIC_MESSAGES, HELP_METRIC_HOT_TOPIC_MESSAGES, "topic");
+    public static final HeavyHitters HOT_PUBLISHER_MESSAGES = new HeavyHitters(METRIC_HOT_PUBLISHER_MESSAGES, HELP_METRIC_HOT_PUBLISHER_MESSAGES, "client_id");
+    public static final HeavyHitters HOT_SUBSCRIBER_MESSAGES = new HeavyHitters(METRIC_HOT_SUBSCRIBER_MESSAGES, HELP_METRIC_HOT_SUBSCRIBER_MESSAGES, "client_id");
 
-    public static Optional<Gauge> getGaugeByName(String name) {
-        switch (name) {
-            case METRIC_CONNECTION_ACTIVE -> {
-                return Optional.ofNullable(CONNECTION_ACTIVE);
-            }
-            case METRIC_SUBSCRIPTION_ACTIVE -> {
-                return Optional.ofNullable(SUBSCRIPTION_ACTIVE);
-            }
-            case METRIC_WILL_MESSAGE_ACTIVE -> {
-                return Optional.ofNullable(WILL_MESSAGE_ACTIVE);
-            }
-            case METRIC_RETAIN_MESSAGE_ACTIVE -> {
-                return Optional.ofNullable(RETAIN_MESSAGE_ACTIVE);
-            }
-            case METRIC_TOPIC_ACTIVE -> {
-                return Optional.ofNullable(TOPIC_ACTIVE);
-            }
-            default -> {
-                return Optional.empty();
-            }
-        }
-    }
+    private static final List<Collector> COLLECTORS = List.of(
+            CONNECTION_ACTIVE, SUBSCRIPTION_ACTIVE, WILL_MESSAGE_ACTIVE, RETAIN_MESSAGE_ACTIVE, TOPIC_ACTIVE,
+            MESSAGE_SENT_TOTAL, MESSAGE_RECEIVED_TOTAL,
+            SUBSCRIPTION_CACHE_HIT_TOTAL, SUBSCRIPTION_CACHE_MISS_TOTAL, SUBSCRIPTION_CACHE_EVICTION_TOTAL,
+            SESSION_EXECUTOR_QUEUE_DEPTH, SESSION_EXECUTOR_WAIT_SECONDS, CLUSTER_TAKEOVER_SECONDS, CLUSTER_FORWARD_DROPPED_TOTAL, PUBLISH_STAGE_SECONDS,
+            OFFLINE_MESSAGE_PENDING, OFFLINE_MESSAGE_DROPPED_TOTAL, OFFLINE_MESSAGE_LOG_BYTES,
+            SESSION_RESUME_SECONDS, SESSION_RESUME_MESSAGES,
+            HOT_TOPIC_MESSAGES, HOT_PUBLISHER_MESSAGES, HOT_SUBSCRIBER_MESSAGES);
 
-    public static Optional<Counter> getCounterByName(String name) {
-        switch (name) {
-            case METRIC_MESSAGE_SENT_TOTAL -> {
-                return Optional.ofNullable(MESSAGE_SENT_TOTAL);
-            }
-            case METRIC_MESSAGE_RECEIVED_TOTAL -> {
-                return Optional.ofNullable(MESSAGE_RECEIVED_TOTAL);
-            }
-            default -> {
-                return Optional.empty();
-            }
-        }
-    }
+    private static final List<HeavyHitters> HEAVY_HITTERS = List.of(HOT_TOPIC_MESSAGES, HOT_PUBLISHER_MESSAGES, HOT_SUBSCRIBER_MESSAGES);
 
-    public static void init() {
-        CONNECTION_ACTIVE = Gauge.build().name(METRIC_CONNECTION_ACTIVE).help(HELP_METRIC_CONNECTION_ACTIVE).register();
-        SUBSCRIPTION_ACTIVE = Gauge.build().name(METRIC_SUBSCRIPTION_ACTIVE).help(HELP_METRIC_SUBSCRIPTION_ACTIVE).register();
-        WILL_MESSAGE_ACTIVE = Gauge.build().name(METRIC_WILL_MESSAGE_ACTIVE).help(HELP_METRIC_WILL_MESSAGE_ACTIVE).register();
-        RETAIN_MESSAGE_ACTIVE = Gauge.build().name(METRIC_RETAIN_MESSAGE_ACTIVE).help(HELP_METRIC_RETAIN_MESSAGE_ACTIVE).register();
-        TOPIC_ACTIVE = Gauge.build().name(METRIC_TOPIC_ACTIVE).help(HELP_METRIC_TOPIC_ACTIVE).register();
-        MESSAGE_SENT_TOTAL = Counter.build().name(METRIC_MESSAGE_SENT_TOTAL).help(HELP_METRIC_MESSAGE_SENT_TOTAL).register();
-        MESSAGE_RECEIVED_TOTAL = Counter.build().name(METRIC_MESSAGE_RECEIVED_TOTAL).help(HELP_METRIC_MESSAGE_RECEIVED_TOTAL).register();
+    public static void init(ExporterProperties properties) {
+        PUBLISH_STAGE_SECONDS.setSampleRate(properties.getStageSampleRate());
+        HEAVY_HITTERS.forEach(heavyHitters -> {
+            heavyHitters.setCapacity(properties.getHotKeysCapacity());
+            heavyHitters.rotate();
+        });
+        long window = properties.getHotKeysWindowSeconds();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "octopus-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> HEAVY_HITTERS.forEach(HeavyHitters::rotate), window, window, TimeUnit.SECONDS);
+        COLLECTORS.forEach(Collector::register);
     }
 }
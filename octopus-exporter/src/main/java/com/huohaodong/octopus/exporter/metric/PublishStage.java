@@ -0,0 +1,15 @@
+package com.huohaodong.octopus.exporter.metric;
+
+/* PUBLISH 报文处理过程中的各个阶段 */
+public enum PublishStage {
+    /* 解码 */
+    DECODE,
+    /* 匹配订阅 */
+    MATCH,
+    /* 持久化单个订阅者的未完成消息 */
+    PERSIST,
+    /* 写出到单个订阅者的连接，直到写入 Socket */
+    WRITE,
+    /* 转发给集群中的其他 Broker */
+    FORWARD
+}
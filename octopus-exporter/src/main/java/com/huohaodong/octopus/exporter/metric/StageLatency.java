@@ -0,0 +1,129 @@
+package com.huohaodong.octopus.exporter.metric;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.SummaryMetricFamily;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按阶段统计的耗时分布，以 Prometheus summary 导出，stage 标签为枚举名的小写形式。
+ * 记录时只写入 HdrHistogram 的 Recorder 和 LongAdder，不加锁；分位数在抓取时计算，覆盖最近一到两个统计窗口。
+ * 按 1 / sampleRate 的概率采样，_count 和 _sum 也只包含被采样的记录；设置 sampleRate 之前不做任何记录。
+ */
+public class StageLatency extends Collector {
+
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private static final List<Double> QUANTILES = List.of(0.5, 0.9, 0.99, 0.999);
+
+    private final String name;
+
+    private final String help;
+
+    private volatile int sampleRate;
+
+    private final Stage[] stages;
+
+    /* 只在 collect 中访问 */
+    private long windowStartNanos = System.nanoTime();
+
+    public StageLatency(String name, String help, Class<? extends Enum<?>> stageType) {
+        this.name = name;
+        this.help = help;
+        Enum<?>[] constants = stageType.getEnumConstants();
+        this.stages = new Stage[constants.length];
+        for (Enum<?> constant : constants) {
+            stages[constant.ordinal()] = new Stage(constant.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /* 未被采样时返回 0，对应的 stop 不做任何记录 */
+    public long start() {
+        int rate = sampleRate;
+        if (rate == 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    public void stop(Enum<?> stage, long startNanos) {
+        if (startNanos != 0) {
+            record(stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    public void record(Enum<?> stage, long nanos) {
+        Stage target = stages[stage.ordinal()];
+        long value = Math.max(0, Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+        target.recorder.recordValue(value);
+        target.count.increment();
+        target.sumNanos.add(value);
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        long now = System.nanoTime();
+        boolean rotate = now - windowStartNanos >= WINDOW_NANOS;
+        if (rotate) {
+            windowStartNanos = now;
+        }
+        SummaryMetricFamily family = new SummaryMetricFamily(name, help, List.of("stage"), QUANTILES);
+        for (Stage stage : stages) {
+            stage.interval = stage.interval == null ? stage.recorder.getIntervalHistogram() : stage.recorder.getIntervalHistogram(stage.interval);
+            if (rotate) {
+                Histogram previous = stage.previous;
+                stage.previous = stage.current;
+                stage.current = previous;
+                stage.current.reset();
+            }
+            stage.current.add(stage.interval);
+            stage.merged.reset();
+            stage.merged.add(stage.previous);
+            stage.merged.add(stage.current);
+            List<Double> values = new ArrayList<>(QUANTILES.size());
+            for (double quantile : QUANTILES) {
+                values.add(stage.merged.getTotalCount() == 0 ? Double.NaN : stage.merged.getValueAtPercentile(quantile * 100) / 1e9);
+            }
+            family.addMetric(List.of(stage.label), stage.count.sum(), stage.sumNanos.sum() / 1e9, values);
+        }
+        return List.of(family);
+    }
+
+    private static final class Stage {
+
+        private final String label;
+
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram interval;
+
+        private Histogram current = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+        private Histogram previous = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+        private final Histogram merged = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+
+        private Stage(String label) {
+            this.label = label;
+        }
+    }
+}
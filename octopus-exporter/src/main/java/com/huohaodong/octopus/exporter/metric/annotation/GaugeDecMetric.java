@@ -1,10 +0,0 @@
-package com.huohaodong.octopus.exporter.metric.annotation;
-
-import java.lang.annotation.*;
-
-@Target({ElementType.METHOD})
-@Retention(RetentionPolicy.RUNTIME)
-@Inherited
-public @interface GaugeDecMetric {
-    String name() default "";
-}
\ No newline at end of file